@@ -337,10 +337,16 @@ module KBaseFeatureValues {
         string algorithm;
         string out_workspace;
         string out_clusterset_id;
+        string cluster_by;
+        int condition_k;
     } ClusterKMeansParams;
 
     /*
         Clusters features by K-means clustering.
+        cluster_by - what is clustered: "features" (matrix rows, default),
+            "conditions" (matrix columns) or "both", conditions are clustered
+            concurrently with features in the last case;
+        condition_k - number of condition clusters (default is k).
     */
     funcdef cluster_k_means(ClusterKMeansParams params)
         returns (string workspace_ref) authentication required;
@@ -356,10 +362,16 @@ module KBaseFeatureValues {
         string algorithm;
         string out_workspace;
         string out_clusterset_id;
+        string cluster_by;
     } ClusterHierarchicalParams;
 
     /*
         Clusters features by hierarchical clustering.
+        cluster_by - what is clustered: "features" (matrix rows, default),
+            "conditions" (matrix columns) or "both", conditions are clustered
+            concurrently with features in the last case;
+        condition_height_cutoff - height cutoff for condition dendrogram
+            (default is feature_height_cutoff).
     */
     funcdef cluster_hierarchical(ClusterHierarchicalParams params)
         returns (string workspace_ref) authentication required;
@@ -371,12 +383,15 @@ module KBaseFeatureValues {
         ws_featureclusters_id input_data;
         string out_workspace;
         string out_clusterset_id;
+        boolean skip_cluster_qualities;
     } ClustersFromDendrogramParams;
 
     /*
         Given a FeatureClusters with a dendogram built from a hierarchical clustering
         method, this function creates new clusters by cutting the dendogram at
         a specific hieght or by some other approach.
+        Matrix values are loaded only for calculation of cluster qualities
+        (meancor, msec), skip_cluster_qualities=1 turns it off.
     */
     funcdef clusters_from_dendrogram(ClustersFromDendrogramParams params)
         returns (string workspace_ref) authentication required;
@@ -386,12 +401,19 @@ module KBaseFeatureValues {
         ws_featureclusters_id input_clusterset;
         string out_workspace;
         string out_report_id;
+        int silhouette_sample_size;
     } EvaluateClustersetQualityParams;
 
     /*
-        Given a FeatureClusters with a dendogram built from a hierarchical clustering
-        method, this function creates new clusters by cutting the dendogram at
-        a specific hieght or by some other approach.
+        Evaluates quality of FeatureClusters object on its original_data matrix:
+        silhouette, mean pairwise correlation (meancor) and MSEC of each cluster and
+        overall ones plus Davies-Bouldin index. Copy of cluster set with updated
+        meancor/msec and these values in report is saved as out_report_id object
+        (input name and workspace are used if out_report_id/out_workspace are not set).
+        Distance is correlation one for cluster sets with dendrogram and Euclidean
+        otherwise. Silhouette is exact for up to silhouette_sample_size rows (5000 by
+        default, 0 means always exact), larger matrices are evaluated on that many
+        randomly sampled rows.
     */
     funcdef evaluate_clusterset_quality(EvaluateClustersetQualityParams params)
         returns () authentication required;
@@ -831,6 +853,82 @@ module KBaseFeatureValues {
     funcdef get_submatrix_stat(GetSubmatrixStatParams)
     	returns (SubmatrixStat) authentication required;
 
+    /*
+        input_data - matrix to search in,
+        query_row_ids - ids of rows (features) to find neighbors for,
+        k - maximal number of rows returned for each query row
+            (default value is 10),
+        mode - optional field, value is one of 'positive' (most positively
+            correlated rows, default value), 'negative' (most negatively
+            correlated rows) or 'absolute' (largest absolute correlation),
+        column_ids - optional list of columns (conditions) correlation is
+            calculated over (all columns are used by default).
+    */
+    typedef structure {
+        ws_matrix_id input_data;
+        list<string> query_row_ids;
+        int k;
+        string mode;
+        list<string> column_ids;
+    } GetTopCorrelatedRowsParams;
+
+    /*
+        row_index - position of row in matrix,
+        correlation - Pearson correlation of this row with query row.
+    */
+    typedef structure {
+        string row_id;
+        int row_index;
+        float correlation;
+    } CorrelatedRow;
+
+    /*
+        rows - top correlated rows sorted from best to worst
+            according to search mode, query row itself is excluded.
+    */
+    typedef structure {
+        string query_row_id;
+        int query_row_index;
+        list<CorrelatedRow> rows;
+    } TopCorrelatedRows;
+
+    /*
+        Finds rows which are most correlated with each of query rows without
+        building full pairwise correlation matrix.
+    */
+    funcdef get_top_correlated_rows(GetTopCorrelatedRowsParams params)
+        returns (list<TopCorrelatedRows>) authentication required;
+
+    /*
+        input_data - matrix to build index for,
+        k - number of most positively and most negatively correlated rows
+            stored for each row (default value is 50).
+    */
+    typedef structure {
+        ws_matrix_id input_data;
+        int k;
+    } BuildNeighborIndexParams;
+
+    /*
+        index_key - resolved reference (wsid/objid/ver) of indexed matrix version,
+        rows_count - number of indexed rows,
+        k - number of neighbors stored for each row in each direction.
+    */
+    typedef structure {
+        string index_key;
+        int rows_count;
+        int k;
+    } NeighborIndexInfo;
+
+    /*
+        Precomputes top correlated rows for every row of given matrix version and
+        stores them in scratch area. get_top_correlated_rows reads this index
+        instead of matrix when correlation is calculated over all columns and
+        k is not larger than the one used for the index.
+    */
+    funcdef build_neighbor_index(BuildNeighborIndexParams params)
+        returns (NeighborIndexInfo) authentication required;
+
     /*
         input_shock_id and input_file_path - alternative intput params,
         genome_ref - optional reference to a Genome object that will be
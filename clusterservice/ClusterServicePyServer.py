@@ -448,6 +448,16 @@ def stop_server():
     _proc.terminate()
     _proc = None
 
+def load_matrix_values(param):
+    '''
+    Matrix values passed as NPY file (see BinaryMatrixTransport.java) are
+    mapped into numpy array, NaN means missing value.'''
+    if isinstance(param, dict) and param.get('values_npy') is not None:
+        import numpy
+        param = dict(param)
+        param['values'] = numpy.load(param.pop('values_npy'), mmap_mode='r')
+    return param
+
 def process_async_cli(input_file_path, output_file_path, token):
     exit_code = 0
     with open(input_file_path) as data_file:    
@@ -456,6 +466,8 @@ def process_async_cli(input_file_path, output_file_path, token):
         req['version'] = '1.1'
     if 'id' not in req: 
         req['id'] = str(_random.random())[2:]
+    if isinstance(req.get('params'), list):
+        req['params'] = [load_matrix_values(p) for p in req['params']]
     ctx = MethodContext(application.userlog)
     ctx['rpc_context'] = req['context']
     resp = None
@@ -485,7 +497,34 @@ def process_async_cli(input_file_path, output_file_path, token):
         f.write(json.dumps(resp, cls=JSONObjectEncoder))
     return exit_code
     
+def process_worker():
+    '''
+    Long-lived worker mode (see LocalWorkerPool.java): every stdin line is
+    "input<TAB>output[<TAB>token]" of one call processed like in async CLI
+    mode, so interpreter and libraries are loaded only once.'''
+    import resource
+    while True:
+        line = sys.stdin.readline()
+        if not line:
+            return 0
+        line = line.rstrip('\n')
+        if line == 'KBWORKER PING':
+            print('KBWORKER PONG')
+        else:
+            parts = line.split('\t')
+            token = parts[2] if len(parts) > 2 else None
+            try:
+                process_async_cli(parts[0], parts[1], token)
+            except Exception:
+                traceback.print_exc()
+            # ru_maxrss is in kilobytes on Linux
+            memory_mb = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss / 1024.0
+            print('KBWORKER DONE %s' % memory_mb)
+        sys.stdout.flush()
+
 if __name__ == "__main__":
+    if len(sys.argv) >= 2 and sys.argv[1] == '--worker':
+        sys.exit(process_worker())
     if len(sys.argv) >= 3 and len(sys.argv) <= 4 and os.path.isfile(sys.argv[1]):
         token = None
         if len(sys.argv) == 4:
@@ -71,8 +71,6 @@ calc_cluster_props = function(logratios_median, cluster, ret) {
 
 clusters_from_dendrogram = function(values, dendrogram, height_cutoff) {
     hcout <- as.hclust.phylo(read.tree(text=dendrogram))
-    pdf("/kb/module/work/hcout.pdf", width=8.5, height=11)
-    plot(hcout)
     groups <- cutree(hcout, h=height_cutoff)
     names <- names(groups)
     cluster_labels <- numeric(nrow(values))
@@ -88,6 +86,31 @@ clusters_from_dendrogram = function(values, dendrogram, height_cutoff) {
         dendrogram=unbox(dendrogram))))
 }
 
+# Matrix values passed as NPY file (little-endian float64, row-major, see
+# BinaryMatrixTransport.java) are read into numeric matrix, NaN means missing
+read_npy_matrix = function(path, nrow, ncol) {
+    con <- file(path, "rb")
+    on.exit(close(con))
+    magic <- readBin(con, "raw", n=8)
+    if (!identical(magic[2:6], charToRaw("NUMPY")))
+        stop(paste("Unsupported NPY format in", path))
+    header_len <- readBin(con, "integer", n=1, size=2, signed=FALSE, endian="little")
+    readBin(con, "raw", n=header_len)
+    values <- readBin(con, "double", n=nrow*ncol, size=8, endian="little")
+    values <- matrix(values, nrow=nrow, ncol=ncol, byrow=TRUE)
+    values[is.nan(values)] <- NA
+    return(values)
+}
+
+load_matrix_values = function(param) {
+    if (is.list(param) && !is.null(param[["values_npy"]])) {
+        param[["values"]] <- read_npy_matrix(param[["values_npy"]],
+            length(param[["row_ids"]]), length(param[["col_ids"]]))
+        param[["values_npy"]] <- NULL
+    }
+    return(param)
+}
+
 methods <- list()
 
 methods[["ClusterServiceR.estimate_k"]] <- function(matrix, min_k, max_k, 
@@ -222,29 +245,54 @@ methods[["ClusterServiceR.calc_cluster_qualities"]] <- function(
     return(calc_cluster_props(values, cluster_labels, list(cluster_labels=cluster_labels)))
 }
 
-tryCatch({
-    args <- commandArgs(trailingOnly = TRUE)
-    input <- fromJSON(args[1], flatten=TRUE, simplifyDataFrame=FALSE, 
-        simplifyVector=TRUE, simplifyMatrix=TRUE)
-    params <- input[["params"]]
-    if (class(params) != "list") {
-        input <- fromJSON(args[1], flatten=TRUE, simplifyDataFrame=FALSE, 
-            simplifyVector=FALSE, simplifyMatrix=FALSE)
+process_request = function(input_file, output_file) {
+    tryCatch({
+        input <- fromJSON(input_file, flatten=TRUE, simplifyDataFrame=FALSE, 
+            simplifyVector=TRUE, simplifyMatrix=TRUE)
         params <- input[["params"]]
+        if (class(params) != "list") {
+            input <- fromJSON(input_file, flatten=TRUE, simplifyDataFrame=FALSE, 
+                simplifyVector=FALSE, simplifyMatrix=FALSE)
+            params <- input[["params"]]
+        }
+        params <- lapply(params, load_matrix_values)
+        method <- input[["method"]]
+        func <- methods[[method]]
+        if ( is.null(func) ) {
+            stop(paste("ERROR: Function wasn't found: ", method))
+        }
+        ret <- do.call(func, params)
+        output <- toJSON(list(version=unbox("1.1"),result=list(ret)))
+        write(output, file=output_file)
+    }, error = function(err) {
+        msg <- paste("ERROR: ", err)
+        print(msg)
+        output <- toJSON(list(version=unbox("1.1"),error=list(error=unbox(""),
+            name=unbox("JSONRPCError"),code=unbox(-32603),message=unbox(msg))))
+        write(output, file=output_file)
+    }, finally = {
+    })
+}
+
+args <- commandArgs(trailingOnly = TRUE)
+if (length(args) > 0 && args[1] == "--worker") {
+    # Long-lived worker (see LocalWorkerPool.java): every stdin line is
+    # "input<TAB>output[<TAB>token]" of one call, so libraries are loaded once
+    con <- file("stdin", open="r")
+    repeat {
+        line <- readLines(con, n=1)
+        if (length(line) == 0)
+            break
+        if (line == "KBWORKER PING") {
+            cat("KBWORKER PONG\n")
+        } else {
+            paths <- strsplit(line, "\t", fixed=TRUE)[[1]]
+            process_request(paths[1], paths[2])
+            cat(paste0("KBWORKER DONE ", sum(gc()[, 2]), "\n"))
+        }
+        flush(stdout())
     }
-    method <- input[["method"]]
-    func <- methods[[method]]
-    if ( is.null(func) ) {
-        stop(paste("ERROR: Function wasn't found: ", method))
-    }
-    ret <- do.call(func, params)
-    output <- toJSON(list(version=unbox("1.1"),result=list(ret)))
-    write(output, file=args[2])
-}, error = function(err) {
-    msg <- paste("ERROR: ", err)
-    print(msg)
-    output <- toJSON(list(version=unbox("1.1"),error=list(error=unbox(""),
-        name=unbox("JSONRPCError"),code=unbox(-32603),message=unbox(msg))))
-    write(output, file=args[2])
-}, finally = {
-})
+    close(con)
+} else {
+    process_request(args[1], args[2])
+}
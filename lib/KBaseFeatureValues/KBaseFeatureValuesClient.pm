@@ -377,6 +377,8 @@ ClusterKMeansParams is a reference to a hash where the following keys are define
 	algorithm has a value which is a string
 	out_workspace has a value which is a string
 	out_clusterset_id has a value which is a string
+	cluster_by has a value which is a string
+	condition_k has a value which is an int
 ws_matrix_id is a string
 
 </pre>
@@ -396,6 +398,8 @@ ClusterKMeansParams is a reference to a hash where the following keys are define
 	algorithm has a value which is a string
 	out_workspace has a value which is a string
 	out_clusterset_id has a value which is a string
+	cluster_by has a value which is a string
+	condition_k has a value which is an int
 ws_matrix_id is a string
 
 
@@ -404,6 +408,10 @@ ws_matrix_id is a string
 =item Description
 
 Clusters features by K-means clustering.
+cluster_by - what is clustered: "features" (matrix rows, default),
+    "conditions" (matrix columns) or "both", conditions are clustered
+    concurrently with features in the last case;
+condition_k - number of condition clusters (default is k).
 
 =back
 
@@ -480,6 +488,7 @@ ClusterHierarchicalParams is a reference to a hash where the following keys are
 	algorithm has a value which is a string
 	out_workspace has a value which is a string
 	out_clusterset_id has a value which is a string
+	cluster_by has a value which is a string
 ws_matrix_id is a string
 
 </pre>
@@ -500,6 +509,7 @@ ClusterHierarchicalParams is a reference to a hash where the following keys are
 	algorithm has a value which is a string
 	out_workspace has a value which is a string
 	out_clusterset_id has a value which is a string
+	cluster_by has a value which is a string
 ws_matrix_id is a string
 
 
@@ -508,6 +518,11 @@ ws_matrix_id is a string
 =item Description
 
 Clusters features by hierarchical clustering.
+cluster_by - what is clustered: "features" (matrix rows, default),
+    "conditions" (matrix columns) or "both", conditions are clustered
+    concurrently with features in the last case;
+condition_height_cutoff - height cutoff for condition dendrogram
+    (default is feature_height_cutoff).
 
 =back
 
@@ -580,7 +595,9 @@ ClustersFromDendrogramParams is a reference to a hash where the following keys a
 	input_data has a value which is a KBaseFeatureValues.ws_featureclusters_id
 	out_workspace has a value which is a string
 	out_clusterset_id has a value which is a string
+	skip_cluster_qualities has a value which is a KBaseFeatureValues.boolean
 ws_featureclusters_id is a string
+boolean is an int
 
 </pre>
 
@@ -596,7 +613,9 @@ ClustersFromDendrogramParams is a reference to a hash where the following keys a
 	input_data has a value which is a KBaseFeatureValues.ws_featureclusters_id
 	out_workspace has a value which is a string
 	out_clusterset_id has a value which is a string
+	skip_cluster_qualities has a value which is a KBaseFeatureValues.boolean
 ws_featureclusters_id is a string
+boolean is an int
 
 
 =end text
@@ -606,6 +625,8 @@ ws_featureclusters_id is a string
 Given a FeatureClusters with a dendogram built from a hierarchical clustering
 method, this function creates new clusters by cutting the dendogram at
 a specific hieght or by some other approach.
+Matrix values are loaded only for calculation of cluster qualities
+(meancor, msec), skip_cluster_qualities=1 turns it off.
 
 =back
 
@@ -675,6 +696,7 @@ EvaluateClustersetQualityParams is a reference to a hash where the following key
 	input_clusterset has a value which is a KBaseFeatureValues.ws_featureclusters_id
 	out_workspace has a value which is a string
 	out_report_id has a value which is a string
+	silhouette_sample_size has a value which is an int
 ws_featureclusters_id is a string
 
 </pre>
@@ -688,6 +710,7 @@ EvaluateClustersetQualityParams is a reference to a hash where the following key
 	input_clusterset has a value which is a KBaseFeatureValues.ws_featureclusters_id
 	out_workspace has a value which is a string
 	out_report_id has a value which is a string
+	silhouette_sample_size has a value which is an int
 ws_featureclusters_id is a string
 
 
@@ -695,9 +718,15 @@ ws_featureclusters_id is a string
 
 =item Description
 
-Given a FeatureClusters with a dendogram built from a hierarchical clustering
-method, this function creates new clusters by cutting the dendogram at
-a specific hieght or by some other approach.
+Evaluates quality of FeatureClusters object on its original_data matrix:
+silhouette, mean pairwise correlation (meancor) and MSEC of each cluster and
+overall ones plus Davies-Bouldin index. Copy of cluster set with updated
+meancor/msec and these values in report is saved as out_report_id object
+(input name and workspace are used if out_report_id/out_workspace are not set).
+Distance is correlation one for cluster sets with dendrogram and Euclidean
+otherwise. Silhouette is exact for up to silhouette_sample_size rows (5000 by
+default, 0 means always exact), larger matrices are evaluated on that many
+randomly sampled rows.
 
 =back
 
@@ -2301,6 +2330,220 @@ PairwiseComparison is a reference to a hash where the following keys are defined
  
 
 
+=head2 get_top_correlated_rows
+
+  $return = $obj->get_top_correlated_rows($params)
+
+=over 4
+
+=item Parameter and return types
+
+=begin html
+
+<pre>
+$params is a KBaseFeatureValues.GetTopCorrelatedRowsParams
+$return is a reference to a list where each element is a KBaseFeatureValues.TopCorrelatedRows
+GetTopCorrelatedRowsParams is a reference to a hash where the following keys are defined:
+	input_data has a value which is a KBaseFeatureValues.ws_matrix_id
+	query_row_ids has a value which is a reference to a list where each element is a string
+	k has a value which is an int
+	mode has a value which is a string
+	column_ids has a value which is a reference to a list where each element is a string
+ws_matrix_id is a string
+TopCorrelatedRows is a reference to a hash where the following keys are defined:
+	query_row_id has a value which is a string
+	query_row_index has a value which is an int
+	rows has a value which is a reference to a list where each element is a KBaseFeatureValues.CorrelatedRow
+CorrelatedRow is a reference to a hash where the following keys are defined:
+	row_id has a value which is a string
+	row_index has a value which is an int
+	correlation has a value which is a float
+
+</pre>
+
+=end html
+
+=begin text
+
+$params is a KBaseFeatureValues.GetTopCorrelatedRowsParams
+$return is a reference to a list where each element is a KBaseFeatureValues.TopCorrelatedRows
+GetTopCorrelatedRowsParams is a reference to a hash where the following keys are defined:
+	input_data has a value which is a KBaseFeatureValues.ws_matrix_id
+	query_row_ids has a value which is a reference to a list where each element is a string
+	k has a value which is an int
+	mode has a value which is a string
+	column_ids has a value which is a reference to a list where each element is a string
+ws_matrix_id is a string
+TopCorrelatedRows is a reference to a hash where the following keys are defined:
+	query_row_id has a value which is a string
+	query_row_index has a value which is an int
+	rows has a value which is a reference to a list where each element is a KBaseFeatureValues.CorrelatedRow
+CorrelatedRow is a reference to a hash where the following keys are defined:
+	row_id has a value which is a string
+	row_index has a value which is an int
+	correlation has a value which is a float
+
+
+=end text
+
+=item Description
+
+Finds rows which are most correlated with each of query rows without
+building full pairwise correlation matrix.
+
+=back
+
+=cut
+
+ sub get_top_correlated_rows
+{
+    my($self, @args) = @_;
+
+# Authentication: required
+
+    if ((my $n = @args) != 1)
+    {
+	Bio::KBase::Exceptions::ArgumentValidationError->throw(error =>
+							       "Invalid argument count for function get_top_correlated_rows (received $n, expecting 1)");
+    }
+    {
+	my($params) = @args;
+
+	my @_bad_arguments;
+        (ref($params) eq 'HASH') or push(@_bad_arguments, "Invalid type for argument 1 \"params\" (value was \"$params\")");
+        if (@_bad_arguments) {
+	    my $msg = "Invalid arguments passed to get_top_correlated_rows:\n" . join("", map { "\t$_\n" } @_bad_arguments);
+	    Bio::KBase::Exceptions::ArgumentValidationError->throw(error => $msg,
+								   method_name => 'get_top_correlated_rows');
+	}
+    }
+
+    my $url = $self->{url};
+    my $result = $self->{client}->call($url, $self->{headers}, {
+	    method => "KBaseFeatureValues.get_top_correlated_rows",
+	    params => \@args,
+    });
+    if ($result) {
+	if ($result->is_error) {
+	    Bio::KBase::Exceptions::JSONRPC->throw(error => $result->error_message,
+					       code => $result->content->{error}->{code},
+					       method_name => 'get_top_correlated_rows',
+					       data => $result->content->{error}->{error} # JSON::RPC::ReturnObject only supports JSONRPC 1.1 or 1.O
+					      );
+	} else {
+	    return wantarray ? @{$result->result} : $result->result->[0];
+	}
+    } else {
+        Bio::KBase::Exceptions::HTTP->throw(error => "Error invoking method get_top_correlated_rows",
+					    status_line => $self->{client}->status_line,
+					    method_name => 'get_top_correlated_rows',
+				       );
+    }
+}
+ 
+
+
+=head2 build_neighbor_index
+
+  $return = $obj->build_neighbor_index($params)
+
+=over 4
+
+=item Parameter and return types
+
+=begin html
+
+<pre>
+$params is a KBaseFeatureValues.BuildNeighborIndexParams
+$return is a KBaseFeatureValues.NeighborIndexInfo
+BuildNeighborIndexParams is a reference to a hash where the following keys are defined:
+	input_data has a value which is a KBaseFeatureValues.ws_matrix_id
+	k has a value which is an int
+ws_matrix_id is a string
+NeighborIndexInfo is a reference to a hash where the following keys are defined:
+	index_key has a value which is a string
+	rows_count has a value which is an int
+	k has a value which is an int
+
+</pre>
+
+=end html
+
+=begin text
+
+$params is a KBaseFeatureValues.BuildNeighborIndexParams
+$return is a KBaseFeatureValues.NeighborIndexInfo
+BuildNeighborIndexParams is a reference to a hash where the following keys are defined:
+	input_data has a value which is a KBaseFeatureValues.ws_matrix_id
+	k has a value which is an int
+ws_matrix_id is a string
+NeighborIndexInfo is a reference to a hash where the following keys are defined:
+	index_key has a value which is a string
+	rows_count has a value which is an int
+	k has a value which is an int
+
+
+=end text
+
+=item Description
+
+Precomputes top correlated rows for every row of given matrix version and
+stores them in scratch area. get_top_correlated_rows reads this index
+instead of matrix when correlation is calculated over all columns and
+k is not larger than the one used for the index.
+
+=back
+
+=cut
+
+ sub build_neighbor_index
+{
+    my($self, @args) = @_;
+
+# Authentication: required
+
+    if ((my $n = @args) != 1)
+    {
+	Bio::KBase::Exceptions::ArgumentValidationError->throw(error =>
+							       "Invalid argument count for function build_neighbor_index (received $n, expecting 1)");
+    }
+    {
+	my($params) = @args;
+
+	my @_bad_arguments;
+        (ref($params) eq 'HASH') or push(@_bad_arguments, "Invalid type for argument 1 \"params\" (value was \"$params\")");
+        if (@_bad_arguments) {
+	    my $msg = "Invalid arguments passed to build_neighbor_index:\n" . join("", map { "\t$_\n" } @_bad_arguments);
+	    Bio::KBase::Exceptions::ArgumentValidationError->throw(error => $msg,
+								   method_name => 'build_neighbor_index');
+	}
+    }
+
+    my $url = $self->{url};
+    my $result = $self->{client}->call($url, $self->{headers}, {
+	    method => "KBaseFeatureValues.build_neighbor_index",
+	    params => \@args,
+    });
+    if ($result) {
+	if ($result->is_error) {
+	    Bio::KBase::Exceptions::JSONRPC->throw(error => $result->error_message,
+					       code => $result->content->{error}->{code},
+					       method_name => 'build_neighbor_index',
+					       data => $result->content->{error}->{error} # JSON::RPC::ReturnObject only supports JSONRPC 1.1 or 1.O
+					      );
+	} else {
+	    return wantarray ? @{$result->result} : $result->result->[0];
+	}
+    } else {
+        Bio::KBase::Exceptions::HTTP->throw(error => "Error invoking method build_neighbor_index",
+					    status_line => $self->{client}->status_line,
+					    method_name => 'build_neighbor_index',
+				       );
+    }
+}
+ 
+
+
 =head2 tsv_file_to_matrix
 
   $return = $obj->tsv_file_to_matrix($params)
@@ -3800,6 +4043,8 @@ random_seed has a value which is an int
 algorithm has a value which is a string
 out_workspace has a value which is a string
 out_clusterset_id has a value which is a string
+cluster_by has a value which is a string
+condition_k has a value which is an int
 
 </pre>
 
@@ -3816,6 +4061,8 @@ random_seed has a value which is an int
 algorithm has a value which is a string
 out_workspace has a value which is a string
 out_clusterset_id has a value which is a string
+cluster_by has a value which is a string
+condition_k has a value which is an int
 
 
 =end text
@@ -3845,6 +4092,7 @@ input_data has a value which is a KBaseFeatureValues.ws_matrix_id
 algorithm has a value which is a string
 out_workspace has a value which is a string
 out_clusterset_id has a value which is a string
+cluster_by has a value which is a string
 
 </pre>
 
@@ -3862,6 +4110,7 @@ input_data has a value which is a KBaseFeatureValues.ws_matrix_id
 algorithm has a value which is a string
 out_workspace has a value which is a string
 out_clusterset_id has a value which is a string
+cluster_by has a value which is a string
 
 
 =end text
@@ -3887,6 +4136,7 @@ condition_height_cutoff has a value which is a float
 input_data has a value which is a KBaseFeatureValues.ws_featureclusters_id
 out_workspace has a value which is a string
 out_clusterset_id has a value which is a string
+skip_cluster_qualities has a value which is a KBaseFeatureValues.boolean
 
 </pre>
 
@@ -3900,6 +4150,7 @@ condition_height_cutoff has a value which is a float
 input_data has a value which is a KBaseFeatureValues.ws_featureclusters_id
 out_workspace has a value which is a string
 out_clusterset_id has a value which is a string
+skip_cluster_qualities has a value which is a KBaseFeatureValues.boolean
 
 
 =end text
@@ -3923,6 +4174,7 @@ a reference to a hash where the following keys are defined:
 input_clusterset has a value which is a KBaseFeatureValues.ws_featureclusters_id
 out_workspace has a value which is a string
 out_report_id has a value which is a string
+silhouette_sample_size has a value which is an int
 
 </pre>
 
@@ -3934,6 +4186,7 @@ a reference to a hash where the following keys are defined:
 input_clusterset has a value which is a KBaseFeatureValues.ws_featureclusters_id
 out_workspace has a value which is a string
 out_report_id has a value which is a string
+silhouette_sample_size has a value which is an int
 
 
 =end text
@@ -4891,6 +5144,217 @@ fl_values has a value which is a KBaseFeatureValues.boolean
 
 
 
+=head2 GetTopCorrelatedRowsParams
+
+=over 4
+
+
+
+=item Description
+
+input_data - matrix to search in,
+query_row_ids - ids of rows (features) to find neighbors for,
+k - maximal number of rows returned for each query row
+    (default value is 10),
+mode - optional field, value is one of 'positive' (most positively
+    correlated rows, default value), 'negative' (most negatively
+    correlated rows) or 'absolute' (largest absolute correlation),
+column_ids - optional list of columns (conditions) correlation is
+    calculated over (all columns are used by default).
+
+
+=item Definition
+
+=begin html
+
+<pre>
+a reference to a hash where the following keys are defined:
+input_data has a value which is a KBaseFeatureValues.ws_matrix_id
+query_row_ids has a value which is a reference to a list where each element is a string
+k has a value which is an int
+mode has a value which is a string
+column_ids has a value which is a reference to a list where each element is a string
+
+</pre>
+
+=end html
+
+=begin text
+
+a reference to a hash where the following keys are defined:
+input_data has a value which is a KBaseFeatureValues.ws_matrix_id
+query_row_ids has a value which is a reference to a list where each element is a string
+k has a value which is an int
+mode has a value which is a string
+column_ids has a value which is a reference to a list where each element is a string
+
+
+=end text
+
+=back
+
+
+
+=head2 CorrelatedRow
+
+=over 4
+
+
+
+=item Description
+
+row_index - position of row in matrix,
+correlation - Pearson correlation of this row with query row.
+
+
+=item Definition
+
+=begin html
+
+<pre>
+a reference to a hash where the following keys are defined:
+row_id has a value which is a string
+row_index has a value which is an int
+correlation has a value which is a float
+
+</pre>
+
+=end html
+
+=begin text
+
+a reference to a hash where the following keys are defined:
+row_id has a value which is a string
+row_index has a value which is an int
+correlation has a value which is a float
+
+
+=end text
+
+=back
+
+
+
+=head2 TopCorrelatedRows
+
+=over 4
+
+
+
+=item Description
+
+rows - top correlated rows sorted from best to worst
+    according to search mode, query row itself is excluded.
+
+
+=item Definition
+
+=begin html
+
+<pre>
+a reference to a hash where the following keys are defined:
+query_row_id has a value which is a string
+query_row_index has a value which is an int
+rows has a value which is a reference to a list where each element is a KBaseFeatureValues.CorrelatedRow
+
+</pre>
+
+=end html
+
+=begin text
+
+a reference to a hash where the following keys are defined:
+query_row_id has a value which is a string
+query_row_index has a value which is an int
+rows has a value which is a reference to a list where each element is a KBaseFeatureValues.CorrelatedRow
+
+
+=end text
+
+=back
+
+
+
+=head2 BuildNeighborIndexParams
+
+=over 4
+
+
+
+=item Description
+
+input_data - matrix to build index for,
+k - number of most positively and most negatively correlated rows
+    stored for each row (default value is 50).
+
+
+=item Definition
+
+=begin html
+
+<pre>
+a reference to a hash where the following keys are defined:
+input_data has a value which is a KBaseFeatureValues.ws_matrix_id
+k has a value which is an int
+
+</pre>
+
+=end html
+
+=begin text
+
+a reference to a hash where the following keys are defined:
+input_data has a value which is a KBaseFeatureValues.ws_matrix_id
+k has a value which is an int
+
+
+=end text
+
+=back
+
+
+
+=head2 NeighborIndexInfo
+
+=over 4
+
+
+
+=item Description
+
+index_key - resolved reference (wsid/objid/ver) of indexed matrix version,
+rows_count - number of indexed rows,
+k - number of neighbors stored for each row in each direction.
+
+
+=item Definition
+
+=begin html
+
+<pre>
+a reference to a hash where the following keys are defined:
+index_key has a value which is a string
+rows_count has a value which is an int
+k has a value which is an int
+
+</pre>
+
+=end html
+
+=begin text
+
+a reference to a hash where the following keys are defined:
+index_key has a value which is a string
+rows_count has a value which is an int
+k has a value which is an int
+
+
+=end text
+
+=back
+
+
+
 =head2 TsvFileToMatrixParams
 
 =over 4
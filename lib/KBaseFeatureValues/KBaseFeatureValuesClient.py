@@ -79,6 +79,10 @@ class KBaseFeatureValues(object):
     def cluster_k_means(self, params, context=None):
         """
         Clusters features by K-means clustering.
+        cluster_by - what is clustered: "features" (matrix rows, default),
+            "conditions" (matrix columns) or "both", conditions are clustered
+            concurrently with features in the last case;
+        condition_k - number of condition clusters (default is k).
         :param params: instance of type "ClusterKMeansParams" -> structure:
            parameter "k" of Long, parameter "input_data" of type
            "ws_matrix_id" (A workspace ID that references a Float2DMatrix
@@ -86,7 +90,9 @@ class KBaseFeatureValues(object):
            KBaseFeatureValues.SingleKnockoutFitnessMatrix), parameter
            "n_start" of Long, parameter "max_iter" of Long, parameter
            "random_seed" of Long, parameter "algorithm" of String, parameter
-           "out_workspace" of String, parameter "out_clusterset_id" of String
+           "out_workspace" of String, parameter "out_clusterset_id" of
+           String, parameter "cluster_by" of String, parameter "condition_k"
+           of Long
         :returns: instance of String
         """
         return self._client.call_method('KBaseFeatureValues.cluster_k_means',
@@ -95,6 +101,11 @@ class KBaseFeatureValues(object):
     def cluster_hierarchical(self, params, context=None):
         """
         Clusters features by hierarchical clustering.
+        cluster_by - what is clustered: "features" (matrix rows, default),
+            "conditions" (matrix columns) or "both", conditions are clustered
+            concurrently with features in the last case;
+        condition_height_cutoff - height cutoff for condition dendrogram
+            (default is feature_height_cutoff).
         :param params: instance of type "ClusterHierarchicalParams" ->
            structure: parameter "distance_metric" of String, parameter
            "linkage_criteria" of String, parameter "feature_height_cutoff" of
@@ -104,7 +115,8 @@ class KBaseFeatureValues(object):
            object. @id ws KBaseFeatureValues.ExpressionMatrix
            KBaseFeatureValues.SingleKnockoutFitnessMatrix), parameter
            "algorithm" of String, parameter "out_workspace" of String,
-           parameter "out_clusterset_id" of String
+           parameter "out_clusterset_id" of String, parameter "cluster_by" of
+           String
         :returns: instance of String
         """
         return self._client.call_method('KBaseFeatureValues.cluster_hierarchical',
@@ -115,13 +127,16 @@ class KBaseFeatureValues(object):
         Given a FeatureClusters with a dendogram built from a hierarchical clustering
         method, this function creates new clusters by cutting the dendogram at
         a specific hieght or by some other approach.
+        Matrix values are loaded only for calculation of cluster qualities
+        (meancor, msec), skip_cluster_qualities=1 turns it off.
         :param params: instance of type "ClustersFromDendrogramParams" ->
            structure: parameter "feature_height_cutoff" of Double, parameter
            "condition_height_cutoff" of Double, parameter "input_data" of
            type "ws_featureclusters_id" (The workspace ID of a
            FeatureClusters data object. @id ws
            KBaseFeatureValues.FeatureClusters), parameter "out_workspace" of
-           String, parameter "out_clusterset_id" of String
+           String, parameter "out_clusterset_id" of String, parameter
+           "skip_cluster_qualities" of type "boolean"
         :returns: instance of String
         """
         return self._client.call_method('KBaseFeatureValues.clusters_from_dendrogram',
@@ -129,14 +144,21 @@ class KBaseFeatureValues(object):
 
     def evaluate_clusterset_quality(self, params, context=None):
         """
-        Given a FeatureClusters with a dendogram built from a hierarchical clustering
-        method, this function creates new clusters by cutting the dendogram at
-        a specific hieght or by some other approach.
+        Evaluates quality of FeatureClusters object on its original_data matrix:
+        silhouette, mean pairwise correlation (meancor) and MSEC of each cluster and
+        overall ones plus Davies-Bouldin index. Copy of cluster set with updated
+        meancor/msec and these values in report is saved as out_report_id object
+        (input name and workspace are used if out_report_id/out_workspace are not set).
+        Distance is correlation one for cluster sets with dendrogram and Euclidean
+        otherwise. Silhouette is exact for up to silhouette_sample_size rows (5000 by
+        default, 0 means always exact), larger matrices are evaluated on that many
+        randomly sampled rows.
         :param params: instance of type "EvaluateClustersetQualityParams" ->
            structure: parameter "input_clusterset" of type
            "ws_featureclusters_id" (The workspace ID of a FeatureClusters
            data object. @id ws KBaseFeatureValues.FeatureClusters), parameter
-           "out_workspace" of String, parameter "out_report_id" of String
+           "out_workspace" of String, parameter "out_report_id" of String,
+           parameter "silhouette_sample_size" of Long
         """
         return self._client.call_method('KBaseFeatureValues.evaluate_clusterset_quality',
                                         [params], self._service_ver, context)
@@ -861,6 +883,63 @@ class KBaseFeatureValues(object):
         return self._client.call_method('KBaseFeatureValues.get_submatrix_stat',
                                         [GetSubmatrixStatParams], self._service_ver, context)
 
+    def get_top_correlated_rows(self, params, context=None):
+        """
+        Finds rows which are most correlated with each of query rows without
+        building full pairwise correlation matrix.
+        :param params: instance of type "GetTopCorrelatedRowsParams"
+           (input_data - matrix to search in, query_row_ids - ids of rows
+           (features) to find neighbors for, k - maximal number of rows
+           returned for each query row (default value is 10), mode - optional
+           field, value is one of 'positive' (most positively correlated
+           rows, default value), 'negative' (most negatively correlated rows)
+           or 'absolute' (largest absolute correlation), column_ids -
+           optional list of columns (conditions) correlation is calculated
+           over (all columns are used by default).) -> structure: parameter
+           "input_data" of type "ws_matrix_id" (A workspace ID that
+           references a Float2DMatrix wrapper data object. @id ws
+           KBaseFeatureValues.ExpressionMatrix
+           KBaseFeatureValues.SingleKnockoutFitnessMatrix), parameter
+           "query_row_ids" of list of String, parameter "k" of Long,
+           parameter "mode" of String, parameter "column_ids" of list of
+           String
+        :returns: instance of list of type "TopCorrelatedRows" (rows - top
+           correlated rows sorted from best to worst according to search
+           mode, query row itself is excluded.) -> structure: parameter
+           "query_row_id" of String, parameter "query_row_index" of Long,
+           parameter "rows" of list of type "CorrelatedRow" (row_index -
+           position of row in matrix, correlation - Pearson correlation of
+           this row with query row.) -> structure: parameter "row_id" of
+           String, parameter "row_index" of Long, parameter "correlation" of
+           Double
+        """
+        return self._client.call_method('KBaseFeatureValues.get_top_correlated_rows',
+                                        [params], self._service_ver, context)
+
+    def build_neighbor_index(self, params, context=None):
+        """
+        Precomputes top correlated rows for every row of given matrix version and
+        stores them in scratch area. get_top_correlated_rows reads this index
+        instead of matrix when correlation is calculated over all columns and
+        k is not larger than the one used for the index.
+        :param params: instance of type "BuildNeighborIndexParams"
+           (input_data - matrix to build index for, k - number of most
+           positively and most negatively correlated rows stored for each row
+           (default value is 50).) -> structure: parameter "input_data" of
+           type "ws_matrix_id" (A workspace ID that references a
+           Float2DMatrix wrapper data object. @id ws
+           KBaseFeatureValues.ExpressionMatrix
+           KBaseFeatureValues.SingleKnockoutFitnessMatrix), parameter "k" of
+           Long
+        :returns: instance of type "NeighborIndexInfo" (index_key - resolved
+           reference (wsid/objid/ver) of indexed matrix version, rows_count -
+           number of indexed rows, k - number of neighbors stored for each
+           row in each direction.) -> structure: parameter "index_key" of
+           String, parameter "rows_count" of Long, parameter "k" of Long
+        """
+        return self._client.call_method('KBaseFeatureValues.build_neighbor_index',
+                                        [params], self._service_ver, context)
+
     def tsv_file_to_matrix(self, params, context=None):
         """
         :param params: instance of type "TsvFileToMatrixParams"
@@ -266,6 +266,32 @@ function KBaseFeatureValues(url, auth, auth_cb, timeout, async_job_check_time_ms
             [GetSubmatrixStatParams], 1, _callback, _errorCallback);
     };
  
+     this.get_top_correlated_rows = function (params, _callback, _errorCallback) {
+        if (typeof params === 'function')
+            throw 'Argument params can not be a function';
+        if (_callback && typeof _callback !== 'function')
+            throw 'Argument _callback must be a function if defined';
+        if (_errorCallback && typeof _errorCallback !== 'function')
+            throw 'Argument _errorCallback must be a function if defined';
+        if (typeof arguments === 'function' && arguments.length > 1+2)
+            throw 'Too many arguments ('+arguments.length+' instead of '+(1+2)+')';
+        return json_call_ajax(_url, "KBaseFeatureValues.get_top_correlated_rows",
+            [params], 1, _callback, _errorCallback);
+    };
+ 
+     this.build_neighbor_index = function (params, _callback, _errorCallback) {
+        if (typeof params === 'function')
+            throw 'Argument params can not be a function';
+        if (_callback && typeof _callback !== 'function')
+            throw 'Argument _callback must be a function if defined';
+        if (_errorCallback && typeof _errorCallback !== 'function')
+            throw 'Argument _errorCallback must be a function if defined';
+        if (typeof arguments === 'function' && arguments.length > 1+2)
+            throw 'Too many arguments ('+arguments.length+' instead of '+(1+2)+')';
+        return json_call_ajax(_url, "KBaseFeatureValues.build_neighbor_index",
+            [params], 1, _callback, _errorCallback);
+    };
+ 
      this.tsv_file_to_matrix = function (params, _callback, _errorCallback) {
         if (typeof params === 'function')
             throw 'Argument params can not be a function';
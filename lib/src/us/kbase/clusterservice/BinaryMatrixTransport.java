@@ -0,0 +1,124 @@
+package us.kbase.clusterservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.FloatMatrix2D;
+
+/**
+ * Passes matrix values to R and Python implementations of cluster service as
+ * binary files instead of JSON text. Values of each {@link FloatMatrix2D}
+ * argument are written into NPY file (format version 1.0, little-endian
+ * float64, row-major, missing values are NaN) and matrix in JSON request
+ * keeps row and column ids only plus {@link #VALUES_FILE_PROPERTY} with path
+ * to this file. numpy.load and R's readBin read such file directly.
+ */
+public class BinaryMatrixTransport {
+    public static final String VALUES_FILE_PROPERTY = "values_npy";
+    private static final byte[] MAGIC = {(byte)0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0};
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Replaces values of matrices among request params by references to NPY
+     * files created in given directory.
+     * @param params list of method arguments (other params are returned as is)
+     * @param files collects created files so caller can remove them after call
+     */
+    public static Object prepareParams(Object params, File dir, List<File> files)
+            throws IOException {
+        if (!(params instanceof List))
+            return params;
+        List<Object> ret = new ArrayList<Object>();
+        for (Object param : (List<?>)params) {
+            if (param instanceof FloatMatrix2D && ((FloatMatrix2D)param).getValues() != null) {
+                FloatMatrix2D matrix = (FloatMatrix2D)param;
+                File file = File.createTempFile("matrix_", ".npy", dir);
+                files.add(file);
+                writeNpy(DenseMatrix.fromFloatMatrix2D(matrix), file);
+                FloatMatrix2D ref = new FloatMatrix2D().withRowIds(matrix.getRowIds())
+                        .withColIds(matrix.getColIds());
+                ref.setAdditionalProperties(VALUES_FILE_PROPERTY, file.getAbsolutePath());
+                param = ref;
+            }
+            ret.add(param);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes matrix values as NPY file with shape (rows, columns).
+     */
+    public static void writeNpy(DenseMatrix matrix, File file) throws IOException {
+        // Header is padded with spaces so data starts at multiple of 64 bytes
+        String dict = "{'descr': '<f8', 'fortran_order': False, 'shape': (" +
+                matrix.getRowCount() + ", " + matrix.getColCount() + "), }";
+        int headerLen = dict.length() + 1;
+        headerLen += (64 - (MAGIC.length + 2 + headerLen) % 64) % 64;
+        StringBuilder header = new StringBuilder(dict);
+        while (header.length() < headerLen - 1)
+            header.append(' ');
+        header.append('\n');
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC).putShort((short)headerLen).put(header.toString().getBytes(ASCII));
+            for (double value : matrix.getValues()) {
+                if (buffer.remaining() < 8)
+                    flush(buffer, channel);
+                buffer.putDouble(value);
+            }
+            flush(buffer, channel);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads NPY file written by {@link #writeNpy(DenseMatrix, File)}.
+     */
+    public static DenseMatrix readNpy(File file, List<String> rowIds, List<String> colIds)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < MAGIC.length; i++)
+                if (buffer.get(i) != MAGIC[i])
+                    throw new IllegalStateException("Unsupported NPY format in " + file);
+            int dataPos = MAGIC.length + 2 + (buffer.getShort(MAGIC.length) & 0xffff);
+            double[] values = new double[rowIds.size() * colIds.size()];
+            if (raf.length() - dataPos != 8L * values.length)
+                throw new IllegalStateException("NPY file " + file + " doesn't match matrix " +
+                        "size " + rowIds.size() + " x " + colIds.size());
+            buffer.position(dataPos);
+            buffer.asDoubleBuffer().get(values);
+            BitSet missing = new BitSet(values.length);
+            for (int i = 0; i < values.length; i++)
+                if (values[i] != values[i])
+                    missing.set(i);
+            return new DenseMatrix(rowIds, colIds, values, missing);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,238 @@
+package us.kbase.clusterservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+import us.kbase.kbasefeaturevalues.AnalysisReport;
+import us.kbase.kbasefeaturevalues.CorrelationEngine;
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.VectorStats;
+
+/**
+ * Cluster qualities calculated the same way as calc_cluster_props function of
+ * ClusterServiceRImpl.r does: mean pairwise correlation of rows inside cluster
+ * (pairwise complete observations, any undefined correlation makes the mean
+ * undefined) and MSEC, mean squared deviation from cluster column means relative
+ * to mean squared deviation from cluster grand mean. Both are NaN for clusters
+ * with less than two rows. Clusters are numbered from 1 to maximal label and
+ * processed in parallel when matrix part they cover is above threshold.
+ */
+public class ClusterQualities {
+    /**
+     * Confidence level of error bound reported for sampled mean correlation.
+     */
+    public static final double SAMPLE_CONFIDENCE = 0.95;
+
+    public static ClusterResults calc(DenseMatrix matrix, List<Long> clusterLabels,
+            long parallelThreshold) {
+        return calc(matrix, clusterLabels, parallelThreshold, 0);
+    }
+
+    /**
+     * @param samplePairs if positive, mean correlation of cluster having missing
+     * values and more pairs of rows than samplePairs is estimated from that many
+     * random pairs (exact calculation needs correlation matrix of the cluster in
+     * this case). Estimation error is stated in report warning: by Hoeffding's
+     * inequality for values in [-1, 1] it's below sqrt(2 ln(2 / (1 - confidence))
+     * / samplePairs) with given {@link #SAMPLE_CONFIDENCE}.
+     */
+    public static ClusterResults calc(DenseMatrix matrix, List<Long> clusterLabels,
+            long parallelThreshold, long samplePairs) {
+        int clusterCount = 0;
+        for (Long label : clusterLabels)
+            if (label != null && label > clusterCount)
+                clusterCount = (int)(long)label;
+        List<List<Integer>> clusters = new ArrayList<List<Integer>>();
+        for (int i = 0; i < clusterCount; i++)
+            clusters.add(new ArrayList<Integer>());
+        for (int row = 0; row < clusterLabels.size(); row++) {
+            Long label = clusterLabels.get(row);
+            if (label != null && label > 0)
+                clusters.get((int)(long)label - 1).add(row);
+        }
+        int[][] clusterRows = new int[clusterCount][];
+        // Work of clusters [0, c) is work[c], it's proportional to covered cells
+        long[] work = new long[clusterCount + 1];
+        for (int c = 0; c < clusterCount; c++) {
+            List<Integer> cluster = clusters.get(c);
+            clusterRows[c] = new int[cluster.size()];
+            for (int i = 0; i < clusterRows[c].length; i++)
+                clusterRows[c][i] = cluster.get(i);
+            work[c + 1] = work[c] + (long)clusterRows[c].length * matrix.getColCount();
+        }
+        QualityTask task = new QualityTask(matrix, clusterRows, work,
+                Math.max(1, parallelThreshold), samplePairs, 0, clusterCount);
+        if (work[clusterCount] > parallelThreshold && clusterCount > 1) {
+            VectorStats.getPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        List<Double> meancor = new ArrayList<Double>();
+        List<Double> msecs = new ArrayList<Double>();
+        List<String> warnings = new ArrayList<String>();
+        for (int c = 0; c < clusterCount; c++) {
+            meancor.add(task.meancor[c]);
+            msecs.add(task.msecs[c]);
+            if (task.warnings[c] != null)
+                warnings.add(task.warnings[c]);
+        }
+        ClusterResults ret = new ClusterResults().withClusterLabels(clusterLabels)
+                .withMeancor(meancor).withMsecs(msecs);
+        if (!warnings.isEmpty())
+            ret.withReport(new AnalysisReport().withWarnings(warnings));
+        return ret;
+    }
+
+    private static class QualityTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final DenseMatrix matrix;
+        private final int[][] clusterRows;
+        private final long[] work;
+        private final long threshold;
+        private final long samplePairs;
+        private final int from;
+        private final int to;
+        private final double[] meancor;
+        private final double[] msecs;
+        private final String[] warnings;
+
+        QualityTask(DenseMatrix matrix, int[][] clusterRows, long[] work, long threshold,
+                long samplePairs, int from, int to) {
+            this(matrix, clusterRows, work, threshold, samplePairs, from, to,
+                    new double[clusterRows.length], new double[clusterRows.length],
+                    new String[clusterRows.length]);
+        }
+
+        private QualityTask(DenseMatrix matrix, int[][] clusterRows, long[] work,
+                long threshold, long samplePairs, int from, int to, double[] meancor,
+                double[] msecs, String[] warnings) {
+            this.matrix = matrix;
+            this.clusterRows = clusterRows;
+            this.work = work;
+            this.threshold = threshold;
+            this.samplePairs = samplePairs;
+            this.from = from;
+            this.to = to;
+            this.meancor = meancor;
+            this.msecs = msecs;
+            this.warnings = warnings;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && work[to] - work[from] > threshold) {
+                // Split by work rather than by number of clusters
+                long half = (work[from] + work[to]) / 2;
+                int middle = from + 1;
+                while (middle < to - 1 && work[middle + 1] <= half)
+                    middle++;
+                invokeAll(new QualityTask(matrix, clusterRows, work, threshold, samplePairs,
+                        from, middle, meancor, msecs, warnings),
+                        new QualityTask(matrix, clusterRows, work, threshold, samplePairs,
+                        middle, to, meancor, msecs, warnings));
+                return;
+            }
+            int[] cols = VectorStats.toIndeces(null, matrix.getColCount());
+            for (int c = from; c < to; c++) {
+                int[] rows = clusterRows[c];
+                if (rows.length < 2) {
+                    meancor[c] = Double.NaN;
+                    msecs[c] = Double.NaN;
+                    continue;
+                }
+                long pairs = (long)rows.length * (rows.length - 1) / 2;
+                if (samplePairs > 0 && pairs > samplePairs && hasMissing(matrix, rows)) {
+                    meancor[c] = sampledMeanCorrelation(matrix, rows, samplePairs,
+                            new Random(c));
+                    double bound = Math.sqrt(2 * Math.log(2 / (1 - SAMPLE_CONFIDENCE)) /
+                            samplePairs);
+                    warnings[c] = "Mean correlation of cluster " + (c + 1) + " (" +
+                            rows.length + " rows with missing values) is estimated from " +
+                            samplePairs + " random pairs of rows, error is below " +
+                            HierarchicalClustering.formatG(bound, 3) + " with " +
+                            Math.round(SAMPLE_CONFIDENCE * 100) + "% confidence";
+                } else {
+                    meancor[c] = CorrelationEngine.meanRowCorrelation(matrix, rows, cols,
+                            threshold);
+                }
+                msecs[c] = msec(matrix, rows);
+            }
+        }
+    }
+
+    private static boolean hasMissing(DenseMatrix matrix, int[] rows) {
+        double[] values = matrix.getValues();
+        int n = matrix.getColCount();
+        for (int row : rows)
+            for (int j = 0; j < n; j++)
+                if (values[row * n + j] != values[row * n + j])
+                    return true;
+        return false;
+    }
+
+    /**
+     * Mean of correlations of random pairs of different rows (with replacement),
+     * NaN if any of sampled correlations is undefined.
+     */
+    private static double sampledMeanCorrelation(DenseMatrix matrix, int[] rows,
+            long samplePairs, Random rnd) {
+        double[] values = matrix.getValues();
+        int n = matrix.getColCount();
+        double sum = 0;
+        for (long p = 0; p < samplePairs; p++) {
+            int i = rnd.nextInt(rows.length);
+            int j = rnd.nextInt(rows.length - 1);
+            if (j >= i)
+                j++;
+            double cor = CorrelationEngine.pairwiseComplete(values, rows[i] * n, values,
+                    rows[j] * n, n);
+            if (cor != cor)
+                return Double.NaN;
+            sum += cor;
+        }
+        return sum / samplePairs;
+    }
+
+    private static double msec(DenseMatrix matrix, int[] rows) {
+        double[] values = matrix.getValues();
+        int n = matrix.getColCount();
+        double sum = 0;
+        long count = 0;
+        double[] colSums = new double[n];
+        long[] colCounts = new long[n];
+        for (int row : rows)
+            for (int j = 0; j < n; j++) {
+                double value = values[row * n + j];
+                if (value != value)
+                    continue;
+                sum += value;
+                count++;
+                colSums[j] += value;
+                colCounts[j]++;
+            }
+        double mean = sum / count;
+        double mseAll = 0;
+        for (int row : rows)
+            for (int j = 0; j < n; j++) {
+                double value = values[row * n + j];
+                if (value != value)
+                    continue;
+                mseAll += (value - mean) * (value - mean);
+            }
+        mseAll /= count;
+        double ret = 0;
+        long retCount = 0;
+        for (int row : rows)
+            for (int j = 0; j < n; j++) {
+                double diff = values[row * n + j] - colSums[j] / colCounts[j];
+                double value = diff * diff / mseAll;
+                if (value != value)
+                    continue;
+                ret += value;
+                retCount++;
+            }
+        return ret / retCount;
+    }
+}
@@ -0,0 +1,162 @@
+package us.kbase.clusterservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import us.kbase.common.service.JsonClientException;
+import us.kbase.kbasefeaturevalues.AnalysisReport;
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.EstimateKResult;
+import us.kbase.kbasefeaturevalues.FloatMatrix2D;
+import us.kbase.kbasefeaturevalues.FloatMatrix2DUtil;
+
+/**
+ * In-process implementation of {@link ClusterServiceLocalClient}. K-means and
+ * hierarchical clustering, dendrogram cutting, cluster qualities and estimation
+ * of K are calculated in Java (see {@link KMeansClustering},
+ * {@link HierarchicalClustering}, {@link ClusterQualities}, {@link KEstimation}
+ * and {@link MedoidClustering}) without serializing matrix for external process,
+ * K estimation criteria which are not supported in Java are delegated to
+ * fallback client. Distances of hierarchical clustering and PAM are kept in
+ * {@link DistanceCache} when it's set.
+ */
+public class ClusterServiceJavaLocalClient implements ClusterServiceLocalClient {
+    private final ClusterServiceLocalClient fallback;
+    private long qualitySamplePairs = 0;
+    private DistanceCache distanceCache = null;
+
+    public ClusterServiceJavaLocalClient(ClusterServiceLocalClient fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Sets number of random pairs of rows mean correlation of large cluster with
+     * missing values is estimated from (0 means exact calculation always), see
+     * {@link ClusterQualities#calc(DenseMatrix, List, long, long)}.
+     */
+    public void setQualitySamplePairs(long qualitySamplePairs) {
+        this.qualitySamplePairs = qualitySamplePairs;
+    }
+
+    /**
+     * Sets cache of distances for matrix version this client works with (null
+     * means no caching).
+     */
+    public void setDistanceCache(DistanceCache distanceCache) {
+        this.distanceCache = distanceCache;
+    }
+
+    @Override
+    public ClusterResults clusterKMeans(FloatMatrix2D matrix, Long k, Long nStart, Long maxIter,
+            Long randomSeed, String algorithm) throws IOException, JsonClientException {
+        if (k == null)
+            throw new IllegalStateException("Number of clusters (K) is not defined");
+        DenseMatrix data = DenseMatrix.fromFloatMatrix2D(matrix);
+        long threshold = FloatMatrix2DUtil.getParallelThreshold();
+        KMeansClustering.Result res = KMeansClustering.cluster(data, (int)(long)k,
+                nStart == null ? null : (int)(long)nStart,
+                maxIter == null ? null : (int)(long)maxIter, randomSeed, algorithm, threshold);
+        List<Long> clusterLabels = new ArrayList<Long>();
+        for (int label : res.getLabels())
+            clusterLabels.add((long)label);
+        return ClusterQualities.calc(data, clusterLabels, threshold, qualitySamplePairs);
+    }
+
+    @Override
+    public ClusterResults calcClusterQualities(FloatMatrix2D matrix, List<Long> clusterLabels)
+            throws IOException, JsonClientException {
+        return ClusterQualities.calc(DenseMatrix.fromFloatMatrix2D(matrix), clusterLabels,
+                FloatMatrix2DUtil.getParallelThreshold(), qualitySamplePairs);
+    }
+
+    @Override
+    public EstimateKResult estimateK(FloatMatrix2D matrix, Long minK, Long maxK, Long maxIter,
+            Long randomSeed, Long neighbSize, Long maxItems) throws IOException, JsonClientException {
+        return KEstimation.estimate(DenseMatrix.fromFloatMatrix2D(matrix), minK, maxK, maxIter,
+                randomSeed, neighbSize, maxItems, FloatMatrix2DUtil.getParallelThreshold());
+    }
+
+    @Override
+    public EstimateKResult estimateKNew(FloatMatrix2D matrix, Long minK, Long maxK,
+            String criterion, Long usepam, Double alpha, Long diss, Long randomSeed)
+                    throws IOException, JsonClientException {
+        if (fallback != null && !MedoidClustering.isSupportedCriterion(criterion))
+            return fallback.estimateKNew(matrix, minK, maxK, criterion, usepam, alpha, diss,
+                    randomSeed);
+        return MedoidClustering.estimateK(DenseMatrix.fromFloatMatrix2D(matrix), minK, maxK,
+                criterion, usepam, alpha, diss, randomSeed,
+                FloatMatrix2DUtil.getParallelThreshold(), distanceCache);
+    }
+
+    /**
+     * Both "hclust" and "flashClust" algorithms of R implementation give the same
+     * complete linkage clustering, so they are accepted as synonyms. Rows which
+     * are dropped because of processRows limit get label -1 and are listed in
+     * report warning.
+     */
+    @Override
+    public ClusterResults clusterHierarchical(FloatMatrix2D matrix, String distanceMetric,
+            String linkageCriteria, Double heightCutoff, Long processRows, String algorithm)
+                    throws IOException, JsonClientException {
+        if (!isSupportedHierarchicalAlgorithm(algorithm))
+            throw new IllegalStateException("Unsupported hierarchical clustering algorithm: " +
+                    algorithm);
+        if (heightCutoff == null)
+            throw new IllegalStateException("Height cutoff is not defined");
+        DenseMatrix data = DenseMatrix.fromFloatMatrix2D(matrix);
+        long threshold = FloatMatrix2DUtil.getParallelThreshold();
+        HierarchicalClustering.Result hc = HierarchicalClustering.cluster(data, distanceMetric,
+                linkageCriteria, heightCutoff, processRows == null ? null :
+                    (int)Math.min(Integer.MAX_VALUE, processRows), threshold, distanceCache);
+        List<Long> clusterLabels = new ArrayList<Long>();
+        for (int label : hc.getLabels())
+            clusterLabels.add((long)label);
+        ClusterResults ret = ClusterQualities.calc(data, clusterLabels, threshold,
+                qualitySamplePairs).withDendrogram(hc.getDendrogram().toNewick());
+        int skipped = data.getRowCount() - hc.getRows().length;
+        if (skipped > 0) {
+            if (ret.getReport() == null)
+                ret.withReport(new AnalysisReport().withWarnings(new ArrayList<String>()));
+            ret.getReport().getWarnings().add(0, skipped + " of " + data.getRowCount() +
+                    " rows with the lowest variance were not clustered (maximal number of " +
+                    "processed rows is " + processRows + ")");
+        }
+        return ret;
+    }
+
+    /**
+     * @return true for "hclust", "flashClust" and undefined algorithm
+     */
+    public static boolean isSupportedHierarchicalAlgorithm(String algorithm) {
+        return algorithm == null || algorithm.isEmpty() || algorithm.equals("hclust") ||
+                algorithm.equals("flashClust");
+    }
+
+    /**
+     * Tip labels of dendrogram are positions of matrix rows, rows which are not
+     * in dendrogram get label -1.
+     */
+    @Override
+    public ClusterResults clustersFromDendrogram(FloatMatrix2D matrix, String dendrogram,
+            Double heightCutoff) throws IOException, JsonClientException {
+        if (heightCutoff == null)
+            throw new IllegalStateException("Height cutoff is not defined");
+        HierarchicalClustering.Dendrogram tree =
+                HierarchicalClustering.Dendrogram.fromNewick(dendrogram);
+        int[] tipRows = tree.getTipRows();
+        int[] groups = tree.cutAtHeight(heightCutoff);
+        DenseMatrix data = DenseMatrix.fromFloatMatrix2D(matrix);
+        List<Long> clusterLabels = new ArrayList<Long>(Collections.nCopies(
+                data.getRowCount(), -1L));
+        for (int tip = 0; tip < tipRows.length; tip++) {
+            if (tipRows[tip] >= data.getRowCount())
+                throw new IllegalStateException("Dendrogram tip " + tipRows[tip] +
+                        " is out of matrix with " + data.getRowCount() + " rows");
+            clusterLabels.set(tipRows[tip], (long)groups[tip]);
+        }
+        return ClusterQualities.calc(data, clusterLabels, FloatMatrix2DUtil.getParallelThreshold(),
+                qualitySamplePairs).withDendrogram(dendrogram);
+    }
+}
@@ -23,6 +23,15 @@ public class ClusterServicePyLocalClient extends JsonLocalClientCaller implement
         super(workDir);
     }
 
+    /**
+     * Matrix values are passed as binary files, see {@link BinaryMatrixTransport}.
+     */
+    @Override
+    protected Object prepareParams(Object params, File dir, List<File> paramFiles)
+            throws IOException {
+        return BinaryMatrixTransport.prepareParams(params, dir, paramFiles);
+    }
+
     /**
      * <p>Original spec-file function name: cluster_k_means</p>
      * <pre>
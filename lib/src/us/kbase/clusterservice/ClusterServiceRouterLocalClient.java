@@ -0,0 +1,392 @@
+package us.kbase.clusterservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.common.service.JsonClientException;
+import us.kbase.kbasefeaturevalues.EstimateKResult;
+import us.kbase.kbasefeaturevalues.FloatMatrix2D;
+
+/**
+ * {@link ClusterServiceLocalClient} choosing backend (in-process Java, R or
+ * Python CLI) for every call. Only backends supporting requested method and
+ * algorithm are considered: Python is used for {@link #PYTHON_KMEANS_ALGORITHM}
+ * K-means only, algorithms and criteria not implemented in Java go to R. R gets
+ * only algorithms of its kmeans() and only hierarchical clustering with complete
+ * linkage on correlation distance (R implementation ignores other linkages and
+ * metrics) and only estimate_k_new with default alpha and without dissimilarity
+ * matrix input. Among the rest engine configured for the method decides:
+ * <ul>
+ * <li>{@link #ENGINE_JAVA} and {@link #ENGINE_R} prefer given backend,</li>
+ * <li>{@link #ENGINE_AUTO} keeps matrices up to {@link #setJavaMaxCells(long)}
+ * cells in Java, larger ones go to backend with the smallest latency predicted
+ * from previous calls. Java takes the first large call, after that every
+ * {@link #setExploreInterval(int)}-th large call goes to backend with the
+ * fewest measurements, so other backends get measured and measurements don't
+ * get stale.</li>
+ * </ul>
+ * Latency is kept per method, its variant (algorithm, criterion or linkage)
+ * and backend as exponentially weighted average of milliseconds per matrix
+ * cell over successful calls with matrices larger than Java limit (smaller
+ * ones are dominated by process startup).
+ */
+public class ClusterServiceRouterLocalClient implements ClusterServiceLocalClient {
+    public static final String ENGINE_JAVA = "java";
+    public static final String ENGINE_R = "r";
+    public static final String ENGINE_AUTO = "auto";
+    public static final String PYTHON_KMEANS_ALGORITHM = "Python Scikit-learn";
+    public static final long DEFAULT_JAVA_MAX_CELLS = 1000000;
+    public static final int DEFAULT_EXPLORE_INTERVAL = 10;
+    private static final double LATENCY_WEIGHT = 0.3;
+    private static final Map<String, LatencyStats> latencies =
+            new HashMap<String, LatencyStats>();
+
+    public enum Backend {
+        JAVA, R, PYTHON
+    }
+
+    private final ClusterServiceLocalClient javaClient;
+    private final ClusterServiceLocalClient rClient;
+    private final ClusterServiceLocalClient pyClient;
+    private final Map<String, String> engines = new HashMap<String, String>();
+    private String defaultEngine = ENGINE_JAVA;
+    private long javaMaxCells = DEFAULT_JAVA_MAX_CELLS;
+    private int exploreInterval = DEFAULT_EXPLORE_INTERVAL;
+    private volatile Backend lastBackend = null;
+
+    /**
+     * @param javaClient in-process client
+     * @param rClient R client (null if R is not available)
+     * @param pyClient Python client (null if Python is not available)
+     */
+    public ClusterServiceRouterLocalClient(ClusterServiceLocalClient javaClient,
+            ClusterServiceLocalClient rClient, ClusterServiceLocalClient pyClient) {
+        this.javaClient = javaClient;
+        this.rClient = rClient;
+        this.pyClient = pyClient;
+    }
+
+    /**
+     * @param method method name like "cluster_hierarchical" (null for methods
+     * without engine of their own)
+     * @param engine one of {@link #ENGINE_JAVA}, {@link #ENGINE_R} and
+     * {@link #ENGINE_AUTO} (case insensitive)
+     */
+    public void setEngine(String method, String engine) {
+        String value = engine.trim().toLowerCase();
+        if (!(value.equals(ENGINE_JAVA) || value.equals(ENGINE_R) || value.equals(ENGINE_AUTO)))
+            throw new IllegalStateException("Unsupported math engine: " + engine);
+        if (method == null) {
+            defaultEngine = value;
+        } else {
+            engines.put(method, value);
+        }
+    }
+
+    public String getEngine(String method) {
+        String ret = engines.get(method);
+        return ret == null ? defaultEngine : ret;
+    }
+
+    /**
+     * Sets maximal number of matrix cells processed in Java in {@link #ENGINE_AUTO}
+     * mode regardless of measured latency.
+     */
+    public void setJavaMaxCells(long javaMaxCells) {
+        this.javaMaxCells = javaMaxCells;
+    }
+
+    /**
+     * Sets how often large call in {@link #ENGINE_AUTO} mode goes to backend with
+     * the fewest measurements instead of the fastest one (0 means never).
+     */
+    public void setExploreInterval(int exploreInterval) {
+        this.exploreInterval = exploreInterval;
+    }
+
+    /**
+     * @return backend of the last call made through this client (null if there
+     * were no calls)
+     */
+    public Backend getLastBackend() {
+        return lastBackend;
+    }
+
+    /**
+     * @return backend given method call with given matrix goes to
+     * @param variant algorithm, criterion or linkage of the call (null if
+     * method doesn't have them)
+     * @param supported backends supporting parameters of the call
+     */
+    public Backend route(String method, String variant, FloatMatrix2D matrix,
+            EnumSet<Backend> supported) {
+        List<Backend> candidates = new ArrayList<Backend>();
+        for (Backend backend : supported)
+            if (getClient(backend) != null)
+                candidates.add(backend);
+        if (candidates.isEmpty())
+            throw new IllegalStateException("There is no math backend supporting method " +
+                    method + " with given parameters");
+        if (candidates.size() == 1)
+            return candidates.get(0);
+        String engine = getEngine(method);
+        if (engine.equals(ENGINE_R) && candidates.contains(Backend.R))
+            return Backend.R;
+        if (!engine.equals(ENGINE_AUTO) || !candidates.contains(Backend.JAVA) ||
+                getCellCount(matrix) <= javaMaxCells)
+            return candidates.get(0);
+        synchronized (latencies) {
+            LatencyStats stats = getLatencyStats(method, variant);
+            stats.largeCalls++;
+            if (!stats.msPerCell.containsKey(Backend.JAVA))
+                return Backend.JAVA;
+            Backend ret = null;
+            if (exploreInterval > 0 && stats.largeCalls % exploreInterval == 0) {
+                for (Backend backend : candidates)
+                    if (ret == null || stats.getSamples(backend) < stats.getSamples(ret))
+                        ret = backend;
+                return ret;
+            }
+            for (Backend backend : candidates) {
+                Double value = stats.msPerCell.get(backend);
+                if (value != null && (ret == null || value < stats.msPerCell.get(ret)))
+                    ret = backend;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * @return latency in milliseconds predicted for given method, its variant,
+     * backend and matrix size or null if there were no measurements
+     */
+    public static Double getPredictedLatency(String method, String variant, Backend backend,
+            long cells) {
+        synchronized (latencies) {
+            Double ret = getLatencyStats(method, variant).msPerCell.get(backend);
+            return ret == null ? null : ret * cells;
+        }
+    }
+
+    public static void recordLatency(String method, String variant, Backend backend,
+            long cells, double timeMs) {
+        if (cells <= 0)
+            return;
+        synchronized (latencies) {
+            LatencyStats stats = getLatencyStats(method, variant);
+            Double prev = stats.msPerCell.get(backend);
+            double value = timeMs / cells;
+            stats.msPerCell.put(backend, prev == null ? value :
+                (prev + LATENCY_WEIGHT * (value - prev)));
+            stats.samples.put(backend, stats.getSamples(backend) + 1);
+        }
+    }
+
+    public static void resetLatencies() {
+        synchronized (latencies) {
+            latencies.clear();
+        }
+    }
+
+    private static LatencyStats getLatencyStats(String method, String variant) {
+        String key = variant == null || variant.isEmpty() ? method : (method + "/" + variant);
+        LatencyStats ret = latencies.get(key);
+        if (ret == null) {
+            ret = new LatencyStats();
+            latencies.put(key, ret);
+        }
+        return ret;
+    }
+
+    private static class LatencyStats {
+        long largeCalls = 0;
+        Map<Backend, Double> msPerCell = new EnumMap<Backend, Double>(Backend.class);
+        Map<Backend, Integer> samples = new EnumMap<Backend, Integer>(Backend.class);
+
+        int getSamples(Backend backend) {
+            Integer ret = samples.get(backend);
+            return ret == null ? 0 : ret;
+        }
+    }
+
+    @Override
+    public EstimateKResult estimateK(final FloatMatrix2D matrix, final Long minK,
+            final Long maxK, final Long maxIter, final Long randomSeed, final Long neighbSize,
+            final Long maxItems) throws IOException, JsonClientException {
+        return call("estimate_k", null, matrix, EnumSet.of(Backend.JAVA, Backend.R),
+                new Call<EstimateKResult>() {
+            @Override
+            public EstimateKResult run(ClusterServiceLocalClient client)
+                    throws IOException, JsonClientException {
+                return client.estimateK(matrix, minK, maxK, maxIter, randomSeed, neighbSize,
+                        maxItems);
+            }
+        });
+    }
+
+    @Override
+    public EstimateKResult estimateKNew(final FloatMatrix2D matrix, final Long minK,
+            final Long maxK, final String criterion, final Long usepam, final Double alpha,
+            final Long diss, final Long randomSeed) throws IOException, JsonClientException {
+        // R implementation always uses default significance level on raw values
+        EnumSet<Backend> supported = EnumSet.noneOf(Backend.class);
+        if (MedoidClustering.isSupportedCriterion(criterion))
+            supported.add(Backend.JAVA);
+        if ((diss == null || diss == 0) &&
+                (alpha == null || alpha == MedoidClustering.DEFAULT_ALPHA))
+            supported.add(Backend.R);
+        return call("estimate_k_new", criterion, matrix, supported,
+                new Call<EstimateKResult>() {
+            @Override
+            public EstimateKResult run(ClusterServiceLocalClient client)
+                    throws IOException, JsonClientException {
+                return client.estimateKNew(matrix, minK, maxK, criterion, usepam, alpha, diss,
+                        randomSeed);
+            }
+        });
+    }
+
+    /**
+     * {@link #PYTHON_KMEANS_ALGORITHM} runs scikit-learn K-means with its
+     * default settings, its zero-based labels are shifted to start from 1 and
+     * qualities are calculated by {@link #calcClusterQualities(FloatMatrix2D, List)}.
+     */
+    @Override
+    public ClusterResults clusterKMeans(final FloatMatrix2D matrix, final Long k,
+            final Long nStart, final Long maxIter, final Long randomSeed, final String algorithm)
+                    throws IOException, JsonClientException {
+        if (PYTHON_KMEANS_ALGORITHM.equals(algorithm)) {
+            ClusterResults res = call("cluster_k_means", algorithm, matrix,
+                    EnumSet.of(Backend.PYTHON),
+                    new Call<ClusterResults>() {
+                @Override
+                public ClusterResults run(ClusterServiceLocalClient client)
+                        throws IOException, JsonClientException {
+                    return client.clusterKMeans(matrix, k, null, null, null, null);
+                }
+            });
+            List<Long> clusterLabels = res.getClusterLabels();
+            for (int pos = 0; pos < clusterLabels.size(); pos++)
+                clusterLabels.set(pos, 1 + (long)clusterLabels.get(pos));
+            return calcClusterQualities(matrix, clusterLabels);
+        }
+        EnumSet<Backend> supported = EnumSet.noneOf(Backend.class);
+        if (KMeansClustering.isSupportedAlgorithm(algorithm))
+            supported.add(Backend.JAVA);
+        if (isSupportedByRKMeans(algorithm))
+            supported.add(Backend.R);
+        return call("cluster_k_means", algorithm, matrix, supported,
+                new Call<ClusterResults>() {
+            @Override
+            public ClusterResults run(ClusterServiceLocalClient client)
+                    throws IOException, JsonClientException {
+                return client.clusterKMeans(matrix, k, nStart, maxIter, randomSeed, algorithm);
+            }
+        });
+    }
+
+    @Override
+    public ClusterResults clusterHierarchical(final FloatMatrix2D matrix,
+            final String distanceMetric, final String linkageCriteria, final Double heightCutoff,
+            final Long processRows, final String algorithm)
+                    throws IOException, JsonClientException {
+        // R implementation always builds complete linkage on correlation distance
+        EnumSet<Backend> supported = EnumSet.noneOf(Backend.class);
+        if (ClusterServiceJavaLocalClient.isSupportedHierarchicalAlgorithm(algorithm)) {
+            supported.add(Backend.JAVA);
+            if (isDefaultOr(linkageCriteria, HierarchicalClustering.COMPLETE) &&
+                    isDefaultOr(distanceMetric, HierarchicalClustering.CORRELATION))
+                supported.add(Backend.R);
+        }
+        String variant = (algorithm == null ? "" : algorithm) + "/" +
+                (linkageCriteria == null ? "" : linkageCriteria);
+        return call("cluster_hierarchical", variant, matrix, supported,
+                new Call<ClusterResults>() {
+            @Override
+            public ClusterResults run(ClusterServiceLocalClient client)
+                    throws IOException, JsonClientException {
+                return client.clusterHierarchical(matrix, distanceMetric, linkageCriteria,
+                        heightCutoff, processRows, algorithm);
+            }
+        });
+    }
+
+    @Override
+    public ClusterResults clustersFromDendrogram(final FloatMatrix2D matrix,
+            final String dendrogram, final Double heightCutoff)
+                    throws IOException, JsonClientException {
+        return call("clusters_from_dendrogram", null, matrix,
+                EnumSet.of(Backend.JAVA, Backend.R),
+                new Call<ClusterResults>() {
+            @Override
+            public ClusterResults run(ClusterServiceLocalClient client)
+                    throws IOException, JsonClientException {
+                return client.clustersFromDendrogram(matrix, dendrogram, heightCutoff);
+            }
+        });
+    }
+
+    @Override
+    public ClusterResults calcClusterQualities(final FloatMatrix2D matrix,
+            final List<Long> clusterLabels) throws IOException, JsonClientException {
+        return call("calc_cluster_qualities", null, matrix,
+                EnumSet.of(Backend.JAVA, Backend.R),
+                new Call<ClusterResults>() {
+            @Override
+            public ClusterResults run(ClusterServiceLocalClient client)
+                    throws IOException, JsonClientException {
+                return client.calcClusterQualities(matrix, clusterLabels);
+            }
+        });
+    }
+
+    /**
+     * @return true for algorithms of R's kmeans() and undefined algorithm
+     */
+    private static boolean isSupportedByRKMeans(String algorithm) {
+        return algorithm == null || algorithm.equals(KMeansClustering.HARTIGAN_WONG) ||
+                algorithm.equals(KMeansClustering.LLOYD) ||
+                algorithm.equals(KMeansClustering.FORGY) ||
+                algorithm.equals(KMeansClustering.MACQUEEN);
+    }
+
+    private static boolean isDefaultOr(String value, String defaultValue) {
+        return value == null || value.isEmpty() || value.equals(defaultValue);
+    }
+
+    private interface Call<T> {
+        public T run(ClusterServiceLocalClient client) throws IOException, JsonClientException;
+    }
+
+    private <T> T call(String method, String variant, FloatMatrix2D matrix,
+            EnumSet<Backend> supported, Call<T> call) throws IOException, JsonClientException {
+        Backend backend = route(method, variant, matrix, supported);
+        lastBackend = backend;
+        long startTime = System.nanoTime();
+        T ret = call.run(getClient(backend));
+        long cells = getCellCount(matrix);
+        if (cells > javaMaxCells)
+            recordLatency(method, variant, backend, cells, (System.nanoTime() - startTime) / 1e6);
+        return ret;
+    }
+
+    private ClusterServiceLocalClient getClient(Backend backend) {
+        switch (backend) {
+        case JAVA: return javaClient;
+        case R: return rClient;
+        default: return pyClient;
+        }
+    }
+
+    private static long getCellCount(FloatMatrix2D matrix) {
+        long rows = matrix.getRowIds() != null ? matrix.getRowIds().size() :
+            (matrix.getValues() == null ? 0 : matrix.getValues().size());
+        long cols = matrix.getColIds() != null ? matrix.getColIds().size() : 0;
+        return rows * cols;
+    }
+}
@@ -0,0 +1,450 @@
+package us.kbase.clusterservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+import us.kbase.kbasefeaturevalues.AnalysisReport;
+import us.kbase.kbasefeaturevalues.CorrelationEngine;
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.VectorStats;
+
+/**
+ * Quality of partition of matrix rows into clusters: silhouette of each cluster
+ * and overall, meancor and MSEC (see {@link ClusterQualities}) and Davies-Bouldin
+ * index. Distance is either Euclidean (with missing values it's scaled up from
+ * pairwise complete coordinates like R's dist does) or correlation one (1 -
+ * Pearson correlation, undefined correlation counts as 0). Silhouette needs
+ * distances of each evaluated row to all clustered rows, so for large matrices
+ * it's calculated for random sample of rows; rows are processed in parallel.
+ * Distances between clustered rows are read from {@link DistanceCache} when
+ * earlier clustering has stored them there.
+ */
+public class ClusterSetEvaluation {
+    public static final String EUCLIDEAN = "euclidean";
+    public static final String CORRELATION = "correlation";
+    public static final int DEFAULT_SILHOUETTE_SAMPLE_SIZE = 5000;
+
+    private final boolean correlation;
+    private final int n;
+    private final double[] values;
+    // Centered and normalized rows without missing values (for correlation distance)
+    private final double[] normalized;
+    private final boolean[] complete;
+    private final DistanceCache.Distances cached;
+    // Positions of matrix rows in cached distances
+    private final int[] cachedPos;
+
+    private ClusterSetEvaluation(DenseMatrix matrix, boolean correlation,
+            DistanceCache.Distances cached) {
+        this.correlation = correlation;
+        this.cached = cached;
+        this.cachedPos = cached == null ? null : new int[matrix.getRowCount()];
+        if (cached != null)
+            for (int i = 0; i < cachedPos.length; i++)
+                cachedPos[i] = cached.indexOf(i);
+        this.n = matrix.getColCount();
+        this.values = matrix.getValues();
+        int rowCount = matrix.getRowCount();
+        this.complete = new boolean[rowCount];
+        this.normalized = correlation ? new double[values.length] : null;
+        for (int i = 0; i < rowCount; i++) {
+            boolean rowComplete = true;
+            for (int j = 0; j < n && rowComplete; j++)
+                rowComplete = values[i * n + j] == values[i * n + j];
+            complete[i] = rowComplete;
+            if (correlation && rowComplete) {
+                double mean = 0;
+                for (int j = 0; j < n; j++)
+                    mean += values[i * n + j];
+                mean /= n;
+                double norm = 0;
+                for (int j = 0; j < n; j++) {
+                    double diff = values[i * n + j] - mean;
+                    normalized[i * n + j] = diff;
+                    norm += diff * diff;
+                }
+                norm = Math.sqrt(norm);
+                for (int j = 0; j < n; j++)
+                    normalized[i * n + j] /= norm;
+            }
+        }
+    }
+
+    public static class Result {
+        private final ClusterResults qualities;
+        private final double[] silhouettes;
+        private final double silhouette;
+        private final double daviesBouldin;
+        private final int evaluatedRows;
+        private final int clusteredRows;
+        private final String distanceMetric;
+
+        Result(ClusterResults qualities, double[] silhouettes, double silhouette,
+                double daviesBouldin, int evaluatedRows, int clusteredRows,
+                String distanceMetric) {
+            this.qualities = qualities;
+            this.silhouettes = silhouettes;
+            this.silhouette = silhouette;
+            this.daviesBouldin = daviesBouldin;
+            this.evaluatedRows = evaluatedRows;
+            this.clusteredRows = clusteredRows;
+            this.distanceMetric = distanceMetric;
+        }
+
+        /**
+         * @return meancor and MSEC of clusters
+         */
+        public ClusterResults getQualities() {
+            return qualities;
+        }
+
+        /**
+         * @return mean silhouette of rows of each cluster (NaN if cluster has no
+         * evaluated rows)
+         */
+        public double[] getSilhouettes() {
+            return silhouettes;
+        }
+
+        /**
+         * @return mean silhouette of all evaluated rows
+         */
+        public double getSilhouette() {
+            return silhouette;
+        }
+
+        public double getDaviesBouldin() {
+            return daviesBouldin;
+        }
+
+        /**
+         * @return number of rows silhouette was calculated for (less than number
+         * of clustered rows in sampled mode)
+         */
+        public int getEvaluatedRows() {
+            return evaluatedRows;
+        }
+
+        public int getClusteredRows() {
+            return clusteredRows;
+        }
+
+        /**
+         * @return mean of defined meancor values of clusters weighted by cluster size
+         */
+        public double getMeancor() {
+            return weightedMean(qualities.getMeancor());
+        }
+
+        /**
+         * @return mean of defined MSEC values of clusters weighted by cluster size
+         */
+        public double getMsec() {
+            return weightedMean(qualities.getMsecs());
+        }
+
+        private double weightedMean(List<Double> clusterValues) {
+            long[] sizes = new long[clusterValues.size()];
+            for (Long label : qualities.getClusterLabels())
+                if (label != null && label > 0)
+                    sizes[(int)(long)label - 1]++;
+            double sum = 0;
+            long count = 0;
+            for (int c = 0; c < sizes.length; c++) {
+                Double value = clusterValues.get(c);
+                if (value == null || value.isNaN())
+                    continue;
+                sum += value * sizes[c];
+                count += sizes[c];
+            }
+            return count == 0 ? Double.NaN : sum / count;
+        }
+
+        public AnalysisReport toReport() {
+            List<String> messages = new ArrayList<String>();
+            messages.add("Overall: silhouette=" + format(silhouette) + ", meancor=" +
+                    format(getMeancor()) + ", msec=" + format(getMsec()) +
+                    ", Davies-Bouldin=" + format(daviesBouldin));
+            long[] sizes = new long[silhouettes.length];
+            for (Long label : qualities.getClusterLabels())
+                if (label != null && label > 0)
+                    sizes[(int)(long)label - 1]++;
+            for (int c = 0; c < silhouettes.length; c++)
+                messages.add("Cluster " + (c + 1) + " (" + sizes[c] + " rows): silhouette=" +
+                        format(silhouettes[c]) + ", meancor=" +
+                        format(qualities.getMeancor().get(c)) + ", msec=" +
+                        format(qualities.getMsecs().get(c)));
+            List<String> warnings = new ArrayList<String>();
+            if (qualities.getReport() != null && qualities.getReport().getWarnings() != null)
+                warnings.addAll(qualities.getReport().getWarnings());
+            String silhouetteMode = "exact";
+            if (evaluatedRows < clusteredRows) {
+                silhouetteMode = "sampled";
+                warnings.add("Silhouette is estimated from " + evaluatedRows +
+                        " randomly sampled rows out of " + clusteredRows);
+            }
+            return new AnalysisReport().withCheckTypeDetected("clusterset_quality")
+                    .withCheckUsed(distanceMetric + " distance, " + silhouetteMode +
+                            " silhouette")
+                    .withCheckDescriptions(new ArrayList<String>())
+                    .withCheckResults(new ArrayList<Long>())
+                    .withMessages(messages).withWarnings(warnings)
+                    .withErrors(new ArrayList<String>());
+        }
+
+        private static String format(Double value) {
+            return value == null || value.isNaN() ? "NA" :
+                HierarchicalClustering.formatG(value, 4);
+        }
+    }
+
+    /**
+     * @param clusterLabels cluster of each matrix row starting from 1 (rows with
+     * non-positive or null labels are not clustered)
+     * @param distanceMetric "euclidean" (default) or "correlation"
+     * @param silhouetteSampleSize maximal number of rows silhouette is calculated
+     * for (null means default size, 0 means exact calculation for all rows)
+     * @param qualitySamplePairs see {@link ClusterQualities#calc(DenseMatrix, List, long, long)}
+     */
+    public static Result evaluate(DenseMatrix matrix, List<Long> clusterLabels,
+            String distanceMetric, Integer silhouetteSampleSize, Long randomSeed,
+            long parallelThreshold, long qualitySamplePairs) {
+        try {
+            return evaluate(matrix, clusterLabels, distanceMetric, silhouetteSampleSize,
+                    randomSeed, parallelThreshold, qualitySamplePairs, null);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Evaluates cluster set like {@link #evaluate(DenseMatrix, List, String, Integer,
+     * Long, long, long)} does, silhouette uses distances between clustered rows
+     * found in cache (if it's defined). Missing entry is not calculated since
+     * sampled silhouette needs only part of distances.
+     */
+    public static Result evaluate(DenseMatrix matrix, List<Long> clusterLabels,
+            String distanceMetric, Integer silhouetteSampleSize, Long randomSeed,
+            long parallelThreshold, long qualitySamplePairs, DistanceCache cache)
+                    throws IOException {
+        if (distanceMetric == null || distanceMetric.isEmpty())
+            distanceMetric = EUCLIDEAN;
+        if (!(distanceMetric.equals(EUCLIDEAN) || distanceMetric.equals(CORRELATION)))
+            throw new IllegalStateException("Unsupported distance metric: " + distanceMetric);
+        if (clusterLabels.size() != matrix.getRowCount())
+            throw new IllegalStateException("Number of cluster labels " + clusterLabels.size() +
+                    " doesn't match number of matrix rows " + matrix.getRowCount());
+        ClusterResults qualities = ClusterQualities.calc(matrix, clusterLabels,
+                parallelThreshold, qualitySamplePairs);
+        int clusterCount = qualities.getMeancor().size();
+        int[] labels = new int[clusterLabels.size()];
+        int[] sizes = new int[clusterCount];
+        int clusteredRows = 0;
+        for (int row = 0; row < labels.length; row++) {
+            Long label = clusterLabels.get(row);
+            labels[row] = label == null || label <= 0 ? -1 : (int)(long)label - 1;
+            if (labels[row] >= 0) {
+                sizes[labels[row]]++;
+                clusteredRows++;
+            }
+        }
+        int[] clustered = new int[clusteredRows];
+        int count = 0;
+        for (int row = 0; row < labels.length; row++)
+            if (labels[row] >= 0)
+                clustered[count++] = row;
+        int sampleSize = silhouetteSampleSize == null ? DEFAULT_SILHOUETTE_SAMPLE_SIZE :
+            silhouetteSampleSize;
+        int[] evaluated = clustered;
+        if (sampleSize > 0 && sampleSize < clusteredRows) {
+            // Partial Fisher-Yates shuffle, sample is kept in row order
+            evaluated = Arrays.copyOf(clustered, clusteredRows);
+            Random rnd = new Random(randomSeed != null ? randomSeed : new Random().nextLong());
+            for (int i = 0; i < sampleSize; i++) {
+                int j = i + rnd.nextInt(clusteredRows - i);
+                int tmp = evaluated[i];
+                evaluated[i] = evaluated[j];
+                evaluated[j] = tmp;
+            }
+            evaluated = Arrays.copyOf(evaluated, sampleSize);
+            Arrays.sort(evaluated);
+        }
+        DistanceCache.Distances cached = cache == null ? null : cache.find(
+                matrix.getRowIds(), matrix.getColIds(), clustered, distanceMetric);
+        ClusterSetEvaluation engine = new ClusterSetEvaluation(matrix,
+                distanceMetric.equals(CORRELATION), cached);
+        double[] rowSilhouettes = new double[evaluated.length];
+        SilhouetteTask task = engine.new SilhouetteTask(labels, sizes, clustered, evaluated,
+                rowSilhouettes, 0, evaluated.length, Math.max(1, parallelThreshold));
+        if ((long)evaluated.length * clusteredRows * matrix.getColCount() > parallelThreshold &&
+                evaluated.length > 1) {
+            VectorStats.getPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        double[] silhouettes = new double[clusterCount];
+        int[] evaluatedCounts = new int[clusterCount];
+        double silhouette = 0;
+        for (int i = 0; i < evaluated.length; i++) {
+            silhouettes[labels[evaluated[i]]] += rowSilhouettes[i];
+            evaluatedCounts[labels[evaluated[i]]]++;
+            silhouette += rowSilhouettes[i];
+        }
+        for (int c = 0; c < clusterCount; c++)
+            silhouettes[c] = evaluatedCounts[c] == 0 ? Double.NaN :
+                silhouettes[c] / evaluatedCounts[c];
+        silhouette = evaluated.length == 0 ? Double.NaN : silhouette / evaluated.length;
+        return new Result(qualities, silhouettes, silhouette,
+                engine.daviesBouldin(labels, sizes), evaluated.length, clusteredRows,
+                distanceMetric);
+    }
+
+    private class SilhouetteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] labels;
+        private final int[] sizes;
+        private final int[] clustered;
+        private final int[] evaluated;
+        private final double[] target;
+        private final int from;
+        private final int to;
+        private final long threshold;
+
+        SilhouetteTask(int[] labels, int[] sizes, int[] clustered, int[] evaluated,
+                double[] target, int from, int to, long threshold) {
+            this.labels = labels;
+            this.sizes = sizes;
+            this.clustered = clustered;
+            this.evaluated = evaluated;
+            this.target = target;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long)(to - from) * clustered.length * n > threshold) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SilhouetteTask(labels, sizes, clustered, evaluated, target,
+                        from, middle, threshold), new SilhouetteTask(labels, sizes,
+                                clustered, evaluated, target, middle, to, threshold));
+                return;
+            }
+            double[] sums = new double[sizes.length];
+            for (int i = from; i < to; i++) {
+                int row = evaluated[i];
+                int own = labels[row];
+                if (sizes[own] < 2) {
+                    // Silhouette of singleton is 0 by convention
+                    target[i] = 0;
+                    continue;
+                }
+                Arrays.fill(sums, 0);
+                for (int other : clustered)
+                    if (other != row)
+                        sums[labels[other]] += distance(row, other);
+                double a = sums[own] / (sizes[own] - 1);
+                double b = Double.POSITIVE_INFINITY;
+                for (int c = 0; c < sizes.length; c++)
+                    if (c != own && sizes[c] > 0)
+                        b = Math.min(b, sums[c] / sizes[c]);
+                double max = Math.max(a, b);
+                target[i] = Double.isInfinite(b) || max == 0 ? 0 : (b - a) / max;
+            }
+        }
+    }
+
+    private double distance(int row1, int row2) {
+        if (cached != null)
+            return cached.get(cachedPos[row1], cachedPos[row2]);
+        if (correlation) {
+            if (complete[row1] && complete[row2]) {
+                double dot = 0;
+                for (int j = 0; j < n; j++)
+                    dot += normalized[row1 * n + j] * normalized[row2 * n + j];
+                return dot != dot ? 1 : 1 - dot;
+            }
+            return correlationDistance(values, row1 * n, values, row2 * n);
+        }
+        return euclidean(values, row1 * n, values, row2 * n);
+    }
+
+    private double correlationDistance(double[] x, int xOffset, double[] y, int yOffset) {
+        double cor = CorrelationEngine.pairwiseComplete(x, xOffset, y, yOffset, n);
+        return cor != cor ? 1 : 1 - cor;
+    }
+
+    private double euclidean(double[] x, int xOffset, double[] y, int yOffset) {
+        double sum = 0;
+        int count = 0;
+        for (int j = 0; j < n; j++) {
+            double diff = x[xOffset + j] - y[yOffset + j];
+            if (diff != diff)
+                continue;
+            sum += diff * diff;
+            count++;
+        }
+        if (count == 0)
+            return Double.NaN;
+        return Math.sqrt(count == n ? sum : sum * n / count);
+    }
+
+    private double distance(double[] x, int xOffset, double[] y, int yOffset) {
+        return correlation ? correlationDistance(x, xOffset, y, yOffset) :
+            euclidean(x, xOffset, y, yOffset);
+    }
+
+    /**
+     * Mean over clusters of maximal (S_i + S_j) / d(c_i, c_j) where c_i is center
+     * of cluster (column means over defined values) and S_i is mean distance of
+     * cluster rows to it. NaN if there are less than two non-empty clusters.
+     */
+    private double daviesBouldin(int[] labels, int[] sizes) {
+        int k = sizes.length;
+        double[] centers = new double[k * n];
+        int[] counts = new int[k * n];
+        for (int row = 0; row < labels.length; row++) {
+            if (labels[row] < 0)
+                continue;
+            for (int j = 0; j < n; j++) {
+                double value = values[row * n + j];
+                if (value != value)
+                    continue;
+                centers[labels[row] * n + j] += value;
+                counts[labels[row] * n + j]++;
+            }
+        }
+        for (int i = 0; i < centers.length; i++)
+            centers[i] = counts[i] == 0 ? Double.NaN : centers[i] / counts[i];
+        double[] scatter = new double[k];
+        for (int row = 0; row < labels.length; row++)
+            if (labels[row] >= 0)
+                scatter[labels[row]] += distance(values, row * n, centers,
+                        labels[row] * n) / sizes[labels[row]];
+        int nonEmpty = 0;
+        for (int c = 0; c < k; c++)
+            if (sizes[c] > 0)
+                nonEmpty++;
+        if (nonEmpty < 2)
+            return Double.NaN;
+        double ret = 0;
+        for (int c1 = 0; c1 < k; c1++) {
+            if (sizes[c1] == 0)
+                continue;
+            double max = 0;
+            for (int c2 = 0; c2 < k; c2++) {
+                if (c2 == c1 || sizes[c2] == 0)
+                    continue;
+                double d = distance(centers, c1 * n, centers, c2 * n);
+                max = Math.max(max, (scatter[c1] + scatter[c2]) / d);
+            }
+            ret += max;
+        }
+        return ret / nonEmpty;
+    }
+}
@@ -0,0 +1,353 @@
+package us.kbase.clusterservice;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Condensed distance matrices (distances of pairs i &lt; j of selected rows)
+ * kept in scratch directory between calls, so hierarchical clustering, PAM and
+ * silhouette of the same matrix version don't calculate them again. Entry is
+ * keyed by matrix version, distance metric, column ids and ids of selected rows
+ * (so row subsets and transposed matrix get their own entries), rows are always
+ * stored in increasing order of their matrix positions. Distances are stored as
+ * floats and memory-mapped for reading; freshly calculated distances are
+ * rounded to floats too, so results don't depend on whether entry was found.
+ * Reading entry updates its modification time and least recently used entries
+ * are removed when total size of entries exceeds disk budget.
+ * <pre>
+ * header:    magic, format version, row count (int each)
+ * distances: row count * (row count - 1) / 2 floats in condensed order
+ * </pre>
+ */
+public class DistanceCache {
+    public static final String DIR_NAME = "distance_cache";
+    private static final String SUFFIX = ".dist";
+    private static final int MAGIC = 0x4B464443;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int CHUNK_BITS = 28;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Object evictionLock = new Object();
+
+    private final File dir;
+    private final long budget;
+    private final String matrixVersion;
+
+    /**
+     * @param scratchDir entries are kept in {@link #DIR_NAME} subfolder of it
+     * @param budget maximal total size of entries in bytes
+     * @param matrixVersion version of matrix rows come from (for instance
+     * "wsid/objid/ver"), different versions never share entries
+     */
+    public DistanceCache(File scratchDir, long budget, String matrixVersion) {
+        this.dir = new File(scratchDir, DIR_NAME);
+        this.budget = budget;
+        this.matrixVersion = matrixVersion;
+    }
+
+    /**
+     * Calculation of distances for cache miss.
+     */
+    public interface Calculation {
+        /**
+         * @return condensed distances between given matrix rows
+         */
+        double[] calculate(int[] rows);
+    }
+
+    /**
+     * Distances between rows of one entry. Rows are addressed by their positions
+     * in entry (see {@link #indexOf(int)}).
+     */
+    public static class Distances {
+        private final int[] rows;
+        private final FloatBuffer[] chunks;
+
+        Distances(int[] rows, FloatBuffer[] chunks) {
+            this.rows = rows;
+            this.chunks = chunks;
+        }
+
+        public int getSize() {
+            return rows.length;
+        }
+
+        /**
+         * @return matrix positions of rows in increasing order
+         */
+        public int[] getRows() {
+            return rows;
+        }
+
+        /**
+         * @return position of matrix row in entry or negative value if row is
+         * not there
+         */
+        public int indexOf(int row) {
+            return Arrays.binarySearch(rows, row);
+        }
+
+        /**
+         * @return distance between rows at positions i and j of entry (0 for i = j)
+         */
+        public double get(int i, int j) {
+            if (i == j)
+                return 0;
+            long index = i < j ? condensedIndex(rows.length, i, j) :
+                condensedIndex(rows.length, j, i);
+            return chunks[(int)(index >>> CHUNK_BITS)].get(
+                    (int)(index & ((1 << CHUNK_BITS) - 1)));
+        }
+
+        /**
+         * @return condensed distances between given matrix rows (in given order,
+         * all of them should be in entry)
+         */
+        public double[] toCondensed(int[] matrixRows) {
+            int n = matrixRows.length;
+            int[] pos = positions(matrixRows);
+            double[] ret = new double[(int)((long)n * (n - 1) / 2)];
+            int index = 0;
+            for (int i = 0; i < n; i++)
+                for (int j = i + 1; j < n; j++)
+                    ret[index++] = get(pos[i], pos[j]);
+            return ret;
+        }
+
+        /**
+         * @return full row-major matrix of distances between given matrix rows
+         */
+        public double[] toFull(int[] matrixRows) {
+            int n = matrixRows.length;
+            if ((long)n * n > Integer.MAX_VALUE)
+                throw new IllegalStateException("Too many rows for full distance matrix: " + n);
+            int[] pos = positions(matrixRows);
+            double[] ret = new double[n * n];
+            for (int i = 0; i < n; i++)
+                for (int j = i + 1; j < n; j++) {
+                    double dist = get(pos[i], pos[j]);
+                    ret[i * n + j] = dist;
+                    ret[j * n + i] = dist;
+                }
+            return ret;
+        }
+
+        private int[] positions(int[] matrixRows) {
+            int[] ret = new int[matrixRows.length];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = indexOf(matrixRows[i]);
+                if (ret[i] < 0)
+                    throw new IllegalStateException("Row " + matrixRows[i] +
+                            " is not in cached distances");
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Returns distances between given rows taken from cache or calculated (and
+     * stored in cache if they fit into budget).
+     * @param rowIds ids of all matrix rows
+     * @param colIds ids of all matrix columns
+     * @param rows matrix positions of selected rows (any order)
+     */
+    public Distances get(List<String> rowIds, List<String> colIds, int[] rows, String metric,
+            Calculation calculation) throws IOException {
+        int[] sorted = sortedRows(rows);
+        File file = getFile(rowIds, colIds, sorted, metric);
+        Distances ret = open(file, sorted);
+        if (ret != null)
+            return ret;
+        double[] dist = calculation.calculate(sorted);
+        if (HEADER_SIZE + 4L * dist.length <= budget) {
+            store(file, sorted.length, dist);
+            evict(file);
+            ret = open(file, sorted);
+            if (ret != null)
+                return ret;
+        }
+        float[] values = new float[dist.length];
+        for (int i = 0; i < dist.length; i++)
+            values[i] = (float)dist[i];
+        return new Distances(sorted, new FloatBuffer[] {FloatBuffer.wrap(values)});
+    }
+
+    /**
+     * @return cached distances between given rows or null if there is no such entry
+     */
+    public Distances find(List<String> rowIds, List<String> colIds, int[] rows, String metric)
+            throws IOException {
+        int[] sorted = sortedRows(rows);
+        return open(getFile(rowIds, colIds, sorted, metric), sorted);
+    }
+
+    /**
+     * @return total size of entries in bytes
+     */
+    public long getUsedSpace() {
+        long ret = 0;
+        for (File file : listEntries())
+            ret += file.length();
+        return ret;
+    }
+
+    private static int[] sortedRows(int[] rows) {
+        int[] ret = Arrays.copyOf(rows, rows.length);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private File getFile(List<String> rowIds, List<String> colIds, int[] rows, String metric) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        update(md, matrixVersion);
+        update(md, metric);
+        md.update(ByteBuffer.allocate(8).putInt(colIds.size()).putInt(rows.length).array());
+        for (String colId : colIds)
+            update(md, colId);
+        for (int row : rows)
+            update(md, rowIds.get(row));
+        StringBuilder name = new StringBuilder();
+        for (byte b : md.digest())
+            name.append(String.format("%02x", b & 0xff));
+        return new File(dir, name.append(SUFFIX).toString());
+    }
+
+    private static void update(MessageDigest md, String text) {
+        md.update(String.valueOf(text).getBytes(UTF8));
+        md.update((byte)0);
+    }
+
+    private static Distances open(File file, int[] rows) throws IOException {
+        if (!file.exists())
+            return null;
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (IOException ex) {
+            // Entry was evicted in the meantime
+            return null;
+        }
+        try {
+            FileChannel channel = raf.getChannel();
+            long pairs = (long)rows.length * (rows.length - 1) / 2;
+            if (raf.length() != HEADER_SIZE + 4 * pairs)
+                return null;
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION ||
+                    header.getInt(8) != rows.length)
+                return null;
+            FloatBuffer[] chunks = new FloatBuffer[(int)((pairs >>> CHUNK_BITS) + 1)];
+            for (int c = 0; c < chunks.length; c++) {
+                long from = (long)c << CHUNK_BITS;
+                long size = Math.min(pairs - from, 1L << CHUNK_BITS);
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + 4 * from,
+                        4 * size).asFloatBuffer();
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return new Distances(rows, chunks);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes entry through temporary file so readers never see partial one.
+     */
+    private static void store(File file, int rowCount, double[] dist) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists())
+            dir.mkdirs();
+        File tempFile = File.createTempFile(file.getName() + "_", ".tmp", dir);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(rowCount);
+                for (double value : dist) {
+                    if (buffer.remaining() < 4) {
+                        buffer.flip();
+                        while (buffer.hasRemaining())
+                            channel.write(buffer);
+                        buffer.clear();
+                    }
+                    buffer.putFloat((float)value);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } finally {
+                raf.close();
+            }
+            if (file.exists())
+                file.delete();
+            if (!tempFile.renameTo(file))
+                throw new IllegalStateException("Can not store distances in " + file);
+        } finally {
+            if (tempFile.exists())
+                tempFile.delete();
+        }
+    }
+
+    /**
+     * Removes least recently used entries (except given one) until total size
+     * fits into budget. Mapped entries stay readable after removal.
+     */
+    private void evict(File keep) {
+        synchronized (evictionLock) {
+            File[] entries = listEntries();
+            final long[] modified = new long[entries.length];
+            long total = 0;
+            Integer[] order = new Integer[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                modified[i] = entries[i].lastModified();
+                total += entries[i].length();
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return Long.compare(modified[o1], modified[o2]);
+                }
+            });
+            for (int i = 0; i < order.length && total > budget; i++) {
+                File entry = entries[order[i]];
+                if (entry.equals(keep))
+                    continue;
+                long size = entry.length();
+                if (entry.delete())
+                    total -= size;
+            }
+        }
+    }
+
+    private File[] listEntries() {
+        File[] ret = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SUFFIX);
+            }
+        });
+        return ret == null ? new File[0] : ret;
+    }
+
+    private static long condensedIndex(int n, int i, int j) {
+        return (long)i * n - (long)i * (i + 1) / 2 + (j - i - 1);
+    }
+}
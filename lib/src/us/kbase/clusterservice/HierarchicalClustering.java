@@ -0,0 +1,691 @@
+package us.kbase.clusterservice;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import us.kbase.kbasefeaturevalues.CorrelationEngine;
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.VectorStats;
+
+/**
+ * Agglomerative clustering of matrix rows with correlation distance (1 - Pearson
+ * correlation over pairwise complete observations, undefined correlation counts
+ * as 0) as done by amap::hcluster(method="correlation") in ClusterServiceRImpl.r.
+ * Distances are calculated in parallel tiles (see {@link CorrelationEngine}) into
+ * condensed matrix which is the only O(n^2) structure kept in memory. Merges are
+ * found by nearest-neighbor chain algorithm in O(n^2) time, it's exact for all
+ * supported linkages ("complete", "average", "single") since they are reducible.
+ */
+public class HierarchicalClustering {
+    public static final String COMPLETE = "complete";
+    public static final String AVERAGE = "average";
+    public static final String SINGLE = "single";
+    public static final String CORRELATION = "correlation";
+    public static final String DEFAULT_LINKAGE = COMPLETE;
+
+    /**
+     * Binary tree in terms of R's hclust object. Merge step s (starting from 1)
+     * joins left[s - 1] and right[s - 1] at height heights[s - 1], negative value
+     * -i in left/right means tip i (starting from 1), positive value means cluster
+     * formed at that step. Heights are not decreasing.
+     */
+    public static class Dendrogram {
+        private final List<String> tipLabels;
+        private final int[] left;
+        private final int[] right;
+        private final double[] heights;
+
+        public Dendrogram(List<String> tipLabels, int[] left, int[] right, double[] heights) {
+            this.tipLabels = tipLabels;
+            this.left = left;
+            this.right = right;
+            this.heights = heights;
+        }
+
+        public List<String> getTipLabels() {
+            return tipLabels;
+        }
+
+        public int[] getLeft() {
+            return left;
+        }
+
+        public int[] getRight() {
+            return right;
+        }
+
+        public double[] getHeights() {
+            return heights;
+        }
+
+        private double getMaxHeight() {
+            return heights.length == 0 ? 0 : heights[heights.length - 1];
+        }
+
+        /**
+         * Newick string of the same form R code gives by write.tree(as.phylo(hc))
+         * with edge lengths divided by maximal height: ape halves hclust heights,
+         * so all tips are at distance 0.5 from the root. Lengths are printed with
+         * 10 significant digits.
+         */
+        public String toNewick() {
+            StringBuilder ret = new StringBuilder();
+            if (heights.length == 0) {
+                if (tipLabels.size() == 1)
+                    ret.append(tipLabels.get(0));
+                return ret.append(";").toString();
+            }
+            double maxHeight = getMaxHeight();
+            final int visit = 0;
+            final int comma = 1;
+            final int close = 2;
+            // Explicit stack of (action, node, parent step) triples, trees may be deep
+            int[] stack = new int[12 * (heights.length + 1)];
+            int size = 0;
+            stack[size++] = visit;
+            stack[size++] = heights.length;
+            stack[size++] = 0;
+            while (size > 0) {
+                int parent = stack[--size];
+                int node = stack[--size];
+                int action = stack[--size];
+                if (action == comma) {
+                    ret.append(',');
+                } else if (action == close) {
+                    ret.append(')');
+                    if (parent > 0)
+                        appendLength(ret, heights[parent - 1] - heights[node - 1], maxHeight);
+                } else if (node < 0) {
+                    ret.append(tipLabels.get(-node - 1));
+                    appendLength(ret, heights[parent - 1], maxHeight);
+                } else {
+                    ret.append('(');
+                    int[] pushed = {close, node, parent, visit, right[node - 1], node,
+                            comma, 0, 0, visit, left[node - 1], node};
+                    System.arraycopy(pushed, 0, stack, size, pushed.length);
+                    size += pushed.length;
+                }
+            }
+            return ret.append(';').toString();
+        }
+
+        private static void appendLength(StringBuilder ret, double length, double maxHeight) {
+            double value = length / 2;
+            if (maxHeight > 0)
+                value /= maxHeight;
+            ret.append(':').append(formatG(value, 10));
+        }
+
+        /**
+         * Cuts tree like R's cutree(hc, h = height) where heights are divided by
+         * maximal height (this is what reading normalized Newick gives).
+         * @return group of each tip starting from 1, groups are numbered in order
+         * of first appearance of their tips in Newick string
+         */
+        public int[] cut(double height) {
+            return cut(height, getMaxHeight());
+        }
+
+        /**
+         * Cuts tree like R's cutree(hc, h = height) at absolute height, this is
+         * what clusters_from_dendrogram of ClusterServiceRImpl.r does with tree
+         * loaded from Newick (see {@link #fromNewick(String)}).
+         * @return group of each tip starting from 1, groups are numbered in order
+         * of first appearance of their tips in Newick string
+         */
+        public int[] cutAtHeight(double height) {
+            return cut(height, 0);
+        }
+
+        private int[] cut(double height, double maxHeight) {
+            int n = tipLabels.size();
+            // Group of each merged cluster is represented by any of its tips
+            int[] parent = new int[n];
+            for (int i = 0; i < n; i++)
+                parent[i] = i;
+            int[] stepTip = new int[heights.length];
+            for (int s = 0; s < heights.length; s++) {
+                int a = left[s] < 0 ? -left[s] - 1 : stepTip[left[s] - 1];
+                int b = right[s] < 0 ? -right[s] - 1 : stepTip[right[s] - 1];
+                stepTip[s] = a;
+                double normHeight = maxHeight > 0 ? heights[s] / maxHeight : heights[s];
+                if (normHeight <= height)
+                    parent[find(parent, b)] = find(parent, a);
+            }
+            int[] ret = new int[n];
+            int[] groupOfRoot = new int[n];
+            int groups = 0;
+            for (int tip : getTipOrder()) {
+                int root = find(parent, tip);
+                if (groupOfRoot[root] == 0)
+                    groupOfRoot[root] = ++groups;
+                ret[tip] = groupOfRoot[root];
+            }
+            return ret;
+        }
+
+        /**
+         * @return tips (starting from 0) in order of their appearance in Newick string
+         */
+        public int[] getTipOrder() {
+            int n = tipLabels.size();
+            int[] ret = new int[n];
+            if (heights.length == 0) {
+                for (int i = 0; i < n; i++)
+                    ret[i] = i;
+                return ret;
+            }
+            int[] stack = new int[heights.length + 1];
+            int size = 0;
+            int count = 0;
+            stack[size++] = heights.length;
+            while (size > 0) {
+                int node = stack[--size];
+                if (node < 0) {
+                    ret[count++] = -node - 1;
+                } else {
+                    stack[size++] = right[node - 1];
+                    stack[size++] = left[node - 1];
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Reads tree the way R's as.hclust(read.tree(text = newick)) does: tips are
+         * numbered in order of appearance, height of internal node is doubled
+         * distance to the last tip (like ape's branching.times) and merges are
+         * ordered by height (ties keep order of opening brackets). Tree should be
+         * rooted, binary and ultrametric with all edge lengths defined.
+         */
+        public static Dendrogram fromNewick(String newick) {
+            List<String> tipLabels = new ArrayList<String>();
+            // Internal nodes are numbered in order of opening brackets (preorder)
+            List<Integer> nodeParent = new ArrayList<Integer>();
+            List<Double> nodeLength = new ArrayList<Double>();
+            List<int[]> nodeChildren = new ArrayList<int[]>();
+            List<Integer> tipParent = new ArrayList<Integer>();
+            List<Double> tipLength = new ArrayList<Double>();
+            int pos = 0;
+            int len = newick.length();
+            int current = -1;
+            // Tip (~i) or internal node (i) which was just closed, length goes to it
+            Integer last = null;
+            boolean finished = false;
+            while (pos < len) {
+                char ch = newick.charAt(pos);
+                if (Character.isWhitespace(ch)) {
+                    pos++;
+                } else if (finished) {
+                    throw newickError(newick, pos, "unexpected text after ';'");
+                } else if (ch == '(') {
+                    if (last != null)
+                        throw newickError(newick, pos, "unexpected '('");
+                    int node = nodeParent.size();
+                    nodeParent.add(current);
+                    nodeLength.add(null);
+                    nodeChildren.add(new int[0]);
+                    if (current >= 0)
+                        addChild(nodeChildren, current, node);
+                    current = node;
+                    pos++;
+                } else if (ch == ',' || ch == ')') {
+                    if (current < 0 || last == null)
+                        throw newickError(newick, pos, "unexpected '" + ch + "'");
+                    last = null;
+                    if (ch == ')') {
+                        last = current;
+                        current = nodeParent.get(current);
+                    }
+                    pos++;
+                } else if (ch == ':') {
+                    if (last == null)
+                        throw newickError(newick, pos, "edge length without node");
+                    int end = pos + 1;
+                    while (end < len && "(),:;".indexOf(newick.charAt(end)) < 0)
+                        end++;
+                    double length;
+                    try {
+                        length = Double.parseDouble(newick.substring(pos + 1, end).trim());
+                    } catch (NumberFormatException ex) {
+                        throw newickError(newick, pos + 1, "wrong edge length");
+                    }
+                    if (last < 0) {
+                        tipLength.set(~last, length);
+                    } else {
+                        nodeLength.set(last, length);
+                    }
+                    pos = end;
+                } else if (ch == ';') {
+                    if (current >= 0 || last == null)
+                        throw newickError(newick, pos, "unexpected ';'");
+                    finished = true;
+                    pos++;
+                } else {
+                    // Tip label or label of internal node just closed (ignored)
+                    int end = pos;
+                    String label;
+                    if (ch == '\'') {
+                        StringBuilder sb = new StringBuilder();
+                        end++;
+                        while (true) {
+                            if (end >= len)
+                                throw newickError(newick, pos, "unterminated quoted label");
+                            char c = newick.charAt(end++);
+                            if (c == '\'') {
+                                if (end < len && newick.charAt(end) == '\'') {
+                                    end++;
+                                } else {
+                                    break;
+                                }
+                            }
+                            sb.append(c);
+                        }
+                        label = sb.toString();
+                    } else {
+                        while (end < len && "(),:;".indexOf(newick.charAt(end)) < 0)
+                            end++;
+                        label = newick.substring(pos, end).trim();
+                    }
+                    if (last == null) {
+                        int tip = tipLabels.size();
+                        tipLabels.add(label);
+                        tipParent.add(current);
+                        tipLength.add(null);
+                        if (current >= 0)
+                            addChild(nodeChildren, current, ~tip);
+                        last = ~tip;
+                    } else if (last < 0) {
+                        throw newickError(newick, pos, "unexpected label");
+                    }
+                    pos = end;
+                }
+            }
+            if (!finished)
+                throw new IllegalStateException("Newick string should end with ';'");
+            int n = tipLabels.size();
+            int nodes = nodeParent.size();
+            if (nodes == 0)
+                return new Dendrogram(tipLabels, new int[0], new int[0], new double[0]);
+            // Parents always go before children in preorder
+            double[] depths = new double[nodes];
+            for (int node = 0; node < nodes; node++) {
+                if (nodeChildren.get(node).length != 2)
+                    throw new IllegalStateException("Dendrogram is not binary");
+                int parent = nodeParent.get(node);
+                if (parent >= 0)
+                    depths[node] = depths[parent] + edgeLength(nodeLength.get(node));
+            }
+            double[] tipDepths = new double[n];
+            double minDepth = Double.POSITIVE_INFINITY;
+            double maxDepth = Double.NEGATIVE_INFINITY;
+            for (int tip = 0; tip < n; tip++) {
+                tipDepths[tip] = depths[tipParent.get(tip)] + edgeLength(tipLength.get(tip));
+                minDepth = Math.min(minDepth, tipDepths[tip]);
+                maxDepth = Math.max(maxDepth, tipDepths[tip]);
+            }
+            if (maxDepth - minDepth > 1.5e-8 * maxDepth)
+                throw new IllegalStateException("Dendrogram is not ultrametric");
+            final double[] nodeHeights = new double[nodes];
+            for (int node = 0; node < nodes; node++)
+                nodeHeights[node] = 2 * (tipDepths[n - 1] - depths[node]);
+            Integer[] order = new Integer[nodes];
+            for (int node = 0; node < nodes; node++)
+                order[node] = node;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return Double.compare(nodeHeights[o1], nodeHeights[o2]);
+                }
+            });
+            int[] stepOfNode = new int[nodes];
+            for (int s = 0; s < nodes; s++)
+                stepOfNode[order[s]] = s + 1;
+            int[] left = new int[nodes];
+            int[] right = new int[nodes];
+            double[] heights = new double[nodes];
+            for (int s = 0; s < nodes; s++) {
+                int[] children = nodeChildren.get(order[s]);
+                left[s] = children[0] < 0 ? children[0] : stepOfNode[children[0]];
+                right[s] = children[1] < 0 ? children[1] : stepOfNode[children[1]];
+                heights[s] = nodeHeights[order[s]];
+            }
+            return new Dendrogram(tipLabels, left, right, heights);
+        }
+
+        /**
+         * Tip labels which are row positions (this is what
+         * {@link HierarchicalClustering#cluster} produces) parsed as numbers.
+         */
+        public int[] getTipRows() {
+            int[] ret = new int[tipLabels.size()];
+            for (int tip = 0; tip < ret.length; tip++) {
+                try {
+                    ret[tip] = Integer.parseInt(tipLabels.get(tip));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalStateException("Dendrogram tip label is not a row " +
+                            "position: " + tipLabels.get(tip));
+                }
+                if (ret[tip] < 0)
+                    throw new IllegalStateException("Dendrogram tip label is not a row " +
+                            "position: " + tipLabels.get(tip));
+            }
+            return ret;
+        }
+
+        private static void addChild(List<int[]> nodeChildren, int node, int child) {
+            int[] children = nodeChildren.get(node);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            nodeChildren.set(node, children);
+        }
+
+        private static double edgeLength(Double length) {
+            if (length == null)
+                throw new IllegalStateException("Dendrogram has edges without length");
+            return length;
+        }
+
+        private static IllegalStateException newickError(String newick, int pos,
+                String message) {
+            return new IllegalStateException("Error parsing Newick string at position " +
+                    pos + ": " + message);
+        }
+
+        private static int find(int[] parent, int i) {
+            while (parent[i] != i) {
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Clustering of rows selected for processing together with its cut.
+     */
+    public static class Result {
+        private final Dendrogram dendrogram;
+        private final int[] rows;
+        private final int[] labels;
+
+        Result(Dendrogram dendrogram, int[] rows, int[] labels) {
+            this.dendrogram = dendrogram;
+            this.rows = rows;
+            this.labels = labels;
+        }
+
+        public Dendrogram getDendrogram() {
+            return dendrogram;
+        }
+
+        /**
+         * @return positions of processed rows in matrix (tip i of dendrogram is row rows[i])
+         */
+        public int[] getRows() {
+            return rows;
+        }
+
+        /**
+         * @return group of each matrix row (starting from 1), -1 for rows which
+         * were not processed
+         */
+        public int[] getLabels() {
+            return labels;
+        }
+    }
+
+    /**
+     * Clusters matrix rows and cuts tree at given height (relative to maximal one).
+     * @param processRows maximal number of rows to cluster (null means all), rows
+     * with largest variance are taken
+     */
+    public static Result cluster(DenseMatrix matrix, String distanceMetric, String linkage,
+            double heightCutoff, Integer processRows, long parallelThreshold) {
+        try {
+            return cluster(matrix, distanceMetric, linkage, heightCutoff, processRows,
+                    parallelThreshold, null);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Clusters matrix rows like {@link #cluster(DenseMatrix, String, String, double,
+     * Integer, long)} does taking distances from cache (if it's defined).
+     */
+    public static Result cluster(final DenseMatrix matrix, String distanceMetric,
+            String linkage, double heightCutoff, Integer processRows,
+            final long parallelThreshold, DistanceCache cache) throws IOException {
+        if (distanceMetric != null && !distanceMetric.isEmpty() &&
+                !distanceMetric.equals(CORRELATION))
+            throw new IllegalStateException("Unsupported distance metric: " + distanceMetric);
+        if (linkage == null || linkage.isEmpty())
+            linkage = DEFAULT_LINKAGE;
+        if (!(linkage.equals(COMPLETE) || linkage.equals(AVERAGE) || linkage.equals(SINGLE)))
+            throw new IllegalStateException("Unsupported linkage criteria: " + linkage);
+        int[] rows = selectTopVarianceRows(matrix, processRows == null ?
+                matrix.getRowCount() : processRows);
+        double[] dist;
+        if (cache == null) {
+            dist = correlationDistances(matrix, rows, parallelThreshold);
+        } else {
+            dist = cache.get(matrix.getRowIds(), matrix.getColIds(), rows, CORRELATION,
+                    new DistanceCache.Calculation() {
+                @Override
+                public double[] calculate(int[] rows) {
+                    return correlationDistances(matrix, rows, parallelThreshold);
+                }
+            }).toCondensed(rows);
+        }
+        List<String> tipLabels = new ArrayList<String>();
+        for (int row : rows)
+            tipLabels.add(String.valueOf(row));
+        Dendrogram dendrogram = nnChain(dist, rows.length, linkage, tipLabels);
+        int[] groups = dendrogram.cut(heightCutoff);
+        int[] labels = new int[matrix.getRowCount()];
+        Arrays.fill(labels, -1);
+        for (int i = 0; i < rows.length; i++)
+            labels[rows[i]] = groups[i];
+        return new Result(dendrogram, rows, labels);
+    }
+
+    /**
+     * @return condensed correlation distances (1 - r, undefined correlation
+     * counts as 0) between given rows
+     */
+    static double[] correlationDistances(DenseMatrix matrix, int[] rows,
+            long parallelThreshold) {
+        int[] cols = VectorStats.toIndeces(null, matrix.getColCount());
+        double[] dist = CorrelationEngine.correlateRowsCondensed(matrix, rows, cols,
+                parallelThreshold);
+        for (int i = 0; i < dist.length; i++)
+            dist[i] = dist[i] != dist[i] ? 1.0 : 1.0 - dist[i];
+        return dist;
+    }
+
+    /**
+     * Orders rows by decreasing variance like topVarGenes function of
+     * ClusterServiceRImpl.r does (rows with missing values go last) and keeps
+     * first count of them.
+     */
+    static int[] selectTopVarianceRows(DenseMatrix matrix, int count) {
+        int rowCount = matrix.getRowCount();
+        int colCount = matrix.getColCount();
+        double[] values = matrix.getValues();
+        final double[] vars = new double[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            double sum = 0;
+            for (int j = 0; j < colCount; j++)
+                sum += values[i * colCount + j];
+            double mean = sum / colCount;
+            double sumSq = 0;
+            for (int j = 0; j < colCount; j++) {
+                double diff = values[i * colCount + j] - mean;
+                sumSq += diff * diff;
+            }
+            vars[i] = sumSq / (colCount - 1);
+        }
+        Integer[] order = new Integer[rowCount];
+        for (int i = 0; i < rowCount; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                double v1 = vars[o1];
+                double v2 = vars[o2];
+                boolean na1 = v1 != v1;
+                boolean na2 = v2 != v2;
+                if (na1 || na2)
+                    return na1 == na2 ? 0 : (na1 ? 1 : -1);
+                return Double.compare(v2, v1);
+            }
+        });
+        int[] ret = new int[Math.max(0, Math.min(count, rowCount))];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = order[i];
+        return ret;
+    }
+
+    /**
+     * Nearest-neighbor chain: follows chain of nearest neighbors until two
+     * clusters are nearest to each other and merges them. Merged cluster takes
+     * slot of the second one, distances are updated by Lance-Williams formula.
+     * Merges are sorted by height afterwards and converted into hclust form
+     * (singletons first, then clusters formed earlier).
+     */
+    static Dendrogram nnChain(double[] dist, int n, String linkage, List<String> tipLabels) {
+        int steps = Math.max(0, n - 1);
+        boolean[] active = new boolean[n];
+        Arrays.fill(active, true);
+        int[] sizes = new int[n];
+        Arrays.fill(sizes, 1);
+        // Node of each slot: tip i is i, cluster of raw merge r is n + r
+        int[] nodeOf = new int[n];
+        for (int i = 0; i < n; i++)
+            nodeOf[i] = i;
+        final int[] rawA = new int[steps];
+        final int[] rawB = new int[steps];
+        final double[] rawHeight = new double[steps];
+        int[] chain = new int[n];
+        int chainSize = 0;
+        int firstActive = 0;
+        for (int r = 0; r < steps; r++) {
+            if (chainSize == 0) {
+                while (!active[firstActive])
+                    firstActive++;
+                chain[chainSize++] = firstActive;
+            }
+            int a;
+            int b;
+            double best;
+            while (true) {
+                a = chain[chainSize - 1];
+                b = chainSize > 1 ? chain[chainSize - 2] : -1;
+                best = b >= 0 ? get(dist, n, a, b) : Double.POSITIVE_INFINITY;
+                for (int x = 0; x < n; x++) {
+                    if (x == a || !active[x])
+                        continue;
+                    double d = get(dist, n, a, x);
+                    if (d < best) {
+                        best = d;
+                        b = x;
+                    }
+                }
+                if (chainSize > 1 && b == chain[chainSize - 2])
+                    break;
+                chain[chainSize++] = b;
+            }
+            chainSize -= 2;
+            rawA[r] = nodeOf[a];
+            rawB[r] = nodeOf[b];
+            rawHeight[r] = best;
+            for (int x = 0; x < n; x++) {
+                if (x == a || x == b || !active[x])
+                    continue;
+                double da = get(dist, n, a, x);
+                double db = get(dist, n, b, x);
+                double value;
+                if (linkage.equals(SINGLE)) {
+                    value = Math.min(da, db);
+                } else if (linkage.equals(AVERAGE)) {
+                    value = (sizes[a] * da + sizes[b] * db) / (sizes[a] + sizes[b]);
+                } else {
+                    value = Math.max(da, db);
+                }
+                dist[index(n, b, x)] = value;
+            }
+            active[a] = false;
+            sizes[b] += sizes[a];
+            nodeOf[b] = n + r;
+        }
+        Integer[] order = new Integer[steps];
+        for (int r = 0; r < steps; r++)
+            order[r] = r;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int ret = Double.compare(rawHeight[o1], rawHeight[o2]);
+                return ret != 0 ? ret : Integer.compare(o1, o2);
+            }
+        });
+        int[] stepOfRaw = new int[steps];
+        for (int s = 0; s < steps; s++)
+            stepOfRaw[order[s]] = s + 1;
+        int[] left = new int[steps];
+        int[] right = new int[steps];
+        double[] heights = new double[steps];
+        for (int s = 0; s < steps; s++) {
+            int r = order[s];
+            int x = rawA[r] < n ? -(rawA[r] + 1) : stepOfRaw[rawA[r] - n];
+            int y = rawB[r] < n ? -(rawB[r] + 1) : stepOfRaw[rawB[r] - n];
+            boolean swap;
+            if (x < 0 && y < 0) {
+                swap = -x > -y;
+            } else if (x < 0 || y < 0) {
+                swap = y < 0;
+            } else {
+                swap = x > y;
+            }
+            left[s] = swap ? y : x;
+            right[s] = swap ? x : y;
+            heights[s] = rawHeight[r];
+        }
+        return new Dendrogram(tipLabels, left, right, heights);
+    }
+
+    private static double get(double[] dist, int n, int i, int j) {
+        return dist[index(n, i, j)];
+    }
+
+    private static int index(int n, int i, int j) {
+        return i < j ? CorrelationEngine.condensedIndex(n, i, j) :
+            CorrelationEngine.condensedIndex(n, j, i);
+    }
+
+    /**
+     * Formats number like C's printf("%.{digits}g") does (this is how ape's
+     * write.tree prints edge lengths).
+     */
+    static String formatG(double value, int digits) {
+        if (value == 0)
+            return "0";
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return String.valueOf(value);
+        BigDecimal rounded = new BigDecimal(value).round(new MathContext(digits,
+                RoundingMode.HALF_EVEN));
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        if (exponent < -4 || exponent >= digits) {
+            String mantissa = rounded.movePointLeft(exponent).stripTrailingZeros().toPlainString();
+            int abs = Math.abs(exponent);
+            return mantissa + "e" + (exponent < 0 ? "-" : "+") + (abs < 10 ? "0" : "") + abs;
+        }
+        return rounded.stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,305 @@
+package us.kbase.clusterservice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+import us.kbase.common.service.Tuple2;
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.EstimateKResult;
+import us.kbase.kbasefeaturevalues.VectorStats;
+
+/**
+ * Estimation of number of clusters for K-means in the same terms as estimate_k
+ * of ClusterServiceRImpl.r (clValid with internal validation): rows are sampled
+ * down to max_items, each K from min_k to min(max_k, rows - 1) is scored by mean
+ * silhouette with Euclidean distance and the best scoring K wins (the smallest
+ * one on ties).
+ * <p>
+ * Values of K are split into fixed blocks of {@link #K_BLOCK} consecutive values
+ * which are processed in parallel. Inside a block the first K starts from
+ * k-means++ centers and every next K starts from centers of the previous one
+ * plus one more center picked by k-means++ rule, so only a few Lloyd iterations
+ * are needed per K. Blocks don't depend on number of threads, so result is the
+ * same for given random seed. Silhouette is calculated for at most
+ * {@link ClusterSetEvaluation#DEFAULT_SILHOUETTE_SAMPLE_SIZE} sampled rows and
+ * distance to the nearest other cluster is looked for among neighb_size clusters
+ * with the closest centers only.
+ */
+public class KEstimation {
+    public static final int DEFAULT_MIN_K = 2;
+    public static final int DEFAULT_MAX_K = 200;
+    public static final int DEFAULT_MAX_ITER = 100;
+    public static final int DEFAULT_NEIGHB_SIZE = 10;
+    public static final int K_BLOCK = 8;
+
+    private final double[] values;
+    private final int m;
+    private final int n;
+    private final int maxIter;
+    private final int neighbSize;
+    private final int[] evaluated;
+    private final long seed;
+    private final double[] silhouettes;
+
+    private KEstimation(double[] values, int m, int n, int maxIter, int neighbSize,
+            int[] evaluated, long seed, int kCount) {
+        this.values = values;
+        this.m = m;
+        this.n = n;
+        this.maxIter = maxIter;
+        this.neighbSize = neighbSize;
+        this.evaluated = evaluated;
+        this.seed = seed;
+        this.silhouettes = new double[kCount];
+    }
+
+    public static EstimateKResult estimate(DenseMatrix matrix, Long minK, Long maxK,
+            Long maxIter, Long randomSeed, Long neighbSize, Long maxItems,
+            long parallelThreshold) {
+        if (matrix.hasMissingValues())
+            throw new IllegalStateException("K-means can not be applied to matrix " +
+                    "with missing values");
+        int from = minK == null ? DEFAULT_MIN_K : (int)Math.min(Integer.MAX_VALUE, minK);
+        int iterations = maxIter == null ? DEFAULT_MAX_ITER :
+            (int)Math.min(Integer.MAX_VALUE, maxIter);
+        int neighbors = neighbSize == null ? DEFAULT_NEIGHB_SIZE :
+            (int)Math.min(Integer.MAX_VALUE, neighbSize);
+        if (from < 2)
+            throw new IllegalStateException("Minimal number of clusters should be at least 2");
+        if (iterations < 1)
+            throw new IllegalStateException("Maximal number of iterations should be positive: " +
+                    iterations);
+        if (neighbors < 1)
+            throw new IllegalStateException("Neighborhood size should be positive: " +
+                    neighbors);
+        Random random = new Random(randomSeed != null ? randomSeed : new Random().nextLong());
+        int n = matrix.getColCount();
+        int[] rows = sample(matrix.getRowCount(), maxItems == null ? matrix.getRowCount() :
+            (int)Math.min(Integer.MAX_VALUE, maxItems), random);
+        int m = rows.length;
+        double[] values = new double[m * n];
+        for (int i = 0; i < m; i++)
+            System.arraycopy(matrix.getValues(), rows[i] * n, values, i * n, n);
+        int to = (int)Math.min(maxK == null ? DEFAULT_MAX_K : maxK, m - 1L);
+        if (to < from)
+            throw new IllegalStateException("Range of K [" + from + ", " + to + "] is empty " +
+                    "for " + m + " rows");
+        int[] evaluated = sample(m, ClusterSetEvaluation.DEFAULT_SILHOUETTE_SAMPLE_SIZE,
+                random);
+        KEstimation engine = new KEstimation(values, m, n, iterations, neighbors, evaluated,
+                random.nextLong(), to - from + 1);
+        BlockTask task = engine.new BlockTask(from, to + 1, from, Math.max(1, parallelThreshold));
+        if ((long)m * n * (to - from + 1) * (from + to) / 2 > parallelThreshold &&
+                to - from + 1 > K_BLOCK) {
+            VectorStats.getPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        List<Tuple2<Long, Double>> sizes = new ArrayList<Tuple2<Long, Double>>();
+        int bestK = from;
+        for (int k = from; k <= to; k++) {
+            double silhouette = engine.silhouettes[k - from];
+            sizes.add(new Tuple2<Long, Double>().withE1((long)k).withE2(silhouette));
+            if (silhouette > engine.silhouettes[bestK - from])
+                bestK = k;
+        }
+        return new EstimateKResult().withBestK((long)bestK).withEstimateClusterSizes(sizes);
+    }
+
+    /**
+     * @return count (or all if there are less) random positions out of total in
+     * increasing order
+     */
+    private static int[] sample(int total, int count, Random random) {
+        int[] ret = new int[total];
+        for (int i = 0; i < total; i++)
+            ret[i] = i;
+        if (count >= total)
+            return ret;
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(total - i);
+            int tmp = ret[i];
+            ret[i] = ret[j];
+            ret[j] = tmp;
+        }
+        ret = Arrays.copyOf(ret, count);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final int minK;
+        private final long threshold;
+
+        BlockTask(int from, int to, int minK, long threshold) {
+            this.from = from;
+            this.to = to;
+            this.minK = minK;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            int blocks = (to - from + K_BLOCK - 1) / K_BLOCK;
+            if (blocks > 1 && (long)m * n * (to - from) * (from + to) / 2 > threshold) {
+                int middle = from + (blocks / 2) * K_BLOCK;
+                invokeAll(new BlockTask(from, middle, minK, threshold),
+                        new BlockTask(middle, to, minK, threshold));
+                return;
+            }
+            for (int blockStart = from; blockStart < to; blockStart += K_BLOCK)
+                runBlock(blockStart, Math.min(to, blockStart + K_BLOCK), minK);
+        }
+    }
+
+    private void runBlock(int from, int to, int minK) {
+        Random random = new Random(KMeansClustering.restartSeed(seed, from));
+        KMeansClustering.Result res = null;
+        for (int k = from; k < to; k++) {
+            double[] centers = res == null ? seedCenters(k, random) : addCenter(res, random);
+            res = KMeansClustering.clusterFrom(values, m, n, centers, maxIter);
+            silhouettes[k - minK] = silhouette(res.getLabels(), res.getCenters(), k);
+        }
+    }
+
+    /**
+     * k-means++ seeding: first center is random row, every next one is a row
+     * chosen with probability proportional to squared distance to the closest
+     * of already chosen centers.
+     */
+    private double[] seedCenters(int k, Random random) {
+        double[] centers = new double[k * n];
+        int first = random.nextInt(m);
+        System.arraycopy(values, first * n, centers, 0, n);
+        double[] closest = new double[m];
+        for (int i = 0; i < m; i++)
+            closest[i] = squaredDistance(i, centers, 0);
+        for (int l = 1; l < k; l++) {
+            int row = pickByWeight(closest, random);
+            System.arraycopy(values, row * n, centers, l * n, n);
+            for (int i = 0; i < m; i++)
+                closest[i] = Math.min(closest[i], squaredDistance(i, centers, l));
+        }
+        return centers;
+    }
+
+    /**
+     * Centers of previous solution plus one row chosen by k-means++ rule (the
+     * closest center of each row is its own one since Lloyd has converged).
+     */
+    private double[] addCenter(KMeansClustering.Result prev, Random random) {
+        double[] prevCenters = prev.getCenters();
+        int k = prevCenters.length / n;
+        int[] labels = prev.getLabels();
+        double[] closest = new double[m];
+        for (int i = 0; i < m; i++)
+            closest[i] = squaredDistance(i, prevCenters, labels[i] - 1);
+        int row = pickByWeight(closest, random);
+        double[] centers = Arrays.copyOf(prevCenters, (k + 1) * n);
+        System.arraycopy(values, row * n, centers, k * n, n);
+        return centers;
+    }
+
+    private int pickByWeight(double[] weights, Random random) {
+        double total = 0;
+        for (double weight : weights)
+            total += weight;
+        if (total <= 0)
+            return random.nextInt(weights.length);
+        double target = random.nextDouble() * total;
+        for (int i = 0; i < weights.length; i++) {
+            target -= weights[i];
+            if (target < 0 && weights[i] > 0)
+                return i;
+        }
+        for (int i = weights.length - 1; i >= 0; i--)
+            if (weights[i] > 0)
+                return i;
+        return weights.length - 1;
+    }
+
+    /**
+     * Mean silhouette of evaluated rows. Distance to the nearest other cluster
+     * is mean distance to rows of one of neighbSize clusters with the closest
+     * centers, silhouette of row in singleton cluster is 0.
+     */
+    private double silhouette(int[] labels, double[] centers, int k) {
+        int[] sizes = new int[k];
+        for (int label : labels)
+            sizes[label - 1]++;
+        int[][] members = new int[k][];
+        for (int l = 0; l < k; l++)
+            members[l] = new int[sizes[l]];
+        int[] filled = new int[k];
+        for (int i = 0; i < m; i++) {
+            int l = labels[i] - 1;
+            members[l][filled[l]++] = i;
+        }
+        int candidates = Math.min(neighbSize, k - 1);
+        double[] centerDist = new double[k];
+        int[] nearest = new int[candidates];
+        double sum = 0;
+        for (int i : evaluated) {
+            int own = labels[i] - 1;
+            if (sizes[own] < 2)
+                continue;
+            for (int l = 0; l < k; l++)
+                centerDist[l] = l == own || sizes[l] == 0 ? Double.POSITIVE_INFINITY :
+                    squaredDistance(i, centers, l);
+            // Insertion into sorted list of the closest centers
+            int found = 0;
+            for (int l = 0; l < k; l++) {
+                double dist = centerDist[l];
+                if (Double.isInfinite(dist))
+                    continue;
+                if (found == candidates) {
+                    if (dist >= centerDist[nearest[found - 1]])
+                        continue;
+                    found--;
+                }
+                int pos = found++;
+                while (pos > 0 && centerDist[nearest[pos - 1]] > dist) {
+                    nearest[pos] = nearest[pos - 1];
+                    pos--;
+                }
+                nearest[pos] = l;
+            }
+            double a = meanDistance(i, members[own]) * sizes[own] / (sizes[own] - 1);
+            double b = Double.POSITIVE_INFINITY;
+            for (int c = 0; c < found; c++)
+                b = Math.min(b, meanDistance(i, members[nearest[c]]));
+            double max = Math.max(a, b);
+            if (!Double.isInfinite(b) && max > 0)
+                sum += (b - a) / max;
+        }
+        return sum / evaluated.length;
+    }
+
+    private double meanDistance(int i, int[] rows) {
+        double sum = 0;
+        for (int row : rows) {
+            double dist = 0;
+            for (int j = 0; j < n; j++) {
+                double diff = values[i * n + j] - values[row * n + j];
+                dist += diff * diff;
+            }
+            sum += Math.sqrt(dist);
+        }
+        return sum / rows.length;
+    }
+
+    private double squaredDistance(int i, double[] centers, int l) {
+        double ret = 0;
+        for (int j = 0; j < n; j++) {
+            double diff = values[i * n + j] - centers[l * n + j];
+            ret += diff * diff;
+        }
+        return ret;
+    }
+}
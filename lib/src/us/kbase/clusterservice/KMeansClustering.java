@@ -0,0 +1,893 @@
+package us.kbase.clusterservice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.VectorStats;
+
+/**
+ * K-means clustering of matrix rows in the same terms as R's kmeans(): initial
+ * centers of each restart are K distinct rows sampled at random, the restart with
+ * the smallest total within-cluster sum of squares wins. Supported algorithms are
+ * "Hartigan-Wong" (port of AS 136), "Lloyd"/"Forgy" and "MacQueen". Accelerated
+ * "Elkan" and "Hamerly" give exactly the same result as "Lloyd" but skip distance
+ * calculations which can't change assignment of a point using triangle inequality
+ * bounds (Elkan keeps K lower bounds per point, Hamerly keeps only one).
+ * "Mini-batch" is approximate mode for large matrices: centers are updated from
+ * small random samples of rows, all rows are assigned only once at the end. Restarts
+ * are independent so they are run in parallel, each one uses its own random
+ * generator seeded from the common seed and restart number, so result doesn't
+ * depend on how restarts are split between threads.
+ */
+public class KMeansClustering {
+    public static final String HARTIGAN_WONG = "Hartigan-Wong";
+    public static final String LLOYD = "Lloyd";
+    public static final String FORGY = "Forgy";
+    public static final String MACQUEEN = "MacQueen";
+    public static final String HAMERLY = "Hamerly";
+    public static final String ELKAN = "Elkan";
+    public static final String MINI_BATCH = "Mini-batch";
+    public static final int DEFAULT_N_START = 1000;
+    public static final int DEFAULT_MAX_ITER = 1000;
+    public static final String DEFAULT_ALGORITHM = LLOYD;
+    public static final int MINI_BATCH_SIZE = 1024;
+    // Mini-batch mode stops if smoothed batch inertia hasn't improved for this number of steps
+    private static final int MINI_BATCH_PATIENCE = 10;
+    private static final double BIG = 1.0e30;
+    // Bounds are compared with relative margin so rounding never prunes a point
+    // which Lloyd's exact comparison could move
+    private static final double BOUND_MARGIN = 1.0 - 1.0e-9;
+
+    private final double[] values;
+    private final int m;
+    private final int n;
+    private final int k;
+    private final int maxIter;
+    private final String algorithm;
+    private final int[] distinctRows;
+
+    private KMeansClustering(double[] values, int m, int n, int k, int maxIter,
+            String algorithm, int[] distinctRows) {
+        this.values = values;
+        this.m = m;
+        this.n = n;
+        this.k = k;
+        this.maxIter = maxIter;
+        this.algorithm = algorithm;
+        this.distinctRows = distinctRows;
+    }
+
+    /**
+     * Clustering found by best restart.
+     */
+    public static class Result {
+        private final int[] labels;
+        private final double[] centers;
+        private final double totalWithinSs;
+        private final int restart;
+        private final long distanceCount;
+
+        Result(int[] labels, double[] centers, double totalWithinSs, int restart,
+                long distanceCount) {
+            this.labels = labels;
+            this.centers = centers;
+            this.totalWithinSs = totalWithinSs;
+            this.restart = restart;
+            this.distanceCount = distanceCount;
+        }
+
+        /**
+         * @return cluster of each row, 1-based like in R
+         */
+        public int[] getLabels() {
+            return labels;
+        }
+
+        /**
+         * @return row-major K x (column count) matrix of cluster centers
+         */
+        public double[] getCenters() {
+            return centers;
+        }
+
+        public double getTotalWithinSs() {
+            return totalWithinSs;
+        }
+
+        /**
+         * @return number of restart (starting from 0) this result was found by
+         */
+        public int getRestart() {
+            return restart;
+        }
+
+        /**
+         * @return number of point-to-center (and center-to-center) distances
+         * calculated by this restart in "Lloyd"/"Forgy", "Elkan", "Hamerly" and
+         * "Mini-batch" modes (0 for other algorithms)
+         */
+        public long getDistanceCount() {
+            return distanceCount;
+        }
+
+        private boolean isBetterThan(Result other) {
+            return other == null || totalWithinSs < other.totalWithinSs ||
+                    (totalWithinSs == other.totalWithinSs && restart < other.restart);
+        }
+    }
+
+    /**
+     * @return true for algorithms implemented here and undefined algorithm
+     * (meaning {@link #DEFAULT_ALGORITHM})
+     */
+    public static boolean isSupportedAlgorithm(String algorithm) {
+        return algorithm == null || algorithm.equals(HARTIGAN_WONG) || algorithm.equals(LLOYD) ||
+                algorithm.equals(FORGY) || algorithm.equals(MACQUEEN) ||
+                algorithm.equals(HAMERLY) || algorithm.equals(ELKAN) ||
+                algorithm.equals(MINI_BATCH);
+    }
+
+    /**
+     * @param nStart number of restarts (null means {@link #DEFAULT_N_START})
+     * @param maxIter maximal number of iterations per restart (null means
+     * {@link #DEFAULT_MAX_ITER})
+     * @param randomSeed seed restart seeds are derived from (null means random)
+     * @param algorithm algorithm name (null means {@link #DEFAULT_ALGORITHM})
+     * @param parallelThreshold minimal amount of work (restarts x rows x columns x K)
+     * worth splitting across threads
+     */
+    public static Result cluster(DenseMatrix matrix, int k, Integer nStart, Integer maxIter,
+            Long randomSeed, String algorithm, long parallelThreshold) {
+        if (algorithm == null)
+            algorithm = DEFAULT_ALGORITHM;
+        if (!isSupportedAlgorithm(algorithm))
+            throw new IllegalStateException("Unsupported K-means algorithm: " + algorithm);
+        int restarts = nStart == null ? DEFAULT_N_START : nStart;
+        if (restarts < 1)
+            throw new IllegalStateException("Number of starts should be positive: " + restarts);
+        int iterations = maxIter == null ? DEFAULT_MAX_ITER : maxIter;
+        if (iterations < 1)
+            throw new IllegalStateException("Maximal number of iterations should be positive: " +
+                    iterations);
+        int m = matrix.getRowCount();
+        int n = matrix.getColCount();
+        double[] values = matrix.getValues();
+        for (double value : values)
+            if (value != value || Double.isInfinite(value))
+                throw new IllegalStateException("K-means can not be applied to matrix " +
+                        "with missing values");
+        if (k < 1 || k > m)
+            throw new IllegalStateException("Number of clusters should be between 1 and " +
+                    "number of rows: " + k);
+        int[] distinctRows = findDistinctRows(values, m, n);
+        if (distinctRows.length < k)
+            throw new IllegalStateException("More cluster centers than distinct data points");
+        long seed = randomSeed != null ? randomSeed : new Random().nextLong();
+        KMeansClustering engine = new KMeansClustering(values, m, n, k, iterations, algorithm,
+                distinctRows);
+        RestartTask task = engine.new RestartTask(seed, 0, restarts, Math.max(1, parallelThreshold));
+        if ((long)restarts * m * n * k > parallelThreshold && restarts > 1) {
+            VectorStats.getPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        if (task.best == null)
+            throw new IllegalStateException("Empty cluster in all starts: try a better set of " +
+                    "initial centers");
+        return task.best;
+    }
+
+    /**
+     * Seed of given restart, mixed with SplitMix64 finalizer so neighboring
+     * restarts get unrelated generators.
+     */
+    static long restartSeed(long seed, int restart) {
+        long z = seed + (restart + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int[] findDistinctRows(double[] values, int m, int n) {
+        Map<Integer, List<Integer>> byHash = new HashMap<Integer, List<Integer>>();
+        int[] ret = new int[m];
+        int count = 0;
+        for (int i = 0; i < m; i++) {
+            int hash = 1;
+            for (int j = 0; j < n; j++) {
+                long bits = Double.doubleToLongBits(values[i * n + j] + 0.0);
+                hash = 31 * hash + (int)(bits ^ (bits >>> 32));
+            }
+            List<Integer> same = byHash.get(hash);
+            if (same == null) {
+                same = new ArrayList<Integer>();
+                byHash.put(hash, same);
+            }
+            boolean found = false;
+            for (int other : same) {
+                found = true;
+                for (int j = 0; j < n; j++)
+                    if (values[i * n + j] != values[other * n + j]) {
+                        found = false;
+                        break;
+                    }
+                if (found)
+                    break;
+            }
+            if (!found) {
+                same.add(i);
+                ret[count++] = i;
+            }
+        }
+        return Arrays.copyOf(ret, count);
+    }
+
+    private class RestartTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long seed;
+        private final int from;
+        private final int to;
+        private final long threshold;
+        private Result best = null;
+
+        RestartTask(long seed, int from, int to, long threshold) {
+            this.seed = seed;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long)(to - from) * m * n * k > threshold) {
+                int middle = (from + to) >>> 1;
+                RestartTask left = new RestartTask(seed, from, middle, threshold);
+                RestartTask right = new RestartTask(seed, middle, to, threshold);
+                invokeAll(left, right);
+                best = left.best;
+                if (right.best != null && right.best.isBetterThan(best))
+                    best = right.best;
+                return;
+            }
+            for (int restart = from; restart < to; restart++) {
+                Result res = runOne(restart, new Random(restartSeed(seed, restart)));
+                if (res != null && res.isBetterThan(best))
+                    best = res;
+            }
+        }
+    }
+
+    /**
+     * @return result of one restart or null if Hartigan-Wong got empty cluster
+     * after initial assignment
+     */
+    private Result runOne(int restart, Random random) {
+        int[] sample = distinctRows.clone();
+        double[] centers = new double[k * n];
+        for (int l = 0; l < k; l++) {
+            int pos = l + random.nextInt(sample.length - l);
+            int row = sample[pos];
+            sample[pos] = sample[l];
+            sample[l] = row;
+            System.arraycopy(values, row * n, centers, l * n, n);
+        }
+        int[] cl = new int[m];
+        long distanceCount = 0;
+        if (k == 1) {
+            centerOfMass(cl, centers, new int[1]);
+        } else if (algorithm.equals(HARTIGAN_WONG)) {
+            if (!hartiganWong(cl, centers))
+                return null;
+        } else if (algorithm.equals(MACQUEEN)) {
+            macQueen(cl, centers);
+        } else if (algorithm.equals(HAMERLY)) {
+            distanceCount = hamerly(cl, centers);
+        } else if (algorithm.equals(ELKAN)) {
+            distanceCount = elkan(cl, centers);
+        } else if (algorithm.equals(MINI_BATCH)) {
+            distanceCount = miniBatch(cl, centers, random);
+        } else {
+            distanceCount = lloyd(cl, centers);
+        }
+        return toResult(cl, centers, restart, distanceCount);
+    }
+
+    private Result toResult(int[] cl, double[] centers, int restart, long distanceCount) {
+        double totalWithinSs = 0;
+        int[] labels = new int[m];
+        for (int i = 0; i < m; i++) {
+            totalWithinSs += distance(i, centers, cl[i], BIG);
+            labels[i] = cl[i] + 1;
+        }
+        return new Result(labels, centers, totalWithinSs, restart, distanceCount);
+    }
+
+    /**
+     * Single run of Lloyd's algorithm (with Elkan's bounds) started from given
+     * centers instead of random rows, this is how solution for one K is used as
+     * warm start for another one.
+     * @param values row-major m x n matrix without missing values
+     * @param initialCenters row-major K x n matrix, it's not modified
+     */
+    static Result clusterFrom(double[] values, int m, int n, double[] initialCenters,
+            int maxIter) {
+        int k = initialCenters.length / n;
+        KMeansClustering engine = new KMeansClustering(values, m, n, k, maxIter, ELKAN, null);
+        double[] centers = initialCenters.clone();
+        int[] cl = new int[m];
+        long distanceCount = 0;
+        if (k == 1) {
+            engine.centerOfMass(cl, centers, new int[1]);
+        } else {
+            distanceCount = engine.elkan(cl, centers);
+        }
+        return engine.toResult(cl, centers, 0, distanceCount);
+    }
+
+    /**
+     * @return number of calculated distances
+     */
+    private long lloyd(int[] cl, double[] centers) {
+        Arrays.fill(cl, -1);
+        int[] nc = new int[k];
+        long ret = 0;
+        for (int iter = 0; iter < maxIter; iter++) {
+            boolean updated = false;
+            for (int i = 0; i < m; i++) {
+                int best = nearest(i, centers);
+                if (cl[i] != best) {
+                    updated = true;
+                    cl[i] = best;
+                }
+            }
+            ret += (long)m * k;
+            if (!updated)
+                break;
+            centerOfMass(cl, centers, nc);
+        }
+        return ret;
+    }
+
+    /**
+     * Mini-batch k-means (Sculley, 2010). Each step samples {@link #MINI_BATCH_SIZE}
+     * rows with replacement, assigns them to the nearest centers and moves every
+     * center towards its rows with learning rate 1 / (number of rows it got so far).
+     * Rows are read directly from matrix storage, so memory doesn't depend on matrix
+     * size. Iterations stop after maxIter steps or when exponentially smoothed batch
+     * inertia stops improving, then all rows are assigned in one full pass.
+     * @return number of calculated distances
+     */
+    private long miniBatch(int[] cl, double[] centers, Random random) {
+        int batchSize = Math.min(m, MINI_BATCH_SIZE);
+        int[] batch = new int[batchSize];
+        int[] batchCl = new int[batchSize];
+        long[] counts = new long[k];
+        double smoothing = Math.min(1.0, 2.0 * batchSize / (m + 1));
+        double smoothed = -1;
+        double bestSmoothed = Double.POSITIVE_INFINITY;
+        int noImprovement = 0;
+        long ret = 0;
+        for (int iter = 0; iter < maxIter; iter++) {
+            double inertia = 0;
+            for (int b = 0; b < batchSize; b++) {
+                int row = random.nextInt(m);
+                batch[b] = row;
+                batchCl[b] = nearest(row, centers);
+                inertia += distance(row, centers, batchCl[b], BIG);
+            }
+            ret += (long)batchSize * (k + 1);
+            for (int b = 0; b < batchSize; b++) {
+                int l = batchCl[b];
+                counts[l]++;
+                double rate = 1.0 / counts[l];
+                int offset = batch[b] * n;
+                for (int j = 0; j < n; j++)
+                    centers[l * n + j] += rate * (values[offset + j] - centers[l * n + j]);
+            }
+            inertia /= batchSize;
+            smoothed = smoothed < 0 ? inertia : smoothed * (1 - smoothing) + inertia * smoothing;
+            if (smoothed < bestSmoothed) {
+                bestSmoothed = smoothed;
+                noImprovement = 0;
+            } else if (++noImprovement >= MINI_BATCH_PATIENCE) {
+                break;
+            }
+        }
+        for (int i = 0; i < m; i++)
+            cl[i] = nearest(i, centers);
+        ret += (long)m * k;
+        return ret;
+    }
+
+    /**
+     * Lloyd iterations where point keeps its center without looking at other ones
+     * if upper bound of distance to own center is less than lower bound of distance
+     * to second closest center or than half of distance from own center to the
+     * closest other center. Bounds are euclidean (not squared) distances shifted by
+     * center movements after each update. Points which can't be skipped are
+     * assigned exactly as in {@link #lloyd(int[], double[])} so both give the same
+     * labels at every iteration.
+     * @return number of calculated distances
+     */
+    private long hamerly(int[] cl, double[] centers) {
+        double[] upper = new double[m];
+        double[] lower = new double[m];
+        double[] centerDist = new double[k * k];
+        double[] half = new double[k];
+        double[] drift = new double[k];
+        double[] oldCenters = new double[k * n];
+        double[] two = new double[2];
+        int[] nc = new int[k];
+        long ret = 0;
+        for (int iter = 0; iter < maxIter; iter++) {
+            boolean updated = false;
+            if (iter == 0) {
+                for (int i = 0; i < m; i++) {
+                    cl[i] = nearestTwo(i, centers, two);
+                    upper[i] = Math.sqrt(two[0]);
+                    lower[i] = Math.sqrt(two[1]);
+                }
+                ret += (long)m * k;
+                updated = true;
+            } else {
+                ret += centerDistances(centers, centerDist, half);
+                for (int i = 0; i < m; i++) {
+                    int l = cl[i];
+                    double bound = Math.max(half[l], lower[i]) * BOUND_MARGIN;
+                    if (upper[i] < bound)
+                        continue;
+                    upper[i] = Math.sqrt(distance(i, centers, l, Double.POSITIVE_INFINITY));
+                    ret++;
+                    if (upper[i] < bound)
+                        continue;
+                    int best = nearestTwo(i, centers, two);
+                    ret += k;
+                    upper[i] = Math.sqrt(two[0]);
+                    lower[i] = Math.sqrt(two[1]);
+                    if (best != l) {
+                        updated = true;
+                        cl[i] = best;
+                    }
+                }
+            }
+            if (!updated)
+                break;
+            System.arraycopy(centers, 0, oldCenters, 0, k * n);
+            centerOfMass(cl, centers, nc);
+            int maxDriftPos = 0;
+            double maxDrift = 0;
+            double secondDrift = 0;
+            for (int l = 0; l < k; l++) {
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    double diff = centers[l * n + j] - oldCenters[l * n + j];
+                    sum += diff * diff;
+                }
+                drift[l] = Math.sqrt(sum);
+                if (drift[l] > maxDrift) {
+                    secondDrift = maxDrift;
+                    maxDrift = drift[l];
+                    maxDriftPos = l;
+                } else if (drift[l] > secondDrift) {
+                    secondDrift = drift[l];
+                }
+            }
+            for (int i = 0; i < m; i++) {
+                upper[i] += drift[cl[i]];
+                lower[i] -= cl[i] == maxDriftPos ? secondDrift : maxDrift;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Lloyd iterations with lower bound of distance from each point to each center
+     * (Elkan, 2003). Center l is looked at only if upper bound of distance to own
+     * center is not below lower bound for l and half of distance between two
+     * centers. Candidates are compared by exact squared distances preferring the
+     * smaller center index on ties, which is what {@link #lloyd(int[], double[])}
+     * does. Bounds take rows x K doubles of memory. Lower bounds are stored with
+     * total drift of the center added at the time of storing, so moving centers
+     * doesn't require pass over all bounds.
+     * @return number of calculated distances
+     */
+    private long elkan(int[] cl, double[] centers) {
+        double[] upper = new double[m];
+        double[] lower = new double[m * k];
+        double[] centerDist = new double[k * k];
+        double[] half = new double[k];
+        double[] drift = new double[k];
+        double[] totalDrift = new double[k];
+        double[] oldCenters = new double[k * n];
+        int[] nc = new int[k];
+        long ret = 0;
+        for (int iter = 0; iter < maxIter; iter++) {
+            boolean updated = false;
+            if (iter == 0) {
+                for (int i = 0; i < m; i++) {
+                    int best = 0;
+                    double bestDist = Double.POSITIVE_INFINITY;
+                    for (int l = 0; l < k; l++) {
+                        double dist = distance(i, centers, l, Double.POSITIVE_INFINITY);
+                        lower[i * k + l] = Math.sqrt(dist);
+                        if (dist < bestDist) {
+                            bestDist = dist;
+                            best = l;
+                        }
+                    }
+                    cl[i] = best;
+                    upper[i] = Math.sqrt(bestDist);
+                }
+                ret += (long)m * k;
+                updated = true;
+            } else {
+                ret += centerDistances(centers, centerDist, half);
+                for (int i = 0; i < m; i++) {
+                    int a = cl[i];
+                    if (upper[i] < half[a] * BOUND_MARGIN)
+                        continue;
+                    double bestDist = -1;
+                    for (int l = 0; l < k; l++) {
+                        if (l == a)
+                            continue;
+                        double bound = Math.max(lower[i * k + l] - totalDrift[l],
+                                centerDist[a * k + l] / 2) * BOUND_MARGIN;
+                        if (upper[i] < bound)
+                            continue;
+                        if (bestDist < 0) {
+                            bestDist = distance(i, centers, a, Double.POSITIVE_INFINITY);
+                            ret++;
+                            upper[i] = Math.sqrt(bestDist);
+                            lower[i * k + a] = upper[i] + totalDrift[a];
+                            if (upper[i] < bound)
+                                continue;
+                        }
+                        double dist = distance(i, centers, l, Double.POSITIVE_INFINITY);
+                        ret++;
+                        lower[i * k + l] = Math.sqrt(dist) + totalDrift[l];
+                        if (dist < bestDist || (dist == bestDist && l < a)) {
+                            bestDist = dist;
+                            a = l;
+                            upper[i] = Math.sqrt(dist);
+                        }
+                    }
+                    if (a != cl[i]) {
+                        updated = true;
+                        cl[i] = a;
+                    }
+                }
+            }
+            if (!updated)
+                break;
+            System.arraycopy(centers, 0, oldCenters, 0, k * n);
+            centerOfMass(cl, centers, nc);
+            for (int l = 0; l < k; l++) {
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    double diff = centers[l * n + j] - oldCenters[l * n + j];
+                    sum += diff * diff;
+                }
+                drift[l] = Math.sqrt(sum);
+                totalDrift[l] += drift[l];
+            }
+            for (int i = 0; i < m; i++)
+                upper[i] += drift[cl[i]];
+        }
+        return ret;
+    }
+
+    /**
+     * Fills distances between all pairs of centers and half of distance from
+     * each center to the closest other center.
+     * @return number of calculated distances
+     */
+    private long centerDistances(double[] centers, double[] centerDist, double[] half) {
+        Arrays.fill(half, Double.POSITIVE_INFINITY);
+        for (int l1 = 0; l1 < k; l1++)
+            for (int l2 = l1 + 1; l2 < k; l2++) {
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    double diff = centers[l1 * n + j] - centers[l2 * n + j];
+                    sum += diff * diff;
+                }
+                double value = Math.sqrt(sum);
+                centerDist[l1 * k + l2] = value;
+                centerDist[l2 * k + l1] = value;
+                half[l1] = Math.min(half[l1], value / 2);
+                half[l2] = Math.min(half[l2], value / 2);
+            }
+        return (long)k * (k - 1) / 2;
+    }
+
+    private void macQueen(int[] cl, double[] centers) {
+        int[] nc = new int[k];
+        for (int i = 0; i < m; i++)
+            cl[i] = nearest(i, centers);
+        centerOfMass(cl, centers, nc);
+        for (int iter = 0; iter < maxIter; iter++) {
+            boolean updated = false;
+            for (int i = 0; i < m; i++) {
+                int best = nearest(i, centers);
+                int old = cl[i];
+                if (old == best)
+                    continue;
+                updated = true;
+                cl[i] = best;
+                nc[old]--;
+                nc[best]++;
+                int offset = i * n;
+                for (int j = 0; j < n; j++) {
+                    if (nc[old] > 0)
+                        centers[old * n + j] += (centers[old * n + j] - values[offset + j]) / nc[old];
+                    centers[best * n + j] += (values[offset + j] - centers[best * n + j]) / nc[best];
+                }
+            }
+            if (!updated)
+                break;
+        }
+    }
+
+    /**
+     * Recalculates centers as centroids of assigned rows, center of empty
+     * cluster is kept as is.
+     */
+    private void centerOfMass(int[] cl, double[] centers, int[] nc) {
+        double[] sums = new double[k * n];
+        Arrays.fill(nc, 0);
+        for (int i = 0; i < m; i++) {
+            int l = cl[i];
+            nc[l]++;
+            for (int j = 0; j < n; j++)
+                sums[l * n + j] += values[i * n + j];
+        }
+        for (int l = 0; l < k; l++)
+            if (nc[l] > 0)
+                for (int j = 0; j < n; j++)
+                    centers[l * n + j] = sums[l * n + j] / nc[l];
+    }
+
+    private int nearest(int i, double[] centers) {
+        int ret = 0;
+        double best = Double.POSITIVE_INFINITY;
+        for (int l = 0; l < k; l++) {
+            double dist = distance(i, centers, l, best);
+            if (dist < best) {
+                best = dist;
+                ret = l;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Same choice of center as {@link #nearest(int, double[])}, squared distances
+     * to the closest and the second closest centers are stored in two.
+     */
+    private int nearestTwo(int i, double[] centers, double[] two) {
+        int ret = 0;
+        double best = Double.POSITIVE_INFINITY;
+        double second = Double.POSITIVE_INFINITY;
+        for (int l = 0; l < k; l++) {
+            double dist = distance(i, centers, l, second);
+            if (dist < best) {
+                second = best;
+                best = dist;
+                ret = l;
+            } else if (dist < second) {
+                second = dist;
+            }
+        }
+        two[0] = best;
+        two[1] = second;
+        return ret;
+    }
+
+    /**
+     * Squared euclidean distance from row i to center l, calculation stops as
+     * soon as partial sum reaches limit.
+     */
+    private double distance(int i, double[] centers, int l, double limit) {
+        int offsetI = i * n;
+        int offsetL = l * n;
+        double ret = 0;
+        for (int j = 0; j < n; j++) {
+            double diff = values[offsetI + j] - centers[offsetL + j];
+            ret += diff * diff;
+            if (ret >= limit)
+                break;
+        }
+        return ret;
+    }
+
+    /**
+     * Algorithm AS 136 (Hartigan and Wong, 1979) as used by R: optimal transfer
+     * stages alternate with quick transfer stages until no row is moved.
+     * @return false if initial assignment leaves some cluster empty
+     */
+    private boolean hartiganWong(int[] ic1, double[] c) {
+        int[] ic2 = new int[m];
+        int[] nc = new int[k];
+        double[] an1 = new double[k];
+        double[] an2 = new double[k];
+        int[] ncp = new int[k];
+        double[] d = new double[m];
+        boolean[] itran = new boolean[k];
+        int[] live = new int[k];
+        for (int i = 0; i < m; i++) {
+            double dt0 = distance(i, c, 0, BIG);
+            double dt1 = distance(i, c, 1, BIG);
+            ic1[i] = 0;
+            ic2[i] = 1;
+            if (dt1 < dt0) {
+                ic1[i] = 1;
+                ic2[i] = 0;
+                double temp = dt0;
+                dt0 = dt1;
+                dt1 = temp;
+            }
+            for (int l = 2; l < k; l++) {
+                double db = distance(i, c, l, BIG);
+                if (db >= dt1)
+                    continue;
+                if (db >= dt0) {
+                    dt1 = db;
+                    ic2[i] = l;
+                } else {
+                    dt1 = dt0;
+                    ic2[i] = ic1[i];
+                    dt0 = db;
+                    ic1[i] = l;
+                }
+            }
+        }
+        centerOfMass(ic1, c, nc);
+        for (int l = 0; l < k; l++)
+            if (nc[l] == 0)
+                return false;
+        for (int l = 0; l < k; l++) {
+            double aa = nc[l];
+            an2[l] = aa / (aa + 1);
+            an1[l] = aa > 1 ? aa / (aa - 1) : BIG;
+            itran[l] = true;
+            ncp[l] = -1;
+        }
+        int[] indx = {0};
+        int maxQtr = (int)Math.min(Integer.MAX_VALUE, 50L * m);
+        for (int iter = 0; iter < maxIter; iter++) {
+            optra(c, ic1, ic2, nc, an1, an2, ncp, d, itran, live, indx);
+            // Stop if no transfer took place in the last m optimal transfer steps
+            if (indx[0] == m)
+                break;
+            if (!qtran(c, ic1, ic2, nc, an1, an2, ncp, d, itran, indx, maxQtr))
+                break;
+            // With two clusters there is no need to re-enter optimal transfer stage
+            if (k == 2)
+                break;
+            Arrays.fill(ncp, 0);
+        }
+        centerOfMass(ic1, c, nc);
+        return true;
+    }
+
+    /**
+     * Optimal transfer stage. Steps are counted from 1 like in original code:
+     * ncp[l] is the step at which cluster l was last updated, live[l] tells until
+     * which step cluster l stays in live set.
+     */
+    private void optra(double[] c, int[] ic1, int[] ic2, int[] nc, double[] an1,
+            double[] an2, int[] ncp, double[] d, boolean[] itran, int[] live, int[] indx) {
+        for (int l = 0; l < k; l++)
+            if (itran[l])
+                live[l] = m + 1;
+        for (int i = 0; i < m; i++) {
+            int step = i + 1;
+            indx[0]++;
+            int l1 = ic1[i];
+            // If point i is the only member of cluster l1, no transfer
+            if (nc[l1] != 1) {
+                // If l1 has been updated in this stage, re-compute d[i]
+                if (ncp[l1] != 0)
+                    d[i] = distance(i, c, l1, BIG) * an1[l1];
+                int l2 = ic2[i];
+                int ll = l2;
+                double r2 = distance(i, c, l2, BIG) * an2[l2];
+                for (int l = 0; l < k; l++) {
+                    if ((step >= live[l1] && step >= live[l]) || l == l1 || l == ll)
+                        continue;
+                    double rr = r2 / an2[l];
+                    double dc = distance(i, c, l, rr);
+                    if (dc >= rr)
+                        continue;
+                    r2 = dc * an2[l];
+                    l2 = l;
+                }
+                if (r2 >= d[i]) {
+                    // No transfer is necessary, l2 is the new ic2[i]
+                    ic2[i] = l2;
+                } else {
+                    indx[0] = 0;
+                    live[l1] = m + step;
+                    live[l2] = m + step;
+                    ncp[l1] = step;
+                    ncp[l2] = step;
+                    transfer(i, l1, l2, c, ic1, ic2, nc, an1, an2);
+                }
+            }
+            if (indx[0] == m)
+                return;
+        }
+        for (int l = 0; l < k; l++) {
+            // itran is reset before quick transfer, live is shifted back by m
+            itran[l] = false;
+            live[l] -= m;
+        }
+    }
+
+    /**
+     * Quick transfer stage, only swaps between two closest clusters of each point
+     * are considered. Here ncp[l] is the step of last update plus m.
+     * @return false if maximal number of quick transfer steps is exceeded
+     */
+    private boolean qtran(double[] c, int[] ic1, int[] ic2, int[] nc, double[] an1,
+            double[] an2, int[] ncp, double[] d, boolean[] itran, int[] indx, int maxQtr) {
+        int icoun = 0;
+        int istep = 0;
+        while (true) {
+            for (int i = 0; i < m; i++) {
+                icoun++;
+                istep++;
+                if (istep >= maxQtr)
+                    return false;
+                int l1 = ic1[i];
+                int l2 = ic2[i];
+                if (nc[l1] != 1) {
+                    // Distance to l1 is re-computed if l1 was updated in last m steps
+                    if (istep <= ncp[l1])
+                        d[i] = distance(i, c, l1, BIG) * an1[l1];
+                    if (istep < ncp[l1] || istep < ncp[l2]) {
+                        double r2 = d[i] / an2[l2];
+                        if (distance(i, c, l2, r2) < r2) {
+                            icoun = 0;
+                            indx[0] = 0;
+                            itran[l1] = true;
+                            itran[l2] = true;
+                            ncp[l1] = istep + m;
+                            ncp[l2] = istep + m;
+                            transfer(i, l1, l2, c, ic1, ic2, nc, an1, an2);
+                        }
+                    }
+                }
+                // If no re-allocation took place in the last m steps, return
+                if (icoun == m)
+                    return true;
+            }
+        }
+    }
+
+    private void transfer(int i, int l1, int l2, double[] c, int[] ic1, int[] ic2, int[] nc,
+            double[] an1, double[] an2) {
+        double al1 = nc[l1];
+        double alw = al1 - 1;
+        double al2 = nc[l2];
+        double alt = al2 + 1;
+        for (int j = 0; j < n; j++) {
+            double value = values[i * n + j];
+            c[l1 * n + j] = (c[l1 * n + j] * al1 - value) / alw;
+            c[l2 * n + j] = (c[l2 * n + j] * al2 + value) / alt;
+        }
+        nc[l1]--;
+        nc[l2]++;
+        an2[l1] = alw / al1;
+        an1[l1] = alw > 1 ? alw / (alw - 1) : BIG;
+        an1[l2] = alt / al2;
+        an2[l2] = alt / (alt + 1);
+        ic1[i] = l2;
+        ic2[i] = l1;
+    }
+}
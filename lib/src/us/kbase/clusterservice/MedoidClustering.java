@@ -0,0 +1,800 @@
+package us.kbase.clusterservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import us.kbase.common.service.Tuple2;
+import us.kbase.kbasefeaturevalues.CorrelationEngine;
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.EstimateKResult;
+import us.kbase.kbasefeaturevalues.VectorStats;
+
+/**
+ * Estimation of number of clusters by partitioning around medoids in the same
+ * terms as estimate_k_new of ClusterServiceRImpl.r (pamk function of fpc
+ * package): every K from min_k to min(max_k, rows - 1) is clustered by PAM or
+ * CLARA and scored by average silhouette width ("asw") or Calinski-Harabasz
+ * index ("ch"), the best scoring K wins. K = 1 is accepted when min_k is 1 and
+ * is chosen if Duda-Hart test with significance level alpha doesn't reject
+ * homogeneity of 2-cluster solution. Distance between rows is Euclidean (with
+ * missing values it's scaled up by ratio of all columns to columns defined in
+ * both rows like R dist does), or matrix itself is taken as dissimilarity
+ * matrix when diss is set.
+ * <p>
+ * PAM keeps full dissimilarity matrix calculated in parallel (or taken from
+ * {@link DistanceCache}), BUILD step
+ * is shared by all values of K (it's greedy, so K medoids are first K medoids
+ * of larger K) and SWAP step evaluates replacement of all medoids for given
+ * candidate at once in linear time (FastPAM1 of Schubert and Rousseeuw, 2019)
+ * giving the same result as original PAM. Candidates are scanned in parallel.
+ * CLARA (used for more than {@link #CLARA_THRESHOLD} rows unless usepam says
+ * otherwise) runs PAM on {@link #CLARA_SAMPLES} random samples of 40 + 2K rows
+ * like R clara does and keeps medoids giving the lowest total distance over all
+ * rows, silhouette is calculated for the best sample. Values of K are processed
+ * in parallel.
+ */
+public class MedoidClustering {
+    public static final String ASW = "asw";
+    public static final String CH = "ch";
+    public static final int DEFAULT_MIN_K = 2;
+    public static final int DEFAULT_MAX_K = 200;
+    public static final double DEFAULT_ALPHA = 0.001;
+    public static final int CLARA_THRESHOLD = 2000;
+    public static final int CLARA_SAMPLES = 5;
+
+    private final DenseMatrix matrix;
+    private final double[] values;
+    private final int rowCount;
+    private final int colCount;
+    private final boolean diss;
+    private final boolean hasMissing;
+    private final long threshold;
+    private final DistanceCache cache;
+
+    private MedoidClustering(DenseMatrix matrix, boolean diss, long threshold,
+            DistanceCache cache) {
+        this.matrix = matrix;
+        this.values = matrix.getValues();
+        this.rowCount = matrix.getRowCount();
+        this.colCount = matrix.getColCount();
+        this.diss = diss;
+        this.hasMissing = matrix.hasMissingValues();
+        this.threshold = Math.max(1, threshold);
+        this.cache = cache;
+    }
+
+    public static EstimateKResult estimateK(DenseMatrix matrix, Long minK, Long maxK,
+            String criterion, Long usepam, Double alpha, Long diss, Long randomSeed,
+            long parallelThreshold) {
+        try {
+            return estimateK(matrix, minK, maxK, criterion, usepam, alpha, diss, randomSeed,
+                    parallelThreshold, null);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Estimates K like {@link #estimateK(DenseMatrix, Long, Long, String, Long, Double,
+     * Long, Long, long)} does, PAM takes Euclidean distances between all rows from
+     * cache (if it's defined).
+     */
+    public static EstimateKResult estimateK(DenseMatrix matrix, Long minK, Long maxK,
+            String criterion, Long usepam, Double alpha, Long diss, Long randomSeed,
+            long parallelThreshold, DistanceCache cache) throws IOException {
+        if (criterion == null || criterion.isEmpty())
+            criterion = ASW;
+        if (!isSupportedCriterion(criterion))
+            throw new IllegalStateException("Unsupported criterion: " + criterion);
+        boolean isDiss = diss != null && diss != 0;
+        int n = matrix.getRowCount();
+        if (isDiss)
+            checkDissimilarities(matrix);
+        boolean pam = usepam == null ? n <= CLARA_THRESHOLD : usepam != 0;
+        if (isDiss && !pam)
+            throw new IllegalStateException("CLARA can not be applied to dissimilarity matrix");
+        int from = minK == null ? DEFAULT_MIN_K : (int)Math.min(Integer.MAX_VALUE, minK);
+        if (from < 1)
+            throw new IllegalStateException("Minimal number of clusters should be positive");
+        int to = (int)Math.min(maxK == null ? DEFAULT_MAX_K : maxK, n - 1L);
+        if (to < from)
+            throw new IllegalStateException("Range of K [" + from + ", " + to + "] is empty " +
+                    "for " + n + " rows");
+        if (from == 1 && isDiss)
+            throw new IllegalStateException("K = 1 can not be tested for dissimilarity matrix");
+        // Duda-Hart test of K = 1 needs 2-cluster solution
+        int last = Math.max(to, 2);
+        if (last > n - 1)
+            throw new IllegalStateException("K = 1 can not be tested for " + n + " rows");
+        Random random = new Random(randomSeed != null ? randomSeed : new Random().nextLong());
+        MedoidClustering engine = new MedoidClustering(matrix, isDiss, parallelThreshold,
+                cache);
+        final int[][] labels = new int[last + 1][];
+        double[] crit = new double[last + 1];
+        engine.run(pam, Math.max(from, 2), last, criterion, random.nextLong(), labels, crit);
+        List<Tuple2<Long, Double>> sizes = new ArrayList<Tuple2<Long, Double>>();
+        int bestK = -1;
+        for (int k = from; k <= to; k++) {
+            sizes.add(new Tuple2<Long, Double>().withE1((long)k).withE2(crit[k]));
+            if (k > 1 && (bestK < 0 || crit[k] > crit[bestK]))
+                bestK = k;
+        }
+        // K = 1 is the only candidate when range is [1, 1]
+        if (bestK < 0 || (from == 1 && engine.isHomogeneous(labels[2],
+                alpha == null ? DEFAULT_ALPHA : alpha)))
+            bestK = 1;
+        return new EstimateKResult().withBestK((long)bestK).withEstimateClusterSizes(sizes);
+    }
+
+    /**
+     * @return true for "asw", "ch" and undefined criterion (meaning "asw")
+     */
+    public static boolean isSupportedCriterion(String criterion) {
+        return criterion == null || criterion.isEmpty() || criterion.equals(ASW) ||
+                criterion.equals(CH);
+    }
+
+    private static void checkDissimilarities(DenseMatrix matrix) {
+        int n = matrix.getRowCount();
+        if (matrix.getColCount() != n)
+            throw new IllegalStateException("Dissimilarity matrix should be square, but it's " +
+                    n + " x " + matrix.getColCount());
+        double[] values = matrix.getValues();
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++) {
+                double value = values[i * n + j];
+                if (!(value >= 0) || Double.isInfinite(value) || value != values[j * n + i])
+                    throw new IllegalStateException("Dissimilarity matrix should have " +
+                            "symmetric non-negative finite values, but value at (" + i + ", " +
+                            j + ") is " + value);
+            }
+    }
+
+    private void run(final boolean pam, int from, int to, final String criterion, long seed,
+            final int[][] labels, final double[] crit) throws IOException {
+        final Pam full = pam ? new Pam(allDistances(), rowCount, threshold) : null;
+        final int[] build = pam ? full.build(to) : null;
+        final long runSeed = seed;
+        KTask task = new KTask(from, to + 1) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected void run(int k) {
+                if (pam) {
+                    int[] medoids = full.swap(Arrays.copyOf(build, k));
+                    labels[k] = full.assign(medoids);
+                    crit[k] = criterion.equals(ASW) ? full.silhouette(labels[k], k) :
+                        calinskiHarabasz(labels[k], k, full);
+                } else {
+                    Clara clara = new Clara(k, new Random(KMeansClustering.restartSeed(
+                            runSeed, k)));
+                    labels[k] = clara.labels;
+                    crit[k] = criterion.equals(ASW) ? clara.sample.silhouette(
+                            clara.sampleLabels(), k) : calinskiHarabasz(labels[k], k, null);
+                }
+            }
+        };
+        if (to > from && (long)rowCount * rowCount * colCount > threshold) {
+            VectorStats.getPool().invoke(task);
+        } else {
+            task.compute();
+        }
+    }
+
+    /**
+     * Processes every value of K in [from, to) as separate fork/join task.
+     */
+    private abstract static class KTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+
+        KTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected abstract void run(int k);
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final KTask parent = this;
+                int middle = (from + to) / 2;
+                invokeAll(new KTask(from, middle) {
+                    private static final long serialVersionUID = 1L;
+                    @Override
+                    protected void run(int k) {
+                        parent.run(k);
+                    }
+                }, new KTask(middle, to) {
+                    private static final long serialVersionUID = 1L;
+                    @Override
+                    protected void run(int k) {
+                        parent.run(k);
+                    }
+                });
+                return;
+            }
+            for (int k = from; k < to; k++)
+                run(k);
+        }
+    }
+
+    /**
+     * CLARA: the best of PAM solutions found for samples of rows, every sample
+     * after the first one includes the best medoids found so far.
+     */
+    private class Clara {
+        private int[] sampleRows;
+        private Pam sample;
+        private int[] labels;
+        private double cost = Double.POSITIVE_INFINITY;
+
+        Clara(int k, Random random) {
+            int sampleSize = Math.min(rowCount, 40 + 2 * k);
+            int samples = sampleSize == rowCount ? 1 : CLARA_SAMPLES;
+            int[] bestMedoids = null;
+            for (int s = 0; s < samples; s++) {
+                int[] rows = sample(sampleSize, bestMedoids, random);
+                Pam pam = new Pam(distances(rows, false), rows.length, Long.MAX_VALUE);
+                int[] local = pam.swap(pam.build(k));
+                int[] medoids = new int[k];
+                for (int l = 0; l < k; l++)
+                    medoids[l] = rows[local[l]];
+                int[] rowLabels = new int[rowCount];
+                double rowCost = assign(medoids, local, pam, rowLabels);
+                if (rowCost < cost) {
+                    cost = rowCost;
+                    sampleRows = rows;
+                    sample = pam;
+                    labels = rowLabels;
+                    bestMedoids = medoids;
+                }
+            }
+        }
+
+        int[] sampleLabels() {
+            int[] ret = new int[sampleRows.length];
+            for (int i = 0; i < ret.length; i++)
+                ret[i] = labels[sampleRows[i]];
+            return ret;
+        }
+
+        /**
+         * @return sorted random rows including given ones
+         */
+        private int[] sample(int size, int[] include, Random random) {
+            int[] all = VectorStats.toIndeces(null, rowCount);
+            int count = 0;
+            if (include != null) {
+                int[] pos = VectorStats.toIndeces(null, rowCount);
+                for (int row : include) {
+                    int p = pos[row];
+                    all[p] = all[count];
+                    pos[all[count]] = p;
+                    all[count] = row;
+                    pos[row] = count;
+                    count++;
+                }
+            }
+            for (int i = count; i < size; i++) {
+                int j = i + random.nextInt(rowCount - i);
+                int tmp = all[i];
+                all[i] = all[j];
+                all[j] = tmp;
+            }
+            int[] ret = Arrays.copyOf(all, size);
+            Arrays.sort(ret);
+            return ret;
+        }
+
+        /**
+         * Assigns all rows to the nearest medoids. Without missing values
+         * distances are metric and medoid m is skipped when it's at least twice
+         * as far from the current closest medoid as the row is (triangle
+         * inequality).
+         * @return total distance
+         */
+        private double assign(int[] medoids, int[] local, Pam pam, int[] rowLabels) {
+            int k = medoids.length;
+            double ret = 0;
+            for (int i = 0; i < rowCount; i++) {
+                int best = 0;
+                double bestDist = distance(i, medoids[0]);
+                for (int l = 1; l < k; l++) {
+                    if (!hasMissing && pam.get(local[best], local[l]) >= 2 * bestDist)
+                        continue;
+                    double dist = distance(i, medoids[l]);
+                    if (dist < bestDist) {
+                        best = l;
+                        bestDist = dist;
+                    }
+                }
+                rowLabels[i] = best;
+                ret += bestDist;
+            }
+            return ret;
+        }
+    }
+
+    private double distance(int i, int j) {
+        if (diss)
+            return values[i * colCount + j];
+        double sum = 0;
+        int count = 0;
+        for (int c = 0; c < colCount; c++) {
+            double diff = values[i * colCount + c] - values[j * colCount + c];
+            if (diff != diff)
+                continue;
+            sum += diff * diff;
+            count++;
+        }
+        if (count == 0)
+            throw new IllegalStateException("Rows " + i + " and " + j + " have no columns " +
+                    "with values defined in both");
+        return Math.sqrt(count == colCount ? sum : sum * colCount / count);
+    }
+
+    /**
+     * @return matrix of distances between all rows, Euclidean distances are
+     * taken from cache if it's defined
+     */
+    private double[] allDistances() throws IOException {
+        int[] all = VectorStats.toIndeces(null, rowCount);
+        if (cache == null || diss)
+            return distances(all, false);
+        return cache.get(matrix.getRowIds(), matrix.getColIds(), all,
+                ClusterSetEvaluation.EUCLIDEAN, new DistanceCache.Calculation() {
+            @Override
+            public double[] calculate(int[] rows) {
+                return distances(rows, true);
+            }
+        }).toFull(all);
+    }
+
+    /**
+     * @return matrix of distances between given rows (row-major, so distances
+     * to one row are contiguous) or its condensed form
+     */
+    private double[] distances(int[] rows, boolean condensed) {
+        long size = (long)rows.length * rows.length;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too many rows for dissimilarity matrix: " +
+                    rows.length);
+        double[] ret = new double[(int)(condensed ? (size - rows.length) / 2 : size)];
+        DistanceTask task = new DistanceTask(rows, 0, rows.length, condensed, ret);
+        if (size / 2 * colCount > threshold && rows.length > 2) {
+            VectorStats.getPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        return ret;
+    }
+
+    private class DistanceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] rows;
+        private final int from;
+        private final int to;
+        private final boolean condensed;
+        private final double[] ret;
+
+        DistanceTask(int[] rows, int from, int to, boolean condensed, double[] ret) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.condensed = condensed;
+            this.ret = ret;
+        }
+
+        @Override
+        protected void compute() {
+            long pairs = pairsBefore(to) - pairsBefore(from);
+            if (to - from > 1 && pairs * colCount > threshold) {
+                // Split by number of pairs since earlier rows have more of them
+                long half = (pairsBefore(from) + pairsBefore(to)) / 2;
+                int middle = from + 1;
+                while (middle < to - 1 && pairsBefore(middle + 1) <= half)
+                    middle++;
+                invokeAll(new DistanceTask(rows, from, middle, condensed, ret),
+                        new DistanceTask(rows, middle, to, condensed, ret));
+                return;
+            }
+            int n = rows.length;
+            for (int i = from; i < to; i++)
+                for (int j = i + 1; j < n; j++) {
+                    double dist = distance(rows[i], rows[j]);
+                    if (condensed) {
+                        ret[CorrelationEngine.condensedIndex(n, i, j)] = dist;
+                    } else {
+                        ret[i * n + j] = dist;
+                        ret[j * n + i] = dist;
+                    }
+                }
+        }
+
+        private long pairsBefore(int i) {
+            return (long)i * rows.length - (long)i * (i + 1) / 2;
+        }
+    }
+
+    /**
+     * Calinski-Harabasz index: for data matrix it's calculated by cluster means
+     * (cells with missing values are skipped), for dissimilarity matrix sums of
+     * squares are expressed through squared dissimilarities.
+     * @param pam dissimilarities of all rows (needed only for dissimilarity matrix)
+     */
+    private double calinskiHarabasz(int[] labels, int k, Pam pam) {
+        double[] ss = diss ? dissimilaritySquares(labels, k, pam) : sumsOfSquares(labels, k);
+        return (ss[0] - ss[1]) / (k - 1) / (ss[1] / (rowCount - k));
+    }
+
+    /**
+     * @return total sum of squares around column means and sum of squares
+     * around cluster column means
+     */
+    private double[] sumsOfSquares(int[] labels, int k) {
+        double[] sums = new double[(k + 1) * colCount];
+        long[] counts = new long[(k + 1) * colCount];
+        for (int i = 0; i < rowCount; i++)
+            for (int c = 0; c < colCount; c++) {
+                double value = values[i * colCount + c];
+                if (value != value)
+                    continue;
+                sums[labels[i] * colCount + c] += value;
+                counts[labels[i] * colCount + c]++;
+                sums[k * colCount + c] += value;
+                counts[k * colCount + c]++;
+            }
+        double total = 0;
+        double within = 0;
+        for (int i = 0; i < rowCount; i++)
+            for (int c = 0; c < colCount; c++) {
+                double value = values[i * colCount + c];
+                if (value != value)
+                    continue;
+                int pos = labels[i] * colCount + c;
+                double diff = value - sums[pos] / counts[pos];
+                within += diff * diff;
+                diff = value - sums[k * colCount + c] / counts[k * colCount + c];
+                total += diff * diff;
+            }
+        return new double[] {total, within};
+    }
+
+    private double[] dissimilaritySquares(int[] labels, int k, Pam pam) {
+        int[] sizes = new int[k];
+        for (int label : labels)
+            sizes[label]++;
+        double total = 0;
+        double within = 0;
+        for (int i = 0; i < rowCount; i++)
+            for (int j = i + 1; j < rowCount; j++) {
+                double dist = pam.get(i, j);
+                total += dist * dist;
+                if (labels[i] == labels[j])
+                    within += dist * dist / sizes[labels[i]];
+            }
+        return new double[] {total / rowCount, within};
+    }
+
+    /**
+     * Duda-Hart test the same way as dudahart2 function of fpc package does.
+     * @return true if homogeneity (single cluster) is not rejected for given
+     * 2-cluster solution
+     */
+    private boolean isHomogeneous(int[] labels, double alpha) {
+        double[] ss = sumsOfSquares(labels, 2);
+        double stat = ss[1] / ss[0];
+        double z = normalQuantile(1 - alpha);
+        double p = colCount;
+        double compare = 1 - 2 / (Math.PI * p) - z * Math.sqrt(2 *
+                (1 - 8 / (Math.PI * Math.PI * p)) / (rowCount * p));
+        return stat >= compare;
+    }
+
+    /**
+     * Inverse of standard normal distribution function (rational approximation
+     * of P. J. Acklam, relative error is below 1.15e-9).
+     */
+    static double normalQuantile(double p) {
+        if (!(p > 0 && p < 1))
+            throw new IllegalStateException("Probability should be in (0, 1): " + p);
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+                1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+                6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+                -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+                3.754408661907416e+00};
+        double low = 0.02425;
+        if (p < low || p > 1 - low) {
+            double q = Math.sqrt(-2 * Math.log(p < low ? p : 1 - p));
+            double ret = (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+                    ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+            return p < low ? ret : -ret;
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q /
+                (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+
+    /**
+     * PAM over full dissimilarity matrix of size items.
+     */
+    private static class Pam {
+        private final double[] dist;
+        private final int size;
+        private final long threshold;
+
+        Pam(double[] dist, int size, long threshold) {
+            this.dist = dist;
+            this.size = size;
+            this.threshold = threshold;
+        }
+
+        double get(int i, int j) {
+            return dist[i * size + j];
+        }
+
+        /**
+         * BUILD step: every next medoid is item decreasing total distance to the
+         * closest medoid the most.
+         */
+        int[] build(int k) {
+            final int[] ret = new int[k];
+            final boolean[] isMedoid = new boolean[size];
+            final double[] closest = new double[size];
+            Arrays.fill(closest, Double.POSITIVE_INFINITY);
+            for (int step = 0; step < k; step++) {
+                Scan scan = new BuildScan(0, size, isMedoid, closest);
+                run(scan);
+                ret[step] = scan.best;
+                isMedoid[scan.best] = true;
+                for (int o = 0; o < size; o++)
+                    closest[o] = Math.min(closest[o], get(o, scan.best));
+            }
+            return ret;
+        }
+
+        /**
+         * SWAP step: the best replacement of medoid by non-medoid is applied
+         * while it decreases total distance. For every candidate changes of all
+         * medoid replacements are collected in one pass over items using the
+         * distances to the nearest and to the second nearest medoids.
+         */
+        int[] swap(int[] initial) {
+            final int[] medoids = initial.clone();
+            final int k = medoids.length;
+            final boolean[] isMedoid = new boolean[size];
+            for (int medoid : medoids)
+                isMedoid[medoid] = true;
+            final int[] nearest = new int[size];
+            final double[] first = new double[size];
+            final double[] second = new double[size];
+            while (true) {
+                double total = 0;
+                for (int o = 0; o < size; o++) {
+                    first[o] = Double.POSITIVE_INFINITY;
+                    second[o] = Double.POSITIVE_INFINITY;
+                    for (int l = 0; l < k; l++) {
+                        double d = get(o, medoids[l]);
+                        if (d < first[o]) {
+                            second[o] = first[o];
+                            first[o] = d;
+                            nearest[o] = l;
+                        } else if (d < second[o]) {
+                            second[o] = d;
+                        }
+                    }
+                    total += first[o];
+                }
+                Scan scan = new SwapScan(0, size, k, isMedoid, nearest, first, second);
+                run(scan);
+                if (scan.best < 0 || !(scan.bestScore < -16 * Math.ulp(1.0) * total))
+                    break;
+                isMedoid[medoids[scan.bestSlot]] = false;
+                medoids[scan.bestSlot] = scan.best;
+                isMedoid[scan.best] = true;
+            }
+            return medoids;
+        }
+
+        /**
+         * @return index of the closest medoid for every item
+         */
+        int[] assign(int[] medoids) {
+            int[] ret = new int[size];
+            for (int o = 0; o < size; o++) {
+                double best = Double.POSITIVE_INFINITY;
+                for (int l = 0; l < medoids.length; l++) {
+                    double d = get(o, medoids[l]);
+                    if (d < best) {
+                        best = d;
+                        ret[o] = l;
+                    }
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Average silhouette width like silhouette function of cluster package
+         * calculates it (0 for items of singleton clusters).
+         */
+        double silhouette(int[] labels, int k) {
+            int[] sizes = new int[k];
+            for (int label : labels)
+                sizes[label]++;
+            double[] sums = new double[k];
+            double ret = 0;
+            for (int o = 0; o < size; o++) {
+                int own = labels[o];
+                if (sizes[own] < 2)
+                    continue;
+                Arrays.fill(sums, 0);
+                int offset = o * size;
+                for (int i = 0; i < size; i++)
+                    sums[labels[i]] += dist[offset + i];
+                double a = sums[own] / (sizes[own] - 1);
+                double b = Double.POSITIVE_INFINITY;
+                for (int l = 0; l < k; l++)
+                    if (l != own && sizes[l] > 0)
+                        b = Math.min(b, sums[l] / sizes[l]);
+                double max = Math.max(a, b);
+                if (max > 0 && !Double.isInfinite(b))
+                    ret += (b - a) / max;
+            }
+            return ret / size;
+        }
+
+        private void run(Scan scan) {
+            if (!ForkJoinTask.inForkJoinPool() && (long)size * size > threshold) {
+                VectorStats.getPool().invoke(scan);
+            } else {
+                scan.compute();
+            }
+        }
+
+        /**
+         * Looks for candidate item with the lowest score, candidates are split
+         * between fork/join tasks while their work is above threshold. On ties
+         * the first candidate wins, so result doesn't depend on splitting.
+         */
+        private abstract class Scan extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final int from;
+            private final int to;
+            double bestScore = Double.POSITIVE_INFINITY;
+            int best = -1;
+            int bestSlot = -1;
+
+            Scan(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            protected abstract Scan create(int from, int to);
+
+            protected abstract void evaluate(int candidate);
+
+            protected void offer(double score, int candidate, int slot) {
+                if (score < bestScore || best < 0) {
+                    bestScore = score;
+                    best = candidate;
+                    bestSlot = slot;
+                }
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > 1 && (long)(to - from) * size > threshold) {
+                    int middle = (from + to) / 2;
+                    Scan left = create(from, middle);
+                    Scan right = create(middle, to);
+                    invokeAll(left, right);
+                    for (Scan part : Arrays.asList(left, right))
+                        if (part.best >= 0)
+                            offer(part.bestScore, part.best, part.bestSlot);
+                    return;
+                }
+                for (int c = from; c < to; c++)
+                    evaluate(c);
+            }
+        }
+
+        /**
+         * Candidate score is total distance to the closest medoid after it's
+         * added to medoids.
+         */
+        private class BuildScan extends Scan {
+            private static final long serialVersionUID = 1L;
+            private final boolean[] isMedoid;
+            private final double[] closest;
+
+            BuildScan(int from, int to, boolean[] isMedoid, double[] closest) {
+                super(from, to);
+                this.isMedoid = isMedoid;
+                this.closest = closest;
+            }
+
+            @Override
+            protected Scan create(int from, int to) {
+                return new BuildScan(from, to, isMedoid, closest);
+            }
+
+            @Override
+            protected void evaluate(int candidate) {
+                if (isMedoid[candidate])
+                    return;
+                double sum = 0;
+                int offset = candidate * size;
+                for (int o = 0; o < size; o++)
+                    sum += Math.min(closest[o], dist[offset + o]);
+                offer(sum, candidate, 0);
+            }
+        }
+
+        /**
+         * Candidate score is change of total distance after the best replacement
+         * of medoid by candidate.
+         */
+        private class SwapScan extends Scan {
+            private static final long serialVersionUID = 1L;
+            private final int k;
+            private final boolean[] isMedoid;
+            private final int[] nearest;
+            private final double[] first;
+            private final double[] second;
+            private double[] delta;
+
+            SwapScan(int from, int to, int k, boolean[] isMedoid, int[] nearest,
+                    double[] first, double[] second) {
+                super(from, to);
+                this.k = k;
+                this.isMedoid = isMedoid;
+                this.nearest = nearest;
+                this.first = first;
+                this.second = second;
+            }
+
+            @Override
+            protected Scan create(int from, int to) {
+                return new SwapScan(from, to, k, isMedoid, nearest, first, second);
+            }
+
+            @Override
+            protected void evaluate(int candidate) {
+                if (isMedoid[candidate])
+                    return;
+                if (delta == null)
+                    delta = new double[k];
+                Arrays.fill(delta, 0);
+                // Items closer to candidate than to their medoid move to it
+                // whichever medoid is replaced
+                double shared = 0;
+                int offset = candidate * size;
+                for (int o = 0; o < size; o++) {
+                    double d = dist[offset + o];
+                    if (d < first[o]) {
+                        shared += d - first[o];
+                    } else {
+                        delta[nearest[o]] += Math.min(d, second[o]) - first[o];
+                    }
+                }
+                int bestSlot = 0;
+                for (int l = 1; l < k; l++)
+                    if (delta[l] < delta[bestSlot])
+                        bestSlot = l;
+                offer(delta[bestSlot] + shared, candidate, bestSlot);
+            }
+        }
+    }
+}
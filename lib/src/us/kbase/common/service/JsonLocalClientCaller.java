@@ -10,8 +10,16 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
 
 import us.kbase.auth.AuthToken;
 import us.kbase.common.service.JacksonTupleModule;
@@ -32,6 +40,12 @@ public class JsonLocalClientCaller {
     private AuthToken token;
     private ObjectMapper mapper;
     private File binDir = null;
+    private static volatile LocalWorkerPool workerPool = null;
+    private static volatile Semaphore callSlots = null;
+    private static final Map<String, Long> callTimeouts = new ConcurrentHashMap<String, Long>();
+    private static final String DEFAULT_TIMEOUT_KEY = "";
+    private final Set<Thread> callThreads = new HashSet<Thread>();
+    private final Set<Thread> cancelledThreads = new HashSet<Thread>();
     
     public JsonLocalClientCaller(File workDir) {
         this.workDir = workDir == null ? new File(".") : workDir;
@@ -66,6 +80,26 @@ public class JsonLocalClientCaller {
         this.binDir = binDir;
     }
         
+    /**
+     * Get pool of long-lived service processes shared by all callers. If pool
+     * is not set (it's null by default) then new process is started for every
+     * call.
+     * @return pool of service processes
+     */
+    public static LocalWorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Set pool of long-lived service processes shared by all callers. If pool
+     * is not set (it's null by default) then new process is started for every
+     * call.
+     * @param pool pool of service processes
+     */
+    public static void setWorkerPool(LocalWorkerPool pool) {
+        workerPool = pool;
+    }
+
     public void writeRequestData(String method, Object arg, OutputStream os, String id) 
             throws IOException {
         JsonGenerator g = mapper.getFactory().createGenerator(os, JsonEncoding.UTF8);
@@ -80,36 +114,160 @@ public class JsonLocalClientCaller {
         os.flush();
     }
     
+    /**
+     * Limits number of service CLI calls running at the same time in this JVM,
+     * calls over the limit wait in order of arrival.
+     * @param maxCalls maximal number of concurrent calls (0 means no limit
+     * which is default)
+     */
+    public static void setMaxConcurrentCalls(int maxCalls) {
+        callSlots = maxCalls > 0 ? new Semaphore(maxCalls, true) : null;
+    }
+
+    /**
+     * Sets time after which service CLI process of given method (or any method
+     * without its own timeout) is stopped together with processes it has
+     * started. Time spent waiting for call slot is not counted.
+     * @param method full method name like "ClusterServiceR.estimate_k" or null
+     * for default timeout
+     * @param timeoutMs timeout in milliseconds (0 means no timeout)
+     */
+    public static void setCallTimeout(String method, long timeoutMs) {
+        String key = method == null ? DEFAULT_TIMEOUT_KEY : method;
+        if (timeoutMs > 0) {
+            callTimeouts.put(key, timeoutMs);
+        } else {
+            callTimeouts.remove(key);
+        }
+    }
+
+    /**
+     * @return timeout in milliseconds applied to calls of given method (0 if
+     * there is no timeout)
+     */
+    public static long getCallTimeout(String method) {
+        Long ret = callTimeouts.get(method);
+        if (ret == null)
+            ret = callTimeouts.get(DEFAULT_TIMEOUT_KEY);
+        return ret == null ? 0 : ret;
+    }
+
+    /**
+     * Stops calls made by this client in other threads. Their service CLI
+     * processes are killed together with processes they have started and calls
+     * end with {@link JsonClientException}. Calls waiting for slot are
+     * cancelled too.
+     */
+    public void cancel() {
+        synchronized (callThreads) {
+            for (Thread t : callThreads) {
+                cancelledThreads.add(t);
+                t.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Every call writes its request and response files into its own temporary
+     * folder inside working directory, so concurrent calls sharing working
+     * directory don't overwrite each other. Folder is removed after the call.
+     */
     public <ARG, RET> RET jsonrpcCall(String method, ARG arg, TypeReference<RET> cls, 
             boolean ret, boolean authRequired)
             throws IOException, JsonClientException {
+        if (!workDir.exists())
+            workDir.mkdirs();
+        File callDir = Files.createTempDirectory(workDir.toPath(), "local_call_").toFile();
+        try {
+            return jsonrpcCall(callDir, method, arg, cls, authRequired);
+        } finally {
+            deleteRecursively(callDir);
+        }
+    }
+
+    private <ARG, RET> RET jsonrpcCall(File callDir, String method, ARG arg,
+            TypeReference<RET> cls, boolean authRequired)
+            throws IOException, JsonClientException {
         String id = ("" + Math.random()).replace(".", "");
         // Write real data into http output stream
-        File inputFile = new File(workDir, "input.json");
-        OutputStream os = new FileOutputStream(inputFile);
-        writeRequestData(method, arg, os, id);
-        os.close();
+        File inputFile = new File(callDir, "input.json");
+        List<File> paramFiles = new ArrayList<File>();
+        try {
+            OutputStream os = new FileOutputStream(inputFile);
+            try {
+                writeRequestData(method, prepareParams(arg, callDir, paramFiles), os, id);
+            } finally {
+                os.close();
+            }
+        } catch (IOException ex) {
+            deleteFiles(paramFiles);
+            throw ex;
+        }
         String tokenString = authRequired ? token.toString() : null;
-        File outputFile = new File(workDir, "output.json");
-        if (outputFile.exists())
-            outputFile.delete();
+        File outputFile = new File(callDir, "output.json");
         // Run CLI function
         String serviceName = method.substring(0, method.indexOf('.'));
         String cmd = (binDir == null ? "" : (binDir.getAbsolutePath() + "/")) + "run_" + serviceName + "_async_job.sh";
-        StringBuilder outSb = new StringBuilder();
-        StringBuilder errSb = new StringBuilder();
+        OutputTail outSb = new OutputTail();
+        OutputTail errSb = new OutputTail();
         int exitCode = -1;
+        LocalWorkerPool pool = workerPool;
+        Semaphore slots = callSlots;
+        long timeoutMs = getCallTimeout(method);
+        Thread thread = Thread.currentThread();
+        synchronized (callThreads) {
+            callThreads.add(thread);
+        }
+        String outcome = LocalCallMetrics.FAILED;
+        long startTime = -1;
         try {
-            if (authRequired) {
-                exitCode = exec(workDir, outSb, errSb, cmd, inputFile.getAbsolutePath(), 
-                        outputFile.getAbsolutePath(), tokenString);
-            } else {
-                exitCode = exec(workDir, outSb, errSb, cmd, inputFile.getAbsolutePath(), 
-                        outputFile.getAbsolutePath());
+            if (slots != null)
+                slots.acquire();
+            try {
+                startTime = System.currentTimeMillis();
+                // Workers outlive the call, so they are started in working directory
+                if (pool != null) {
+                    exitCode = pool.call(cmd, workDir, outSb, errSb, inputFile.getAbsolutePath(),
+                            outputFile.getAbsolutePath(), tokenString, timeoutMs);
+                } else if (authRequired) {
+                    exitCode = exec(callDir, outSb, errSb, timeoutMs, cmd,
+                            inputFile.getAbsolutePath(), outputFile.getAbsolutePath(), tokenString);
+                } else {
+                    exitCode = exec(callDir, outSb, errSb, timeoutMs, cmd,
+                            inputFile.getAbsolutePath(), outputFile.getAbsolutePath());
+                }
+                if (outputFile.exists() && outputFile.length() > 0)
+                    outcome = LocalCallMetrics.OK;
+            } finally {
+                if (slots != null)
+                    slots.release();
             }
+        } catch (TimeoutException ex) {
+            outcome = LocalCallMetrics.TIMEOUT;
+            throw new JsonClientException(addOutErr("Service CLI for method '" + method + "' " +
+                    "was stopped after timeout of " + timeoutMs + " ms", outSb, errSb), ex);
+        } catch (InterruptedException ex) {
+            outcome = LocalCallMetrics.CANCELLED;
+            synchronized (callThreads) {
+                // Interruption which doesn't come from cancel() is kept for caller
+                if (!cancelledThreads.contains(thread))
+                    thread.interrupt();
+            }
+            throw new JsonClientException(addOutErr("Service CLI call for method '" + method +
+                    "' was cancelled", outSb, errSb), ex);
         } catch (Exception ex) {
             throw new JsonClientException("Error running service CLI for method '" + method + "': " + 
                     ex.getMessage(), ex);
+        } finally {
+            deleteFiles(paramFiles);
+            synchronized (callThreads) {
+                callThreads.remove(thread);
+                // cancel() could come when process has already finished
+                if (cancelledThreads.remove(thread))
+                    Thread.interrupted();
+            }
+            LocalCallMetrics.record(method, outcome, startTime < 0 ? 0 :
+                System.currentTimeMillis() - startTime);
         }
         if ((!outputFile.exists()) || outputFile.length() == 0) {
             throw new JsonClientException(addOutErr("Error running service CLI for method " +
@@ -161,7 +319,35 @@ public class JsonLocalClientCaller {
         }
     }
 
-    private String addOutErr(String data, StringBuilder outSb, StringBuilder errSb) {
+    /**
+     * Lets subclasses replace parts of request params (for instance large arrays
+     * by references to binary files) before request is written. Params are
+     * returned as is by default.
+     * @param params request params
+     * @param dir directory for files referred from params
+     * @param paramFiles collects created files, they are removed after the call
+     * @return params to write into request
+     */
+    protected Object prepareParams(Object params, File dir, List<File> paramFiles)
+            throws IOException {
+        return params;
+    }
+
+    private static void deleteFiles(List<File> files) {
+        for (File file : files)
+            if (file.exists())
+                file.delete();
+    }
+
+    private static void deleteRecursively(File fileOrDir) {
+        File[] children = fileOrDir.listFiles();
+        if (children != null && !Files.isSymbolicLink(fileOrDir.toPath()))
+            for (File child : children)
+                deleteRecursively(child);
+        fileOrDir.delete();
+    }
+
+    private String addOutErr(String data, OutputTail outSb, OutputTail errSb) {
         if (outSb.length() > 0)
             data += "\nOutput:\n" + outSb;
         if (errSb.length() > 0)
@@ -169,17 +355,19 @@ public class JsonLocalClientCaller {
         return data;
     }
     
-    private static int exec(File workDir, StringBuilder out, StringBuilder err, 
+    private static int exec(File workDir, OutputTail out, OutputTail err, long timeoutMs,
             String... cmdAndParams) throws Exception {
-        Process proc = Runtime.getRuntime().exec(cmdAndParams, null, workDir);
-        Thread inT = readInNewThread(proc.getInputStream(), out);
-        Thread errT = readInNewThread(proc.getErrorStream(), err);
-        inT.join();
-        errT.join();
-        return proc.waitFor();
+        LocalProcess proc = LocalProcess.start(cmdAndParams, workDir);
+        Thread inT = readInNewThread(proc.getProcess().getInputStream(), out);
+        Thread errT = readInNewThread(proc.getProcess().getErrorStream(), err);
+        int ret = proc.waitFor(timeoutMs);
+        // Processes which have left process group may keep streams open
+        inT.join(LocalProcess.KILL_GRACE_MS);
+        errT.join(LocalProcess.KILL_GRACE_MS);
+        return ret;
     }
     
-    private static Thread readInNewThread(final InputStream is, final StringBuilder out) {
+    private static Thread readInNewThread(final InputStream is, final OutputTail out) {
         Thread ret = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -190,12 +378,13 @@ public class JsonLocalClientCaller {
                         if (l == null)
                             break;
                         if (out != null)
-                            out.append(l).append("\n");
+                            out.appendLine(l);
                     }
                     br.close();
                 } catch (Exception ignore) {}
             }
         });
+        ret.setDaemon(true);
         ret.start();
         return ret;
     }
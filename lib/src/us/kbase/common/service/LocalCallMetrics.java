@@ -0,0 +1,68 @@
+package us.kbase.common.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Timings and outcomes of service CLI calls made by
+ * {@link JsonLocalClientCaller} grouped by method. Time is counted from the
+ * moment call gets its slot (see {@link JsonLocalClientCaller#setMaxConcurrentCalls(int)})
+ * till the process has finished.
+ */
+public class LocalCallMetrics {
+    public static final String OK = "ok";
+    public static final String FAILED = "failed";
+    public static final String TIMEOUT = "timeout";
+    public static final String CANCELLED = "cancelled";
+
+    private static final Map<String, MethodStats> methods = new TreeMap<String, MethodStats>();
+
+    public static void record(String method, String outcome, long timeMs) {
+        synchronized (methods) {
+            MethodStats stats = methods.get(method);
+            if (stats == null) {
+                stats = new MethodStats();
+                methods.put(method, stats);
+            }
+            stats.calls++;
+            stats.totalMs += timeMs;
+            stats.maxMs = Math.max(stats.maxMs, timeMs);
+            Long count = stats.outcomes.get(outcome);
+            stats.outcomes.put(outcome, count == null ? 1L : count + 1);
+        }
+    }
+
+    /**
+     * @return map from method name to its number of calls, total and maximal
+     * time in milliseconds and number of calls per outcome
+     */
+    public static Map<String, Object> getReport() {
+        Map<String, Object> ret = new LinkedHashMap<String, Object>();
+        synchronized (methods) {
+            for (Map.Entry<String, MethodStats> entry : methods.entrySet()) {
+                MethodStats stats = entry.getValue();
+                Map<String, Object> item = new LinkedHashMap<String, Object>();
+                item.put("calls", stats.calls);
+                item.put("total_ms", stats.totalMs);
+                item.put("max_ms", stats.maxMs);
+                item.put("outcomes", new TreeMap<String, Long>(stats.outcomes));
+                ret.put(entry.getKey(), item);
+            }
+        }
+        return ret;
+    }
+
+    public static void reset() {
+        synchronized (methods) {
+            methods.clear();
+        }
+    }
+
+    private static class MethodStats {
+        long calls = 0;
+        long totalMs = 0;
+        long maxMs = 0;
+        Map<String, Long> outcomes = new TreeMap<String, Long>();
+    }
+}
@@ -0,0 +1,169 @@
+package us.kbase.common.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Service CLI process started in its own process group (through setsid where
+ * it's available), so it can be stopped together with everything it has
+ * spawned. When memory limit is set, address space of process is limited by
+ * ulimit -v and allocations over limit fail inside of process.
+ * <p>
+ * Stopping sends SIGTERM to process group and SIGKILL after
+ * {@link #KILL_GRACE_MS} to whatever has survived it. Where process groups are
+ * not supported only process itself is destroyed.
+ */
+public class LocalProcess {
+    public static final long KILL_GRACE_MS = 3000;
+    private static final String SETSID = findCommand("/usr/bin/setsid", "/bin/setsid");
+    private static final String SH = findCommand("/bin/sh");
+    private static volatile long memoryLimitMb = 0;
+    private static final ScheduledExecutorService scheduler = createScheduler();
+
+    private final Process proc;
+    private final long groupId;
+
+    private LocalProcess(Process proc, long groupId) {
+        this.proc = proc;
+        this.groupId = groupId;
+    }
+
+    /**
+     * Sets address space limit applied to processes started afterwards.
+     * @param limitMb limit in MB (0 means no limit which is default)
+     */
+    public static void setMemoryLimitMb(long limitMb) {
+        memoryLimitMb = Math.max(0, limitMb);
+    }
+
+    public static long getMemoryLimitMb() {
+        return memoryLimitMb;
+    }
+
+    public static LocalProcess start(String[] cmdAndParams, File workDir) throws IOException {
+        List<String> cmd = new ArrayList<String>();
+        if (SETSID != null)
+            cmd.add(SETSID);
+        long limitMb = memoryLimitMb;
+        if (limitMb > 0 && SH != null) {
+            cmd.addAll(Arrays.asList(SH, "-c", "ulimit -v " + (limitMb * 1024) +
+                    "; exec \"$@\"", "sh"));
+        }
+        cmd.addAll(Arrays.asList(cmdAndParams));
+        Process proc = Runtime.getRuntime().exec(cmd.toArray(new String[cmd.size()]), null,
+                workDir);
+        // Process started by setsid from non-leader is the leader of new group
+        return new LocalProcess(proc, SETSID == null ? -1 : getPid(proc));
+    }
+
+    public Process getProcess() {
+        return proc;
+    }
+
+    /**
+     * Waits for process to exit, stops it when timeout expires or waiting
+     * thread is interrupted.
+     * @param timeoutMs timeout in milliseconds (0 means no timeout)
+     * @return exit code of process
+     * @throws TimeoutException if process was stopped because of timeout
+     * @throws InterruptedException if waiting thread was interrupted
+     */
+    public int waitFor(long timeoutMs) throws InterruptedException, TimeoutException {
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> watchdog = null;
+        if (timeoutMs > 0) {
+            watchdog = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    kill();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        try {
+            int ret = proc.waitFor();
+            if (timedOut.get())
+                throw new TimeoutException("Process was stopped after timeout of " +
+                        timeoutMs + " ms");
+            return ret;
+        } catch (InterruptedException ex) {
+            kill();
+            throw ex;
+        } finally {
+            if (watchdog != null)
+                watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Stops process together with processes of its group.
+     */
+    public void kill() {
+        if (groupId > 0)
+            signalGroup("TERM");
+        proc.destroy();
+        if (groupId > 0) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    signalGroup("KILL");
+                }
+            }, KILL_GRACE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void signalGroup(String signal) {
+        try {
+            Process kill = Runtime.getRuntime().exec(new String[] {"kill", "-" + signal,
+                    "--", "-" + groupId});
+            kill.getOutputStream().close();
+            kill.waitFor();
+        } catch (Exception ignore) {
+            // Group is gone or kill is not available
+        }
+    }
+
+    private static long getPid(Process proc) {
+        try {
+            // Process.pid() appeared in Java 9, earlier versions keep it in field
+            return ((Number)Process.class.getMethod("pid").invoke(proc)).longValue();
+        } catch (Exception ignore) {}
+        try {
+            Field field = proc.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getLong(proc);
+        } catch (Exception ignore) {}
+        return -1;
+    }
+
+    private static String findCommand(String... paths) {
+        for (String path : paths)
+            if (new File(path).canExecute())
+                return path;
+        return null;
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        ScheduledThreadPoolExecutor ret = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "local-process-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ret.setRemoveOnCancelPolicy(true);
+        return ret;
+    }
+}
@@ -0,0 +1,311 @@
+package us.kbase.common.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Long-lived service CLI processes shared by {@link JsonLocalClientCaller}
+ * calls, so interpreter startup and loading of libraries is paid once per
+ * worker rather than once per call. Worker is the same run_[service]_async_job.sh
+ * script started with {@link #WORKER_ARG} argument. Protocol is line based:
+ * caller writes "[input file] TAB [output file] (TAB [token])" into stdin of
+ * worker, worker writes JSON-RPC response into output file like in CLI mode and
+ * prints "KBWORKER DONE [memory in MB]" line. "KBWORKER PING" line is answered
+ * by "KBWORKER PONG", it's sent to idle worker before it's leased. Other lines
+ * printed by worker are collected as output of current call.
+ * <p>
+ * Each worker serves one call at a time. Worker is retired after given number
+ * of calls, when memory it reports exceeds limit or when it doesn't answer.
+ * Workers exit when their stdin is closed, so they don't outlive JVM. Workers
+ * are started as {@link LocalProcess}, so memory limit applies to them and
+ * worker stopped after timeout or cancellation takes its child processes along.
+ */
+public class LocalWorkerPool {
+    public static final String WORKER_ARG = "--worker";
+    public static final int DEFAULT_MAX_CALLS = 100;
+    public static final long DEFAULT_MAX_MEMORY_MB = 4096;
+    public static final long PING_TIMEOUT_MS = 10000;
+    private static final String MARKER = "KBWORKER ";
+    private static final String DONE = MARKER + "DONE";
+    private static final String PING = MARKER + "PING";
+    private static final String PONG = MARKER + "PONG";
+    // Put into line queue when worker closes stdout
+    private static final String EOF = "\u0000EOF";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int maxWorkers;
+    private final int maxCalls;
+    private final long maxMemoryMb;
+    private final Map<String, Deque<Worker>> idleWorkers = new HashMap<String, Deque<Worker>>();
+    private final Map<String, Integer> workerCounts = new HashMap<String, Integer>();
+    private boolean shutdown = false;
+
+    /**
+     * @param maxWorkers maximal number of workers per service script
+     * @param maxCalls number of calls after which worker is restarted
+     * @param maxMemoryMb memory reported by worker after which it's restarted
+     */
+    public LocalWorkerPool(int maxWorkers, int maxCalls, long maxMemoryMb) {
+        if (maxWorkers < 1)
+            throw new IllegalStateException("Number of workers should be positive: " +
+                    maxWorkers);
+        this.maxWorkers = maxWorkers;
+        this.maxCalls = Math.max(1, maxCalls);
+        this.maxMemoryMb = maxMemoryMb;
+    }
+
+    /**
+     * Runs one JSON-RPC call on leased worker.
+     * @param cmd service script
+     * @param workDir working directory new worker is started in
+     * @param out collects lines printed by worker during the call
+     * @param err collects error output of worker during the call
+     * @param inputFile file with JSON-RPC request
+     * @param outputFile file JSON-RPC response is written into
+     * @param token auth token (null if it's not required)
+     * @param timeoutMs time after which worker is stopped (0 means no timeout)
+     * @return 0 if worker has processed the call or exit code of worker which
+     * died during the call
+     * @throws TimeoutException if worker was stopped because of timeout
+     * @throws InterruptedException if calling thread was interrupted (worker
+     * is stopped in this case too)
+     */
+    public int call(String cmd, File workDir, OutputTail out, OutputTail err,
+            String inputFile, String outputFile, String token, long timeoutMs) throws Exception {
+        Worker worker = lease(cmd, workDir);
+        boolean reuse = false;
+        try {
+            worker.takeErrors();
+            String line = inputFile + "\t" + outputFile + (token == null ? "" : "\t" + token);
+            if (line.indexOf('\n') >= 0)
+                throw new IllegalStateException("Worker request can not contain line breaks");
+            worker.send(line);
+            long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+            while (true) {
+                String resp;
+                if (deadline > 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    resp = wait > 0 ? worker.lines.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (resp == null) {
+                        err.appendLines(worker.takeErrors());
+                        throw new TimeoutException("Worker was stopped after timeout of " +
+                                timeoutMs + " ms");
+                    }
+                } else {
+                    resp = worker.lines.take();
+                }
+                if (resp == EOF) {
+                    err.appendLines(worker.takeErrors());
+                    return worker.proc.getProcess().waitFor();
+                }
+                if (resp.startsWith(DONE)) {
+                    worker.calls++;
+                    long memory = parseMemory(resp.substring(DONE.length()).trim());
+                    reuse = worker.calls < maxCalls && memory <= maxMemoryMb;
+                    err.appendLines(worker.takeErrors());
+                    return 0;
+                }
+                out.appendLine(resp);
+            }
+        } finally {
+            release(worker, reuse);
+        }
+    }
+
+    /**
+     * Stops idle workers, busy ones are stopped when they are released.
+     */
+    public void shutdown() {
+        synchronized (idleWorkers) {
+            shutdown = true;
+            for (Map.Entry<String, Deque<Worker>> entry : idleWorkers.entrySet())
+                while (!entry.getValue().isEmpty()) {
+                    entry.getValue().poll().stop();
+                    workerCountDown(entry.getKey());
+                }
+        }
+    }
+
+    /**
+     * @return number of running workers of given service script
+     */
+    public int getWorkerCount(String cmd) {
+        synchronized (idleWorkers) {
+            Integer ret = workerCounts.get(cmd);
+            return ret == null ? 0 : ret;
+        }
+    }
+
+    private static long parseMemory(String text) {
+        try {
+            return (long)Double.parseDouble(text);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Takes idle worker which answers ping, starts new one if limit allows or
+     * waits for worker released by other call.
+     */
+    private Worker lease(String cmd, File workDir) throws Exception {
+        while (true) {
+            Worker idle = null;
+            synchronized (idleWorkers) {
+                Deque<Worker> workers = idleWorkers.get(cmd);
+                if (workers != null && !workers.isEmpty()) {
+                    idle = workers.poll();
+                } else if (getWorkerCount(cmd) < maxWorkers) {
+                    workerCounts.put(cmd, getWorkerCount(cmd) + 1);
+                } else {
+                    idleWorkers.wait();
+                    continue;
+                }
+            }
+            if (idle == null) {
+                try {
+                    return new Worker(cmd, workDir);
+                } catch (Exception ex) {
+                    workerCountDown(cmd);
+                    throw ex;
+                }
+            }
+            boolean alive = false;
+            try {
+                alive = idle.ping();
+            } finally {
+                // Worker interrupted in the middle of ping may still answer it later
+                if (!alive) {
+                    idle.stop();
+                    workerCountDown(cmd);
+                }
+            }
+            if (alive)
+                return idle;
+        }
+    }
+
+    private void release(Worker worker, boolean reuse) {
+        synchronized (idleWorkers) {
+            if (reuse && !shutdown) {
+                Deque<Worker> workers = idleWorkers.get(worker.cmd);
+                if (workers == null) {
+                    workers = new ArrayDeque<Worker>();
+                    idleWorkers.put(worker.cmd, workers);
+                }
+                workers.push(worker);
+            } else {
+                worker.stop();
+                workerCountDown(worker.cmd);
+            }
+            idleWorkers.notifyAll();
+        }
+    }
+
+    private void workerCountDown(String cmd) {
+        synchronized (idleWorkers) {
+            Integer count = workerCounts.get(cmd);
+            if (count == null)
+                return;
+            if (count <= 1) {
+                workerCounts.remove(cmd);
+            } else {
+                workerCounts.put(cmd, count - 1);
+            }
+            idleWorkers.notifyAll();
+        }
+    }
+
+    private static class Worker {
+        private final String cmd;
+        private final LocalProcess proc;
+        private final Writer stdin;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+        private final OutputTail errors = new OutputTail();
+        private int calls = 0;
+
+        Worker(String cmd, File workDir) throws IOException {
+            this.cmd = cmd;
+            this.proc = LocalProcess.start(new String[] {cmd, WORKER_ARG}, workDir);
+            this.stdin = new OutputStreamWriter(proc.getProcess().getOutputStream(), UTF8);
+            startReader(proc.getProcess().getInputStream(), false);
+            startReader(proc.getProcess().getErrorStream(), true);
+        }
+
+        private void startReader(final InputStream is, final boolean isErr) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader br = new BufferedReader(new InputStreamReader(is, UTF8));
+                        while (true) {
+                            String l = br.readLine();
+                            if (l == null)
+                                break;
+                            if (isErr) {
+                                errors.appendLine(l);
+                            } else {
+                                lines.add(l);
+                            }
+                        }
+                        br.close();
+                    } catch (Exception ignore) {
+                    } finally {
+                        if (!isErr)
+                            lines.add(EOF);
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void send(String line) throws IOException {
+            stdin.write(line);
+            stdin.write("\n");
+            stdin.flush();
+        }
+
+        String takeErrors() {
+            return errors.take();
+        }
+
+        boolean ping() throws InterruptedException {
+            try {
+                send(PING);
+            } catch (IOException ex) {
+                return false;
+            }
+            long deadline = System.currentTimeMillis() + PING_TIMEOUT_MS;
+            while (true) {
+                long wait = deadline - System.currentTimeMillis();
+                String resp = wait > 0 ? lines.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (resp == null || resp == EOF)
+                    return false;
+                if (resp.equals(PONG))
+                    return true;
+            }
+        }
+
+        void stop() {
+            try {
+                stdin.close();
+            } catch (IOException ignore) {}
+            proc.kill();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package us.kbase.common.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps last lines of process output up to given number of characters, so
+ * chatty or runaway service CLI can't exhaust memory of the caller. Number of
+ * skipped characters is reported in front of kept lines.
+ */
+public class OutputTail {
+    public static final int DEFAULT_MAX_CHARS = 100000;
+
+    private final int maxChars;
+    private final Deque<String> lines = new ArrayDeque<String>();
+    private int length = 0;
+    private long skipped = 0;
+
+    public OutputTail() {
+        this(DEFAULT_MAX_CHARS);
+    }
+
+    public OutputTail(int maxChars) {
+        if (maxChars < 1)
+            throw new IllegalStateException("Output size limit should be positive: " + maxChars);
+        this.maxChars = maxChars;
+    }
+
+    public synchronized void appendLine(String line) {
+        if (line.length() >= maxChars) {
+            skipped += line.length() - (maxChars - 1);
+            line = line.substring(line.length() - (maxChars - 1));
+        }
+        lines.add(line);
+        length += line.length() + 1;
+        while (length > maxChars) {
+            String first = lines.poll();
+            length -= first.length() + 1;
+            skipped += first.length() + 1;
+        }
+    }
+
+    /**
+     * Appends text consisting of lines separated by line breaks.
+     */
+    public void appendLines(String text) {
+        if (text.isEmpty())
+            return;
+        if (text.endsWith("\n"))
+            text = text.substring(0, text.length() - 1);
+        for (String line : text.split("\n", -1))
+            appendLine(line);
+    }
+
+    /**
+     * @return number of characters kept (line breaks included)
+     */
+    public synchronized int length() {
+        return length + (skipped > 0 ? skippedMessage().length() : 0);
+    }
+
+    /**
+     * @return kept text and clears it
+     */
+    public synchronized String take() {
+        String ret = toString();
+        lines.clear();
+        length = 0;
+        skipped = 0;
+        return ret;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder ret = new StringBuilder(length());
+        if (skipped > 0)
+            ret.append(skippedMessage());
+        for (String line : lines)
+            ret.append(line).append("\n");
+        return ret.toString();
+    }
+
+    private String skippedMessage() {
+        return "[... " + skipped + " characters skipped]\n";
+    }
+}
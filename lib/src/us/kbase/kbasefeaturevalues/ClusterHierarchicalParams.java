@@ -27,7 +27,8 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
     "input_data",
     "algorithm",
     "out_workspace",
-    "out_clusterset_id"
+    "out_clusterset_id",
+    "cluster_by"
 })
 public class ClusterHierarchicalParams {
 
@@ -49,6 +50,8 @@ public class ClusterHierarchicalParams {
     private String outWorkspace;
     @JsonProperty("out_clusterset_id")
     private String outClustersetId;
+    @JsonProperty("cluster_by")
+    private String clusterBy;
     private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
     @JsonProperty("distance_metric")
@@ -186,6 +189,21 @@ public class ClusterHierarchicalParams {
         return this;
     }
 
+    @JsonProperty("cluster_by")
+    public String getClusterBy() {
+        return clusterBy;
+    }
+
+    @JsonProperty("cluster_by")
+    public void setClusterBy(String clusterBy) {
+        this.clusterBy = clusterBy;
+    }
+
+    public ClusterHierarchicalParams withClusterBy(String clusterBy) {
+        this.clusterBy = clusterBy;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<String, Object> getAdditionalProperties() {
         return this.additionalProperties;
@@ -198,7 +216,7 @@ public class ClusterHierarchicalParams {
 
     @Override
     public String toString() {
-        return ((((((((((((((((((((("ClusterHierarchicalParams"+" [distanceMetric=")+ distanceMetric)+", linkageCriteria=")+ linkageCriteria)+", featureHeightCutoff=")+ featureHeightCutoff)+", conditionHeightCutoff=")+ conditionHeightCutoff)+", maxItems=")+ maxItems)+", inputData=")+ inputData)+", algorithm=")+ algorithm)+", outWorkspace=")+ outWorkspace)+", outClustersetId=")+ outClustersetId)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((((((((((((((("ClusterHierarchicalParams"+" [distanceMetric=")+ distanceMetric)+", linkageCriteria=")+ linkageCriteria)+", featureHeightCutoff=")+ featureHeightCutoff)+", conditionHeightCutoff=")+ conditionHeightCutoff)+", maxItems=")+ maxItems)+", inputData=")+ inputData)+", algorithm=")+ algorithm)+", outWorkspace=")+ outWorkspace)+", outClustersetId=")+ outClustersetId)+", clusterBy=")+ clusterBy)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
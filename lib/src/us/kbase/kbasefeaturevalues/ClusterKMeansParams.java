@@ -26,7 +26,9 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
     "random_seed",
     "algorithm",
     "out_workspace",
-    "out_clusterset_id"
+    "out_clusterset_id",
+    "cluster_by",
+    "condition_k"
 })
 public class ClusterKMeansParams {
 
@@ -46,6 +48,10 @@ public class ClusterKMeansParams {
     private String outWorkspace;
     @JsonProperty("out_clusterset_id")
     private String outClustersetId;
+    @JsonProperty("cluster_by")
+    private String clusterBy;
+    @JsonProperty("condition_k")
+    private Long conditionK;
     private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
     @JsonProperty("k")
@@ -168,6 +174,36 @@ public class ClusterKMeansParams {
         return this;
     }
 
+    @JsonProperty("cluster_by")
+    public String getClusterBy() {
+        return clusterBy;
+    }
+
+    @JsonProperty("cluster_by")
+    public void setClusterBy(String clusterBy) {
+        this.clusterBy = clusterBy;
+    }
+
+    public ClusterKMeansParams withClusterBy(String clusterBy) {
+        this.clusterBy = clusterBy;
+        return this;
+    }
+
+    @JsonProperty("condition_k")
+    public Long getConditionK() {
+        return conditionK;
+    }
+
+    @JsonProperty("condition_k")
+    public void setConditionK(Long conditionK) {
+        this.conditionK = conditionK;
+    }
+
+    public ClusterKMeansParams withConditionK(Long conditionK) {
+        this.conditionK = conditionK;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<String, Object> getAdditionalProperties() {
         return this.additionalProperties;
@@ -180,7 +216,7 @@ public class ClusterKMeansParams {
 
     @Override
     public String toString() {
-        return ((((((((((((((((((("ClusterKMeansParams"+" [k=")+ k)+", inputData=")+ inputData)+", nStart=")+ nStart)+", maxIter=")+ maxIter)+", randomSeed=")+ randomSeed)+", algorithm=")+ algorithm)+", outWorkspace=")+ outWorkspace)+", outClustersetId=")+ outClustersetId)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((((((((((((((("ClusterKMeansParams"+" [k=")+ k)+", inputData=")+ inputData)+", nStart=")+ nStart)+", maxIter=")+ maxIter)+", randomSeed=")+ randomSeed)+", algorithm=")+ algorithm)+", outWorkspace=")+ outWorkspace)+", outClustersetId=")+ outClustersetId)+", clusterBy=")+ clusterBy)+", conditionK=")+ conditionK)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
@@ -23,7 +23,8 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
     "condition_height_cutoff",
     "input_data",
     "out_workspace",
-    "out_clusterset_id"
+    "out_clusterset_id",
+    "skip_cluster_qualities"
 })
 public class ClustersFromDendrogramParams {
 
@@ -37,6 +38,8 @@ public class ClustersFromDendrogramParams {
     private String outWorkspace;
     @JsonProperty("out_clusterset_id")
     private String outClustersetId;
+    @JsonProperty("skip_cluster_qualities")
+    private Long skipClusterQualities;
     private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
     @JsonProperty("feature_height_cutoff")
@@ -114,6 +117,21 @@ public class ClustersFromDendrogramParams {
         return this;
     }
 
+    @JsonProperty("skip_cluster_qualities")
+    public Long getSkipClusterQualities() {
+        return skipClusterQualities;
+    }
+
+    @JsonProperty("skip_cluster_qualities")
+    public void setSkipClusterQualities(Long skipClusterQualities) {
+        this.skipClusterQualities = skipClusterQualities;
+    }
+
+    public ClustersFromDendrogramParams withSkipClusterQualities(Long skipClusterQualities) {
+        this.skipClusterQualities = skipClusterQualities;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<String, Object> getAdditionalProperties() {
         return this.additionalProperties;
@@ -126,7 +144,7 @@ public class ClustersFromDendrogramParams {
 
     @Override
     public String toString() {
-        return ((((((((((((("ClustersFromDendrogramParams"+" [featureHeightCutoff=")+ featureHeightCutoff)+", conditionHeightCutoff=")+ conditionHeightCutoff)+", inputData=")+ inputData)+", outWorkspace=")+ outWorkspace)+", outClustersetId=")+ outClustersetId)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((((((("ClustersFromDendrogramParams"+" [featureHeightCutoff=")+ featureHeightCutoff)+", conditionHeightCutoff=")+ conditionHeightCutoff)+", inputData=")+ inputData)+", outWorkspace=")+ outWorkspace)+", outClustersetId=")+ outClustersetId)+", skipClusterQualities=")+ skipClusterQualities)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
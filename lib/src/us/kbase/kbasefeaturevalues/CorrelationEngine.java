@@ -0,0 +1,322 @@
+package us.kbase.kbasefeaturevalues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pearson correlation matrix for a set of rows or columns of {@link DenseMatrix}.
+ * Vectors without missing values are centered and scaled to unit length once, so
+ * correlation of two such vectors is just a dot product. Dot products are done in
+ * square tiles which are processed in parallel for large inputs. Pairs where any
+ * of two vectors has missing values (NaN) are calculated over positions present
+ * in both vectors (like R's cor(..., use="pairwise.complete.obs")).
+ * Undefined correlations (constant vectors, less than two common positions) are NaN.
+ */
+public class CorrelationEngine {
+	private static final int TILE_SIZE = 64;
+
+	/**
+	 * @return row-major n x n correlation matrix for given rows (n = rowIndeces.length)
+	 * with values taken from given columns.
+	 */
+	public static double[] correlateRows(DenseMatrix matrix, int[] rowIndeces, int[] colIndeces,
+			long parallelThreshold) {
+		return correlate(matrix.getValues(), matrix.getColCount(), rowIndeces, colIndeces,
+				parallelThreshold);
+	}
+
+	/**
+	 * @return row-major n x n correlation matrix for given columns (n = colIndeces.length)
+	 * with values taken from given rows.
+	 */
+	public static double[] correlateColumns(DenseMatrix matrix, int[] colIndeces, int[] rowIndeces,
+			long parallelThreshold) {
+		return correlate(matrix.getTransposedValues(), matrix.getRowCount(), colIndeces,
+				rowIndeces, parallelThreshold);
+	}
+
+	/**
+	 * Mean correlation over all pairs of given rows, NaN if any of correlations is
+	 * undefined. For rows without missing values it's found from the sum of
+	 * standardized vectors in linear time and memory (sum of z_i.z_j over pairs
+	 * i &lt; j is (|z_1 + ... + z_n|^2 - n) / 2), otherwise full correlation
+	 * matrix is calculated.
+	 */
+	public static double meanRowCorrelation(DenseMatrix matrix, int[] rowIndeces,
+			int[] colIndeces, long parallelThreshold) {
+		int n = rowIndeces.length;
+		int m = colIndeces.length;
+		if (n < 2)
+			return Double.NaN;
+		double[] sum = new double[m];
+		double[] vector = new double[m];
+		double[] raw = new double[m];
+		int[] row = new int[1];
+		boolean[] hasMissing = new boolean[1];
+		boolean[] constant = new boolean[1];
+		for (int i = 0; i < n; i++) {
+			row[0] = rowIndeces[i];
+			standardize(matrix.getValues(), matrix.getColCount(), row, colIndeces, vector, raw,
+					hasMissing, constant);
+			if (hasMissing[0]) {
+				double[] cors = correlateRows(matrix, rowIndeces, colIndeces, parallelThreshold);
+				double corSum = 0;
+				for (int j = 1; j < n; j++)
+					for (int k = 0; k < j; k++)
+						corSum += cors[j * n + k];
+				return corSum / ((long)n * (n - 1) / 2);
+			}
+			if (constant[0])
+				return Double.NaN;
+			for (int k = 0; k < m; k++)
+				sum[k] += vector[k];
+		}
+		double sumSq = 0;
+		for (int k = 0; k < m; k++)
+			sumSq += sum[k] * sum[k];
+		return (sumSq - n) / ((double)n * (n - 1));
+	}
+
+	/**
+	 * Same as {@link #correlateRows(DenseMatrix, int[], int[], long)} but only pairs
+	 * i &lt; j are kept in condensed form: correlation of pair (i, j) is at position
+	 * {@link #condensedIndex(int, int, int)}. Takes half of the memory of full matrix.
+	 */
+	public static double[] correlateRowsCondensed(DenseMatrix matrix, int[] rowIndeces,
+			int[] colIndeces, long parallelThreshold) {
+		return correlate(matrix.getValues(), matrix.getColCount(), rowIndeces, colIndeces,
+				parallelThreshold, true);
+	}
+
+	/**
+	 * @return position of pair (i, j), i &lt; j, in condensed n x n matrix
+	 */
+	public static int condensedIndex(int n, int i, int j) {
+		return (int)((long)i * n - (long)i * (i + 1) / 2 + (j - i - 1));
+	}
+
+	/**
+	 * @param source storage where vector of item i starts at indecesFor[i] * strideFor
+	 * @param indecesOn positions inside each vector which are taken into account
+	 */
+	public static double[] correlate(double[] source, int strideFor, int[] indecesFor,
+			int[] indecesOn, long parallelThreshold) {
+		return correlate(source, strideFor, indecesFor, indecesOn, parallelThreshold, false);
+	}
+
+	private static double[] correlate(double[] source, int strideFor, int[] indecesFor,
+			int[] indecesOn, long parallelThreshold, boolean condensed) {
+		final int n = indecesFor.length;
+		final int m = indecesOn.length;
+		long size = condensed ? (long)n * (n - 1) / 2 : (long)n * n;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalStateException("Too many vectors for correlation matrix: " + n);
+		final double[] vectors = new double[n * m];
+		final double[] raw = new double[n * m];
+		final boolean[] hasMissing = new boolean[n];
+		final boolean[] constant = new boolean[n];
+		standardize(source, strideFor, indecesFor, indecesOn, vectors, raw, hasMissing, constant);
+		final double[] ret = new double[(int)size];
+		final int tileCount = (n + TILE_SIZE - 1) / TILE_SIZE;
+		final List<TileTask> tasks = new ArrayList<TileTask>();
+		for (int ti = 0; ti < tileCount; ti++)
+			for (int tj = ti; tj < tileCount; tj++)
+				tasks.add(new TileTask(vectors, raw, hasMissing, constant, n, m, ti, tj, ret,
+						condensed));
+		if ((long)n * n * m / 2 > parallelThreshold && tasks.size() > 1) {
+			VectorStats.getPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		} else {
+			for (TileTask task : tasks)
+				task.compute();
+		}
+		return ret;
+	}
+
+	/**
+	 * Extracts vectors into contiguous block (raw), complete ones are also centered
+	 * and scaled to unit length (vectors). Vectors with NaN are marked in hasMissing,
+	 * complete vectors with zero variance are marked in constant.
+	 */
+	static void standardize(double[] source, int strideFor, int[] indecesFor, int[] indecesOn,
+			double[] vectors, double[] raw, boolean[] hasMissing, boolean[] constant) {
+		int n = indecesFor.length;
+		int m = indecesOn.length;
+		for (int i = 0; i < n; i++) {
+			int offset = indecesFor[i] * strideFor;
+			int target = i * m;
+			double sum = 0;
+			for (int k = 0; k < m; k++) {
+				double value = source[offset + indecesOn[k]];
+				raw[target + k] = value;
+				if (value != value) {
+					hasMissing[i] = true;
+				} else {
+					sum += value;
+				}
+			}
+			if (hasMissing[i])
+				continue;
+			double mean = sum / m;
+			double sumSq = 0;
+			for (int k = 0; k < m; k++) {
+				double centered = raw[target + k] - mean;
+				vectors[target + k] = centered;
+				sumSq += centered * centered;
+			}
+			if (sumSq > 0) {
+				double scale = 1.0 / Math.sqrt(sumSq);
+				for (int k = 0; k < m; k++)
+					vectors[target + k] *= scale;
+			} else {
+				constant[i] = true;
+			}
+		}
+	}
+
+	private static class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double[] vectors;
+		private final double[] raw;
+		private final boolean[] hasMissing;
+		private final boolean[] constant;
+		private final int n;
+		private final int m;
+		private final int tileI;
+		private final int tileJ;
+		private final double[] ret;
+		private final boolean condensed;
+
+		TileTask(double[] vectors, double[] raw, boolean[] hasMissing, boolean[] constant,
+				int n, int m, int tileI, int tileJ, double[] ret, boolean condensed) {
+			this.vectors = vectors;
+			this.raw = raw;
+			this.hasMissing = hasMissing;
+			this.constant = constant;
+			this.n = n;
+			this.m = m;
+			this.tileI = tileI;
+			this.tileJ = tileJ;
+			this.ret = ret;
+			this.condensed = condensed;
+		}
+
+		@Override
+		protected void compute() {
+			int iFrom = tileI * TILE_SIZE;
+			int iTo = Math.min(n, iFrom + TILE_SIZE);
+			int jFrom = tileJ * TILE_SIZE;
+			int jTo = Math.min(n, jFrom + TILE_SIZE);
+			for (int i = iFrom; i < iTo; i++) {
+				int offsetI = i * m;
+				int j = Math.max(jFrom, i);
+				while (j < jTo) {
+					if (j + 3 < jTo && i != j && isSimple(i) && isSimple(j) &&
+							isSimple(j + 1) && isSimple(j + 2) && isSimple(j + 3)) {
+						// Four dot products at once share loads of vector i
+						int o0 = j * m;
+						int o1 = o0 + m;
+						int o2 = o1 + m;
+						int o3 = o2 + m;
+						double d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+						for (int k = 0; k < m; k++) {
+							double x = vectors[offsetI + k];
+							d0 += x * vectors[o0 + k];
+							d1 += x * vectors[o1 + k];
+							d2 += x * vectors[o2 + k];
+							d3 += x * vectors[o3 + k];
+						}
+						set(i, j, clamp(d0));
+						set(i, j + 1, clamp(d1));
+						set(i, j + 2, clamp(d2));
+						set(i, j + 3, clamp(d3));
+						j += 4;
+						continue;
+					}
+					double value;
+					if (hasMissing[i] || hasMissing[j]) {
+						value = pairwiseComplete(raw, offsetI, raw, j * m, m);
+					} else if (constant[i] || constant[j]) {
+						value = Double.NaN;
+					} else if (i == j) {
+						value = 1.0;
+					} else {
+						int offsetJ = j * m;
+						double dot = 0;
+						for (int k = 0; k < m; k++)
+							dot += vectors[offsetI + k] * vectors[offsetJ + k];
+						value = clamp(dot);
+					}
+					set(i, j, value);
+					j++;
+				}
+			}
+		}
+
+		private boolean isSimple(int j) {
+			return !(hasMissing[j] || constant[j]);
+		}
+
+		private void set(int i, int j, double value) {
+			if (condensed) {
+				if (i != j)
+					ret[condensedIndex(n, i, j)] = value;
+				return;
+			}
+			ret[i * n + j] = value;
+			ret[j * n + i] = value;
+		}
+	}
+
+	static double clamp(double value) {
+		return Math.max(-1.0, Math.min(1.0, value));
+	}
+
+	/**
+	 * Pearson correlation of two vectors of length m over positions where both
+	 * are defined (NaN means missing value). Result is NaN if there are less than
+	 * two such positions or one of vectors is constant there.
+	 */
+	public static double pairwiseComplete(double[] rawX, int offsetX, double[] rawY,
+			int offsetY, int m) {
+		int count = 0;
+		double sumX = 0;
+		double sumY = 0;
+		for (int k = 0; k < m; k++) {
+			double x = rawX[offsetX + k];
+			double y = rawY[offsetY + k];
+			if (x != x || y != y)
+				continue;
+			count++;
+			sumX += x;
+			sumY += y;
+		}
+		if (count < 2)
+			return Double.NaN;
+		double meanX = sumX / count;
+		double meanY = sumY / count;
+		double sxx = 0;
+		double syy = 0;
+		double sxy = 0;
+		for (int k = 0; k < m; k++) {
+			double x = rawX[offsetX + k];
+			double y = rawY[offsetY + k];
+			if (x != x || y != y)
+				continue;
+			double dx = x - meanX;
+			double dy = y - meanY;
+			sxx += dx * dx;
+			syy += dy * dy;
+			sxy += dx * dy;
+		}
+		if (sxx <= 0 || syy <= 0)
+			return Double.NaN;
+		return clamp(sxy / Math.sqrt(sxx * syy));
+	}
+}
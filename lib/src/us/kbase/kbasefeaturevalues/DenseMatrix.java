@@ -0,0 +1,297 @@
+package us.kbase.kbasefeaturevalues;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Primitive-backed counterpart of {@link FloatMatrix2D}. Values are stored in one
+ * contiguous row-major double array, missing (null) cells are tracked in a bitmap
+ * and are read back as NaN which is how statistics code treats them anyway.
+ * Use {@link #fromFloatMatrix2D(FloatMatrix2D)} and {@link #toFloatMatrix2D()} to
+ * go to and from generated JSON type.
+ */
+public class DenseMatrix {
+    private final List<String> rowIds;
+    private final List<String> colIds;
+    private final int rowCount;
+    private final int colCount;
+    private final double[] values;
+    private final BitSet missing;
+    private volatile double[] transposed = null;
+    private Map<String, Object> additionalProperties = new HashMap<String, Object>();
+
+    /**
+     * Creates matrix with all cells marked as missing.
+     */
+    public DenseMatrix(List<String> rowIds, List<String> colIds) {
+        this(rowIds, colIds, rowIds.size(), colIds.size());
+    }
+
+    /**
+     * Wraps existing row-major storage without copying. Cells set in missing bitmap
+     * are expected to hold NaN.
+     */
+    public DenseMatrix(List<String> rowIds, List<String> colIds, double[] values, BitSet missing) {
+        if (values.length != (long)rowIds.size() * colIds.size())
+            throw new IllegalStateException("Matrix size " + rowIds.size() + " x " +
+                    colIds.size() + " doesn't match number of values: " + values.length);
+        this.rowIds = rowIds;
+        this.colIds = colIds;
+        this.rowCount = rowIds.size();
+        this.colCount = colIds.size();
+        this.values = values;
+        this.missing = missing;
+    }
+
+    private DenseMatrix(List<String> rowIds, List<String> colIds, int rowCount, int colCount) {
+        long size = (long)rowCount * colCount;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("Matrix is too large: " + rowCount + " x " + colCount);
+        this.rowIds = rowIds;
+        this.colIds = colIds;
+        this.rowCount = rowCount;
+        this.colCount = colCount;
+        this.values = new double[(int)size];
+        this.missing = new BitSet((int)size);
+        Arrays.fill(values, Double.NaN);
+        missing.set(0, (int)size);
+    }
+
+    /**
+     * Converts generated matrix type into primitive storage. If matrix was produced
+     * by {@link #toFloatMatrix2D()} then backing instance is returned without copying.
+     */
+    public static DenseMatrix fromFloatMatrix2D(FloatMatrix2D matrix) {
+        List<List<Double>> rows = matrix.getValues();
+        if (rows instanceof RowsView) {
+            DenseMatrix owner = ((RowsView)rows).owner();
+            if (owner.rowIds == matrix.getRowIds() && owner.colIds == matrix.getColIds())
+                return owner;
+        }
+        int rowCount = rows == null ? 0 : rows.size();
+        int colCount = matrix.getColIds() != null ? matrix.getColIds().size() :
+            (rowCount > 0 ? rows.get(0).size() : 0);
+        DenseMatrix ret = new DenseMatrix(matrix.getRowIds(), matrix.getColIds(), rowCount, colCount);
+        for (int r = 0; r < rowCount; r++) {
+            List<Double> row = rows.get(r);
+            int len = Math.min(row.size(), colCount);
+            int offset = r * colCount;
+            for (int c = 0; c < len; c++) {
+                Double value = row.get(c);
+                if (value != null) {
+                    ret.values[offset + c] = value;
+                    ret.missing.clear(offset + c);
+                }
+            }
+        }
+        ret.additionalProperties.putAll(matrix.getAdditionalProperties());
+        return ret;
+    }
+
+    /**
+     * Returns generated matrix type backed by this instance. Values list is a live
+     * view: cells are boxed on access only and writes go to primitive storage.
+     */
+    public FloatMatrix2D toFloatMatrix2D() {
+        FloatMatrix2D ret = new FloatMatrix2D().withRowIds(rowIds).withColIds(colIds)
+                .withValues(new RowsView());
+        for (Map.Entry<String, Object> entry : additionalProperties.entrySet())
+            ret.setAdditionalProperties(entry.getKey(), entry.getValue());
+        return ret;
+    }
+
+    public List<String> getRowIds() {
+        return rowIds;
+    }
+
+    public List<String> getColIds() {
+        return colIds;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColCount() {
+        return colCount;
+    }
+
+    /**
+     * Raw row-major storage, cell (row, col) is at position row * colCount + col.
+     * Missing cells hold NaN. Direct changes in this array are not reflected in
+     * {@link #getTransposedValues()} copy built before.
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * Column-major copy of values, cell (row, col) is at position col * rowCount + row.
+     * Copy is built on first call and kept until values are changed, so column
+     * statistics run over contiguous memory.
+     */
+    public double[] getTransposedValues() {
+        double[] ret = transposed;
+        if (ret == null) {
+            synchronized (this) {
+                ret = transposed;
+                if (ret == null) {
+                    ret = new double[values.length];
+                    // Blocks keep both source rows and target columns in cache
+                    final int block = 64;
+                    for (int r0 = 0; r0 < rowCount; r0 += block) {
+                        int r1 = Math.min(rowCount, r0 + block);
+                        for (int c0 = 0; c0 < colCount; c0 += block) {
+                            int c1 = Math.min(colCount, c0 + block);
+                            for (int r = r0; r < r1; r++) {
+                                int offset = r * colCount;
+                                for (int c = c0; c < c1; c++)
+                                    ret[c * rowCount + r] = values[offset + c];
+                            }
+                        }
+                    }
+                    transposed = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Matrix with rows and columns swapped. It wraps {@link #getTransposedValues()}
+     * without copying (and this matrix storage serves as its transposed copy), so
+     * it's meant for reading: changes made through it are not seen by this matrix.
+     */
+    public DenseMatrix transpose() {
+        double[] colMajor = getTransposedValues();
+        BitSet transposedMissing = new BitSet(values.length);
+        for (int pos = missing.nextSetBit(0); pos >= 0; pos = missing.nextSetBit(pos + 1))
+            transposedMissing.set((pos % colCount) * rowCount + pos / colCount);
+        DenseMatrix ret = new DenseMatrix(colIds, rowIds, colMajor, transposedMissing);
+        ret.transposed = values;
+        return ret;
+    }
+
+    public Map<String, Object> getAdditionalProperties() {
+        return additionalProperties;
+    }
+
+    /**
+     * @return cell value or NaN if cell is missing.
+     */
+    public double get(int row, int col) {
+        return values[row * colCount + col];
+    }
+
+    /**
+     * @return cell value or null if cell is missing.
+     */
+    public Double getValue(int row, int col) {
+        int pos = row * colCount + col;
+        return missing.get(pos) ? null : values[pos];
+    }
+
+    public boolean isMissing(int row, int col) {
+        return missing.get(row * colCount + col);
+    }
+
+    public boolean hasMissingValues() {
+        return !missing.isEmpty();
+    }
+
+    public void set(int row, int col, double value) {
+        int pos = row * colCount + col;
+        values[pos] = value;
+        missing.clear(pos);
+        transposed = null;
+    }
+
+    /**
+     * Sets cell value, null marks cell as missing.
+     */
+    public void setValue(int row, int col, Double value) {
+        if (value == null) {
+            setMissing(row, col);
+        } else {
+            set(row, col, value);
+        }
+    }
+
+    public void setMissing(int row, int col) {
+        int pos = row * colCount + col;
+        values[pos] = Double.NaN;
+        missing.set(pos);
+        transposed = null;
+    }
+
+    /**
+     * Copies values of given row into target array (missing cells become NaN).
+     */
+    public void getRow(int row, double[] target) {
+        System.arraycopy(values, row * colCount, target, 0, colCount);
+    }
+
+    /**
+     * Builds boxed list of lists for given subset of rows and columns.
+     */
+    public List<List<Double>> getSubmatrixValues(int[] rowIndeces, int[] colIndeces) {
+        List<List<Double>> ret = new ArrayList<List<Double>>(rowIndeces.length);
+        for (int rowIndex : rowIndeces) {
+            List<Double> row = new ArrayList<Double>(colIndeces.length);
+            for (int colIndex : colIndeces)
+                row.add(getValue(rowIndex, colIndex));
+            ret.add(row);
+        }
+        return ret;
+    }
+
+    private class RowsView extends AbstractList<List<Double>> {
+        DenseMatrix owner() {
+            return DenseMatrix.this;
+        }
+
+        @Override
+        public List<Double> get(int row) {
+            if (row < 0 || row >= rowCount)
+                throw new IndexOutOfBoundsException("Row index: " + row);
+            return new RowView(row);
+        }
+
+        @Override
+        public int size() {
+            return rowCount;
+        }
+    }
+
+    private class RowView extends AbstractList<Double> {
+        private final int row;
+
+        RowView(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public Double get(int col) {
+            if (col < 0 || col >= colCount)
+                throw new IndexOutOfBoundsException("Column index: " + col);
+            return getValue(row, col);
+        }
+
+        @Override
+        public Double set(int col, Double value) {
+            Double prev = get(col);
+            setValue(row, col, value);
+            return prev;
+        }
+
+        @Override
+        public int size() {
+            return colCount;
+        }
+    }
+}
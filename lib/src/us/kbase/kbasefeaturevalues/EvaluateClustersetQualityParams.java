@@ -21,7 +21,8 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 @JsonPropertyOrder({
     "input_clusterset",
     "out_workspace",
-    "out_report_id"
+    "out_report_id",
+    "silhouette_sample_size"
 })
 public class EvaluateClustersetQualityParams {
 
@@ -31,6 +32,8 @@ public class EvaluateClustersetQualityParams {
     private String outWorkspace;
     @JsonProperty("out_report_id")
     private String outReportId;
+    @JsonProperty("silhouette_sample_size")
+    private Long silhouetteSampleSize;
     private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
     @JsonProperty("input_clusterset")
@@ -78,6 +81,21 @@ public class EvaluateClustersetQualityParams {
         return this;
     }
 
+    @JsonProperty("silhouette_sample_size")
+    public Long getSilhouetteSampleSize() {
+        return silhouetteSampleSize;
+    }
+
+    @JsonProperty("silhouette_sample_size")
+    public void setSilhouetteSampleSize(Long silhouetteSampleSize) {
+        this.silhouetteSampleSize = silhouetteSampleSize;
+    }
+
+    public EvaluateClustersetQualityParams withSilhouetteSampleSize(Long silhouetteSampleSize) {
+        this.silhouetteSampleSize = silhouetteSampleSize;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<String, Object> getAdditionalProperties() {
         return this.additionalProperties;
@@ -90,7 +108,7 @@ public class EvaluateClustersetQualityParams {
 
     @Override
     public String toString() {
-        return ((((((((("EvaluateClustersetQualityParams"+" [inputClusterset=")+ inputClusterset)+", outWorkspace=")+ outWorkspace)+", outReportId=")+ outReportId)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((("EvaluateClustersetQualityParams"+" [inputClusterset=")+ inputClusterset)+", outWorkspace=")+ outWorkspace)+", outReportId=")+ outReportId)+", silhouetteSampleSize=")+ silhouetteSampleSize)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
@@ -1,139 +1,197 @@
 package us.kbase.kbasefeaturevalues;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.math.linear.RealMatrix;
-import org.apache.commons.math.stat.correlation.PearsonsCorrelation;
 
 
 public class FloatMatrix2DUtil {
+	private static volatile long parallelThreshold = VectorStats.DEFAULT_PARALLEL_THRESHOLD;
+	
+	/**
+	 * Sets number of matrix cells starting from which row/column stats are 
+	 * calculated in parallel (Long.MAX_VALUE switches parallel mode off).
+	 */
+	public static void setParallelThreshold(long threshold) {
+		parallelThreshold = threshold;
+	}
+	
+	public static long getParallelThreshold() {
+		return parallelThreshold;
+	}
 	
 	public static PairwiseComparison geRowstPairwiseComparison(FloatMatrix2D matrix, int[] rowIndeces, int[] columnIndeces){
-		double[][] submatrix = new double[columnIndeces.length][rowIndeces.length];
-		for(int i = 0 ; i < rowIndeces.length; i++){
-			for(int j = 0; j < columnIndeces.length; j++){
-				submatrix[j][i] = matrix.getValues().get(rowIndeces[i]).get(columnIndeces[j]);
+		return geRowstPairwiseComparison(DenseMatrix.fromFloatMatrix2D(matrix), rowIndeces, columnIndeces);
+	}
+
+	public static PairwiseComparison geRowstPairwiseComparison(DenseMatrix matrix, int[] rowIndeces, int[] columnIndeces){
+		double[] corMatrix = CorrelationEngine.correlateRows(matrix, rowIndeces, columnIndeces, parallelThreshold);
+		return toPairwiseComparison(corMatrix, rowIndeces);
+	}
+	
+	/**
+	 * Correlation between columns calculated over values in given rows.
+	 */
+	public static PairwiseComparison getColumnsPairwiseComparison(DenseMatrix matrix, int[] columnIndeces, int[] rowIndeces){
+		double[] corMatrix = CorrelationEngine.correlateColumns(matrix, columnIndeces, rowIndeces, parallelThreshold);
+		return toPairwiseComparison(corMatrix, columnIndeces);
+	}
+	
+	/**
+	 * Wraps n x n correlation matrix, undefined (NaN) values become nulls. Stats for 
+	 * each element are calculated over its correlations with other elements. 
+	 */
+	private static PairwiseComparison toPairwiseComparison(double[] corMatrix, int[] indeces){
+		int n = indeces.length;
+		List<List<Double>> comparisonValues = new ArrayList<List<Double>>(n);
+		List<Long> indecesList = new ArrayList<Long>(n);
+		for(int i = 0 ; i < n; i++){
+			List<Double> rowComparisonValues = new ArrayList<Double>(n);
+			for(int j = 0; j < n; j++){
+				double value = corMatrix[i * n + j];
+				rowComparisonValues.add(Double.isNaN(value) ? null : value);
 			}
+			comparisonValues.add(rowComparisonValues);
+			indecesList.add((long)indeces[i]);
 		}
-		PearsonsCorrelation pc = new PearsonsCorrelation();
-		RealMatrix corMatrix = pc.computeCorrelationMatrix(submatrix);
 		
-//		Double[] avgs = new Double[rowIndeces.length];
-//		Double[] mins = new Double[rowIndeces.length];
-//		Double[] maxs = new Double[rowIndeces.length];
-//		Double[] stds = new Double[rowIndeces.length];
-//		
-//		for(int i = 0 ; i < rowIndeces.length; i++){
-//			double[] row = corMatrix.getRow(i);
-//			avgs[i] = StatUtils.mean(row);
-//			mins[i] = StatUtils.min(row);
-//			maxs[i] = StatUtils.max(row);
-//			stds[i] = StatUtils.variance(row);
-//		}
+		// Diagonal is excluded from stats
+		for(int i = 0; i < n; i++){
+			corMatrix[i * n + i] = Double.NaN;
+		}
+		int[] positions = VectorStats.toIndeces(null, n);
+		double[] reciprocals = VectorStats.reciprocals(n);
+		VectorStats vs = new VectorStats(n);
+		List<Double> avgs = new ArrayList<Double>(n);
+		List<Double> mins = new ArrayList<Double>(n);
+		List<Double> maxs = new ArrayList<Double>(n);
+		List<Double> stds = new ArrayList<Double>(n);
+		for(int i = 0; i < n; i++){
+			vs.accumulate(i, corMatrix, i * n, positions, reciprocals);
+			boolean defined = vs.getCount(i) > 0;
+			avgs.add(defined ? vs.getMean(i) : null);
+			mins.add(defined ? vs.getMin(i) : null);
+			maxs.add(defined ? vs.getMax(i) : null);
+			stds.add(vs.getCount(i) > 1 ? vs.getStd(i) : null);
+		}
 		
-		List<List<Double>> comparisonValues = new ArrayList<List<Double>>(rowIndeces.length);
-		for(int i = 0 ; i < rowIndeces.length; i++){
-			List<Double> rowComparisonValues = new ArrayList<Double>(rowIndeces.length);
-			for(int j = 0; j < rowIndeces.length; j++){
-				rowComparisonValues.add(corMatrix.getEntry(i, j));				
+		return new PairwiseComparison()
+			.withIndeces(indecesList)
+			.withComparisonValues(comparisonValues)
+			.withAvgs(avgs)
+			.withMins(mins)
+			.withMaxs(maxs)
+			.withStds(stds);
+	}
+	
+	/**
+	 * Top k rows most correlated with each of query rows (query row itself is excluded),
+	 * correlation is calculated over given columns.
+	 */
+	public static List<TopCorrelatedRows> getTopCorrelatedRows(DenseMatrix matrix, int[] queryRowIndeces,
+			int[] columnIndeces, int k, TopCorrelatedSearch.Mode mode){
+		TopCorrelatedSearch.Neighbors[] found = TopCorrelatedSearch.search(matrix, queryRowIndeces,
+				columnIndeces, k, mode, parallelThreshold);
+		return toTopCorrelatedRows(found, queryRowIndeces, matrix.getRowIds());
+	}
+	
+	/**
+	 * Same as {@link #getTopCorrelatedRows(DenseMatrix, int[], int[], int, TopCorrelatedSearch.Mode)}
+	 * over all columns but neighbors are taken from precomputed index.
+	 */
+	public static List<TopCorrelatedRows> getTopCorrelatedRows(NeighborIndex index, int[] queryRowIndeces,
+			int k, TopCorrelatedSearch.Mode mode){
+		TopCorrelatedSearch.Neighbors[] found = new TopCorrelatedSearch.Neighbors[queryRowIndeces.length];
+		for(int q = 0; q < found.length; q++)
+			found[q] = index.getNeighbors(queryRowIndeces[q], mode, k);
+		return toTopCorrelatedRows(found, queryRowIndeces, index.getRowIds());
+	}
+	
+	private static List<TopCorrelatedRows> toTopCorrelatedRows(TopCorrelatedSearch.Neighbors[] found,
+			int[] queryRowIndeces, List<String> rowIds){
+		List<TopCorrelatedRows> ret = new ArrayList<TopCorrelatedRows>(found.length);
+		for(int q = 0; q < found.length; q++){
+			List<CorrelatedRow> rows = new ArrayList<CorrelatedRow>(found[q].size());
+			for(int i = 0; i < found[q].size(); i++){
+				int row = found[q].getRow(i);
+				rows.add(new CorrelatedRow()
+					.withRowId(rowIds.get(row))
+					.withRowIndex((long)row)
+					.withCorrelation(found[q].getCorrelation(i)));
 			}
-			comparisonValues.add(rowComparisonValues);
+			ret.add(new TopCorrelatedRows()
+				.withQueryRowId(rowIds.get(queryRowIndeces[q]))
+				.withQueryRowIndex((long)queryRowIndeces[q])
+				.withRows(rows));
 		}
-		
-		PairwiseComparison pwComparison = new PairwiseComparison()
-			.withComparisonValues(comparisonValues);
-//			.withAvgs(Arrays.asList(avgs))
-//			.withAvgs(Arrays.asList(avgs))
-				
-		return pwComparison;		
+		return ret;
 	}
 	
 	public static List<ItemStat> getRowsStat(FloatMatrix2D matrix, List<Long> indecesFor, List<Long> indecesOn, boolean populateIndecesOn ){
-		RowIterator itFor = new RowIterator(matrix, indecesFor); 
-		ColumnIterator itOn = new ColumnIterator(matrix, indecesOn); 		
-		return getItemsStat(itFor, itOn, populateIndecesOn);
+		return getRowsStat(DenseMatrix.fromFloatMatrix2D(matrix), indecesFor, indecesOn, populateIndecesOn);
+	}
+
+	public static List<ItemStat> getRowsStat(DenseMatrix matrix, List<Long> indecesFor, List<Long> indecesOn, boolean populateIndecesOn ){
+		int[] itFor = VectorStats.toIndeces(indecesFor, matrix.getRowCount());
+		int[] itOn = VectorStats.toIndeces(indecesOn, matrix.getColCount());
+		return getItemsStat(VectorStats.compute(matrix, true, itFor, itOn, parallelThreshold), itFor, indecesOn, populateIndecesOn);
 	}
 
 	public static List<ItemStat> getColumnsStat(FloatMatrix2D matrix, List<Long> indecesFor, List<Long> indecesOn, boolean populateIndecesOn ){
-		ColumnIterator itFor = new ColumnIterator(matrix, indecesFor); 
-		RowIterator itOn = new RowIterator(matrix, indecesOn); 		
-		return getItemsStat(itFor, itOn, populateIndecesOn);
+		return getColumnsStat(DenseMatrix.fromFloatMatrix2D(matrix), indecesFor, indecesOn, populateIndecesOn);
+	}
+
+	public static List<ItemStat> getColumnsStat(DenseMatrix matrix, List<Long> indecesFor, List<Long> indecesOn, boolean populateIndecesOn ){
+		int[] itFor = VectorStats.toIndeces(indecesFor, matrix.getColCount());
+		int[] itOn = VectorStats.toIndeces(indecesOn, matrix.getRowCount());
+		return getItemsStat(VectorStats.compute(matrix, false, itFor, itOn, parallelThreshold), itFor, indecesOn, populateIndecesOn);
 	}	
 	
 	public static ItemSetStat getRowsSetStat(FloatMatrix2D matrix,
 			GetMatrixSetStatParams params) {
-		RowIterator itFor = new RowIterator(matrix, params.getItemIndecesFor()); 
-		ColumnIterator itOn = new ColumnIterator(matrix, params.getItemIndecesOn()); 		
-		return getItemsSetStat(itFor, itOn, params);
+		return getRowsSetStat(DenseMatrix.fromFloatMatrix2D(matrix), params);
+	}
+
+	public static ItemSetStat getRowsSetStat(DenseMatrix matrix,
+			GetMatrixSetStatParams params) {
+		int[] itFor = VectorStats.toIndeces(params.getItemIndecesFor(), matrix.getRowCount());
+		int[] itOn = VectorStats.toIndeces(params.getItemIndecesOn(), matrix.getColCount());
+		return getItemsSetStat(VectorStats.compute(matrix, true, itFor, itOn, parallelThreshold), params);
 	}
 
 	public static ItemSetStat getColumnsSetStat(FloatMatrix2D matrix,
 			GetMatrixSetStatParams params) {
-		ColumnIterator itFor = new ColumnIterator(matrix, params.getItemIndecesFor()); 
-		RowIterator itOn = new RowIterator(matrix, params.getItemIndecesOn()); 		
-		return getItemsSetStat(itFor, itOn, params);
+		return getColumnsSetStat(DenseMatrix.fromFloatMatrix2D(matrix), params);
+	}
+
+	public static ItemSetStat getColumnsSetStat(DenseMatrix matrix,
+			GetMatrixSetStatParams params) {
+		int[] itFor = VectorStats.toIndeces(params.getItemIndecesFor(), matrix.getColCount());
+		int[] itOn = VectorStats.toIndeces(params.getItemIndecesOn(), matrix.getRowCount());
+		return getItemsSetStat(VectorStats.compute(matrix, false, itFor, itOn, parallelThreshold), params);
 	}
 	
 	
-	private static List<ItemStat> getItemsStat(ItemIterator itFor, ItemIterator itOn, boolean populateIndecesOn ){
-		List<ItemStat> stats = new ArrayList<ItemStat>();
-		
-		for(itFor.init(); itFor.next();){
-			int indexFor = itFor.index();
-			
-			double avg = 0;
-			double min = Double.NaN;
-			double max = Double.NaN;
-			double std = 0;
-			int goodCount = 0;
-			int badCount = 0;
-			
-			for(itOn.init(); itOn.next();){
-				
-				double value = itOn.value(indexFor);
-				if( !Double.isNaN(value) ){
-					goodCount++;
-					avg += value;
-					min = Double.isNaN(min) || value < min ? value : min; 
-					max = Double.isNaN(max) || value > max ? value : max;
-				} else{
-					badCount++;
-				}
-			}
-			
-			// Normalize avg and calculate std
-			if(goodCount > 1){
-				avg /= goodCount;			
-				for(itOn.init(); itOn.next();){					
-					double value = itOn.value(indexFor);
-					if( !Double.isNaN(value) ){
-						std += (avg - value)*(avg - value);
-					}
-				}
-				std = Math.sqrt(std/(goodCount - 1));
-			}
-			
+	private static List<ItemStat> getItemsStat(VectorStats vs, int[] indecesFor, List<Long> indecesOn, boolean populateIndecesOn ){
+		List<ItemStat> stats = new ArrayList<ItemStat>(vs.size());
+		for(int i = 0; i < vs.size(); i++){
+			long goodCount = vs.getCount(i);
+			long badCount = vs.getMissingCount(i);
 			ItemStat stat = new ItemStat()
-				.withIndexFor((long)indexFor)
-				.withAvg(goodCount > 0 ? avg : null)
-				.withMin(goodCount > 0 ? min : null)
-				.withMax(goodCount > 0 ? max : null)
-				.withStd(goodCount > 1 ? std : null)
-				.withSize( (long) (goodCount + badCount))
-				.withMissingValues((long) badCount)
-				.withIndecesOn( populateIndecesOn ? itOn.indeces() : null )
+				.withIndexFor((long)indecesFor[i])
+				.withAvg(goodCount > 0 ? vs.getMean(i) : null)
+				.withMin(goodCount > 0 ? vs.getMin(i) : null)
+				.withMax(goodCount > 0 ? vs.getMax(i) : null)
+				.withStd(goodCount > 1 ? vs.getStd(i) : null)
+				.withSize(goodCount + badCount)
+				.withMissingValues(badCount)
+				.withIndecesOn( populateIndecesOn ? indecesOn : null )
 				;
 			stats.add(stat);			
 		}
 		return stats;		
 	} 
 	
-	
-	
-	
-	private static ItemSetStat getItemsSetStat(ItemIterator itFor, ItemIterator itOn,
+	private static ItemSetStat getItemsSetStat(VectorStats vs,
 			GetMatrixSetStatParams params) {
 		
 		boolean flIndecesFor = toBoolean( params.getFlIndecesFor() );
@@ -143,133 +201,32 @@ public class FloatMatrix2DUtil {
 		boolean flMins = toBoolean( params.getFlMins() );
 		boolean flStds = toBoolean( params.getFlStds() ); 
 		boolean flMissingValues = toBoolean( params.getFlMissingValues() );
-				
-		// For simplicity we will calculate all, but later will include in the output only requested stat
-		double[] avgs = new double[itFor.size()];
-		double[] maxs = new double[itFor.size()];
-		double[] mins = new double[itFor.size()];
-		double[] stds = new double[itFor.size()];
-		long[] goodCounts = new long[itFor.size()];
-		long[] badCounts = new long[itFor.size()];
 		
-		itFor.init();
-		for(int i = 0; itFor.next(); i++){
-			int indexFor = itFor.index();
-			
-			goodCounts[i] = 0;
-			badCounts[i] = 0;
-			avgs[i] = 0;
-			maxs[i] = Double.NaN;
-			mins[i] = Double.NaN;
-			stds[i] = 0;
-						
-			for(itOn.init(); itOn.next();){
-				
-				double value = itOn.value(indexFor);
-				if( !Double.isNaN(value) ){
-					goodCounts[i]++;
-					avgs[i] += value;
-					mins[i] = Double.isNaN(mins[i]) || value < mins[i] ? value : mins[i]; 
-					maxs[i] = Double.isNaN(maxs[i]) || value > maxs[i] ? value : maxs[i];
-				} else{
-					badCounts[i]++;
-				}
-			}
-			
-			// Normalize avg and calculate std
-			if(goodCounts[i] > 1){
-				avgs[i] /= goodCounts[i];			
-				for(itOn.init(); itOn.next();){					
-					double value = itOn.value(indexFor);
-					if( !Double.isNaN(value) ){
-						stds[i] += (avgs[i] - value)*(avgs[i] - value);
-					}
-				}
-				stds[i] = Math.sqrt(stds[i]/(goodCounts[i] - 1));
-			}
+		int size = vs.size();
+		List<Double> avgs = new ArrayList<Double>(size);
+		List<Double> maxs = new ArrayList<Double>(size);
+		List<Double> mins = new ArrayList<Double>(size);
+		List<Double> stds = new ArrayList<Double>(size);
+		List<Long> badCounts = new ArrayList<Long>(size);
+		for(int i = 0; i < size; i++){
+			avgs.add(vs.getMean(i));
+			maxs.add(vs.getMax(i));
+			mins.add(vs.getMin(i));
+			stds.add(vs.getStd(i));
+			badCounts.add(vs.getMissingCount(i));
 		}
 		
 		return new ItemSetStat()
-			.withAvgs( flAvgs ? Arrays.asList(ArrayUtils.toObject(avgs)) : null)
-			.withIndecesFor(flIndecesFor ? itFor.indeces() : null)
-			.withIndecesOn(flIndecesOn ? itOn.indeces() : null)
-			.withMaxs(flMaxs ? Arrays.asList(ArrayUtils.toObject(maxs)) : null)
-			.withMins(flMins ? Arrays.asList(ArrayUtils.toObject(mins)) : null)
-			.withMissingValues(flMissingValues ? Arrays.asList(ArrayUtils.toObject(badCounts)) : null)
-			.withSize((long) itFor.size())
-			.withStds(flStds ? Arrays.asList(ArrayUtils.toObject(stds)) : null);
+			.withAvgs( flAvgs ? avgs : null)
+			.withIndecesFor(flIndecesFor ? params.getItemIndecesFor() : null)
+			.withIndecesOn(flIndecesOn ? params.getItemIndecesOn() : null)
+			.withMaxs(flMaxs ? maxs : null)
+			.withMins(flMins ? mins : null)
+			.withMissingValues(flMissingValues ? badCounts : null)
+			.withSize((long) size)
+			.withStds(flStds ? stds : null);
 	} 
 	
-	
-	static abstract class ItemIterator{
-		int i;
-		int size;
-		List<Long> indeces;
-		FloatMatrix2D matrix;
-		public ItemIterator(FloatMatrix2D matrix, List<Long> indeces){
-			this.matrix = matrix;
-			this.indeces = indeces;
-			size = size();
-			init();
-		}
-		public List<Long> indeces() {
-			return indeces;
-		}
-		public abstract int size();
-		public abstract double value(int indexOn);
-		
-		public void init(){
-			i = -1;
-		}
-		
-		public boolean next(){
-			i++;
-			return i < size;
-		}
-		
-		public int index(){
-			return indeces != null ? indeces.get(i).intValue() : i; 
-		}
-	}
-	
-	static class RowIterator extends ItemIterator{
-
-		public RowIterator(FloatMatrix2D matrix, List<Long> indeces) {
-			super(matrix, indeces);
-		}
-
-		@Override
-		public int size() {
-			return indeces != null ? indeces.size() : matrix.getRowIds().size();			
-		}
-
-		@Override
-		public double value(int indexOn) {
-			int indexFor = indeces != null ? indeces.get(i).intValue() : i;
-			Double value =  matrix.getValues().get(indexFor).get(indexOn);
-			return value == null ? Double.NaN : value.doubleValue();
-		}		
-	}
-	
-	static class ColumnIterator extends ItemIterator{
-
-		public ColumnIterator(FloatMatrix2D matrix, List<Long> indeces) {
-			super(matrix, indeces);
-		}
-
-		@Override
-		public int size() {
-			return indeces != null ? indeces.size() : matrix.getColIds().size();			
-		}
-
-		@Override
-		public double value(int indexOn) {
-			int indexFor = indeces != null ? indeces.get(i).intValue() : i;
-			Double value =  matrix.getValues().get(indexOn).get(indexFor);
-			return value == null ? Double.NaN : value.doubleValue();
-		}		
-	}	
-	
 	private static  boolean toBoolean(Long value){
 		return value != null && value == 1;
 	}
@@ -290,4 +247,8 @@ public class FloatMatrix2DUtil {
 		return values;
 	}
 
+	public static List<List<Double>> getSubmatrixValues(DenseMatrix matrix, int[] rowIndeces, int[] colIndeces) {
+		return matrix.getSubmatrixValues(rowIndeces, colIndeces);
+	}
+
 }
@@ -212,6 +212,10 @@ public class KBaseFeatureValuesClient {
      * <p>Original spec-file function name: cluster_k_means</p>
      * <pre>
      * Clusters features by K-means clustering.
+     * cluster_by - what is clustered: "features" (matrix rows, default),
+     *     "conditions" (matrix columns) or "both", conditions are clustered
+     *     concurrently with features in the last case;
+     * condition_k - number of condition clusters (default is k).
      * </pre>
      * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.ClusterKMeansParams ClusterKMeansParams}
      * @return   parameter "workspace_ref" of String
@@ -230,6 +234,11 @@ public class KBaseFeatureValuesClient {
      * <p>Original spec-file function name: cluster_hierarchical</p>
      * <pre>
      * Clusters features by hierarchical clustering.
+     * cluster_by - what is clustered: "features" (matrix rows, default),
+     *     "conditions" (matrix columns) or "both", conditions are clustered
+     *     concurrently with features in the last case;
+     * condition_height_cutoff - height cutoff for condition dendrogram
+     *     (default is feature_height_cutoff).
      * </pre>
      * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.ClusterHierarchicalParams ClusterHierarchicalParams}
      * @return   parameter "workspace_ref" of String
@@ -250,6 +259,8 @@ public class KBaseFeatureValuesClient {
      * Given a FeatureClusters with a dendogram built from a hierarchical clustering
      * method, this function creates new clusters by cutting the dendogram at
      * a specific hieght or by some other approach.
+     * Matrix values are loaded only for calculation of cluster qualities
+     * (meancor, msec), skip_cluster_qualities=1 turns it off.
      * </pre>
      * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.ClustersFromDendrogramParams ClustersFromDendrogramParams}
      * @return   parameter "workspace_ref" of String
@@ -267,9 +278,15 @@ public class KBaseFeatureValuesClient {
     /**
      * <p>Original spec-file function name: evaluate_clusterset_quality</p>
      * <pre>
-     * Given a FeatureClusters with a dendogram built from a hierarchical clustering
-     * method, this function creates new clusters by cutting the dendogram at
-     * a specific hieght or by some other approach.
+     * Evaluates quality of FeatureClusters object on its original_data matrix:
+     * silhouette, mean pairwise correlation (meancor) and MSEC of each cluster and
+     * overall ones plus Davies-Bouldin index. Copy of cluster set with updated
+     * meancor/msec and these values in report is saved as out_report_id object
+     * (input name and workspace are used if out_report_id/out_workspace are not set).
+     * Distance is correlation one for cluster sets with dendrogram and Euclidean
+     * otherwise. Silhouette is exact for up to silhouette_sample_size rows (5000 by
+     * default, 0 means always exact), larger matrices are evaluated on that many
+     * randomly sampled rows.
      * </pre>
      * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.EvaluateClustersetQualityParams EvaluateClustersetQualityParams}
      * @throws IOException if an IO exception occurs
@@ -501,6 +518,46 @@ public class KBaseFeatureValuesClient {
         return res.get(0);
     }
 
+    /**
+     * <p>Original spec-file function name: get_top_correlated_rows</p>
+     * <pre>
+     * Finds rows which are most correlated with each of query rows without
+     * building full pairwise correlation matrix.
+     * </pre>
+     * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.GetTopCorrelatedRowsParams GetTopCorrelatedRowsParams}
+     * @return   instance of list of type {@link us.kbase.kbasefeaturevalues.TopCorrelatedRows TopCorrelatedRows}
+     * @throws IOException if an IO exception occurs
+     * @throws JsonClientException if a JSON RPC exception occurs
+     */
+    public List<TopCorrelatedRows> getTopCorrelatedRows(GetTopCorrelatedRowsParams params, RpcContext... jsonRpcContext) throws IOException, JsonClientException {
+        List<Object> args = new ArrayList<Object>();
+        args.add(params);
+        TypeReference<List<List<TopCorrelatedRows>>> retType = new TypeReference<List<List<TopCorrelatedRows>>>() {};
+        List<List<TopCorrelatedRows>> res = caller.jsonrpcCall("KBaseFeatureValues.get_top_correlated_rows", args, retType, true, true, jsonRpcContext, this.serviceVersion);
+        return res.get(0);
+    }
+
+    /**
+     * <p>Original spec-file function name: build_neighbor_index</p>
+     * <pre>
+     * Precomputes top correlated rows for every row of given matrix version and
+     * stores them in scratch area. get_top_correlated_rows reads this index
+     * instead of matrix when correlation is calculated over all columns and
+     * k is not larger than the one used for the index.
+     * </pre>
+     * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.BuildNeighborIndexParams BuildNeighborIndexParams}
+     * @return   instance of type {@link us.kbase.kbasefeaturevalues.NeighborIndexInfo NeighborIndexInfo}
+     * @throws IOException if an IO exception occurs
+     * @throws JsonClientException if a JSON RPC exception occurs
+     */
+    public NeighborIndexInfo buildNeighborIndex(BuildNeighborIndexParams params, RpcContext... jsonRpcContext) throws IOException, JsonClientException {
+        List<Object> args = new ArrayList<Object>();
+        args.add(params);
+        TypeReference<List<NeighborIndexInfo>> retType = new TypeReference<List<NeighborIndexInfo>>() {};
+        List<NeighborIndexInfo> res = caller.jsonrpcCall("KBaseFeatureValues.build_neighbor_index", args, retType, true, true, jsonRpcContext, this.serviceVersion);
+        return res.get(0);
+    }
+
     /**
      * <p>Original spec-file function name: tsv_file_to_matrix</p>
      * <pre>
@@ -13,6 +13,7 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -21,6 +22,9 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
 
 import kbasegenomes.Feature;
@@ -31,15 +35,22 @@ import org.apache.commons.lang.StringUtils;
 
 import us.kbase.auth.AuthToken;
 import us.kbase.clusterservice.ClusterResults;
+import us.kbase.clusterservice.ClusterServiceJavaLocalClient;
+import us.kbase.clusterservice.ClusterSetEvaluation;
 import us.kbase.clusterservice.ClusterServiceLocalClient;
 import us.kbase.clusterservice.ClusterServicePyLocalClient;
 import us.kbase.clusterservice.ClusterServiceRLocalClient;
+import us.kbase.clusterservice.ClusterServiceRouterLocalClient;
+import us.kbase.clusterservice.DistanceCache;
+import us.kbase.clusterservice.HierarchicalClustering;
 import us.kbase.common.service.Tuple9;
 import us.kbase.common.service.Tuple11;
 import us.kbase.common.service.UObject;
+import us.kbase.kbasefeaturevalues.MatrixObjectReader.MatrixObject;
 import us.kbase.kbasefeaturevalues.transform.ExpressionDownloader;
 import us.kbase.kbasefeaturevalues.transform.ExpressionUploader;
 import us.kbase.kbasefeaturevalues.transform.FeatureClustersDownloader;
+import us.kbase.workspace.GetObjectInfoNewParams;
 import us.kbase.workspace.GetObjects2Params;
 import us.kbase.workspace.ObjectData;
 import us.kbase.workspace.ObjectSaveData;
@@ -59,6 +70,10 @@ import datafileutil.PackageForDownloadParams;
 import datafileutil.ShockToFileParams;
 
 public class KBaseFeatureValuesImpl {
+    public static final String CLUSTER_BY_FEATURES = "features";
+    public static final String CLUSTER_BY_CONDITIONS = "conditions";
+    public static final String CLUSTER_BY_BOTH = "both";
+
     private String jobId;
     private AuthToken token;
     private Map<String, String> config;
@@ -72,7 +87,14 @@ public class KBaseFeatureValuesImpl {
         this.jobId = jobId;
         this.token = token;
         this.config = config;
-        this.workDir = workDir == null ? new File(".").getCanonicalFile() : workDir;
+        if (workDir == null) {
+            // Local calls create their temporary folders here
+            String scratch = config == null ? null :
+                config.get(KBaseFeatureValuesServer.CONFIG_PARAM_SCRATCH);
+            workDir = scratch == null || scratch.trim().isEmpty() ?
+                    new File(".").getCanonicalFile() : new File(scratch.trim());
+        }
+        this.workDir = workDir;
     }
     
     public String getWsUrl() {
@@ -96,11 +118,75 @@ public class KBaseFeatureValuesImpl {
     }
     
     public ClusterServiceLocalClient getMathClient() throws Exception {
-        ClusterServiceRLocalClient mathClient = new ClusterServiceRLocalClient(workDir);
+        return getMathClient(null);
+    }
+
+    /**
+     * Returns client routing every call to Java, R or Python backend, engine is
+     * configured by "math.engine" and overridden for particular method by
+     * "math.engine.[method]" (see {@link ClusterServiceRouterLocalClient}).
+     * @param matrixInfo info of matrix object client will work with, distances
+     * calculated for this object version are cached if it's defined
+     */
+    public ClusterServiceLocalClient getMathClient(Tuple11<Long, String, String, String, Long,
+            String, Long, String, String, Long, Map<String, String>> matrixInfo)
+                    throws Exception {
+        ClusterServiceRLocalClient rClient = new ClusterServiceRLocalClient(workDir);
+        ClusterServicePyLocalClient pyClient = new ClusterServicePyLocalClient(workDir);
         String binPath = config.get(KBaseFeatureValuesServer.CONFIG_PARAM_CLIENT_BIN_DIR);
-        if (binPath != null)
-            mathClient.setBinDir(new File(binPath));
-        return mathClient;
+        if (binPath != null) {
+            rClient.setBinDir(new File(binPath));
+            pyClient.setBinDir(new File(binPath));
+        }
+        ClusterServiceJavaLocalClient javaClient = new ClusterServiceJavaLocalClient(rClient);
+        javaClient.setQualitySamplePairs(getQualitySamplePairs());
+        javaClient.setDistanceCache(getDistanceCache(matrixInfo));
+        ClusterServiceRouterLocalClient ret = new ClusterServiceRouterLocalClient(javaClient,
+                rClient, pyClient);
+        String enginePrefix = KBaseFeatureValuesServer.CONFIG_PARAM_MATH_ENGINE + ".";
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            String engine = entry.getValue();
+            if (engine == null || engine.trim().isEmpty())
+                continue;
+            if (entry.getKey().equals(KBaseFeatureValuesServer.CONFIG_PARAM_MATH_ENGINE)) {
+                ret.setEngine(null, engine);
+            } else if (entry.getKey().startsWith(enginePrefix)) {
+                ret.setEngine(entry.getKey().substring(enginePrefix.length()), engine);
+            }
+        }
+        String javaMaxCells = config.get(
+                KBaseFeatureValuesServer.CONFIG_PARAM_MATH_ROUTER_JAVA_MAX_CELLS);
+        if (javaMaxCells != null && !javaMaxCells.trim().isEmpty())
+            ret.setJavaMaxCells(Long.parseLong(javaMaxCells.trim()));
+        String exploreInterval = config.get(
+                KBaseFeatureValuesServer.CONFIG_PARAM_MATH_ROUTER_EXPLORE_INTERVAL);
+        if (exploreInterval != null && !exploreInterval.trim().isEmpty())
+            ret.setExploreInterval(Integer.parseInt(exploreInterval.trim()));
+        return ret;
+    }
+
+    /**
+     * @return cache of distances for given matrix object version or null if
+     * object info is not known or cache is disabled (budget is not set or is 0)
+     */
+    private DistanceCache getDistanceCache(Tuple11<Long, String, String, String, Long,
+            String, Long, String, String, Long, Map<String, String>> matrixInfo) {
+        String budget = config.get(
+                KBaseFeatureValuesServer.CONFIG_PARAM_DISTANCE_CACHE_BUDGET_MB);
+        if (matrixInfo == null || budget == null || budget.trim().isEmpty())
+            return null;
+        long budgetMb = Long.parseLong(budget.trim());
+        if (budgetMb <= 0)
+            return null;
+        return new DistanceCache(getScratchDir(), budgetMb << 20, matrixInfo.getE7() + "/" +
+                matrixInfo.getE1() + "/" + matrixInfo.getE5());
+    }
+
+    private long getQualitySamplePairs() {
+        String samplePairs = config.get(KBaseFeatureValuesServer.CONFIG_PARAM_QUALITY_SAMPLE_PAIRS);
+        if (samplePairs == null || samplePairs.trim().isEmpty())
+            return 0;
+        return Long.parseLong(samplePairs.trim());
     }
     
     public String getJobId() {
@@ -109,10 +195,8 @@ public class KBaseFeatureValuesImpl {
     
     public EstimateKResult estimateK(EstimateKParams params, 
             List<ProvenanceAction> provenance) throws Exception {
-        ObjectData objData = getWsClient().getObjects2(new GetObjects2Params().withObjects(
-                Arrays.asList(new ObjectSpecification().withRef(params.getInputMatrix()))))
-                .getData().get(0);
-        BioMatrix matrix = objData.getData().asClassInstance(BioMatrix.class);
+        BioMatrix matrix = loadBioMatrix(new ObjectSpecification().withRef(
+                params.getInputMatrix())).getObject();
         ClusterServiceLocalClient mathClient = getMathClient();
         EstimateKResult toSave = mathClient.estimateK(matrix.getData(), params.getMinK(), 
                 params.getMaxK(), params.getMaxIter(), params.getRandomSeed(),
@@ -130,11 +214,10 @@ public class KBaseFeatureValuesImpl {
 
     public EstimateKResult estimateKNew(EstimateKParamsNew params,
             List<ProvenanceAction> provenance) throws Exception {
-        ObjectData objData = getWsClient().getObjects2(new GetObjects2Params().withObjects(
-                Arrays.asList(new ObjectSpecification().withRef(params.getInputMatrix()))))
-                .getData().get(0);
-        BioMatrix matrix = objData.getData().asClassInstance(BioMatrix.class);
-        ClusterServiceLocalClient mathClient = getMathClient();
+        MatrixObject<BioMatrix> matrixObj = loadBioMatrix(new ObjectSpecification().withRef(
+                params.getInputMatrix()));
+        BioMatrix matrix = matrixObj.getObject();
+        ClusterServiceLocalClient mathClient = getMathClient(matrixObj.getInfo());
         EstimateKResult toSave = mathClient.estimateKNew(matrix.getData(), params.getMinK(),
                 params.getMaxK(), params.getCriterion(), params.getUsepam(),params.getAlpha(),
             params.getDiss(),params.getRandomSeed());
@@ -150,31 +233,24 @@ public class KBaseFeatureValuesImpl {
         return toSave;
     }
     
-    public String clusterKMeans(ClusterKMeansParams params, 
+    public String clusterKMeans(final ClusterKMeansParams params, 
             List<ProvenanceAction> provenance) throws Exception {
-        ObjectData objData = getWsClient().getObjects2(new GetObjects2Params().withObjects(
-                Arrays.asList(new ObjectSpecification().withRef(params.getInputData()))))
-                .getData().get(0);
-        BioMatrix matrix = objData.getData().asClassInstance(BioMatrix.class);
-        ClusterServiceLocalClient mathClient = getMathClient();
-        ClusterResults res = null;
-        if (params.getAlgorithm() != null && params.getAlgorithm().equals("Python Scikit-learn")) {
-            ClusterServicePyLocalClient pyClient = new ClusterServicePyLocalClient(workDir);
-            String binPath = config.get(KBaseFeatureValuesServer.CONFIG_PARAM_CLIENT_BIN_DIR);
-            if (binPath != null)
-                pyClient.setBinDir(new File(binPath));
-            res = pyClient.clusterKMeans(matrix.getData(), params.getK(), null, null, null, null);
-            List<Long> clusterLabels = res.getClusterLabels();
-            for (int pos = 0; pos < clusterLabels.size(); pos++)
-                clusterLabels.set(pos, 1 + (long)clusterLabels.get(pos));
-            res = mathClient.calcClusterQualities(matrix.getData(), clusterLabels);
-        } else {
-            res = mathClient.clusterKMeans(matrix.getData(), params.getK(), 
-                    params.getNStart(), params.getMaxIter(), params.getRandomSeed(),
-                    params.getAlgorithm());
-        }
-        FeatureClusters toSave = new FeatureClusters().withOriginalData(params.getInputData());
-        toSave.withFeatureClusters(clustersFromLabels(matrix.getData(), res));
+        BioMatrix matrix = loadBioMatrix(new ObjectSpecification().withRef(
+                params.getInputData())).getObject();
+        final ClusterServiceLocalClient mathClient = getMathClient();
+        ClusterResults[] res = clusterFeaturesAndConditions(matrix.getData(),
+                params.getClusterBy(), new MatrixClustering() {
+            @Override
+            public ClusterResults cluster(FloatMatrix2D data, boolean conditions)
+                    throws Exception {
+                Long k = conditions && params.getConditionK() != null ?
+                        params.getConditionK() : params.getK();
+                return mathClient.clusterKMeans(data, k, params.getNStart(),
+                        params.getMaxIter(), params.getRandomSeed(), params.getAlgorithm());
+            }
+        });
+        FeatureClusters toSave = toFeatureClusters(matrix.getData(), res)
+                .withOriginalData(params.getInputData());
         provenance.get(0).withDescription("K-Means clustering method")
                 .withInputWsObjects(Arrays.asList(params.getInputData()));
 
@@ -187,6 +263,107 @@ public class KBaseFeatureValuesImpl {
         return toWsId(getInfo);
     }
 
+    /**
+     * Clustering of matrix rows, conditions are clustered by passing transposed
+     * matrix.
+     */
+    public interface MatrixClustering {
+        public ClusterResults cluster(FloatMatrix2D data, boolean conditions) throws Exception;
+    }
+
+    /**
+     * Clusters features (matrix rows) and/or conditions (matrix columns) depending
+     * on clusterBy value: "features" (default), "conditions" or "both". Conditions
+     * are clustered on transposed view of primitive matrix storage (no boxed copy
+     * is made), in separate thread when features are clustered too.
+     * @return results for features and for conditions (null if not clustered)
+     */
+    public static ClusterResults[] clusterFeaturesAndConditions(FloatMatrix2D data,
+            String clusterBy, final MatrixClustering clustering) throws Exception {
+        boolean features = clusterBy == null || clusterBy.isEmpty() ||
+                clusterBy.equals(CLUSTER_BY_FEATURES) || clusterBy.equals(CLUSTER_BY_BOTH);
+        boolean conditions = clusterBy != null && (clusterBy.equals(CLUSTER_BY_CONDITIONS) ||
+                clusterBy.equals(CLUSTER_BY_BOTH));
+        if (!(features || conditions))
+            throw new IllegalStateException("Unsupported value of cluster_by: " + clusterBy +
+                    " (expected \"" + CLUSTER_BY_FEATURES + "\", \"" + CLUSTER_BY_CONDITIONS +
+                    "\" or \"" + CLUSTER_BY_BOTH + "\")");
+        ClusterResults[] ret = new ClusterResults[2];
+        if (!conditions) {
+            ret[0] = clustering.cluster(data, false);
+            return ret;
+        }
+        final FloatMatrix2D transposed = DenseMatrix.fromFloatMatrix2D(data).transpose()
+                .toFloatMatrix2D();
+        if (!features) {
+            ret[1] = clustering.cluster(transposed, true);
+            return ret;
+        }
+        FutureTask<ClusterResults> conditionTask = new FutureTask<ClusterResults>(
+                new Callable<ClusterResults>() {
+            @Override
+            public ClusterResults call() throws Exception {
+                return clustering.cluster(transposed, true);
+            }
+        });
+        Thread conditionThread = new Thread(conditionTask, "condition-clustering");
+        conditionThread.setDaemon(true);
+        conditionThread.start();
+        try {
+            ret[0] = clustering.cluster(data, false);
+            ret[1] = conditionTask.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception)
+                throw (Exception)ex.getCause();
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            conditionTask.cancel(true);
+        }
+        return ret;
+    }
+
+    /**
+     * Builds FeatureClusters out of results of
+     * {@link #clusterFeaturesAndConditions(FloatMatrix2D, String, MatrixClustering)},
+     * report of condition clustering is merged into report of feature clustering
+     * with messages and warnings prefixed by "Conditions: ".
+     */
+    public static FeatureClusters toFeatureClusters(FloatMatrix2D data, ClusterResults[] res) {
+        FeatureClusters ret = new FeatureClusters().withFeatureClusters(
+                new ArrayList<LabeledCluster>());
+        AnalysisReport report = null;
+        if (res[0] != null) {
+            ret.withFeatureClusters(clustersFromLabels(data, res[0]))
+                    .withFeatureDendrogram(res[0].getDendrogram());
+            report = res[0].getReport();
+        }
+        if (res[1] != null) {
+            FloatMatrix2D transposed = new FloatMatrix2D().withRowIds(data.getColIds());
+            ret.withConditionClusters(clustersFromLabels(transposed, res[1]))
+                    .withConditionDendrogram(res[1].getDendrogram());
+            AnalysisReport conditionReport = res[1].getReport();
+            if (res[0] == null) {
+                report = conditionReport;
+            } else if (conditionReport != null) {
+                if (report == null)
+                    report = new AnalysisReport();
+                if (conditionReport.getMessages() != null) {
+                    if (report.getMessages() == null)
+                        report.setMessages(new ArrayList<String>());
+                    for (String message : conditionReport.getMessages())
+                        report.getMessages().add("Conditions: " + message);
+                }
+                if (conditionReport.getWarnings() != null) {
+                    if (report.getWarnings() == null)
+                        report.setWarnings(new ArrayList<String>());
+                    for (String warning : conditionReport.getWarnings())
+                        report.getWarnings().add("Conditions: " + warning);
+                }
+            }
+        }
+        return ret.withReport(report);
+    }
+
     public static List<LabeledCluster> clustersFromLabels(FloatMatrix2D matrixData, ClusterResults res) {
         Map<Long, LabeledCluster> labelToCluster = new LinkedHashMap<Long, LabeledCluster>();
         List<LabeledCluster> featureClusters = new ArrayList<LabeledCluster>();
@@ -223,18 +400,29 @@ public class KBaseFeatureValuesImpl {
         return (value == null || Double.isNaN(value)) ? null : value;
     }
     
-    public String clusterHierarchical(ClusterHierarchicalParams params,
+    public String clusterHierarchical(final ClusterHierarchicalParams params,
             List<ProvenanceAction> provenance) throws Exception {
-        ObjectData objData = getWsClient().getObjects2(new GetObjects2Params().withObjects(
-                Arrays.asList(new ObjectSpecification().withRef(params.getInputData()))))
-                .getData().get(0);
-        BioMatrix matrix = objData.getData().asClassInstance(BioMatrix.class);
-        ClusterServiceLocalClient mathClient = getMathClient();
-        ClusterResults res = mathClient.clusterHierarchical(matrix.getData(), params.getDistanceMetric(), 
-                params.getLinkageCriteria(), params.getFeatureHeightCutoff(), params.getMaxItems(), params.getAlgorithm());
-        FeatureClusters toSave = new FeatureClusters().withOriginalData(params.getInputData())
-                .withFeatureClusters(clustersFromLabels(matrix.getData(), res))
-                .withFeatureDendrogram(res.getDendrogram());
+        MatrixObject<BioMatrix> matrixObj = loadBioMatrix(new ObjectSpecification().withRef(
+                params.getInputData()));
+        BioMatrix matrix = matrixObj.getObject();
+        final ClusterServiceLocalClient mathClient = getMathClient(matrixObj.getInfo());
+        ClusterResults[] res = clusterFeaturesAndConditions(matrix.getData(),
+                params.getClusterBy(), new MatrixClustering() {
+            @Override
+            public ClusterResults cluster(FloatMatrix2D data, boolean conditions)
+                    throws Exception {
+                if (!conditions)
+                    return mathClient.clusterHierarchical(data, params.getDistanceMetric(), 
+                            params.getLinkageCriteria(), params.getFeatureHeightCutoff(),
+                            params.getMaxItems(), params.getAlgorithm());
+                Double heightCutoff = params.getConditionHeightCutoff() != null ?
+                        params.getConditionHeightCutoff() : params.getFeatureHeightCutoff();
+                return mathClient.clusterHierarchical(data, params.getDistanceMetric(),
+                        params.getLinkageCriteria(), heightCutoff, null, params.getAlgorithm());
+            }
+        });
+        FeatureClusters toSave = toFeatureClusters(matrix.getData(), res)
+                .withOriginalData(params.getInputData());
         provenance.get(0).withDescription("Hierarchical clustering method")
                 .withInputWsObjects(Arrays.asList(params.getInputData()));
 
@@ -249,22 +437,58 @@ public class KBaseFeatureValuesImpl {
 
     public String clustersFromDendrogram(ClustersFromDendrogramParams params,
             List<ProvenanceAction> provenance) throws Exception {
+        if (params.getFeatureHeightCutoff() == null)
+            throw new IllegalStateException("Feature height cutoff is not defined");
         ObjectData objData = getWsClient().getObjects2(new GetObjects2Params().withObjects(
                 Arrays.asList(new ObjectSpecification().withRef(params.getInputData()))))
                 .getData().get(0);
         FeatureClusters input = objData.getData().asClassInstance(FeatureClusters.class);
-        // We don't actually load FeatureClusters object referred by params.getInputData() 
-        // reference, we load matrix object listed in withObjRefPath() instead!
-        ObjectData objData2 = getWsClient().getObjects2(new GetObjects2Params().withObjects(
-                Arrays.asList(new ObjectSpecification().withRef(params.getInputData())
-                        .withObjRefPath(Arrays.asList(input.getOriginalData()))))).getData().get(0);
-        BioMatrix matrix = objData2.getData().asClassInstance(BioMatrix.class);
-        ClusterServiceLocalClient mathClient = getMathClient();
-        ClusterResults res = mathClient.clustersFromDendrogram(matrix.getData(), 
-                input.getFeatureDendrogram(), params.getFeatureHeightCutoff());
+        // Cut needs only the tree, tips are row positions and their ids are known
+        // from input clusters
+        HierarchicalClustering.Dendrogram tree = HierarchicalClustering.Dendrogram.fromNewick(
+                input.getFeatureDendrogram());
+        int[] tipRows = tree.getTipRows();
+        int[] groups = tree.cutAtHeight(params.getFeatureHeightCutoff());
+        Map<Long, String> posToId = new HashMap<Long, String>();
+        for (LabeledCluster cluster : input.getFeatureClusters())
+            for (Map.Entry<String, Long> entry : cluster.getIdToPos().entrySet())
+                posToId.put(entry.getValue(), entry.getKey());
+        int rowCount = 0;
+        for (int row : tipRows)
+            rowCount = Math.max(rowCount, row + 1);
+        List<String> rowIds = new ArrayList<String>(Collections.<String>nCopies(rowCount, null));
+        List<Long> clusterLabels = new ArrayList<Long>(Collections.nCopies(rowCount, -1L));
+        BitSet treeRows = new BitSet();
+        for (int tip = 0; tip < tipRows.length; tip++) {
+            String rowId = posToId.get((long)tipRows[tip]);
+            if (rowId == null)
+                throw new IllegalStateException("Row " + tipRows[tip] + " of dendrogram " +
+                        "is not found in input clusters");
+            rowIds.set(tipRows[tip], rowId);
+            clusterLabels.set(tipRows[tip], (long)groups[tip]);
+            treeRows.set(tipRows[tip]);
+        }
+        ClusterResults res = new ClusterResults().withClusterLabels(clusterLabels);
+        if (!toBoolean(params.getSkipClusterQualities())) {
+            // We don't actually load FeatureClusters object referred by params.getInputData() 
+            // reference, we load matrix object listed in withObjRefPath() instead! Only rows
+            // of dendrogram are kept.
+            DenseMatrix values = new MatrixObjectReader(getWsClient(), getScratchDir()).read(
+                    new ObjectSpecification().withRef(params.getInputData()).withObjRefPath(
+                    Arrays.asList(input.getOriginalData())), BioMatrix.class, treeRows)
+                    .getValues();
+            List<Long> treeLabels = new ArrayList<Long>();
+            for (int row = treeRows.nextSetBit(0); row >= 0; row = treeRows.nextSetBit(row + 1))
+                treeLabels.add(clusterLabels.get(row));
+            ClusterResults qualities = getMathClient().calcClusterQualities(
+                    values.toFloatMatrix2D(), treeLabels);
+            res.withMeancor(qualities.getMeancor()).withMsecs(qualities.getMsecs())
+                    .withReport(qualities.getReport());
+        }
         FeatureClusters toSave = new FeatureClusters().withOriginalData(input.getOriginalData())
-                .withFeatureClusters(clustersFromLabels(matrix.getData(), res))
-                .withFeatureDendrogram(res.getDendrogram());
+                .withFeatureClusters(clustersFromLabels(new FloatMatrix2D().withRowIds(rowIds),
+                        res)).withFeatureDendrogram(input.getFeatureDendrogram())
+                .withReport(res.getReport());
         provenance.get(0).withDescription("Clusters from dendrogram")
                 .withInputWsObjects(Arrays.asList(params.getInputData()));
 
@@ -279,7 +503,55 @@ public class KBaseFeatureValuesImpl {
 
     public void evaluateClustersetQuality(EvaluateClustersetQualityParams params, 
             List<ProvenanceAction> provenance) throws Exception {
-        throw new IllegalStateException("Not yet implemented");
+        ObjectData objData = getWsClient().getObjects2(new GetObjects2Params().withObjects(
+                Arrays.asList(new ObjectSpecification().withRef(params.getInputClusterset()))))
+                .getData().get(0);
+        FeatureClusters input = objData.getData().asClassInstance(FeatureClusters.class);
+        if (input.getOriginalData() == null)
+            throw new IllegalStateException("Cluster set has no reference to original data");
+        // We don't actually load FeatureClusters object referred by params.getInputClusterset() 
+        // reference, we load matrix object listed in withObjRefPath() instead!
+        MatrixObject<BioMatrix> matrixObj = loadBioMatrix(new ObjectSpecification().withRef(
+                params.getInputClusterset()).withObjRefPath(Arrays.asList(
+                        input.getOriginalData())));
+        DenseMatrix values = matrixObj.getValues();
+        List<Long> clusterLabels = new ArrayList<Long>(Collections.nCopies(
+                values.getRowCount(), -1L));
+        for (int clusterPos = 0; clusterPos < input.getFeatureClusters().size(); clusterPos++) {
+            for (Map.Entry<String, Long> entry : input.getFeatureClusters().get(clusterPos)
+                    .getIdToPos().entrySet()) {
+                int row = (int)(long)entry.getValue();
+                if (row < 0 || row >= values.getRowCount() ||
+                        !values.getRowIds().get(row).equals(entry.getKey()))
+                    throw new IllegalStateException("Feature " + entry.getKey() + " at " +
+                            "position " + row + " is not found in original data matrix");
+                clusterLabels.set(row, (long)clusterPos + 1);
+            }
+        }
+        Long sampleSize = params.getSilhouetteSampleSize();
+        // Fixed seed makes repeated evaluation of the same cluster set give the same report
+        ClusterSetEvaluation.Result res = ClusterSetEvaluation.evaluate(values, clusterLabels,
+                input.getFeatureDendrogram() != null ? ClusterSetEvaluation.CORRELATION :
+                    ClusterSetEvaluation.EUCLIDEAN, sampleSize == null ? null :
+                        (int)Math.min(Integer.MAX_VALUE, sampleSize), 0L,
+                FloatMatrix2DUtil.getParallelThreshold(), getQualitySamplePairs(),
+                getDistanceCache(matrixObj.getInfo()));
+        for (int clusterPos = 0; clusterPos < input.getFeatureClusters().size(); clusterPos++)
+            input.getFeatureClusters().get(clusterPos)
+                    .withMeancor(noNaN(res.getQualities().getMeancor().get(clusterPos)))
+                    .withMsec(noNaN(res.getQualities().getMsecs().get(clusterPos)));
+        input.withReport(res.toReport());
+        provenance.get(0).withDescription("Cluster set quality evaluation")
+                .withInputWsObjects(Arrays.asList(params.getInputClusterset()));
+        String outWorkspace = params.getOutWorkspace() != null ? params.getOutWorkspace() :
+            objData.getInfo().getE8();
+        String outName = params.getOutReportId() != null ? params.getOutReportId() :
+            objData.getInfo().getE2();
+
+        getWsClient().saveObjects(new SaveObjectsParams().withWorkspace(outWorkspace)
+                .withObjects(Arrays.asList(new ObjectSaveData()
+                .withType("KBaseFeatureValues.FeatureClusters").withName(outName)
+                .withData(new UObject(input)).withProvenance(provenance))));
     }
 
     public void validateMatrix(ValidateMatrixParams params, 
@@ -289,15 +561,14 @@ public class KBaseFeatureValuesImpl {
 
     public String correctMatrix(CorrectMatrixParams params, 
             List<ProvenanceAction> provenance) throws Exception {
-        ObjectData objData = getWsClient().getObjects2(new GetObjects2Params().withObjects(
-                Arrays.asList(new ObjectSpecification().withRef(params.getInputData()))))
-                .getData().get(0);
+        MatrixObject<BioMatrix> objData = loadBioMatrix(new ObjectSpecification().withRef(
+                params.getInputData()));
         String inputType = objData.getInfo().getE3();
-        BioMatrix matrix = objData.getData().asClassInstance(BioMatrix.class);
+        BioMatrix matrix = objData.getObject();
         String transType = params.getTransformType();
         if (transType == null || !transType.equals("missing"))
             throw new IllegalStateException("Unsupported transformation type: " + transType);
-        MatrixUtil.fillMissingValues(matrix.getData());
+        MatrixUtil.fillMissingValues(objData.getValues());
         String outMatrixId = params.getOutMatrixId();
         if (outMatrixId == null)
             outMatrixId = objData.getInfo().getE2();
@@ -315,11 +586,10 @@ public class KBaseFeatureValuesImpl {
 
     public String reconnectMatrixToGenome(ReconnectMatrixToGenomeParams params,
             List<ProvenanceAction> provenance) throws Exception {
-        ObjectData objData = getWsClient().getObjects2(new GetObjects2Params().withObjects(
-                Arrays.asList(new ObjectSpecification().withRef(params.getInputData()))))
-                .getData().get(0);
+        MatrixObject<BioMatrix> objData = loadBioMatrix(new ObjectSpecification().withRef(
+                params.getInputData()));
         String inputType = objData.getInfo().getE3();
-        BioMatrix matrix = objData.getData().asClassInstance(BioMatrix.class);
+        BioMatrix matrix = objData.getObject();
         Genome genome = MatrixUtil.loadGenomeFeatures(token, null, params.getGenomeRef());
         matrix.setFeatureMapping(MatrixUtil.constructFeatureMapping(matrix.getData(), genome));
         matrix.setGenomeRef(params.getGenomeRef());
@@ -509,16 +779,16 @@ public class KBaseFeatureValuesImpl {
 		// Build matrix descriptor		
         matrixStat.setMtxDescriptor(buildMatrixDescriptor(mgl));
         
-		int[] rowIndeces = buildIndeces(null, null, mgl.matrix.getData().getRowIds());
-		int[] colIndeces = buildIndeces(null, null, mgl.matrix.getData().getColIds());
+		int[] rowIndeces = buildIndeces(null, null, mgl.values.getRowIds());
+		int[] colIndeces = buildIndeces(null, null, mgl.values.getColIds());
         
         // Build row and descriptors        
         matrixStat.setRowDescriptors(buildRowDescriptors(mgl, rowIndeces ));
         matrixStat.setColumnDescriptors(buildColumnDescriptors(mgl, colIndeces));        
         
         // Collect statistics
-        matrixStat.setRowStats(FloatMatrix2DUtil.getRowsStat(mgl.matrix.getData(), null, null, false));
-        matrixStat.setColumnStats(FloatMatrix2DUtil.getColumnsStat(mgl.matrix.getData(), null, null, false));
+        matrixStat.setRowStats(FloatMatrix2DUtil.getRowsStat(mgl.values, null, null, false));
+        matrixStat.setColumnStats(FloatMatrix2DUtil.getColumnsStat(mgl.values, null, null, false));
 
 		return matrixStat;
 	}    
@@ -533,8 +803,8 @@ public class KBaseFeatureValuesImpl {
 
 		// Build matrix descriptor		
 		submatrixStat.setMtxDescriptor(buildMatrixDescriptor(mgl));
-		int[] rowIndeces = buildIndeces(params.getRowIndeces(), params.getRowIds(), mgl.matrix.getData().getRowIds());
-		int[] colIndeces = buildIndeces(params.getColumnIndeces(), params.getColumnIds(), mgl.matrix.getData().getColIds());
+		int[] rowIndeces = buildIndeces(params.getRowIndeces(), params.getRowIds(), mgl.values.getRowIds());
+		int[] colIndeces = buildIndeces(params.getColumnIndeces(), params.getColumnIds(), mgl.values.getColIds());
 		
         // Build row and descriptors        
 		submatrixStat.setRowDescriptors(buildRowDescriptors(mgl, rowIndeces));
@@ -555,47 +825,135 @@ public class KBaseFeatureValuesImpl {
 			matrixSetStatParams
 				.withItemIndecesFor(toListLong(rowIndeces))
 				.withItemIndecesOn(toListLong(colIndeces));			
-			submatrixStat.setRowSetStats(FloatMatrix2DUtil.getRowsSetStat(mgl.matrix.getData(), matrixSetStatParams));	
+			submatrixStat.setRowSetStats(FloatMatrix2DUtil.getRowsSetStat(mgl.values, matrixSetStatParams));	
 		}
 		
 		if( toBoolean(params.getFlColumnSetStat()) ) {
 			matrixSetStatParams
 				.withItemIndecesFor(toListLong(colIndeces))
 				.withItemIndecesOn(toListLong(rowIndeces));			
-			submatrixStat.setColumnSetStat(FloatMatrix2DUtil.getColumnsSetStat(mgl.matrix.getData(), matrixSetStatParams));
+			submatrixStat.setColumnSetStat(FloatMatrix2DUtil.getColumnsSetStat(mgl.values, matrixSetStatParams));
 		}
 		
         // mtx row and column set stats		
 		if( toBoolean(params.getFlMtxRowSetStat()) ) {
-			int[] mtxColIndeces = buildIndeces(null, null, mgl.matrix.getData().getColIds());
+			int[] mtxColIndeces = buildIndeces(null, null, mgl.values.getColIds());
 			matrixSetStatParams
 				.withItemIndecesFor( toListLong(rowIndeces) )
 				.withItemIndecesOn( toListLong(mtxColIndeces));			
-			submatrixStat.setMtxRowSetStat(FloatMatrix2DUtil.getRowsSetStat(mgl.matrix.getData(), matrixSetStatParams));				
+			submatrixStat.setMtxRowSetStat(FloatMatrix2DUtil.getRowsSetStat(mgl.values, matrixSetStatParams));				
 		}
 		if( toBoolean(params.getFlMtxColumnSetStat()) ) {
-			int[] mtxRowIndeces = buildIndeces(null, null, mgl.matrix.getData().getRowIds());
+			int[] mtxRowIndeces = buildIndeces(null, null, mgl.values.getRowIds());
 			matrixSetStatParams
 				.withItemIndecesFor( toListLong(colIndeces))
 				.withItemIndecesOn( toListLong(mtxRowIndeces));			
-			submatrixStat.setMtxColumnSetStat(FloatMatrix2DUtil.getColumnsSetStat(mgl.matrix.getData(), matrixSetStatParams));				
+			submatrixStat.setMtxColumnSetStat(FloatMatrix2DUtil.getColumnsSetStat(mgl.values, matrixSetStatParams));				
 		}
 				
 		// Pairwise comparison
 		if( toBoolean(params.getFlRowPairwiseCorrelation()) ){
-			int[] mtxColIndeces = buildIndeces(null, null, mgl.matrix.getData().getColIds());
-			submatrixStat.setRowPairwiseCorrelation(FloatMatrix2DUtil.geRowstPairwiseComparison(mgl.matrix.getData(), rowIndeces, mtxColIndeces));
+			int[] mtxColIndeces = buildIndeces(null, null, mgl.values.getColIds());
+			submatrixStat.setRowPairwiseCorrelation(FloatMatrix2DUtil.geRowstPairwiseComparison(mgl.values, rowIndeces, mtxColIndeces));
+		}
+		if( toBoolean(params.getFlColumnPairwiseCorrelation()) ){
+			submatrixStat.setColumnPairwiseCorrelation(FloatMatrix2DUtil.getColumnsPairwiseComparison(mgl.values, colIndeces, rowIndeces));
 		}
 		
 		
         // values		
 		if( toBoolean(params.getFlValues()) ) {
-			submatrixStat.setValues(FloatMatrix2DUtil.getSubmatrixValues(mgl.matrix.getData(), rowIndeces, colIndeces ));
+			submatrixStat.setValues(FloatMatrix2DUtil.getSubmatrixValues(mgl.values, rowIndeces, colIndeces ));
 		}
 		
 		return submatrixStat;  	
 	}
 
+	public List<TopCorrelatedRows> getTopCorrelatedRows(GetTopCorrelatedRowsParams params) throws Exception {
+		if (params.getQueryRowIds() == null || params.getQueryRowIds().isEmpty())
+			throw new IllegalStateException("Parameter query_row_ids should be defined");
+		int k = params.getK() == null ? 10 : params.getK().intValue();
+		if (k < 1)
+			throw new IllegalStateException("Parameter k should be positive: " + k);
+		TopCorrelatedSearch.Mode mode;
+		if (params.getMode() == null || params.getMode().equals("positive")) {
+			mode = TopCorrelatedSearch.Mode.POSITIVE;
+		} else if (params.getMode().equals("negative")) {
+			mode = TopCorrelatedSearch.Mode.NEGATIVE;
+		} else if (params.getMode().equals("absolute")) {
+			mode = TopCorrelatedSearch.Mode.ABSOLUTE;
+		} else {
+			throw new IllegalStateException("Unsupported search mode: " + params.getMode());
+		}
+		if (params.getColumnIds() == null || params.getColumnIds().isEmpty()) {
+			// Precomputed neighbors (if any) are used without loading matrix
+			NeighborIndex index = NeighborIndex.open(getNeighborIndexFile(
+					getObjectInfo(params.getInputData())));
+			if (index != null && k <= index.getK()) {
+				int[] rowIndeces = new int[params.getQueryRowIds().size()];
+				for (int i = 0; i < rowIndeces.length; i++) {
+					String rowId = params.getQueryRowIds().get(i);
+					rowIndeces[i] = index.findRow(rowId);
+					if (rowIndeces[i] < 0)
+						throw new IllegalStateException("Row id is not found in matrix: " + rowId);
+				}
+				return FloatMatrix2DUtil.getTopCorrelatedRows(index, rowIndeces, k, mode);
+			}
+		}
+		DenseMatrix values = getExpressionMatrixObject(params.getInputData()).getValues();
+		if (values == null)
+			throw new IllegalStateException("Matrix object has no data");
+		int[] rowIndeces = findIndeces(params.getQueryRowIds(), values.getRowIds(), "Row");
+		int[] colIndeces = params.getColumnIds() == null || params.getColumnIds().isEmpty() ?
+				buildIndeces(null, null, values.getColIds()) :
+				findIndeces(params.getColumnIds(), values.getColIds(), "Column");
+		return FloatMatrix2DUtil.getTopCorrelatedRows(values, rowIndeces, colIndeces, k, mode);
+	}
+
+	public NeighborIndexInfo buildNeighborIndex(BuildNeighborIndexParams params) throws Exception {
+		int k = params.getK() == null ? 50 : params.getK().intValue();
+		if (k < 1)
+			throw new IllegalStateException("Parameter k should be positive: " + k);
+		MatrixObject<ExpressionMatrix> matrixData = getExpressionMatrixObject(params.getInputData());
+		if (matrixData.getValues() == null)
+			throw new IllegalStateException("Matrix object has no data");
+		Tuple11<Long, String, String, String, Long, String, Long, String, String, Long,
+				Map<String, String>> info = matrixData.getInfo();
+		NeighborIndex index = NeighborIndex.build(matrixData.getValues(), k,
+				getNeighborIndexFile(info), FloatMatrix2DUtil.getParallelThreshold());
+		return new NeighborIndexInfo().withIndexKey(info.getE7() + "/" + info.getE1() + "/" +
+				info.getE5()).withRowsCount((long)index.getRowCount()).withK((long)index.getK());
+	}
+
+	private Tuple11<Long, String, String, String, Long, String, Long, String, String, Long,
+			Map<String, String>> getObjectInfo(String ref) throws Exception {
+		return getWsClient().getObjectInfoNew(new GetObjectInfoNewParams().withObjects(
+				Arrays.asList(new ObjectSpecification().withRef(ref)))).get(0);
+	}
+
+	/**
+	 * Neighbor index is keyed by resolved object version (wsid/objid/ver).
+	 */
+	private File getNeighborIndexFile(Tuple11<Long, String, String, String, Long, String,
+			Long, String, String, Long, Map<String, String>> info) {
+		return NeighborIndex.getIndexFile(getScratchDir(), info.getE7(), info.getE1(),
+				info.getE5());
+	}
+
+	private int[] findIndeces(List<String> ids, List<String> mtxIds, String itemType) {
+		Map<String, Integer> id2index = new HashMap<String, Integer>();
+		for (int i = 0; i < mtxIds.size(); i++)
+			id2index.put(mtxIds.get(i), i);
+		int[] ret = new int[ids.size()];
+		for (int i = 0; i < ret.length; i++) {
+			Integer index = id2index.get(ids.get(i));
+			if (index == null)
+				throw new IllegalStateException(itemType + " id is not found in matrix: " + ids.get(i));
+			ret[i] = index;
+		}
+		return ret;
+	}
+
 	private boolean toBoolean(Long value) {
 		return value != null && value == 1;
 	}
@@ -605,14 +963,14 @@ public class KBaseFeatureValuesImpl {
         
         return new MatrixDescriptor()
         	.withColNormalization(mgl.matrix.getColNormalization())
-        	.withColumnsCount((long) mgl.matrix.getData().getColIds().size())
+        	.withColumnsCount((long) mgl.values.getColIds().size())
         	.withGenomeId(mgl.genomeId)
         	.withGenomeName(mgl.genomeName)
         	.withMatrixDescription(mgl.matrix.getDescription())
         	.withMatrixId(mgl.matrixData.getInfo().getE2())
         	.withMatrixName(mgl.matrixData.getInfo().getE2())
         	.withRowNormalization(mgl.matrix.getRowNormalization())
-        	.withRowsCount((long) mgl.matrix.getData().getRowIds().size())
+        	.withRowsCount((long) mgl.values.getRowIds().size())
         	.withScale(mgl.matrix.getScale())
         	.withType(mgl.matrix.getType());    
 	}
@@ -629,7 +987,7 @@ public class KBaseFeatureValuesImpl {
 	private List<ItemDescriptor> buildColumnDescriptors(MatrixGenomeLoader mgl, int[] colIndeces) {
     	List<ItemDescriptor> descriptors = new ArrayList<ItemDescriptor>();
     	
-		List<String> mtxColIds = mgl.matrix.getData().getColIds();
+		List<String> mtxColIds = mgl.values.getColIds();
     	
     	
     	// We do not have condition mapping now, so we will use just colIds...
@@ -652,7 +1010,7 @@ public class KBaseFeatureValuesImpl {
 	private List<ItemDescriptor> buildRowDescriptors(MatrixGenomeLoader mgl, int[] rowIndeces) {
     	List<ItemDescriptor> descriptors = new ArrayList<ItemDescriptor>();
 		
-		List<String> mtxRowIds = mgl.matrix.getData().getRowIds();    	
+		List<String> mtxRowIds = mgl.values.getRowIds();    	
     	for(int ri = 0 ; ri < rowIndeces.length; ri++){
     		int rIndex = rowIndeces[ri];
     		String rId = mtxRowIds.get(rIndex);
@@ -773,20 +1131,29 @@ public class KBaseFeatureValuesImpl {
 	}
 
 	private ExpressionMatrix getExpressionMatrix(String mtxRef) throws Exception{
-		ObjectData matrixData = getExpressionMatrixObject(mtxRef);
-        	
-		ExpressionMatrix matrix = (ExpressionMatrix)  matrixData
-			.getData()
-			.asClassInstance(ExpressionMatrix.class);
-		return matrix;
+		return getExpressionMatrixObject(mtxRef).getObject();
 	}
 	
-	private ObjectData getExpressionMatrixObject(String mtxRef) throws Exception{
-        WorkspaceClient wsClient = getWsClient();
-		return wsClient.getObjects2(new GetObjects2Params().withObjects(
-                Arrays.asList(new ObjectSpecification().withRef(mtxRef)))).getData().get(0);
+	private MatrixObject<ExpressionMatrix> getExpressionMatrixObject(String mtxRef) throws Exception{
+		MatrixObject<ExpressionMatrix> ret = new MatrixObjectReader(getWsClient(), getScratchDir())
+				.read(mtxRef, ExpressionMatrix.class);
+		if (ret.getValues() != null)
+			ret.getObject().setData(ret.getValues().toFloatMatrix2D());
+		return ret;
 	}	
 	
+	/**
+	 * Loads matrix with values streamed into primitive storage, data of returned 
+	 * object is a view of {@link MatrixObject#getValues()}.
+	 */
+	private MatrixObject<BioMatrix> loadBioMatrix(ObjectSpecification objSpec) throws Exception {
+		MatrixObject<BioMatrix> ret = new MatrixObjectReader(getWsClient(), getScratchDir())
+				.read(objSpec, BioMatrix.class);
+		if (ret.getValues() != null)
+			ret.getObject().setData(ret.getValues().toFloatMatrix2D());
+		return ret;
+	}
+	
 	private File getScratchDir() {
 	    File scratchDir = new File(config.get(KBaseFeatureValuesServer.CONFIG_PARAM_SCRATCH));
 	    if (!scratchDir.exists())
@@ -926,8 +1293,9 @@ public class KBaseFeatureValuesImpl {
     }
 
     class MatrixGenomeLoader{
-        ObjectData matrixData;
+        MatrixObject<ExpressionMatrix> matrixData;
         ExpressionMatrix matrix;
+        DenseMatrix values;
         String genomeId = null;
         String genomeName = null;
         Hashtable<String,Feature> featureId2Feature = null;
@@ -939,9 +1307,8 @@ public class KBaseFeatureValuesImpl {
 
             // Get expression matrix
             matrixData = getExpressionMatrixObject(mtxRef);
-            matrix = (ExpressionMatrix)  matrixData
-                .getData()
-                .asClassInstance(ExpressionMatrix.class);
+            matrix = matrixData.getObject();
+            values = matrixData.getValues();
                                         
             if (matrix.getGenomeRef() != null) {
                 GenomeDataV1 genomeRet = loadGenomeDynamic(token, mtxRef, matrix.getGenomeRef(), 
@@ -11,6 +11,10 @@ import us.kbase.common.service.JsonServerSyslog;
 import us.kbase.common.service.RpcContext;
 
 //BEGIN_HEADER
+import us.kbase.common.service.JsonLocalClientCaller;
+import us.kbase.common.service.LocalCallMetrics;
+import us.kbase.common.service.LocalProcess;
+import us.kbase.common.service.LocalWorkerPool;
 import us.kbase.workspace.ProvenanceAction;
 //END_HEADER
 
@@ -39,6 +43,19 @@ public class KBaseFeatureValuesServer extends JsonServerServlet {
     public static final String CONFIG_PARAM_CLIENT_BIN_DIR = "client.bin.dir";
     public static final String CONFIG_PARAM_SCRATCH = "scratch";
     public static final String CONFIG_PARAM_SRV_WIZ_URL = "service.wizard.url";
+    public static final String CONFIG_PARAM_STATS_PARALLEL_THRESHOLD = "stats.parallel.threshold";
+    public static final String CONFIG_PARAM_MATH_ENGINE = "math.engine";
+    public static final String CONFIG_PARAM_MATH_ROUTER_JAVA_MAX_CELLS = "math.router.java.max.cells";
+    public static final String CONFIG_PARAM_MATH_ROUTER_EXPLORE_INTERVAL = "math.router.explore.interval";
+    public static final String CONFIG_PARAM_QUALITY_SAMPLE_PAIRS = "quality.sample.pairs";
+    public static final String CONFIG_PARAM_DISTANCE_CACHE_BUDGET_MB = "distance.cache.budget.mb";
+    public static final String CONFIG_PARAM_WORKER_POOL_SIZE = "worker.pool.size";
+    public static final String CONFIG_PARAM_WORKER_MAX_CALLS = "worker.max.calls";
+    public static final String CONFIG_PARAM_WORKER_MAX_MEMORY_MB = "worker.max.memory.mb";
+    public static final String CONFIG_PARAM_LOCAL_RPC_MAX_CONCURRENT_CALLS = "local.rpc.max.concurrent.calls";
+    // Timeout of particular method is set by "local.rpc.timeout.sec.<service>.<method>"
+    public static final String CONFIG_PARAM_LOCAL_RPC_TIMEOUT_SEC = "local.rpc.timeout.sec";
+    public static final String CONFIG_PARAM_LOCAL_RPC_MAX_MEMORY_MB = "local.rpc.max.memory.mb";
     
     private KBaseFeatureValuesImpl impl(AuthToken authPart) throws Exception {
         return new KBaseFeatureValuesImpl(null, authPart, config, null);
@@ -53,6 +70,41 @@ public class KBaseFeatureValuesServer extends JsonServerServlet {
     public KBaseFeatureValuesServer() throws Exception {
         super("KBaseFeatureValues");
         //BEGIN_CONSTRUCTOR
+        String statsThreshold = config.get(CONFIG_PARAM_STATS_PARALLEL_THRESHOLD);
+        if (statsThreshold != null && !statsThreshold.trim().isEmpty())
+            FloatMatrix2DUtil.setParallelThreshold(Long.parseLong(statsThreshold.trim()));
+        String workerPoolSize = config.get(CONFIG_PARAM_WORKER_POOL_SIZE);
+        if (workerPoolSize != null && !workerPoolSize.trim().isEmpty() &&
+                Integer.parseInt(workerPoolSize.trim()) > 0) {
+            String maxCalls = config.get(CONFIG_PARAM_WORKER_MAX_CALLS);
+            String maxMemory = config.get(CONFIG_PARAM_WORKER_MAX_MEMORY_MB);
+            JsonLocalClientCaller.setWorkerPool(new LocalWorkerPool(
+                    Integer.parseInt(workerPoolSize.trim()),
+                    maxCalls == null || maxCalls.trim().isEmpty() ?
+                            LocalWorkerPool.DEFAULT_MAX_CALLS : Integer.parseInt(maxCalls.trim()),
+                    maxMemory == null || maxMemory.trim().isEmpty() ?
+                            LocalWorkerPool.DEFAULT_MAX_MEMORY_MB :
+                                Long.parseLong(maxMemory.trim())));
+        }
+        String maxConcurrentCalls = config.get(CONFIG_PARAM_LOCAL_RPC_MAX_CONCURRENT_CALLS);
+        if (maxConcurrentCalls != null && !maxConcurrentCalls.trim().isEmpty())
+            JsonLocalClientCaller.setMaxConcurrentCalls(Integer.parseInt(maxConcurrentCalls.trim()));
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() == null || entry.getValue().trim().isEmpty() ||
+                    !key.startsWith(CONFIG_PARAM_LOCAL_RPC_TIMEOUT_SEC))
+                continue;
+            long timeoutMs = (long)(Double.parseDouble(entry.getValue().trim()) * 1000);
+            if (key.equals(CONFIG_PARAM_LOCAL_RPC_TIMEOUT_SEC)) {
+                JsonLocalClientCaller.setCallTimeout(null, timeoutMs);
+            } else if (key.startsWith(CONFIG_PARAM_LOCAL_RPC_TIMEOUT_SEC + ".")) {
+                JsonLocalClientCaller.setCallTimeout(key.substring(
+                        CONFIG_PARAM_LOCAL_RPC_TIMEOUT_SEC.length() + 1), timeoutMs);
+            }
+        }
+        String maxMemoryMb = config.get(CONFIG_PARAM_LOCAL_RPC_MAX_MEMORY_MB);
+        if (maxMemoryMb != null && !maxMemoryMb.trim().isEmpty())
+            LocalProcess.setMemoryLimitMb(Long.parseLong(maxMemoryMb.trim()));
         //END_CONSTRUCTOR
     }
 
@@ -96,6 +148,10 @@ public class KBaseFeatureValuesServer extends JsonServerServlet {
      * <p>Original spec-file function name: cluster_k_means</p>
      * <pre>
      * Clusters features by K-means clustering.
+     * cluster_by - what is clustered: "features" (matrix rows, default),
+     *     "conditions" (matrix columns) or "both", conditions are clustered
+     *     concurrently with features in the last case;
+     * condition_k - number of condition clusters (default is k).
      * </pre>
      * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.ClusterKMeansParams ClusterKMeansParams}
      * @return   parameter "workspace_ref" of String
@@ -113,6 +169,11 @@ public class KBaseFeatureValuesServer extends JsonServerServlet {
      * <p>Original spec-file function name: cluster_hierarchical</p>
      * <pre>
      * Clusters features by hierarchical clustering.
+     * cluster_by - what is clustered: "features" (matrix rows, default),
+     *     "conditions" (matrix columns) or "both", conditions are clustered
+     *     concurrently with features in the last case;
+     * condition_height_cutoff - height cutoff for condition dendrogram
+     *     (default is feature_height_cutoff).
      * </pre>
      * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.ClusterHierarchicalParams ClusterHierarchicalParams}
      * @return   parameter "workspace_ref" of String
@@ -132,6 +193,8 @@ public class KBaseFeatureValuesServer extends JsonServerServlet {
      * Given a FeatureClusters with a dendogram built from a hierarchical clustering
      * method, this function creates new clusters by cutting the dendogram at
      * a specific hieght or by some other approach.
+     * Matrix values are loaded only for calculation of cluster qualities
+     * (meancor, msec), skip_cluster_qualities=1 turns it off.
      * </pre>
      * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.ClustersFromDendrogramParams ClustersFromDendrogramParams}
      * @return   parameter "workspace_ref" of String
@@ -148,9 +211,15 @@ public class KBaseFeatureValuesServer extends JsonServerServlet {
     /**
      * <p>Original spec-file function name: evaluate_clusterset_quality</p>
      * <pre>
-     * Given a FeatureClusters with a dendogram built from a hierarchical clustering
-     * method, this function creates new clusters by cutting the dendogram at
-     * a specific hieght or by some other approach.
+     * Evaluates quality of FeatureClusters object on its original_data matrix:
+     * silhouette, mean pairwise correlation (meancor) and MSEC of each cluster and
+     * overall ones plus Davies-Bouldin index. Copy of cluster set with updated
+     * meancor/msec and these values in report is saved as out_report_id object
+     * (input name and workspace are used if out_report_id/out_workspace are not set).
+     * Distance is correlation one for cluster sets with dendrogram and Euclidean
+     * otherwise. Silhouette is exact for up to silhouette_sample_size rows (5000 by
+     * default, 0 means always exact), larger matrices are evaluated on that many
+     * randomly sampled rows.
      * </pre>
      * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.EvaluateClustersetQualityParams EvaluateClustersetQualityParams}
      */
@@ -364,6 +433,44 @@ public class KBaseFeatureValuesServer extends JsonServerServlet {
         return returnVal;
     }
 
+    /**
+     * <p>Original spec-file function name: get_top_correlated_rows</p>
+     * <pre>
+     * Finds rows which are most correlated with each of query rows without
+     * building full pairwise correlation matrix.
+     * </pre>
+     * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.GetTopCorrelatedRowsParams GetTopCorrelatedRowsParams}
+     * @return   instance of list of type {@link us.kbase.kbasefeaturevalues.TopCorrelatedRows TopCorrelatedRows}
+     */
+    @JsonServerMethod(rpc = "KBaseFeatureValues.get_top_correlated_rows", async=true)
+    public List<TopCorrelatedRows> getTopCorrelatedRows(GetTopCorrelatedRowsParams params, AuthToken authPart, RpcContext jsonRpcContext) throws Exception {
+        List<TopCorrelatedRows> returnVal = null;
+        //BEGIN get_top_correlated_rows
+        returnVal = impl(authPart).getTopCorrelatedRows(params);
+        //END get_top_correlated_rows
+        return returnVal;
+    }
+
+    /**
+     * <p>Original spec-file function name: build_neighbor_index</p>
+     * <pre>
+     * Precomputes top correlated rows for every row of given matrix version and
+     * stores them in scratch area. get_top_correlated_rows reads this index
+     * instead of matrix when correlation is calculated over all columns and
+     * k is not larger than the one used for the index.
+     * </pre>
+     * @param   params   instance of type {@link us.kbase.kbasefeaturevalues.BuildNeighborIndexParams BuildNeighborIndexParams}
+     * @return   instance of type {@link us.kbase.kbasefeaturevalues.NeighborIndexInfo NeighborIndexInfo}
+     */
+    @JsonServerMethod(rpc = "KBaseFeatureValues.build_neighbor_index", async=true)
+    public NeighborIndexInfo buildNeighborIndex(BuildNeighborIndexParams params, AuthToken authPart, RpcContext jsonRpcContext) throws Exception {
+        NeighborIndexInfo returnVal = null;
+        //BEGIN build_neighbor_index
+        returnVal = impl(authPart).buildNeighborIndex(params);
+        //END build_neighbor_index
+        return returnVal;
+    }
+
     /**
      * <p>Original spec-file function name: tsv_file_to_matrix</p>
      * <pre>
@@ -469,6 +576,7 @@ public class KBaseFeatureValuesServer extends JsonServerServlet {
         returnVal.put("version", version);
         returnVal.put("git_url", gitUrl);
         returnVal.put("git_commit_hash", gitCommitHash);
+        returnVal.put("local_calls", LocalCallMetrics.getReport());
         //END_STATUS
         return returnVal;
     }
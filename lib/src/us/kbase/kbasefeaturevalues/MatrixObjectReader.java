@@ -0,0 +1,250 @@
+package us.kbase.kbasefeaturevalues;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.common.service.Tuple11;
+import us.kbase.workspace.GetObjects2Params;
+import us.kbase.workspace.ObjectData;
+import us.kbase.workspace.ObjectSpecification;
+import us.kbase.workspace.WorkspaceClient;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Loads matrix objects (ExpressionMatrix, SingleKnockoutFitnessMatrix and alike)
+ * from workspace without building intermediate object tree for matrix data.
+ * Workspace response is stored in temporary file, "data.values" is parsed token
+ * by token right into primitive array of {@link DenseMatrix} and row/column ids
+ * are packed into {@link StringTable}. The rest of the object is deserialized
+ * into given header type with "data" field left empty. Optional row filter keeps
+ * only values of selected rows (in original order) so that large matrix doesn't
+ * have to be held in memory when few of its rows are needed.
+ */
+public class MatrixObjectReader {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final WorkspaceClient wsClient;
+    private final File tempDir;
+
+    public MatrixObjectReader(WorkspaceClient wsClient, File tempDir) {
+        this.wsClient = wsClient;
+        this.tempDir = tempDir;
+    }
+
+    public <T> MatrixObject<T> read(String ref, Class<T> headerType) throws Exception {
+        return read(new ObjectSpecification().withRef(ref), headerType);
+    }
+
+    public <T> MatrixObject<T> read(ObjectSpecification objSpec,
+            Class<T> headerType) throws Exception {
+        return read(objSpec, headerType, null);
+    }
+
+    /**
+     * @param rows positions of rows to keep (null means all rows)
+     */
+    public <T> MatrixObject<T> read(ObjectSpecification objSpec,
+            Class<T> headerType, BitSet rows) throws Exception {
+        File tempFile = File.createTempFile("matrix_", ".json", tempDir);
+        try {
+            wsClient._setFileForNextRpcResponse(tempFile);
+            ObjectData objData = wsClient.getObjects2(new GetObjects2Params().withObjects(
+                    Arrays.asList(objSpec))).getData().get(0);
+            JsonParser jp = objData.getData().getPlacedStream();
+            try {
+                MatrixObject<T> ret = parse(jp, headerType, rows);
+                ret.info = objData.getInfo();
+                return ret;
+            } finally {
+                jp.close();
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Parses matrix object from parser positioned before or at object start.
+     */
+    public static <T> MatrixObject<T> parse(JsonParser jp,
+            Class<T> headerType) throws IOException {
+        return parse(jp, headerType, null);
+    }
+
+    /**
+     * Parses matrix object keeping only given rows (null means all rows).
+     */
+    public static <T> MatrixObject<T> parse(JsonParser jp,
+            Class<T> headerType, BitSet rows) throws IOException {
+        if (jp.getCurrentToken() == null)
+            jp.nextToken();
+        expect(jp, JsonToken.START_OBJECT);
+        ObjectNode header = mapper.createObjectNode();
+        DenseMatrix values = null;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            jp.nextToken();
+            if (field.equals("data") && jp.getCurrentToken() == JsonToken.START_OBJECT) {
+                values = parseData(jp, rows);
+            } else {
+                header.set(field, (JsonNode)mapper.readTree(jp));
+            }
+        }
+        MatrixObject<T> ret = new MatrixObject<T>();
+        ret.object = mapper.treeToValue(header, headerType);
+        ret.values = values;
+        return ret;
+    }
+
+    private static DenseMatrix parseData(JsonParser jp, BitSet rows) throws IOException {
+        List<String> rowIds = null;
+        List<String> colIds = null;
+        ObjectNode otherProps = mapper.createObjectNode();
+        double[] values = null;
+        BitSet missing = null;
+        int valuesCount = 0;
+        int rowCount = 0;
+        int colCount = -1;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            jp.nextToken();
+            if (field.equals("row_ids") && jp.getCurrentToken() == JsonToken.START_ARRAY) {
+                rowIds = parseIds(jp);
+            } else if (field.equals("col_ids") && jp.getCurrentToken() == JsonToken.START_ARRAY) {
+                colIds = parseIds(jp);
+            } else if (field.equals("values") && jp.getCurrentToken() == JsonToken.START_ARRAY) {
+                // Ids normally go first (workspace sorts keys) so size is known in advance
+                long expectedSize = (rowIds != null && colIds != null) ?
+                        (long)(rows == null ? rowIds.size() : rows.cardinality()) *
+                        colIds.size() : 1024;
+                if (expectedSize > Integer.MAX_VALUE)
+                    throw new IllegalStateException("Matrix is too large: " +
+                            rowIds.size() + " x " + colIds.size());
+                values = new double[(int)expectedSize];
+                missing = new BitSet();
+                JsonToken t;
+                while ((t = jp.nextToken()) == JsonToken.START_ARRAY) {
+                    int rowSize = 0;
+                    boolean skip = rows != null && !rows.get(rowCount);
+                    while ((t = jp.nextToken()) != JsonToken.END_ARRAY) {
+                        if (skip) {
+                            if (t != JsonToken.VALUE_NULL && t != JsonToken.VALUE_NUMBER_FLOAT &&
+                                    t != JsonToken.VALUE_NUMBER_INT)
+                                throw new IllegalStateException("Unexpected token in matrix " +
+                                        "values at row " + rowCount + ": " + t);
+                            rowSize++;
+                            continue;
+                        }
+                        if (valuesCount == values.length) {
+                            if (values.length == Integer.MAX_VALUE)
+                                throw new IllegalStateException("Matrix is too large");
+                            // Ids may declare fewer values than there are (even none)
+                            values = Arrays.copyOf(values, (int)Math.min(Integer.MAX_VALUE,
+                                    Math.max(1024, 2L * values.length)));
+                        }
+                        if (t == JsonToken.VALUE_NULL) {
+                            values[valuesCount] = Double.NaN;
+                            missing.set(valuesCount);
+                        } else if (t == JsonToken.VALUE_NUMBER_FLOAT ||
+                                t == JsonToken.VALUE_NUMBER_INT) {
+                            values[valuesCount] = jp.getDoubleValue();
+                        } else {
+                            throw new IllegalStateException("Unexpected token in matrix values " +
+                                    "at row " + rowCount + ": " + t);
+                        }
+                        valuesCount++;
+                        rowSize++;
+                    }
+                    if (colCount < 0) {
+                        colCount = rowSize;
+                    } else if (colCount != rowSize) {
+                        throw new IllegalStateException("Row " + rowCount + " has " + rowSize +
+                                " values, expected " + colCount);
+                    }
+                    rowCount++;
+                }
+                expect(jp, JsonToken.END_ARRAY);
+            } else {
+                otherProps.set(field, (JsonNode)mapper.readTree(jp));
+            }
+        }
+        if (rowIds == null || colIds == null || values == null)
+            throw new IllegalStateException("Matrix data should include row_ids, " +
+                    "col_ids and values");
+        if (rowCount != rowIds.size() || (rowCount > 0 && colCount != colIds.size()))
+            throw new IllegalStateException("Matrix values " + rowCount + " x " +
+                    Math.max(colCount, 0) + " don't match ids " + rowIds.size() +
+                    " x " + colIds.size());
+        if (rows != null) {
+            if (rows.length() > rowCount)
+                throw new IllegalStateException("Row position " + (rows.length() - 1) +
+                        " is out of matrix with " + rowCount + " rows");
+            StringTable.Builder keptIds = new StringTable.Builder();
+            for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+                keptIds.add(rowIds.get(row));
+            rowIds = keptIds.build();
+        }
+        if (values.length != valuesCount)
+            values = Arrays.copyOf(values, valuesCount);
+        DenseMatrix ret = new DenseMatrix(rowIds, colIds, values, missing);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> props = mapper.treeToValue(otherProps, Map.class);
+        ret.getAdditionalProperties().putAll(props);
+        return ret;
+    }
+
+    private static List<String> parseIds(JsonParser jp) throws IOException {
+        StringTable.Builder ret = new StringTable.Builder();
+        JsonToken t;
+        while ((t = jp.nextToken()) != JsonToken.END_ARRAY) {
+            if (t != JsonToken.VALUE_STRING)
+                throw new IllegalStateException("Unexpected token in matrix ids: " + t);
+            ret.add(jp.getText());
+        }
+        return ret.build();
+    }
+
+    private static void expect(JsonParser jp, JsonToken expected) {
+        if (jp.getCurrentToken() != expected)
+            throw new IllegalStateException("Unexpected token in matrix object: " +
+                    jp.getCurrentToken() + " (expected: " + expected + ")");
+    }
+
+    public static class MatrixObject<T> {
+        private Tuple11<Long, String, String, String, Long, String, Long, String, String,
+            Long, Map<String, String>> info;
+        private T object;
+        private DenseMatrix values;
+
+        /**
+         * Workspace object info (null if object was parsed from stream directly).
+         */
+        public Tuple11<Long, String, String, String, Long, String, Long, String, String,
+            Long, Map<String, String>> getInfo() {
+            return info;
+        }
+
+        /**
+         * Object fields except "data".
+         */
+        public T getObject() {
+            return object;
+        }
+
+        /**
+         * Matrix data or null if object has no "data" field.
+         */
+        public DenseMatrix getValues() {
+            return values;
+        }
+    }
+}
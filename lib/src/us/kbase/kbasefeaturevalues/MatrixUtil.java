@@ -70,28 +70,35 @@ public class MatrixUtil {
     }
     
     public static void fillMissingValues(FloatMatrix2D matrix) {
-        List<List<Double>> values = matrix.getValues();
+        DenseMatrix dense = DenseMatrix.fromFloatMatrix2D(matrix);
+        fillMissingValues(dense);
+        matrix.setValues(dense.toFloatMatrix2D().getValues());
+    }
+
+    /**
+     * Replaces missing cells with average of all present values in the matrix.
+     */
+    public static void fillMissingValues(DenseMatrix matrix) {
+        if (!matrix.hasMissingValues())
+            return;
+        double[] values = matrix.getValues();
+        int colCount = matrix.getColCount();
         double avg = 0;
         int count = 0;
-        boolean thereAreMissingVals = false;
-        for (List<Double> row : values) {
-            for (Double value : row) {
-                if (value == null) {
-                    thereAreMissingVals = true;
-                } else {
-                    avg += value;
+        for (int row = 0; row < matrix.getRowCount(); row++) {
+            for (int col = 0; col < colCount; col++) {
+                if (!matrix.isMissing(row, col)) {
+                    avg += values[row * colCount + col];
                     count++;
                 }
             }
         }
-        if (thereAreMissingVals) {
-            if (count > 0)
-                avg /= count;
-            for (List<Double> row : values) {
-                for (int pos = 0; pos < row.size(); pos++) {
-                    if (row.get(pos) == null)
-                        row.set(pos, avg);
-                }
+        if (count > 0)
+            avg /= count;
+        for (int row = 0; row < matrix.getRowCount(); row++) {
+            for (int col = 0; col < colCount; col++) {
+                if (matrix.isMissing(row, col))
+                    matrix.set(row, col, avg);
             }
         }
     }
@@ -0,0 +1,317 @@
+package us.kbase.kbasefeaturevalues;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed top-K correlated rows for every row of one matrix version, stored
+ * in binary file and memory-mapped for reading. For each row two fixed-size
+ * lists are kept: K most positively and K most negatively correlated rows (over
+ * all columns), absolute mode is answered by merging them. Row ids are stored
+ * too (with order sorted by id) so lookups don't need matrix itself.
+ * <pre>
+ * header:   magic, format version, row count, column count, K (int each)
+ * records:  row count x (K positive + K negative) x (int row, float correlation),
+ *           unused slots have row = -1
+ * ids:      (row count + 1) int offsets into id bytes, row count int positions
+ *           sorted by id, UTF-8 id bytes
+ * </pre>
+ */
+public class NeighborIndex {
+	private static final int MAGIC = 0x4B464E49;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int ENTRY_SIZE = 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Map<String, NeighborIndex> openIndeces = new HashMap<String, NeighborIndex>();
+
+	private final MappedByteBuffer buffer;
+	private final String stamp;
+	private final int rowCount;
+	private final int colCount;
+	private final int k;
+	private final int idOffsetsPos;
+	private final int sortedPos;
+	private final int idBytesPos;
+
+	private NeighborIndex(MappedByteBuffer buffer, String stamp) {
+		this.buffer = buffer;
+		this.stamp = stamp;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+			throw new IllegalStateException("Unsupported neighbor index format");
+		rowCount = buffer.getInt(8);
+		colCount = buffer.getInt(12);
+		k = buffer.getInt(16);
+		idOffsetsPos = HEADER_SIZE + rowCount * 2 * k * ENTRY_SIZE;
+		sortedPos = idOffsetsPos + (rowCount + 1) * 4;
+		idBytesPos = sortedPos + rowCount * 4;
+	}
+
+	/**
+	 * Location of index for given object version inside scratch directory.
+	 */
+	public static File getIndexFile(File scratchDir, long wsId, long objId, long version) {
+		return new File(new File(scratchDir, "neighbor_index"),
+				wsId + "_" + objId + "_" + version + ".nbr");
+	}
+
+	/**
+	 * Opens index file, returns null if it doesn't exist. Opened files are kept
+	 * mapped and shared between callers.
+	 */
+	public static NeighborIndex open(File file) throws IOException {
+		if (!file.exists())
+			return null;
+		String key = file.getAbsolutePath();
+		String stamp = file.lastModified() + ":" + file.length();
+		synchronized (openIndeces) {
+			NeighborIndex ret = openIndeces.get(key);
+			if (ret == null || !ret.stamp.equals(stamp)) {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					ret = new NeighborIndex(raf.getChannel().map(
+							FileChannel.MapMode.READ_ONLY, 0, raf.length()), stamp);
+				} finally {
+					raf.close();
+				}
+				openIndeces.put(key, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Calculates neighbors of all rows over all columns and writes index into file
+	 * (through temporary file so readers never see partial index).
+	 */
+	public static NeighborIndex build(DenseMatrix matrix, int k, File file,
+			long parallelThreshold) throws IOException {
+		final List<String> rowIds = matrix.getRowIds();
+		int rowCount = matrix.getRowCount();
+		int[] rows = VectorStats.toIndeces(null, rowCount);
+		int[] cols = VectorStats.toIndeces(null, matrix.getColCount());
+		byte[][] ids = new byte[rowCount][];
+		long idBytesSize = 0;
+		for (int i = 0; i < rowCount; i++) {
+			ids[i] = rowIds.get(i).getBytes(UTF8);
+			idBytesSize += ids[i].length;
+		}
+		long size = HEADER_SIZE + (long)rowCount * 2 * k * ENTRY_SIZE +
+				(2L * rowCount + 1) * 4 + idBytesSize;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalStateException("Neighbor index is too large: " + size + " bytes");
+		TopCorrelatedSearch.Neighbors[][] found = TopCorrelatedSearch.search(matrix, rows, cols,
+				k, new TopCorrelatedSearch.Mode[] {TopCorrelatedSearch.Mode.POSITIVE,
+				TopCorrelatedSearch.Mode.NEGATIVE}, parallelThreshold);
+		Integer[] sorted = new Integer[rowCount];
+		for (int i = 0; i < rowCount; i++)
+			sorted[i] = i;
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return rowIds.get(o1).compareTo(rowIds.get(o2));
+			}
+		});
+		File dir = file.getParentFile();
+		if (dir != null && !dir.exists())
+			dir.mkdirs();
+		File tempFile = File.createTempFile(file.getName() + "_", ".tmp", dir);
+		try {
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tempFile)));
+			try {
+				os.writeInt(MAGIC);
+				os.writeInt(FORMAT_VERSION);
+				os.writeInt(rowCount);
+				os.writeInt(matrix.getColCount());
+				os.writeInt(k);
+				for (int i = 0; i < rowCount; i++)
+					for (TopCorrelatedSearch.Neighbors[] modeFound : found)
+						for (int pos = 0; pos < k; pos++) {
+							if (pos < modeFound[i].size()) {
+								os.writeInt(modeFound[i].getRow(pos));
+								os.writeFloat((float)modeFound[i].getCorrelation(pos));
+							} else {
+								os.writeInt(-1);
+								os.writeFloat(Float.NaN);
+							}
+						}
+				int offset = 0;
+				for (int i = 0; i < rowCount; i++) {
+					os.writeInt(offset);
+					offset += ids[i].length;
+				}
+				os.writeInt(offset);
+				for (int i = 0; i < rowCount; i++)
+					os.writeInt(sorted[i]);
+				for (int i = 0; i < rowCount; i++)
+					os.write(ids[i]);
+			} finally {
+				os.close();
+			}
+			if (file.exists())
+				file.delete();
+			if (!tempFile.renameTo(file))
+				throw new IllegalStateException("Can not store neighbor index in " + file);
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+		return open(file);
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColCount() {
+		return colCount;
+	}
+
+	/**
+	 * @return number of neighbors stored for each row in each direction
+	 */
+	public int getK() {
+		return k;
+	}
+
+	public String getRowId(int row) {
+		int from = buffer.getInt(idOffsetsPos + row * 4);
+		int to = buffer.getInt(idOffsetsPos + (row + 1) * 4);
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(idBytesPos + from + i);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Row ids decoded from index on access.
+	 */
+	public List<String> getRowIds() {
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				if (index < 0 || index >= rowCount)
+					throw new IndexOutOfBoundsException("Row index: " + index);
+				return getRowId(index);
+			}
+
+			@Override
+			public int size() {
+				return rowCount;
+			}
+		};
+	}
+
+	/**
+	 * @return row position or -1 if there is no row with such id
+	 */
+	public int findRow(String rowId) {
+		int low = 0;
+		int high = rowCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int row = buffer.getInt(sortedPos + middle * 4);
+			int cmp = getRowId(row).compareTo(rowId);
+			if (cmp < 0) {
+				low = middle + 1;
+			} else if (cmp > 0) {
+				high = middle - 1;
+			} else {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Top neighbors of given row, count should be not larger than {@link #getK()}.
+	 * Result is the same as {@link TopCorrelatedSearch} gives over all columns
+	 * up to float precision of stored correlations.
+	 */
+	public TopCorrelatedSearch.Neighbors getNeighbors(int row, TopCorrelatedSearch.Mode mode,
+			int count) {
+		if (count > k)
+			throw new IllegalStateException("Index keeps only " + k + " neighbors per row");
+		int positivePos = HEADER_SIZE + row * 2 * k * ENTRY_SIZE;
+		int negativePos = positivePos + k * ENTRY_SIZE;
+		int[] retRows = new int[count];
+		double[] retCorrelations = new double[count];
+		int size = 0;
+		if (mode != TopCorrelatedSearch.Mode.ABSOLUTE) {
+			int pos = mode == TopCorrelatedSearch.Mode.POSITIVE ? positivePos : negativePos;
+			for (; size < count; size++) {
+				int neighbor = buffer.getInt(pos + size * ENTRY_SIZE);
+				if (neighbor < 0)
+					break;
+				retRows[size] = neighbor;
+				retCorrelations[size] = buffer.getFloat(pos + size * ENTRY_SIZE + 4);
+			}
+		} else {
+			// Row with |cor| in top K is in top K of its own sign, so merge of
+			// non-negative part of first list and negative part of second one is exact
+			int i = 0;
+			int j = 0;
+			while (size < count) {
+				int rowI = -1;
+				double corI = 0;
+				for (; i < k; i++) {
+					rowI = buffer.getInt(positivePos + i * ENTRY_SIZE);
+					corI = buffer.getFloat(positivePos + i * ENTRY_SIZE + 4);
+					if (rowI < 0 || corI >= 0)
+						break;
+				}
+				if (i == k || corI < 0)
+					rowI = -1;
+				int rowJ = -1;
+				double corJ = 0;
+				for (; j < k; j++) {
+					rowJ = buffer.getInt(negativePos + j * ENTRY_SIZE);
+					corJ = buffer.getFloat(negativePos + j * ENTRY_SIZE + 4);
+					if (rowJ < 0 || corJ < 0)
+						break;
+				}
+				if (j == k || corJ >= 0)
+					rowJ = -1;
+				boolean takeI;
+				if (rowI < 0 && rowJ < 0) {
+					break;
+				} else if (rowJ < 0) {
+					takeI = true;
+				} else if (rowI < 0) {
+					takeI = false;
+				} else {
+					takeI = corI > -corJ || (corI == -corJ && rowI < rowJ);
+				}
+				if (takeI) {
+					retRows[size] = rowI;
+					retCorrelations[size] = corI;
+					i++;
+				} else {
+					retRows[size] = rowJ;
+					retCorrelations[size] = corJ;
+					j++;
+				}
+				size++;
+			}
+		}
+		if (size < count) {
+			retRows = Arrays.copyOf(retRows, size);
+			retCorrelations = Arrays.copyOf(retCorrelations, size);
+		}
+		return new TopCorrelatedSearch.Neighbors(retRows, retCorrelations);
+	}
+}
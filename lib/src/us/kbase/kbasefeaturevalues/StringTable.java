@@ -0,0 +1,61 @@
+package us.kbase.kbasefeaturevalues;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of strings packed into one char array with an offset per item.
+ * Used for row/column ids of large matrices where separate String objects cost
+ * more than the characters they hold. Strings are created on access only.
+ */
+public class StringTable extends AbstractList<String> implements RandomAccess {
+    private final char[] chars;
+    private final int[] offsets;
+    private final int size;
+
+    private StringTable(char[] chars, int[] offsets, int size) {
+        this.chars = chars;
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        return new String(chars, offsets[index], offsets[index + 1] - offsets[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public static class Builder {
+        private char[] chars = new char[1024];
+        private int[] offsets = new int[65];
+        private int size = 0;
+
+        public Builder add(String item) {
+            int start = offsets[size];
+            int end = start + item.length();
+            if (end > chars.length)
+                chars = Arrays.copyOf(chars, Math.max(end, chars.length * 2));
+            item.getChars(0, item.length(), chars, start);
+            if (size + 2 > offsets.length)
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[++size] = end;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public StringTable build() {
+            return new StringTable(Arrays.copyOf(chars, offsets[size]),
+                    Arrays.copyOf(offsets, size + 1), size);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package us.kbase.kbasefeaturevalues;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds K rows of {@link DenseMatrix} which are most correlated with given query
+ * rows without building full correlation matrix. All rows are standardized once
+ * (see {@link CorrelationEngine}) so each query is a pass of dot products over
+ * the matrix, best candidates are kept in bounded min-heap of size K. Queries
+ * are processed in parallel for large inputs.
+ */
+public class TopCorrelatedSearch {
+
+	public enum Mode {
+		POSITIVE, NEGATIVE, ABSOLUTE;
+
+		/**
+		 * @return value which is larger for better candidates
+		 */
+		double score(double correlation) {
+			switch (this) {
+			case NEGATIVE: return -correlation;
+			case ABSOLUTE: return Math.abs(correlation);
+			default: return correlation;
+			}
+		}
+	}
+
+	/**
+	 * Rows found for one query sorted from best to worst. Ties are resolved
+	 * in favor of row with smaller index.
+	 */
+	public static class Neighbors {
+		private final int[] rows;
+		private final double[] correlations;
+
+		Neighbors(int[] rows, double[] correlations) {
+			this.rows = rows;
+			this.correlations = correlations;
+		}
+
+		public int size() {
+			return rows.length;
+		}
+
+		public int getRow(int pos) {
+			return rows[pos];
+		}
+
+		public double getCorrelation(int pos) {
+			return correlations[pos];
+		}
+	}
+
+	/**
+	 * @param queryRows positions of query rows, query row itself is never included
+	 * into its result
+	 * @param colIndeces positions of columns correlation is calculated over
+	 * @param k maximal number of rows found for each query
+	 */
+	public static Neighbors[] search(DenseMatrix matrix, int[] queryRows, int[] colIndeces,
+			int k, Mode mode, long parallelThreshold) {
+		return search(matrix, queryRows, colIndeces, k, new Mode[] {mode}, parallelThreshold)[0];
+	}
+
+	/**
+	 * Same as {@link #search(DenseMatrix, int[], int[], int, Mode, long)} but results
+	 * for several modes are collected in one pass over matrix.
+	 * @return array of results for each mode (in the same order as modes)
+	 */
+	public static Neighbors[][] search(DenseMatrix matrix, int[] queryRows, int[] colIndeces,
+			int k, Mode[] modes, long parallelThreshold) {
+		int n = matrix.getRowCount();
+		int m = colIndeces.length;
+		if ((long)n * m > Integer.MAX_VALUE)
+			throw new IllegalStateException("Matrix is too large: " + n + " x " + m);
+		int[] allRows = new int[n];
+		for (int i = 0; i < n; i++)
+			allRows[i] = i;
+		double[] vectors = new double[n * m];
+		double[] raw = new double[n * m];
+		boolean[] hasMissing = new boolean[n];
+		boolean[] constant = new boolean[n];
+		CorrelationEngine.standardize(matrix.getValues(), matrix.getColCount(), allRows,
+				colIndeces, vectors, raw, hasMissing, constant);
+		Neighbors[][] ret = new Neighbors[modes.length][queryRows.length];
+		QueryTask task = new QueryTask(vectors, raw, hasMissing, constant, n, m, queryRows,
+				Math.max(0, Math.min(k, n - 1)), modes, ret, 0, queryRows.length,
+				Math.max(1, parallelThreshold));
+		if ((long)queryRows.length * n * m > parallelThreshold && queryRows.length > 1) {
+			VectorStats.getPool().invoke(task);
+		} else {
+			task.compute();
+		}
+		return ret;
+	}
+
+	private static class QueryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double[] vectors;
+		private final double[] raw;
+		private final boolean[] hasMissing;
+		private final boolean[] constant;
+		private final int n;
+		private final int m;
+		private final int[] queryRows;
+		private final int k;
+		private final Mode[] modes;
+		private final Neighbors[][] ret;
+		private final int from;
+		private final int to;
+		private final long threshold;
+
+		QueryTask(double[] vectors, double[] raw, boolean[] hasMissing, boolean[] constant,
+				int n, int m, int[] queryRows, int k, Mode[] modes, Neighbors[][] ret,
+				int from, int to, long threshold) {
+			this.vectors = vectors;
+			this.raw = raw;
+			this.hasMissing = hasMissing;
+			this.constant = constant;
+			this.n = n;
+			this.m = m;
+			this.queryRows = queryRows;
+			this.k = k;
+			this.modes = modes;
+			this.ret = ret;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1 && (long)(to - from) * n * m > threshold) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new QueryTask(vectors, raw, hasMissing, constant, n, m, queryRows,
+						k, modes, ret, from, middle, threshold),
+						new QueryTask(vectors, raw, hasMissing, constant, n, m, queryRows,
+								k, modes, ret, middle, to, threshold));
+				return;
+			}
+			for (int q = from; q < to; q++) {
+				Heap[] heaps = new Heap[modes.length];
+				for (int i = 0; i < modes.length; i++)
+					heaps[i] = new Heap(k);
+				if (k > 0 && !(constant[queryRows[q]] && !hasMissing[queryRows[q]]))
+					searchOne(queryRows[q], heaps);
+				for (int i = 0; i < modes.length; i++)
+					ret[i][q] = heaps[i].toNeighbors();
+			}
+		}
+
+		private void searchOne(int query, Heap[] heaps) {
+			int offsetQ = query * m;
+			boolean simpleQ = !hasMissing[query];
+			for (int j = 0; j < n; j++) {
+				if (j == query)
+					continue;
+				double value;
+				if (!simpleQ || hasMissing[j]) {
+					value = CorrelationEngine.pairwiseComplete(raw, offsetQ, raw, j * m, m);
+				} else if (constant[j]) {
+					continue;
+				} else {
+					int offsetJ = j * m;
+					double dot = 0;
+					for (int c = 0; c < m; c++)
+						dot += vectors[offsetQ + c] * vectors[offsetJ + c];
+					value = CorrelationEngine.clamp(dot);
+				}
+				if (value != value)
+					continue;
+				for (int i = 0; i < modes.length; i++)
+					heaps[i].offer(j, value, modes[i].score(value));
+			}
+		}
+	}
+
+	/**
+	 * Bounded min-heap on primitive arrays, root is the worst of kept candidates.
+	 */
+	private static class Heap {
+		private final int[] rows;
+		private final double[] correlations;
+		private final double[] scores;
+		private int size = 0;
+
+		Heap(int capacity) {
+			rows = new int[capacity];
+			correlations = new double[capacity];
+			scores = new double[capacity];
+		}
+
+		void offer(int row, double correlation, double score) {
+			if (size < rows.length) {
+				int pos = size++;
+				set(pos, row, correlation, score);
+				siftUp(pos);
+			} else if (rows.length > 0 && isWorse(0, row, score)) {
+				set(0, row, correlation, score);
+				siftDown(0);
+			}
+		}
+
+		Neighbors toNeighbors() {
+			int count = size;
+			int[] retRows = new int[count];
+			double[] retCorrelations = new double[count];
+			// Removing root repeatedly gives candidates from worst to best
+			for (int pos = count - 1; pos >= 0; pos--) {
+				retRows[pos] = rows[0];
+				retCorrelations[pos] = correlations[0];
+				size--;
+				if (size > 0) {
+					set(0, rows[size], correlations[size], scores[size]);
+					siftDown(0);
+				}
+			}
+			return new Neighbors(retRows, retCorrelations);
+		}
+
+		/**
+		 * @return true if element at pos is worse than candidate (row, score)
+		 */
+		private boolean isWorse(int pos, int row, double score) {
+			return scores[pos] < score || (scores[pos] == score && rows[pos] > row);
+		}
+
+		private void set(int pos, int row, double correlation, double score) {
+			rows[pos] = row;
+			correlations[pos] = correlation;
+			scores[pos] = score;
+		}
+
+		private void siftUp(int pos) {
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				if (!isWorse(pos, rows[parent], scores[parent]))
+					break;
+				swap(pos, parent);
+				pos = parent;
+			}
+		}
+
+		private void siftDown(int pos) {
+			while (true) {
+				int child = 2 * pos + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && isWorse(child + 1, rows[child], scores[child]))
+					child++;
+				if (!isWorse(child, rows[pos], scores[pos]))
+					break;
+				swap(pos, child);
+				pos = child;
+			}
+		}
+
+		private void swap(int a, int b) {
+			int row = rows[a];
+			double correlation = correlations[a];
+			double score = scores[a];
+			set(a, rows[b], correlations[b], scores[b]);
+			set(b, row, correlation, score);
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package us.kbase.kbasefeaturevalues;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Per-item statistics (count, mean, min, max, variance, number of missing values)
+ * for a set of matrix rows or columns. Each item is processed in one pass using
+ * Welford's algorithm directly over primitive storage of {@link DenseMatrix}.
+ * Results are kept in parallel arrays indexed by item position.
+ */
+public class VectorStats {
+	/**
+	 * Default minimal number of matrix cells worth splitting across threads.
+	 */
+	public static final long DEFAULT_PARALLEL_THRESHOLD = 200000;
+	private static ForkJoinPool pool = null;
+
+	private final int size;
+	private final long[] counts;
+	private final long[] missingCounts;
+	private final double[] means;
+	private final double[] mins;
+	private final double[] maxs;
+	private final double[] m2s;
+
+	public VectorStats(int size) {
+		this.size = size;
+		counts = new long[size];
+		missingCounts = new long[size];
+		means = new double[size];
+		mins = new double[size];
+		maxs = new double[size];
+		m2s = new double[size];
+	}
+
+	/**
+	 * Calculates statistics for rows (byRows=true) or columns of matrix.
+	 * @param indecesFor positions of rows/columns to process
+	 * @param indecesOn positions of columns/rows values are taken from
+	 */
+	public static VectorStats compute(DenseMatrix matrix, boolean byRows,
+			int[] indecesFor, int[] indecesOn) {
+		return compute(matrix, byRows, indecesFor, indecesOn, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Same as {@link #compute(DenseMatrix, boolean, int[], int[])} but items are
+	 * split into fork/join tasks when number of processed cells exceeds
+	 * parallelThreshold. Each item is still processed by one thread so results
+	 * don't depend on the split.
+	 */
+	public static VectorStats compute(DenseMatrix matrix, boolean byRows,
+			int[] indecesFor, int[] indecesOn, long parallelThreshold) {
+		// Columns are read from column-major copy so both cases scan contiguous memory
+		double[] values = byRows ? matrix.getValues() : matrix.getTransposedValues();
+		int strideFor = byRows ? matrix.getColCount() : matrix.getRowCount();
+		VectorStats ret = new VectorStats(indecesFor.length);
+		ComputeTask task = new ComputeTask(ret, values, indecesFor, strideFor,
+				indecesOn, reciprocals(indecesOn.length), 0, indecesFor.length,
+				Math.max(1, parallelThreshold));
+		if ((long)indecesFor.length * indecesOn.length > parallelThreshold &&
+				indecesFor.length > 1) {
+			getPool().invoke(task);
+		} else {
+			task.compute();
+		}
+		return ret;
+	}
+
+	/**
+	 * Fork/join pool shared by all parallel matrix computations of the service.
+	 */
+	public static synchronized ForkJoinPool getPool() {
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	private static class ComputeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final VectorStats target;
+		private final double[] values;
+		private final int[] indecesFor;
+		private final int strideFor;
+		private final int[] offsetsOn;
+		private final double[] reciprocals;
+		private final int from;
+		private final int to;
+		private final long threshold;
+
+		ComputeTask(VectorStats target, double[] values, int[] indecesFor, int strideFor,
+				int[] offsetsOn, double[] reciprocals, int from, int to, long threshold) {
+			this.target = target;
+			this.values = values;
+			this.indecesFor = indecesFor;
+			this.strideFor = strideFor;
+			this.offsetsOn = offsetsOn;
+			this.reciprocals = reciprocals;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1 && (long)(to - from) * offsetsOn.length > threshold) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ComputeTask(target, values, indecesFor, strideFor, offsetsOn,
+						reciprocals, from, middle, threshold),
+						new ComputeTask(target, values, indecesFor, strideFor, offsetsOn,
+								reciprocals, middle, to, threshold));
+				return;
+			}
+			for (int i = from; i < to; i++)
+				target.accumulate(i, values, indecesFor[i] * strideFor, offsetsOn, reciprocals);
+		}
+	}
+
+	/**
+	 * Table of 1/n for n up to maxCount, it replaces division in the inner loop.
+	 */
+	public static double[] reciprocals(int maxCount) {
+		double[] ret = new double[maxCount + 1];
+		for (int n = 1; n <= maxCount; n++)
+			ret[n] = 1.0 / n;
+		return ret;
+	}
+
+	/**
+	 * Single pass over values[offset + offsetsOn[j]], NaN is counted as missing.
+	 * @param reciprocals result of {@link #reciprocals(int)} for offsetsOn.length
+	 */
+	public void accumulate(int item, double[] values, int offset, int[] offsetsOn,
+			double[] reciprocals) {
+		int n = 0;
+		int missing = 0;
+		double mean = 0;
+		double m2 = 0;
+		double min = Double.NaN;
+		double max = Double.NaN;
+		for (int j = 0; j < offsetsOn.length; j++) {
+			double value = values[offset + offsetsOn[j]];
+			if (value != value) {
+				missing++;
+				continue;
+			}
+			n++;
+			double delta = value - mean;
+			mean += delta * reciprocals[n];
+			m2 += delta * (value - mean);
+			if (n == 1) {
+				min = value;
+				max = value;
+			} else {
+				if (value < min)
+					min = value;
+				if (value > max)
+					max = value;
+			}
+		}
+		counts[item] = n;
+		missingCounts[item] = missing;
+		means[item] = mean;
+		mins[item] = min;
+		maxs[item] = max;
+		m2s[item] = m2;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of non-missing values
+	 */
+	public long getCount(int item) {
+		return counts[item];
+	}
+
+	public long getMissingCount(int item) {
+		return missingCounts[item];
+	}
+
+	/**
+	 * @return mean of non-missing values or 0 if there are none
+	 */
+	public double getMean(int item) {
+		return means[item];
+	}
+
+	/**
+	 * @return minimum or NaN if there are no values
+	 */
+	public double getMin(int item) {
+		return mins[item];
+	}
+
+	/**
+	 * @return maximum or NaN if there are no values
+	 */
+	public double getMax(int item) {
+		return maxs[item];
+	}
+
+	/**
+	 * @return sample standard deviation or 0 if there are less than two values
+	 */
+	public double getStd(int item) {
+		return counts[item] > 1 ? Math.sqrt(m2s[item] / (counts[item] - 1)) : 0;
+	}
+
+	/**
+	 * Resolves optional list of indeces into array, null means all positions.
+	 */
+	public static int[] toIndeces(List<Long> indeces, int allCount) {
+		int[] ret;
+		if (indeces != null) {
+			ret = new int[indeces.size()];
+			for (int i = 0; i < ret.length; i++)
+				ret[i] = indeces.get(i).intValue();
+		} else {
+			ret = new int[allCount];
+			for (int i = 0; i < ret.length; i++)
+				ret[i] = i;
+		}
+		return ret;
+	}
+}
@@ -4,7 +4,14 @@ import java.io.File;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import junit.framework.Assert;
 
@@ -12,11 +19,29 @@ import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import us.kbase.clusterservice.BinaryMatrixTransport;
+import us.kbase.clusterservice.ClusterQualities;
 import us.kbase.clusterservice.ClusterResults;
+import us.kbase.clusterservice.ClusterServiceJavaLocalClient;
+import us.kbase.clusterservice.ClusterServiceLocalClient;
 import us.kbase.clusterservice.ClusterServicePyLocalClient;
 import us.kbase.clusterservice.ClusterServiceRLocalClient;
+import us.kbase.clusterservice.ClusterServiceRouterLocalClient;
+import us.kbase.clusterservice.ClusterServiceRouterLocalClient.Backend;
+import us.kbase.clusterservice.ClusterSetEvaluation;
+import us.kbase.clusterservice.DistanceCache;
+import us.kbase.clusterservice.HierarchicalClustering;
+import us.kbase.clusterservice.KEstimation;
+import us.kbase.clusterservice.KMeansClustering;
+import us.kbase.clusterservice.MedoidClustering;
+import us.kbase.common.service.JsonClientException;
+import us.kbase.common.service.JsonLocalClientCaller;
+import us.kbase.common.service.LocalCallMetrics;
+import us.kbase.common.service.LocalWorkerPool;
+import us.kbase.common.service.OutputTail;
 import us.kbase.common.service.ServerException;
 import us.kbase.common.service.Tuple2;
+import us.kbase.kbasefeaturevalues.DenseMatrix;
 import us.kbase.kbasefeaturevalues.EstimateKResult;
 import us.kbase.kbasefeaturevalues.FloatMatrix2D;
 
@@ -105,6 +130,947 @@ public class ClusterServiceTest {
         }
     }
 
+    @Test
+    public void workerPoolTest() throws Exception {
+        if (System.getProperty("os.name").toLowerCase().contains("windows"))
+            return;
+        File binDir = Files.createTempDirectory("worker_pool").toFile();
+        File pids = new File(binDir, "pids.txt");
+        // Fake worker answering every call with the same labels
+        File script = new File(binDir, "run_ClusterServiceR_async_job.sh");
+        Files.write(script.toPath(), Arrays.asList(
+                "#!/bin/bash",
+                "[ \"$1\" == \"" + LocalWorkerPool.WORKER_ARG + "\" ] || exit 1",
+                "while read -r line; do",
+                "  if [ \"$line\" == \"KBWORKER PING\" ]; then echo \"KBWORKER PONG\"; continue; fi",
+                "  grep -q " + BinaryMatrixTransport.VALUES_FILE_PROPERTY +
+                        " \"$(echo \"$line\" | cut -f1)\" || exit 2",
+                "  echo $$ >> " + pids.getAbsolutePath(),
+                "  echo \"log line\"",
+                "  echo '{\"version\":\"1.1\",\"result\":[{\"cluster_labels\":[1,1,2]}]}'" +
+                        " > \"$(echo \"$line\" | cut -f2)\"",
+                "  echo \"KBWORKER DONE 10\"",
+                "done"), java.nio.charset.Charset.forName("UTF-8"));
+        script.setExecutable(true);
+        LocalWorkerPool pool = new LocalWorkerPool(1, 2, 100);
+        JsonLocalClientCaller.setWorkerPool(pool);
+        try {
+            ClusterServiceRLocalClient cl = new ClusterServiceRLocalClient(binDir);
+            cl.setBinDir(binDir);
+            for (int i = 0; i < 3; i++)
+                Assert.assertEquals(Arrays.asList(1L, 1L, 2L), cl.calcClusterQualities(
+                        getSampleMatrix(), Arrays.asList(1L, 1L, 2L)).getClusterLabels());
+            List<String> calls = Files.readAllLines(pids.toPath(),
+                    java.nio.charset.Charset.forName("UTF-8"));
+            // Worker is restarted after 2 calls
+            Assert.assertEquals(3, calls.size());
+            Assert.assertEquals(calls.get(0), calls.get(1));
+            Assert.assertFalse(calls.get(1).equals(calls.get(2)));
+            Assert.assertEquals(1, pool.getWorkerCount(script.getAbsolutePath()));
+            // Binary matrix files are removed after calls
+            for (File file : binDir.listFiles())
+                Assert.assertFalse(file.getName(), file.getName().endsWith(".npy"));
+            // Idle worker interrupted while being pinged is stopped
+            Thread.currentThread().interrupt();
+            try {
+                pool.call(script.getAbsolutePath(), binDir, new OutputTail(), new OutputTail(),
+                        "input.json", "output.json", null, 0);
+                Assert.fail("Interrupted call should be reported");
+            } catch (InterruptedException ex) {
+                Assert.assertFalse(Thread.interrupted());
+            }
+            Assert.assertEquals(0, pool.getWorkerCount(script.getAbsolutePath()));
+        } finally {
+            JsonLocalClientCaller.setWorkerPool(null);
+            pool.shutdown();
+            deleteRecursively(binDir);
+        }
+        Assert.assertEquals(0, pool.getWorkerCount(new File(binDir,
+                "run_ClusterServiceR_async_job.sh").getAbsolutePath()));
+    }
+
+    @Test
+    public void concurrentLocalCallsTest() throws Exception {
+        if (System.getProperty("os.name").toLowerCase().contains("windows"))
+            return;
+        File binDir = Files.createTempDirectory("local_calls").toFile();
+        final File workDir = new File(binDir, "work");
+        File active = new File(binDir, "active");
+        active.mkdir();
+        File calls = new File(binDir, "calls.txt");
+        // Fake CLI recording its folder and number of calls running with it
+        final File script = new File(binDir, "run_ClusterServiceR_async_job.sh");
+        Files.write(script.toPath(), Arrays.asList(
+                "#!/bin/bash",
+                "touch " + active.getAbsolutePath() + "/$$",
+                "echo \"$PWD $(ls " + active.getAbsolutePath() + " | wc -l)\" >> " +
+                        calls.getAbsolutePath(),
+                "sleep 0.3",
+                "rm " + active.getAbsolutePath() + "/$$",
+                "echo '{\"version\":\"1.1\",\"result\":[{\"cluster_labels\":[1,1,2]}]}' > \"$2\""),
+                java.nio.charset.Charset.forName("UTF-8"));
+        script.setExecutable(true);
+        JsonLocalClientCaller.setMaxConcurrentCalls(2);
+        try {
+            final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 4; i++) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ClusterServiceRLocalClient cl = new ClusterServiceRLocalClient(workDir);
+                            cl.setBinDir(script.getParentFile());
+                            results.add(cl.calcClusterQualities(getSampleMatrix(),
+                                    Arrays.asList(1L, 1L, 2L)).getClusterLabels());
+                        } catch (Exception ex) {
+                            results.add(ex);
+                        }
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+            for (Thread t : threads)
+                t.join();
+            for (Object result : results)
+                Assert.assertEquals(Arrays.asList(1L, 1L, 2L), result);
+            Assert.assertEquals(4, results.size());
+            Set<String> callDirs = new HashSet<String>();
+            for (String line : Files.readAllLines(calls.toPath(),
+                    java.nio.charset.Charset.forName("UTF-8"))) {
+                String[] parts = line.trim().split(" +");
+                callDirs.add(parts[0]);
+                Assert.assertTrue(line, Integer.parseInt(parts[1]) <= 2);
+                Assert.assertEquals(workDir.getCanonicalFile(),
+                        new File(parts[0]).getCanonicalFile().getParentFile());
+            }
+            // Every call has its own folder which is removed afterwards
+            Assert.assertEquals(4, callDirs.size());
+            Assert.assertEquals(0, workDir.listFiles().length);
+        } finally {
+            JsonLocalClientCaller.setMaxConcurrentCalls(0);
+            deleteRecursively(binDir);
+        }
+    }
+
+    @Test
+    public void localCallLimitsTest() throws Exception {
+        if (System.getProperty("os.name").toLowerCase().contains("windows"))
+            return;
+        File binDir = Files.createTempDirectory("local_limits").toFile();
+        File childPid = new File(binDir, "child.txt");
+        // Fake CLI printing a lot and hanging together with its child process
+        File script = new File(binDir, "run_ClusterServiceR_async_job.sh");
+        Files.write(script.toPath(), Arrays.asList(
+                "#!/bin/bash",
+                "sleep 60 &",
+                "echo $! > " + childPid.getAbsolutePath(),
+                "for i in $(seq 1 5000); do echo \"output line $i of runaway process\"; done",
+                "wait"), java.nio.charset.Charset.forName("UTF-8"));
+        script.setExecutable(true);
+        String method = "ClusterServiceR.calc_cluster_qualities";
+        LocalCallMetrics.reset();
+        JsonLocalClientCaller.setCallTimeout(method, 1000);
+        try {
+            final ClusterServiceRLocalClient cl = new ClusterServiceRLocalClient(
+                    new File(binDir, "work"));
+            cl.setBinDir(binDir);
+            long time = System.currentTimeMillis();
+            try {
+                cl.calcClusterQualities(getSampleMatrix(), Arrays.asList(1L, 1L, 2L));
+                Assert.fail("Call should be stopped by timeout");
+            } catch (JsonClientException ex) {
+                Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("timeout"));
+                // Only the tail of output is kept
+                Assert.assertTrue(ex.getMessage().contains("output line 5000 "));
+                Assert.assertFalse(ex.getMessage().contains("output line 1 "));
+                Assert.assertTrue(ex.getMessage().length() < OutputTail.DEFAULT_MAX_CHARS + 1000);
+            }
+            Assert.assertTrue(System.currentTimeMillis() - time < 30000);
+            // Child of CLI is stopped with it
+            File childProc = new File("/proc/" + new String(Files.readAllBytes(
+                    childPid.toPath()), "UTF-8").trim());
+            for (int i = 0; i < 100 && childProc.exists(); i++)
+                Thread.sleep(100);
+            Assert.assertFalse(childProc.exists());
+            JsonLocalClientCaller.setCallTimeout(method, 0);
+            Thread canceller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ignore) {}
+                    cl.cancel();
+                }
+            });
+            canceller.start();
+            try {
+                cl.calcClusterQualities(getSampleMatrix(), Arrays.asList(1L, 1L, 2L));
+                Assert.fail("Call should be cancelled");
+            } catch (JsonClientException ex) {
+                Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("cancelled"));
+            }
+            canceller.join();
+            Assert.assertFalse(Thread.currentThread().isInterrupted());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> stats = (Map<String, Object>)LocalCallMetrics.getReport()
+                    .get(method);
+            Assert.assertEquals(2L, stats.get("calls"));
+            Map<?, ?> outcomes = (Map<?, ?>)stats.get("outcomes");
+            Assert.assertEquals(1L, outcomes.get(LocalCallMetrics.TIMEOUT));
+            Assert.assertEquals(1L, outcomes.get(LocalCallMetrics.CANCELLED));
+            Assert.assertTrue((Long)stats.get("max_ms") >= 1000);
+        } finally {
+            JsonLocalClientCaller.setCallTimeout(method, 0);
+            deleteRecursively(binDir);
+        }
+    }
+
+    @Test
+    public void routerTest() throws Exception {
+        ClusterServiceRouterLocalClient.resetLatencies();
+        StubClient rClient = new StubClient(1);
+        StubClient pyClient = new StubClient(0);
+        ClusterServiceRouterLocalClient cl = new ClusterServiceRouterLocalClient(
+                new ClusterServiceJavaLocalClient(null), rClient, pyClient);
+        cl.setEngine(null, "AUTO");
+        FloatMatrix2D matrix = getSampleMatrix();
+        // Small matrix stays in Java
+        Assert.assertEquals(7, cl.clusterKMeans(matrix, 3L, null, null, 1L, null)
+                .getClusterLabels().size());
+        Assert.assertEquals(Backend.JAVA, cl.getLastBackend());
+        // Criteria Java doesn't implement go to R
+        cl.estimateKNew(matrix, 2L, 3L, "multiasw", null, null, null, 1L);
+        Assert.assertEquals(Backend.R, cl.getLastBackend());
+        Assert.assertEquals(1, rClient.calls);
+        // R gets only parameters it can handle
+        cl.setEngine("cluster_k_means", "r");
+        cl.clusterKMeans(matrix, 3L, null, null, 1L, KMeansClustering.ELKAN);
+        Assert.assertEquals(Backend.JAVA, cl.getLastBackend());
+        cl.clusterKMeans(matrix, 3L, null, null, 1L, KMeansClustering.MACQUEEN);
+        Assert.assertEquals(Backend.R, cl.getLastBackend());
+        cl.setEngine("cluster_hierarchical", "r");
+        cl.clusterHierarchical(matrix, "correlation", "average", 0.5, null, null);
+        Assert.assertEquals(Backend.JAVA, cl.getLastBackend());
+        cl.clusterHierarchical(matrix, null, "complete", 0.5, null, "flashClust");
+        Assert.assertEquals(Backend.R, cl.getLastBackend());
+        cl.setEngine("estimate_k_new", "r");
+        cl.estimateKNew(matrix, 2L, 3L, null, null, 0.05, null, 1L);
+        Assert.assertEquals(Backend.JAVA, cl.getLastBackend());
+        cl.estimateKNew(matrix, 2L, 3L, null, null, MedoidClustering.DEFAULT_ALPHA, 0L, 1L);
+        Assert.assertEquals(Backend.R, cl.getLastBackend());
+        Assert.assertEquals(4, rClient.calls);
+        try {
+            cl.estimateKNew(matrix, 2L, 3L, "multiasw", null, null, 1L, 1L);
+            Assert.fail("Dissimilarity input of criterion not implemented in Java should " +
+                    "be reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage().contains("estimate_k_new"));
+        }
+        try {
+            cl.clusterKMeans(matrix, 3L, null, null, 1L, "Unknown");
+            Assert.fail("Unknown algorithm should be reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage().contains("cluster_k_means"));
+        }
+        // Python labels are shifted to start from 1, qualities are calculated in Java
+        ClusterResults res = cl.clusterKMeans(matrix, 3L, null, null, null,
+                ClusterServiceRouterLocalClient.PYTHON_KMEANS_ALGORITHM);
+        Assert.assertEquals(1, pyClient.calls);
+        Assert.assertEquals(Backend.JAVA, cl.getLastBackend());
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L, 1L, 1L, 1L, 1L), res.getClusterLabels());
+        Assert.assertNotNull(res.getMeancor());
+        // Engine of particular method
+        cl.setEngine("calc_cluster_qualities", "r");
+        cl.calcClusterQualities(matrix, Arrays.asList(1L, 1L, 2L, 2L, 3L, 3L, 3L));
+        Assert.assertEquals(Backend.R, cl.getLastBackend());
+        Assert.assertEquals(Backend.JAVA, cl.route("clusters_from_dendrogram", null, matrix,
+                EnumSet.of(Backend.JAVA, Backend.R)));
+        // Large matrices go to backend with the smallest measured latency, every
+        // second large call goes to backend with the fewest measurements
+        StubClient slowJava = new StubClient(1, 30);
+        rClient = new StubClient(1);
+        cl = new ClusterServiceRouterLocalClient(slowJava, rClient, null);
+        cl.setEngine(null, "auto");
+        cl.setJavaMaxCells(10);
+        cl.setExploreInterval(2);
+        List<Backend> backends = new ArrayList<Backend>();
+        for (int i = 0; i < 5; i++) {
+            cl.clusterKMeans(matrix, 3L, null, null, 1L, KMeansClustering.LLOYD);
+            backends.add(cl.getLastBackend());
+        }
+        Assert.assertEquals(Arrays.asList(Backend.JAVA, Backend.R, Backend.R, Backend.JAVA,
+                Backend.R), backends);
+        Assert.assertTrue(ClusterServiceRouterLocalClient.getPredictedLatency("cluster_k_means",
+                KMeansClustering.LLOYD, Backend.JAVA, 21) >= 25);
+        Assert.assertTrue(ClusterServiceRouterLocalClient.getPredictedLatency("cluster_k_means",
+                KMeansClustering.LLOYD, Backend.R, 21) < 25);
+        // Other algorithm has its own measurements
+        Assert.assertNull(ClusterServiceRouterLocalClient.getPredictedLatency("cluster_k_means",
+                KMeansClustering.FORGY, Backend.R, 21));
+        cl.clusterKMeans(matrix, 3L, null, null, 1L, KMeansClustering.FORGY);
+        Assert.assertEquals(Backend.JAVA, cl.getLastBackend());
+        // Small matrices stay in Java
+        cl.setJavaMaxCells(100);
+        cl.clusterKMeans(matrix, 3L, null, null, 1L, KMeansClustering.LLOYD);
+        Assert.assertEquals(Backend.JAVA, cl.getLastBackend());
+        ClusterServiceRouterLocalClient.resetLatencies();
+        try {
+            new ClusterServiceRouterLocalClient(new ClusterServiceJavaLocalClient(null), null,
+                    null).clusterKMeans(matrix, 3L, null, null, null,
+                            ClusterServiceRouterLocalClient.PYTHON_KMEANS_ALGORITHM);
+            Assert.fail("Python backend is not available");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage().contains("cluster_k_means"));
+        }
+        try {
+            cl.setEngine(null, "matlab");
+            Assert.fail("Unknown engine should be reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage().contains("matlab"));
+        }
+    }
+
+    @Test
+    public void binaryMatrixTransportTest() throws Exception {
+        File dir = Files.createTempDirectory("matrix_transport").toFile();
+        try {
+            FloatMatrix2D matrix = getSampleMatrix();
+            matrix.getValues().get(1).set(2, null);
+            List<File> files = new ArrayList<File>();
+            List<?> params = (List<?>)BinaryMatrixTransport.prepareParams(
+                    Arrays.asList(matrix, 3L, null), dir, files);
+            Assert.assertEquals(1, files.size());
+            Assert.assertEquals(3L, params.get(1));
+            Assert.assertNull(params.get(2));
+            FloatMatrix2D ref = (FloatMatrix2D)params.get(0);
+            Assert.assertNull(ref.getValues());
+            Assert.assertEquals(matrix.getRowIds(), ref.getRowIds());
+            Assert.assertEquals(files.get(0).getAbsolutePath(), ref.getAdditionalProperties()
+                    .get(BinaryMatrixTransport.VALUES_FILE_PROPERTY));
+            byte[] data = Files.readAllBytes(files.get(0).toPath());
+            int headerLen = (data[8] & 0xff) | ((data[9] & 0xff) << 8);
+            Assert.assertEquals(0, (10 + headerLen) % 64);
+            Assert.assertEquals(10 + headerLen + 8 * matrix.getRowIds().size() *
+                    matrix.getColIds().size(), data.length);
+            String header = new String(data, 10, headerLen, "US-ASCII");
+            Assert.assertTrue(header, header.startsWith("{'descr': '<f8', 'fortran_order': " +
+                    "False, 'shape': (" + matrix.getRowIds().size() + ", " +
+                    matrix.getColIds().size() + "), }"));
+            Assert.assertTrue(header.endsWith("\n"));
+            DenseMatrix back = BinaryMatrixTransport.readNpy(files.get(0), matrix.getRowIds(),
+                    matrix.getColIds());
+            Assert.assertEquals(matrix.getValues(), back.toFloatMatrix2D().getValues());
+            Assert.assertTrue(back.isMissing(1, 2));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void javaKMeansTest() throws Exception {
+        ClusterServiceJavaLocalClient cl = new ClusterServiceJavaLocalClient(null);
+        FloatMatrix2D matrix = getSampleMatrix();
+        for (String algorithm : Arrays.asList(null, KMeansClustering.LLOYD,
+                KMeansClustering.MACQUEEN, KMeansClustering.HARTIGAN_WONG)) {
+            ClusterResults cr = cl.clusterKMeans(matrix, 3L, 20L, null, 403L, algorithm);
+            checkClusterLabels(cr.getClusterLabels());
+            Assert.assertEquals(3, cr.getMeancor().size());
+            Assert.assertEquals(3, cr.getMsecs().size());
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(cr.getMeancor().get(i) > 0.9);
+                Assert.assertTrue(cr.getMsecs().get(i) < 0.1);
+            }
+        }
+        // Cluster {0, 1}: rows are (13, 2, 3) and (10.9, 1.95, 2.9)
+        ClusterResults cr = cl.calcClusterQualities(matrix, Arrays.asList(1L, 1L, 2L, 2L, 3L, 3L, 4L));
+        Assert.assertEquals(4, cr.getMeancor().size());
+        Assert.assertTrue(Double.isNaN(cr.getMeancor().get(3)));
+        Assert.assertTrue(Double.isNaN(cr.getMsecs().get(3)));
+        double[] x = {13.0, 2.0, 3.0, 10.9, 1.95, 2.9};
+        double mean = 0;
+        for (double v : x)
+            mean += v / x.length;
+        double mseAll = 0;
+        for (double v : x)
+            mseAll += (v - mean) * (v - mean) / x.length;
+        double msec = 0;
+        for (int j = 0; j < 3; j++) {
+            double d = (x[j] - x[j + 3]) / 2;
+            msec += 2 * d * d / mseAll / x.length;
+        }
+        Assert.assertEquals(msec, cr.getMsecs().get(0), 1e-12);
+    }
+
+    @Test
+    public void javaKMeansRestartsTest() throws Exception {
+        int rowCount = 300;
+        int colCount = 5;
+        DenseMatrix matrix = randomMatrix(rowCount, colCount, 1234, new ValueFn() {
+            @Override
+            public double value(Random rnd, int row, int col) {
+                return rnd.nextGaussian() + (row % 4 == col ? 5 : 0);
+            }
+        });
+        double[] values = matrix.getValues();
+        for (String algorithm : Arrays.asList(KMeansClustering.LLOYD,
+                KMeansClustering.MACQUEEN, KMeansClustering.HARTIGAN_WONG)) {
+            KMeansClustering.Result serial = KMeansClustering.cluster(matrix, 4, 50, null,
+                    77L, algorithm, Long.MAX_VALUE);
+            KMeansClustering.Result parallel = KMeansClustering.cluster(matrix, 4, 50, null,
+                    77L, algorithm, 1);
+            Assert.assertEquals(serial.getRestart(), parallel.getRestart());
+            Assert.assertEquals(serial.getTotalWithinSs(), parallel.getTotalWithinSs());
+            Assert.assertTrue(Arrays.equals(serial.getLabels(), parallel.getLabels()));
+            // Planted clusters are rows with the same remainder of division by 4
+            for (int i = 4; i < rowCount; i++)
+                Assert.assertEquals(algorithm, serial.getLabels()[i % 4], serial.getLabels()[i]);
+            double totalWithinSs = 0;
+            double[] centers = serial.getCenters();
+            for (int i = 0; i < rowCount; i++)
+                for (int j = 0; j < colCount; j++) {
+                    double d = values[i * colCount + j] -
+                            centers[(serial.getLabels()[i] - 1) * colCount + j];
+                    totalWithinSs += d * d;
+                }
+            Assert.assertEquals(totalWithinSs, serial.getTotalWithinSs(), 1e-6);
+        }
+    }
+
+    @Test
+    public void acceleratedKMeansTest() throws Exception {
+        final int colCount = 10;
+        final int k = 50;
+        final double[] planted = new double[k * colCount];
+        Random centerRnd = new Random(4321);
+        for (int i = 0; i < planted.length; i++)
+            planted[i] = centerRnd.nextDouble() * 20;
+        DenseMatrix matrix = randomMatrix(5000, colCount, 4322, new ValueFn() {
+            int cluster;
+
+            @Override
+            public double value(Random rnd, int row, int col) {
+                if (col == 0)
+                    cluster = rnd.nextInt(k);
+                return planted[cluster * colCount + col] + rnd.nextGaussian();
+            }
+        });
+        for (long seed = 1; seed <= 3; seed++) {
+            KMeansClustering.Result lloyd = KMeansClustering.cluster(matrix, k, 1, null,
+                    seed, KMeansClustering.LLOYD, Long.MAX_VALUE);
+            for (String algorithm : Arrays.asList(KMeansClustering.ELKAN,
+                    KMeansClustering.HAMERLY)) {
+                KMeansClustering.Result res = KMeansClustering.cluster(matrix, k, 1, null,
+                        seed, algorithm, Long.MAX_VALUE);
+                Assert.assertTrue(Arrays.equals(lloyd.getLabels(), res.getLabels()));
+                Assert.assertTrue(Arrays.equals(lloyd.getCenters(), res.getCenters()));
+                Assert.assertEquals(lloyd.getTotalWithinSs(), res.getTotalWithinSs());
+                double speedup = (double)lloyd.getDistanceCount() / res.getDistanceCount();
+                Assert.assertTrue(algorithm + " speedup: " + speedup,
+                        speedup > (algorithm.equals(KMeansClustering.ELKAN) ? 5 : 2));
+            }
+        }
+    }
+
+    @Test
+    public void miniBatchKMeansTest() throws Exception {
+        int rowCount = 20000;
+        final int k = 6;
+        final int[] planted = new int[rowCount];
+        DenseMatrix matrix = randomMatrix(rowCount, 8, 5678, new ValueFn() {
+            @Override
+            public double value(Random rnd, int row, int col) {
+                if (col == 0)
+                    planted[row] = rnd.nextInt(k);
+                return rnd.nextGaussian() + (planted[row] == col ? 8 : 0);
+            }
+        });
+        KMeansClustering.Result lloyd = KMeansClustering.cluster(matrix, k, 5, null,
+                9L, KMeansClustering.LLOYD, Long.MAX_VALUE);
+        KMeansClustering.Result miniBatch = KMeansClustering.cluster(matrix, k, 5, null,
+                9L, KMeansClustering.MINI_BATCH, Long.MAX_VALUE);
+        Assert.assertTrue(miniBatch.getTotalWithinSs() < lloyd.getTotalWithinSs() * 1.01);
+        int[] plantedToLabel = new int[k];
+        for (int i = 0; i < rowCount; i++) {
+            if (plantedToLabel[planted[i]] == 0)
+                plantedToLabel[planted[i]] = miniBatch.getLabels()[i];
+            Assert.assertEquals(plantedToLabel[planted[i]], miniBatch.getLabels()[i]);
+        }
+    }
+
+    @Test
+    public void javaHierarchicalTest() throws Exception {
+        ClusterServiceJavaLocalClient cl = new ClusterServiceJavaLocalClient(null);
+        FloatMatrix2D matrix = getSampleMatrix();
+        ClusterResults cr = cl.clusterHierarchical(matrix, "", "", 0.5, null, null);
+        String dendrogram = cr.getDendrogram();
+        Assert.assertTrue(dendrogram.startsWith("("));
+        Assert.assertTrue(dendrogram.endsWith(");"));
+        for (int i = 0; i < 7; i++)
+            Assert.assertTrue(dendrogram.contains("(" + i + ":") || dendrogram.contains("," + i + ":"));
+        checkClusterLabels(cr.getClusterLabels());
+        Assert.assertNull(cr.getReport());
+        ClusterResults cr2 = cl.clusterHierarchical(matrix, null, HierarchicalClustering.AVERAGE,
+                0.5, 4L, "flashClust");
+        Assert.assertEquals(1, cr2.getReport().getWarnings().size());
+        int skipped = 0;
+        for (long label : cr2.getClusterLabels())
+            if (label == -1)
+                skipped++;
+        Assert.assertEquals(3, skipped);
+        // Tips 0 and 1 are joined at 0.2, tip 2 joins them at 0.8
+        HierarchicalClustering.Dendrogram tree = new HierarchicalClustering.Dendrogram(
+                Arrays.asList("0", "1", "2"), new int[] {-1, -3}, new int[] {-2, 1},
+                new double[] {0.2, 0.8});
+        Assert.assertEquals("(2:0.5,(0:0.125,1:0.125):0.375);", tree.toNewick());
+        Assert.assertTrue(Arrays.equals(new int[] {2, 2, 1}, tree.cut(0.5)));
+        Assert.assertTrue(Arrays.equals(new int[] {1, 1, 1}, tree.cut(1.0)));
+        tree = new HierarchicalClustering.Dendrogram(Arrays.asList("0", "1", "2"),
+                new int[] {-1, -3}, new int[] {-2, 1}, new double[] {0.00002469, 1.0});
+        Assert.assertEquals("(2:0.5,(0:1.2345e-05,1:1.2345e-05):0.499987655);",
+                tree.toNewick());
+    }
+
+    @Test
+    public void hierarchicalLinkageTest() throws Exception {
+        int rowCount = 60;
+        int colCount = 6;
+        DenseMatrix matrix = randomMatrix(rowCount, colCount, 2468, new ValueFn() {
+            @Override
+            public double value(Random rnd, int row, int col) {
+                return rnd.nextGaussian() + (row % 3 == col % 3 ? 2 : 0);
+            }
+        });
+        double[] values = matrix.getValues();
+        for (String linkage : Arrays.asList(HierarchicalClustering.COMPLETE,
+                HierarchicalClustering.AVERAGE, HierarchicalClustering.SINGLE)) {
+            HierarchicalClustering.Result res = HierarchicalClustering.cluster(matrix, null,
+                    linkage, 0.5, null, 1);
+            int[] rows = res.getRows();
+            double[][] dist = new double[rowCount][rowCount];
+            for (int i = 0; i < rowCount; i++)
+                for (int j = 0; j < rowCount; j++)
+                    dist[i][j] = 1 - pearson(values, colCount, rows[i], rows[j]);
+            // Naive O(n^3) agglomeration over original distances
+            List<List<Integer>> clusters = new ArrayList<List<Integer>>();
+            for (int i = 0; i < rowCount; i++)
+                clusters.add(new ArrayList<Integer>(Arrays.asList(i)));
+            double[] expectedHeights = new double[rowCount - 1];
+            for (int step = 0; step < rowCount - 1; step++) {
+                int bestA = -1;
+                int bestB = -1;
+                double best = Double.POSITIVE_INFINITY;
+                for (int a = 0; a < clusters.size(); a++)
+                    for (int b = a + 1; b < clusters.size(); b++) {
+                        double d = linkage(dist, clusters.get(a), clusters.get(b), linkage);
+                        if (d < best) {
+                            best = d;
+                            bestA = a;
+                            bestB = b;
+                        }
+                    }
+                expectedHeights[step] = best;
+                clusters.get(bestA).addAll(clusters.remove(bestB));
+            }
+            double[] heights = res.getDendrogram().getHeights();
+            for (int step = 0; step < rowCount - 1; step++)
+                Assert.assertEquals(linkage, expectedHeights[step], heights[step], 1e-10);
+        }
+    }
+
+    @Test
+    public void dendrogramCutTest() throws Exception {
+        HierarchicalClustering.Dendrogram tree = HierarchicalClustering.Dendrogram.fromNewick(
+                "((0:0.1,1:0.1):0.4,('2':0.3,3:0.3)x:0.2);");
+        Assert.assertEquals(Arrays.asList("0", "1", "2", "3"), tree.getTipLabels());
+        Assert.assertTrue(Arrays.equals(new int[] {1, 1, 2, 3}, tree.cutAtHeight(0.5)));
+        Assert.assertTrue(Arrays.equals(new int[] {1, 1, 2, 2}, tree.cutAtHeight(0.7)));
+        Assert.assertTrue(Arrays.equals(new int[] {1, 1, 1, 1}, tree.cutAtHeight(1.0)));
+        for (String wrong : Arrays.asList("(0:1,1:1,2:1);", "(0:1,1:2);", "(0:1,1:1)",
+                "(0,1);", "(0:1,(1:1);")) {
+            try {
+                HierarchicalClustering.Dendrogram.fromNewick(wrong);
+                Assert.fail("Wrong dendrogram is accepted: " + wrong);
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+        }
+        FloatMatrix2D matrix = randomMatrix(50, 5, 1357, new ValueFn() {
+            @Override
+            public double value(Random rnd, int row, int col) {
+                return rnd.nextGaussian() + (row % 4 == col % 4 ? 3 : 0);
+            }
+        }).toFloatMatrix2D();
+        ClusterServiceJavaLocalClient cl = new ClusterServiceJavaLocalClient(null);
+        for (double cutoff : new double[] {0.1, 0.3, 0.6, 0.9}) {
+            ClusterResults hc = cl.clusterHierarchical(matrix, null, null, cutoff, 40L, null);
+            ClusterResults cut = cl.clustersFromDendrogram(matrix, hc.getDendrogram(), cutoff);
+            Assert.assertEquals(hc.getClusterLabels(), cut.getClusterLabels());
+            Assert.assertEquals(hc.getMeancor(), cut.getMeancor());
+            double[] heights = HierarchicalClustering.Dendrogram.fromNewick(
+                    hc.getDendrogram()).getHeights();
+            Assert.assertEquals(39, heights.length);
+            Assert.assertEquals(1.0, heights[38], 1e-8);
+        }
+    }
+
+    @Test
+    public void clusterQualitiesTest() throws Exception {
+        final List<Long> labels = new ArrayList<Long>();
+        for (int i = 0; i < 400; i++)
+            labels.add(i < 250 ? 1L : (long)(2 + i % 4));
+        DenseMatrix matrix = randomMatrix(400, 8, 97531, new ValueFn() {
+            @Override
+            public double value(Random rnd, int row, int col) {
+                double ret = rnd.nextGaussian() + (labels.get(row) == 1 ? col : 0);
+                return rnd.nextInt(50) == 0 ? Double.NaN : ret;
+            }
+        });
+        ClusterResults serial = ClusterQualities.calc(matrix, labels, Long.MAX_VALUE);
+        ClusterResults parallel = ClusterQualities.calc(matrix, labels, 1);
+        Assert.assertEquals(serial.getMeancor(), parallel.getMeancor());
+        Assert.assertEquals(serial.getMsecs(), parallel.getMsecs());
+        Assert.assertNull(serial.getReport());
+        Assert.assertTrue(serial.getMeancor().get(0) > 0.5);
+        long samplePairs = 20000;
+        ClusterResults sampled = ClusterQualities.calc(matrix, labels, 1, samplePairs);
+        // Only the first cluster has more than 20000 pairs
+        Assert.assertEquals(1, sampled.getReport().getWarnings().size());
+        double bound = Math.sqrt(2 * Math.log(2 / (1 - ClusterQualities.SAMPLE_CONFIDENCE)) /
+                samplePairs);
+        Assert.assertEquals(serial.getMeancor().get(0), sampled.getMeancor().get(0), bound);
+        Assert.assertEquals(serial.getMeancor().subList(1, 5), sampled.getMeancor().subList(1, 5));
+        Assert.assertEquals(serial.getMsecs(), sampled.getMsecs());
+    }
+
+    @Test
+    public void clusterSetEvaluationTest() throws Exception {
+        int rowCount = 120;
+        int colCount = 4;
+        List<Long> labels = new ArrayList<Long>();
+        for (int i = 0; i < rowCount; i++)
+            labels.add(i < 5 ? -1L : (long)(1 + i % 3));
+        DenseMatrix matrix = randomMatrix(rowCount, colCount, 8642, new ValueFn() {
+            @Override
+            public double value(Random rnd, int row, int col) {
+                return rnd.nextGaussian() + (row % 3 == col ? 4 : 0);
+            }
+        });
+        double[] values = matrix.getValues();
+        ClusterSetEvaluation.Result exact = ClusterSetEvaluation.evaluate(matrix, labels,
+                null, 0, null, Long.MAX_VALUE, 0);
+        // Naive silhouette and Davies-Bouldin with Euclidean distance
+        double[] centers = new double[3 * colCount];
+        double[] scatter = new double[3];
+        double[] silhouettes = new double[3];
+        double silhouette = 0;
+        for (int i = 5; i < rowCount; i++)
+            for (int j = 0; j < colCount; j++)
+                centers[(i % 3) * colCount + j] += values[i * colCount + j] /
+                        clusterSize(i % 3);
+        for (int i = 5; i < rowCount; i++) {
+            double[] sums = new double[3];
+            for (int other = 5; other < rowCount; other++)
+                sums[other % 3] += euclidean(values, i, values, other, colCount);
+            double a = sums[i % 3] / (clusterSize(i % 3) - 1);
+            double b = Double.POSITIVE_INFINITY;
+            for (int c = 0; c < 3; c++)
+                if (c != i % 3)
+                    b = Math.min(b, sums[c] / clusterSize(c));
+            double value = (b - a) / Math.max(a, b);
+            silhouettes[i % 3] += value / clusterSize(i % 3);
+            silhouette += value / 115;
+            scatter[i % 3] += euclidean(values, i, centers, i % 3, colCount) /
+                    clusterSize(i % 3);
+        }
+        Assert.assertEquals(115, exact.getEvaluatedRows());
+        Assert.assertEquals(silhouette, exact.getSilhouette(), 1e-12);
+        for (int c = 0; c < 3; c++)
+            Assert.assertEquals(silhouettes[c], exact.getSilhouettes()[c], 1e-12);
+        double daviesBouldin = 0;
+        for (int c1 = 0; c1 < 3; c1++) {
+            double max = 0;
+            for (int c2 = 0; c2 < 3; c2++)
+                if (c1 != c2)
+                    max = Math.max(max, (scatter[c1] + scatter[c2]) /
+                            euclidean(centers, c1, centers, c2, colCount));
+            daviesBouldin += max / 3;
+        }
+        Assert.assertEquals(daviesBouldin, exact.getDaviesBouldin(), 1e-12);
+        Assert.assertEquals("euclidean distance, exact silhouette",
+                exact.toReport().getCheckUsed());
+        Assert.assertEquals(4, exact.toReport().getMessages().size());
+        ClusterSetEvaluation.Result parallel = ClusterSetEvaluation.evaluate(matrix, labels,
+                ClusterSetEvaluation.EUCLIDEAN, 0, null, 1, 0);
+        Assert.assertEquals(exact.getSilhouette(), parallel.getSilhouette(), 1e-12);
+        ClusterSetEvaluation.Result sampled = ClusterSetEvaluation.evaluate(matrix, labels,
+                null, 60, 1L, 1, 0);
+        Assert.assertEquals(60, sampled.getEvaluatedRows());
+        Assert.assertEquals(exact.getSilhouette(), sampled.getSilhouette(), 0.1);
+        Assert.assertEquals(1, sampled.toReport().getWarnings().size());
+        Assert.assertEquals(exact.getMeancor(), sampled.getMeancor(), 1e-12);
+        ClusterSetEvaluation.Result cor = ClusterSetEvaluation.evaluate(matrix, labels,
+                ClusterSetEvaluation.CORRELATION, null, null, 1, 0);
+        Assert.assertTrue(cor.getSilhouette() > 0.5);
+    }
+
+    private static int clusterSize(int cluster) {
+        // Rows 5..119 are split by remainder of 3: 39 rows with remainder 2, 38 otherwise
+        return cluster == 2 ? 39 : 38;
+    }
+
+    private static double euclidean(double[] x, int xRow, double[] y, int yRow, int colCount) {
+        double sum = 0;
+        for (int j = 0; j < colCount; j++) {
+            double diff = x[xRow * colCount + j] - y[yRow * colCount + j];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Test
+    public void javaEstimateKTest() throws Exception {
+        DenseMatrix dense = randomMatrix(400, 5, 4321, new ValueFn() {
+            @Override
+            public double value(Random rnd, int row, int col) {
+                return rnd.nextGaussian() * 0.5 + (row % 4 == col ? 10 : 0);
+            }
+        });
+        FloatMatrix2D matrix = dense.toFloatMatrix2D();
+        EstimateKResult serial = KEstimation.estimate(dense, null, 30L, null, 11L, null, null,
+                Long.MAX_VALUE);
+        Assert.assertEquals(4L, (long)serial.getBestK());
+        Assert.assertEquals(29, serial.getEstimateClusterSizes().size());
+        Assert.assertEquals(2L, (long)serial.getEstimateClusterSizes().get(0).getE1());
+        for (Tuple2<Long, Double> item : serial.getEstimateClusterSizes())
+            Assert.assertTrue(item.getE2() >= -1 && item.getE2() <= 1);
+        EstimateKResult parallel = KEstimation.estimate(dense, null, 30L, null, 11L, null, null,
+                1);
+        Assert.assertEquals(serial.getEstimateClusterSizes().toString(),
+                parallel.getEstimateClusterSizes().toString());
+        EstimateKResult sampled = new ClusterServiceJavaLocalClient(null).estimateK(matrix,
+                3L, 6L, 10L, 11L, 2L, 100L);
+        Assert.assertEquals(4L, (long)sampled.getBestK());
+        Assert.assertEquals(4, sampled.getEstimateClusterSizes().size());
+    }
+
+    @Test
+    public void medoidEstimateKTest() throws Exception {
+        DenseMatrix blobs = blobMatrix(200, 4, 777);
+        for (String criterion : Arrays.asList("asw", "ch")) {
+            EstimateKResult serial = MedoidClustering.estimateK(blobs, null, 10L, criterion,
+                    1L, null, null, null, Long.MAX_VALUE);
+            Assert.assertEquals(criterion, 4L, (long)serial.getBestK());
+            Assert.assertEquals(9, serial.getEstimateClusterSizes().size());
+            EstimateKResult parallel = MedoidClustering.estimateK(blobs, null, 10L, criterion,
+                    1L, null, null, null, 1);
+            Assert.assertEquals(serial.getEstimateClusterSizes().toString(),
+                    parallel.getEstimateClusterSizes().toString());
+            EstimateKResult clara = MedoidClustering.estimateK(blobs, null, 10L, criterion,
+                    0L, null, null, 5L, 1);
+            Assert.assertEquals(criterion, 4L, (long)clara.getBestK());
+        }
+        // CLARA sample covers all rows of small matrix, so it's the same as PAM
+        DenseMatrix small = blobMatrix(44, 3, 778);
+        Assert.assertEquals(MedoidClustering.estimateK(small, 2L, 4L, null, 1L, null, null,
+                null, Long.MAX_VALUE).getEstimateClusterSizes().toString(),
+                MedoidClustering.estimateK(small, 2L, 4L, null, 0L, null, null, 1L,
+                Long.MAX_VALUE).getEstimateClusterSizes().toString());
+        // Duda-Hart test keeps one cluster for single blob only
+        EstimateKResult one = new ClusterServiceJavaLocalClient(null).estimateKNew(
+                blobMatrix(100, 1, 779).toFloatMatrix2D(), 1L, 5L, null, null, null, null,
+                null);
+        Assert.assertEquals(1L, (long)one.getBestK());
+        Assert.assertEquals(0.0, one.getEstimateClusterSizes().get(0).getE2());
+        Assert.assertEquals(4L, (long)MedoidClustering.estimateK(blobs, 1L, 6L, null, null,
+                null, null, null, 1).getBestK());
+        // Single candidate is returned even if Duda-Hart test rejects it
+        EstimateKResult onlyOne = MedoidClustering.estimateK(blobs, 1L, 1L, null, null,
+                null, null, null, 1);
+        Assert.assertEquals(1L, (long)onlyOne.getBestK());
+        Assert.assertEquals(1, onlyOne.getEstimateClusterSizes().size());
+        // Dissimilarity matrix of two groups {0, 1, 2} and {3, 4}
+        double[][] diss = {{0, 1, 1, 9, 9}, {1, 0, 1, 9, 9}, {1, 1, 0, 9, 9},
+                {9, 9, 9, 0, 2}, {9, 9, 9, 2, 0}};
+        List<List<Double>> values = new ArrayList<List<Double>>();
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < diss.length; i++) {
+            ids.add("r" + i);
+            List<Double> row = new ArrayList<Double>();
+            for (double value : diss[i])
+                row.add(value);
+            values.add(row);
+        }
+        EstimateKResult dissRes = MedoidClustering.estimateK(DenseMatrix.fromFloatMatrix2D(
+                new FloatMatrix2D().withRowIds(ids).withColIds(ids).withValues(values)),
+                2L, 3L, null, null, null, 1L, null, 1);
+        Assert.assertEquals(2L, (long)dissRes.getBestK());
+        double a = 1.0;
+        double b = 9.0;
+        Assert.assertEquals((3 * (1 - a / b) + 2 * (1 - 2 / b)) / 5,
+                dissRes.getEstimateClusterSizes().get(0).getE2(), 1e-12);
+        try {
+            MedoidClustering.estimateK(blobs, null, 10L, "multiasw", null, null, null, null, 1);
+            Assert.fail("Criterion is not supported");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage().contains("multiasw"));
+        }
+    }
+
+    @Test
+    public void distanceCacheTest() throws Exception {
+        File dir = Files.createTempDirectory("distance_cache").toFile();
+        try {
+            DenseMatrix blobs = blobMatrix(120, 3, 780);
+            int entrySize = 12 + 4 * 120 * 119 / 2;
+            DistanceCache cache = new DistanceCache(dir, 1 << 20, "1/2/3");
+            HierarchicalClustering.Result hc1 = HierarchicalClustering.cluster(blobs, null,
+                    null, 0.5, null, 1, cache);
+            Assert.assertEquals(entrySize, cache.getUsedSpace());
+            HierarchicalClustering.Result hc2 = HierarchicalClustering.cluster(blobs, null,
+                    null, 0.5, null, 1, cache);
+            Assert.assertEquals(entrySize, cache.getUsedSpace());
+            Assert.assertEquals(hc1.getDendrogram().toNewick(),
+                    hc2.getDendrogram().toNewick());
+            Assert.assertEquals(Arrays.toString(HierarchicalClustering.cluster(blobs, null,
+                    null, 0.5, null, 1).getLabels()), Arrays.toString(hc1.getLabels()));
+            // Subset of rows gets its own entry, distances are the same
+            int[] all = hc1.getRows();
+            HierarchicalClustering.Result top = HierarchicalClustering.cluster(blobs, null,
+                    null, 0.5, 50, 1, cache);
+            Assert.assertEquals(entrySize + 12 + 4 * 50 * 49 / 2, cache.getUsedSpace());
+            DistanceCache.Distances dist = cache.find(blobs.getRowIds(), blobs.getColIds(),
+                    all, HierarchicalClustering.CORRELATION);
+            DistanceCache.Distances topDist = cache.find(blobs.getRowIds(), blobs.getColIds(),
+                    top.getRows(), HierarchicalClustering.CORRELATION);
+            int row1 = top.getRows()[3];
+            int row2 = top.getRows()[7];
+            Assert.assertEquals(dist.get(dist.indexOf(row1), dist.indexOf(row2)),
+                    topDist.get(topDist.indexOf(row1), topDist.indexOf(row2)));
+            Assert.assertEquals((float)(1 - pearson(blobs.getValues(), 5, row1, row2)),
+                    (float)dist.get(dist.indexOf(row1), dist.indexOf(row2)));
+            // Other version of matrix doesn't see entries
+            Assert.assertNull(new DistanceCache(dir, 1 << 20, "1/2/4").find(blobs.getRowIds(),
+                    blobs.getColIds(), all, HierarchicalClustering.CORRELATION));
+            // PAM stores Euclidean distances which silhouette reuses
+            EstimateKResult pam1 = MedoidClustering.estimateK(blobs, null, 6L, null, 1L, null,
+                    null, null, 1, cache);
+            EstimateKResult pam2 = MedoidClustering.estimateK(blobs, null, 6L, null, 1L, null,
+                    null, null, 1, cache);
+            Assert.assertEquals(3L, (long)pam1.getBestK());
+            Assert.assertEquals(pam1.getEstimateClusterSizes().toString(),
+                    pam2.getEstimateClusterSizes().toString());
+            List<Long> labels = new ArrayList<Long>();
+            for (int i = 0; i < 120; i++)
+                labels.add(1L + i % 3);
+            for (String metric : Arrays.asList(ClusterSetEvaluation.EUCLIDEAN,
+                    ClusterSetEvaluation.CORRELATION)) {
+                Assert.assertNotNull(cache.find(blobs.getRowIds(), blobs.getColIds(), all,
+                        metric));
+                Assert.assertEquals(ClusterSetEvaluation.evaluate(blobs, labels, metric, 0,
+                        null, 1, 0).getSilhouette(), ClusterSetEvaluation.evaluate(blobs,
+                        labels, metric, 0, null, 1, 0, cache).getSilhouette(), 1e-6);
+            }
+            // Least recently used entry is removed when budget is exceeded
+            for (File file : dir.listFiles())
+                deleteRecursively(file);
+            DistanceCache small = new DistanceCache(dir, 2 * entrySize + 1000, "1/2/3");
+            HierarchicalClustering.cluster(blobs, null, null, 0.5, null, 1, small);
+            MedoidClustering.estimateK(blobs, 2L, 3L, null, 1L, null, null, null, 1, small);
+            Assert.assertEquals(2 * entrySize, small.getUsedSpace());
+            Thread.sleep(1100);
+            Assert.assertNotNull(small.find(blobs.getRowIds(), blobs.getColIds(), all,
+                    HierarchicalClustering.CORRELATION));
+            HierarchicalClustering.cluster(blobs, null, null, 0.5, 50, 1, small);
+            Assert.assertNotNull(small.find(blobs.getRowIds(), blobs.getColIds(), all,
+                    HierarchicalClustering.CORRELATION));
+            Assert.assertNull(small.find(blobs.getRowIds(), blobs.getColIds(), all,
+                    ClusterSetEvaluation.EUCLIDEAN));
+            Assert.assertEquals(entrySize + 12 + 4 * 50 * 49 / 2, small.getUsedSpace());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static DenseMatrix blobMatrix(int rowCount, final int blobCount, long seed) {
+        return randomMatrix(rowCount, 5, seed, new ValueFn() {
+            @Override
+            public double value(Random rnd, int row, int col) {
+                double center = blobCount > 1 && row % blobCount == col ? 10 : 0;
+                return rnd.nextGaussian() * 0.5 + center;
+            }
+        });
+    }
+
+    /**
+     * Generates values of matrix row by row with the same random generator,
+     * NaN values are marked as missing. Rows are named r0, r1, ... and columns
+     * are named c0, c1, ...
+     */
+    private static DenseMatrix randomMatrix(int rowCount, int colCount, long seed,
+            ValueFn fn) {
+        Random rnd = new Random(seed);
+        double[] values = new double[rowCount * colCount];
+        BitSet missing = new BitSet();
+        List<String> rowIds = new ArrayList<String>();
+        List<String> colIds = new ArrayList<String>();
+        for (int j = 0; j < colCount; j++)
+            colIds.add("c" + j);
+        for (int i = 0; i < rowCount; i++) {
+            rowIds.add("r" + i);
+            for (int j = 0; j < colCount; j++) {
+                int pos = i * colCount + j;
+                values[pos] = fn.value(rnd, i, j);
+                if (Double.isNaN(values[pos]))
+                    missing.set(pos);
+            }
+        }
+        return new DenseMatrix(rowIds, colIds, values, missing);
+    }
+
+    private interface ValueFn {
+        public double value(Random rnd, int row, int col);
+    }
+
+    private static double linkage(double[][] dist, List<Integer> a, List<Integer> b,
+            String linkage) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = 0;
+        double sum = 0;
+        for (int i : a)
+            for (int j : b) {
+                min = Math.min(min, dist[i][j]);
+                max = Math.max(max, dist[i][j]);
+                sum += dist[i][j];
+            }
+        if (linkage.equals(HierarchicalClustering.SINGLE))
+            return min;
+        if (linkage.equals(HierarchicalClustering.AVERAGE))
+            return sum / (a.size() * b.size());
+        return max;
+    }
+
+    private static double pearson(double[] values, int colCount, int row1, int row2) {
+        double mean1 = 0;
+        double mean2 = 0;
+        for (int j = 0; j < colCount; j++) {
+            mean1 += values[row1 * colCount + j] / colCount;
+            mean2 += values[row2 * colCount + j] / colCount;
+        }
+        double sxy = 0;
+        double sxx = 0;
+        double syy = 0;
+        for (int j = 0; j < colCount; j++) {
+            double dx = values[row1 * colCount + j] - mean1;
+            double dy = values[row2 * colCount + j] - mean2;
+            sxy += dx * dy;
+            sxx += dx * dx;
+            syy += dy * dy;
+        }
+        return sxy / Math.sqrt(sxx * syy);
+    }
+
     private ClusterServiceRLocalClient getRClient(String testType) {
         File workDir = generateTempDir(rootTempDir, "test_clusterservice_" + testType + "_", "");
         workDir.mkdirs();
@@ -125,6 +1091,78 @@ public class ClusterServiceTest {
         Assert.assertEquals(errMsg, c3, (long)labels.get(6));
     }
     
+    /**
+     * Backend returning the same label for every row (after given delay).
+     */
+    private static class StubClient implements ClusterServiceLocalClient {
+        private final long label;
+        private final long delayMs;
+        private int calls = 0;
+
+        StubClient(long label) {
+            this(label, 0);
+        }
+
+        StubClient(long label, long delayMs) {
+            this.label = label;
+            this.delayMs = delayMs;
+        }
+
+        private ClusterResults labels(FloatMatrix2D matrix) {
+            calls++;
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            List<Long> ret = new ArrayList<Long>();
+            for (int i = 0; i < matrix.getRowIds().size(); i++)
+                ret.add(label);
+            return new ClusterResults().withClusterLabels(ret);
+        }
+
+        @Override
+        public EstimateKResult estimateK(FloatMatrix2D matrix, Long minK, Long maxK,
+                Long maxIter, Long randomSeed, Long neighbSize, Long maxItems) {
+            calls++;
+            return new EstimateKResult().withBestK(minK);
+        }
+
+        @Override
+        public EstimateKResult estimateKNew(FloatMatrix2D matrix, Long minK, Long maxK,
+                String criterion, Long usepam, Double alpha, Long diss, Long randomSeed) {
+            calls++;
+            return new EstimateKResult().withBestK(minK);
+        }
+
+        @Override
+        public ClusterResults clusterKMeans(FloatMatrix2D matrix, Long k, Long nStart,
+                Long maxIter, Long randomSeed, String algorithm) {
+            return labels(matrix);
+        }
+
+        @Override
+        public ClusterResults clusterHierarchical(FloatMatrix2D matrix, String distanceMetric,
+                String linkageCriteria, Double heightCutoff, Long processRows,
+                String algorithm) {
+            return labels(matrix);
+        }
+
+        @Override
+        public ClusterResults clustersFromDendrogram(FloatMatrix2D matrix, String dendrogram,
+                Double heightCutoff) {
+            return labels(matrix);
+        }
+
+        @Override
+        public ClusterResults calcClusterQualities(FloatMatrix2D matrix,
+                List<Long> clusterLabels) {
+            return labels(matrix);
+        }
+    }
+
     private static FloatMatrix2D getSampleMatrix() {
         List<List<Double>> values = new ArrayList<List<Double>>();
         values.add(Arrays.asList(13.0, 2.0, 3.0));
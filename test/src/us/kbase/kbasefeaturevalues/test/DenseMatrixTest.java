@@ -0,0 +1,142 @@
+package us.kbase.kbasefeaturevalues.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.FloatMatrix2D;
+import us.kbase.kbasefeaturevalues.KBaseFeatureValuesImpl.BioMatrix;
+import us.kbase.kbasefeaturevalues.MatrixObjectReader;
+import us.kbase.kbasefeaturevalues.MatrixObjectReader.MatrixObject;
+import us.kbase.kbasefeaturevalues.MatrixUtil;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DenseMatrixTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        FloatMatrix2D matrix = getSampleMatrix();
+        DenseMatrix dense = DenseMatrix.fromFloatMatrix2D(matrix);
+        Assert.assertEquals(3, dense.getRowCount());
+        Assert.assertEquals(2, dense.getColCount());
+        Assert.assertTrue(dense.hasMissingValues());
+        Assert.assertTrue(dense.isMissing(1, 0));
+        Assert.assertNull(dense.getValue(1, 0));
+        Assert.assertTrue(Double.isNaN(dense.get(1, 0)));
+        Assert.assertEquals(6.0, dense.get(2, 1));
+        FloatMatrix2D view = dense.toFloatMatrix2D();
+        Assert.assertEquals(matrix.getValues(), view.getValues());
+        Assert.assertSame(dense, DenseMatrix.fromFloatMatrix2D(view));
+        view.getValues().get(0).set(1, 7.0);
+        Assert.assertEquals(7.0, dense.get(0, 1));
+        view.getValues().get(0).set(1, null);
+        Assert.assertTrue(dense.isMissing(0, 1));
+    }
+
+    @Test
+    public void transposedValues() throws Exception {
+        DenseMatrix dense = DenseMatrix.fromFloatMatrix2D(getSampleMatrix());
+        double[] transposed = dense.getTransposedValues();
+        Assert.assertEquals(6, transposed.length);
+        for (int row = 0; row < dense.getRowCount(); row++)
+            for (int col = 0; col < dense.getColCount(); col++)
+                Assert.assertEquals(dense.get(row, col), transposed[col * 3 + row]);
+        Assert.assertSame(transposed, dense.getTransposedValues());
+        dense.set(2, 1, 9.0);
+        Assert.assertEquals(9.0, dense.getTransposedValues()[5]);
+    }
+
+    @Test
+    public void transpose() throws Exception {
+        DenseMatrix dense = DenseMatrix.fromFloatMatrix2D(getSampleMatrix());
+        DenseMatrix transposed = dense.transpose();
+        Assert.assertEquals(Arrays.asList("c1", "c2"), transposed.getRowIds());
+        Assert.assertEquals(Arrays.asList("r1", "r2", "r3"), transposed.getColIds());
+        Assert.assertSame(dense.getTransposedValues(), transposed.getValues());
+        Assert.assertSame(dense.getValues(), transposed.getTransposedValues());
+        Assert.assertTrue(transposed.isMissing(0, 1));
+        Assert.assertNull(transposed.toFloatMatrix2D().getValues().get(0).get(1));
+        Assert.assertEquals(Arrays.asList(2.0, 4.0, 6.0),
+                transposed.toFloatMatrix2D().getValues().get(1));
+        Assert.assertSame(transposed, DenseMatrix.fromFloatMatrix2D(
+                transposed.toFloatMatrix2D()));
+    }
+
+    @Test
+    public void fillMissingValues() throws Exception {
+        FloatMatrix2D matrix = getSampleMatrix();
+        MatrixUtil.fillMissingValues(matrix);
+        List<List<Double>> values = matrix.getValues();
+        Assert.assertEquals(3.6, values.get(1).get(0), 1e-12);
+        Assert.assertEquals(6.0, values.get(2).get(1));
+        Assert.assertFalse(DenseMatrix.fromFloatMatrix2D(matrix).hasMissingValues());
+    }
+
+    @Test
+    public void streamingParse() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        BioMatrix input = new BioMatrix();
+        input.setGenomeRef("1/2/3");
+        input.setAdditionalProperties("scale", "log2");
+        input.setData(getSampleMatrix());
+        JsonParser jp = mapper.getFactory().createParser(mapper.writeValueAsBytes(input));
+        MatrixObject<BioMatrix> mo = MatrixObjectReader.parse(jp, BioMatrix.class);
+        Assert.assertEquals("1/2/3", mo.getObject().getGenomeRef());
+        Assert.assertEquals("log2", mo.getObject().getAdditionalProperties().get("scale"));
+        Assert.assertNull(mo.getObject().getData());
+        DenseMatrix dense = mo.getValues();
+        Assert.assertEquals(Arrays.asList("r1", "r2", "r3"), dense.getRowIds());
+        Assert.assertEquals(Arrays.asList("c1", "c2"), dense.getColIds());
+        Assert.assertEquals(getSampleMatrix().getValues(), dense.toFloatMatrix2D().getValues());
+        Assert.assertEquals(mapper.writeValueAsString(getSampleMatrix()),
+                mapper.writeValueAsString(dense.toFloatMatrix2D()));
+        input.setData(getSampleMatrix().withRowIds(new ArrayList<String>())
+                .withColIds(new ArrayList<String>()));
+        jp = mapper.getFactory().createParser(mapper.writeValueAsBytes(input));
+        try {
+            MatrixObjectReader.parse(jp, BioMatrix.class);
+            Assert.fail("Values not matching empty ids should be reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage().contains("don't match ids"));
+        }
+    }
+
+    @Test
+    public void streamingParseRows() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        BioMatrix input = new BioMatrix();
+        input.setData(getSampleMatrix());
+        BitSet rows = new BitSet();
+        rows.set(1);
+        rows.set(2);
+        JsonParser jp = mapper.getFactory().createParser(mapper.writeValueAsBytes(input));
+        DenseMatrix dense = MatrixObjectReader.parse(jp, BioMatrix.class, rows).getValues();
+        Assert.assertEquals(Arrays.asList("r2", "r3"), dense.getRowIds());
+        Assert.assertEquals(getSampleMatrix().getValues().subList(1, 3),
+                dense.toFloatMatrix2D().getValues());
+        rows.set(3);
+        jp = mapper.getFactory().createParser(mapper.writeValueAsBytes(input));
+        try {
+            MatrixObjectReader.parse(jp, BioMatrix.class, rows);
+            Assert.fail("Row out of matrix should be reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage().contains("out of matrix"));
+        }
+    }
+
+    private static FloatMatrix2D getSampleMatrix() {
+        return new FloatMatrix2D().withRowIds(Arrays.asList("r1", "r2", "r3"))
+                .withColIds(Arrays.asList("c1", "c2")).withValues(Arrays.asList(
+                        Arrays.asList(1.0, 2.0),
+                        Arrays.asList(null, 4.0),
+                        Arrays.asList(5.0, 6.0)));
+    }
+}
@@ -0,0 +1,387 @@
+package us.kbase.kbasefeaturevalues.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasefeaturevalues.CorrelatedRow;
+import us.kbase.kbasefeaturevalues.CorrelationEngine;
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.FloatMatrix2DUtil;
+import us.kbase.kbasefeaturevalues.GetMatrixSetStatParams;
+import us.kbase.kbasefeaturevalues.ItemSetStat;
+import us.kbase.kbasefeaturevalues.ItemStat;
+import us.kbase.kbasefeaturevalues.NeighborIndex;
+import us.kbase.kbasefeaturevalues.PairwiseComparison;
+import us.kbase.kbasefeaturevalues.TopCorrelatedRows;
+import us.kbase.kbasefeaturevalues.TopCorrelatedSearch;
+import us.kbase.kbasefeaturevalues.VectorStats;
+
+public class FloatMatrix2DUtilTest {
+
+    @Test
+    public void itemsStat() throws Exception {
+        DenseMatrix matrix = getRandomMatrix(200, 30, 0.05, 1);
+        for (boolean byRows : new boolean[] {true, false}) {
+            List<ItemStat> stats = byRows ?
+                    FloatMatrix2DUtil.getRowsStat(matrix, null, null, false) :
+                    FloatMatrix2DUtil.getColumnsStat(matrix, null, null, false);
+            int forCount = byRows ? matrix.getRowCount() : matrix.getColCount();
+            Assert.assertEquals(forCount, stats.size());
+            for (int i = 0; i < forCount; i++) {
+                double[] expected = twoPassStat(matrix, byRows, i);
+                ItemStat stat = stats.get(i);
+                Assert.assertEquals(i, (long)stat.getIndexFor());
+                assertClose(expected[0], stat.getAvg());
+                assertClose(expected[1], stat.getMin());
+                assertClose(expected[2], stat.getMax());
+                assertClose(expected[3], stat.getStd());
+                Assert.assertEquals((long)expected[4], (long)stat.getMissingValues());
+                Assert.assertEquals(byRows ? matrix.getColCount() : matrix.getRowCount(),
+                        (long)stat.getSize());
+            }
+        }
+    }
+
+    @Test
+    public void itemsSetStat() throws Exception {
+        DenseMatrix matrix = getRandomMatrix(50, 20, 0.1, 2);
+        List<Long> indecesFor = Arrays.asList(3L, 7L, 11L);
+        List<Long> indecesOn = Arrays.asList(0L, 2L, 4L, 6L, 8L);
+        ItemSetStat setStat = FloatMatrix2DUtil.getRowsSetStat(matrix, new GetMatrixSetStatParams()
+                .withItemIndecesFor(indecesFor).withItemIndecesOn(indecesOn)
+                .withFlAvgs(1L).withFlStds(1L).withFlMissingValues(1L));
+        Assert.assertEquals(3L, (long)setStat.getSize());
+        Assert.assertNull(setStat.getMins());
+        DenseMatrix sub = new DenseMatrix(Arrays.asList("a", "b", "c"),
+                Arrays.asList("1", "2", "3", "4", "5"));
+        for (int i = 0; i < indecesFor.size(); i++)
+            for (int j = 0; j < indecesOn.size(); j++)
+                sub.setValue(i, j, matrix.getValue((int)(long)indecesFor.get(i),
+                        (int)(long)indecesOn.get(j)));
+        for (int i = 0; i < indecesFor.size(); i++) {
+            double[] expected = twoPassStat(sub, true, i);
+            assertClose(expected[4] < 5 ? expected[0] : 0, setStat.getAvgs().get(i));
+            assertClose(Double.isNaN(expected[3]) ? 0 : expected[3], setStat.getStds().get(i));
+            Assert.assertEquals((long)expected[4], (long)setStat.getMissingValues().get(i));
+        }
+    }
+
+    @Test
+    public void parallelStat() throws Exception {
+        DenseMatrix matrix = getRandomMatrix(3000, 40, 0.02, 4);
+        for (boolean byRows : new boolean[] {true, false}) {
+            int[] indecesFor = VectorStats.toIndeces(null, byRows ? 3000 : 40);
+            int[] indecesOn = VectorStats.toIndeces(null, byRows ? 40 : 3000);
+            VectorStats serial = VectorStats.compute(matrix, byRows, indecesFor, indecesOn);
+            VectorStats parallel = VectorStats.compute(matrix, byRows, indecesFor, indecesOn, 100);
+            for (int i = 0; i < indecesFor.length; i++) {
+                Assert.assertEquals(serial.getCount(i), parallel.getCount(i));
+                Assert.assertEquals(serial.getMissingCount(i), parallel.getMissingCount(i));
+                Assert.assertEquals(serial.getMean(i), parallel.getMean(i));
+                Assert.assertEquals(serial.getMin(i), parallel.getMin(i));
+                Assert.assertEquals(serial.getMax(i), parallel.getMax(i));
+                Assert.assertEquals(serial.getStd(i), parallel.getStd(i));
+            }
+        }
+    }
+
+    @Test
+    public void rowsPairwiseCorrelation() throws Exception {
+        DenseMatrix matrix = getRandomMatrix(150, 12, 0.03, 5);
+        for (int col = 0; col < 12; col++)
+            matrix.set(7, col, 2.0);
+        int[] rowIndeces = VectorStats.toIndeces(null, 150);
+        int[] colIndeces = new int[] {0, 1, 2, 3, 5, 6, 7, 8, 9, 11};
+        long defaultThreshold = FloatMatrix2DUtil.getParallelThreshold();
+        PairwiseComparison serial = FloatMatrix2DUtil.geRowstPairwiseComparison(
+                matrix, rowIndeces, colIndeces);
+        FloatMatrix2DUtil.setParallelThreshold(10);
+        PairwiseComparison parallel;
+        try {
+            parallel = FloatMatrix2DUtil.geRowstPairwiseComparison(matrix, rowIndeces, colIndeces);
+        } finally {
+            FloatMatrix2DUtil.setParallelThreshold(defaultThreshold);
+        }
+        Assert.assertEquals(serial.getComparisonValues(), parallel.getComparisonValues());
+        Assert.assertEquals(150, serial.getIndeces().size());
+        for (int i = 0; i < rowIndeces.length; i++) {
+            double sum = 0;
+            int count = 0;
+            for (int j = 0; j < rowIndeces.length; j++) {
+                Double value = serial.getComparisonValues().get(i).get(j);
+                double expected = pearson(matrix, i, j, colIndeces);
+                if (Double.isNaN(expected)) {
+                    Assert.assertNull(value);
+                } else {
+                    Assert.assertEquals(expected, value, 1e-10);
+                    if (i != j) {
+                        sum += expected;
+                        count++;
+                    }
+                }
+            }
+            if (count > 0)
+                Assert.assertEquals(sum / count, serial.getAvgs().get(i), 1e-10);
+        }
+        Assert.assertNull(serial.getAvgs().get(7));
+    }
+
+    @Test
+    public void meanRowCorrelation() throws Exception {
+        int[] colIndeces = VectorStats.toIndeces(null, 12);
+        for (double missingFraction : new double[] {0, 0.05}) {
+            DenseMatrix matrix = getRandomMatrix(60, 12, missingFraction, 11);
+            int[] rowIndeces = new int[40];
+            for (int i = 0; i < rowIndeces.length; i++)
+                rowIndeces[i] = i + 20;
+            double sum = 0;
+            int count = 0;
+            for (int i = 0; i < rowIndeces.length; i++)
+                for (int j = 0; j < i; j++) {
+                    sum += pearson(matrix, rowIndeces[i], rowIndeces[j], colIndeces);
+                    count++;
+                }
+            Assert.assertEquals(sum / count, CorrelationEngine.meanRowCorrelation(matrix,
+                    rowIndeces, colIndeces, Long.MAX_VALUE), 1e-12);
+        }
+        DenseMatrix matrix = getRandomMatrix(10, 12, 0, 12);
+        for (int col = 0; col < 12; col++)
+            matrix.set(3, col, 1.0);
+        Assert.assertTrue(Double.isNaN(CorrelationEngine.meanRowCorrelation(matrix,
+                VectorStats.toIndeces(null, 10), colIndeces, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void columnsPairwiseCorrelation() throws Exception {
+        DenseMatrix matrix = getRandomMatrix(40, 9, 0.05, 6);
+        int[] colIndeces = new int[] {8, 0, 3, 4, 5};
+        int[] rowIndeces = new int[] {1, 2, 3, 5, 8, 13, 21, 34};
+        PairwiseComparison pc = FloatMatrix2DUtil.getColumnsPairwiseComparison(
+                matrix, colIndeces, rowIndeces);
+        DenseMatrix transposed = new DenseMatrix(matrix.getColIds(), matrix.getRowIds(),
+                matrix.getTransposedValues(), new BitSet());
+        PairwiseComparison expected = FloatMatrix2DUtil.geRowstPairwiseComparison(
+                transposed, colIndeces, rowIndeces);
+        Assert.assertEquals(Arrays.asList(8L, 0L, 3L, 4L, 5L), pc.getIndeces());
+        Assert.assertEquals(expected.getComparisonValues(), pc.getComparisonValues());
+        for (int i = 0; i < colIndeces.length; i++)
+            for (int j = 0; j < colIndeces.length; j++)
+                Assert.assertEquals(pearson(transposed, colIndeces[i], colIndeces[j], rowIndeces),
+                        pc.getComparisonValues().get(i).get(j), 1e-10);
+    }
+
+    @Test
+    public void topCorrelatedRows() throws Exception {
+        DenseMatrix matrix = getRandomMatrix(300, 15, 0.02, 7);
+        for (int col = 0; col < 15; col++) {
+            matrix.set(11, col, col * 0.5);
+            matrix.set(12, col, 3 - col * 0.25);
+            matrix.set(13, col, 1.0);
+        }
+        int[] queryRows = new int[] {11, 0, 13, 42, 11};
+        int[] colIndeces = VectorStats.toIndeces(null, 15);
+        long defaultThreshold = FloatMatrix2DUtil.getParallelThreshold();
+        for (TopCorrelatedSearch.Mode mode : TopCorrelatedSearch.Mode.values()) {
+            List<TopCorrelatedRows> serial = FloatMatrix2DUtil.getTopCorrelatedRows(
+                    matrix, queryRows, colIndeces, 8, mode);
+            FloatMatrix2DUtil.setParallelThreshold(10);
+            List<TopCorrelatedRows> parallel;
+            try {
+                parallel = FloatMatrix2DUtil.getTopCorrelatedRows(
+                        matrix, queryRows, colIndeces, 8, mode);
+            } finally {
+                FloatMatrix2DUtil.setParallelThreshold(defaultThreshold);
+            }
+            Assert.assertEquals(serial.toString(), parallel.toString());
+            Assert.assertEquals(queryRows.length, serial.size());
+            for (int q = 0; q < queryRows.length; q++) {
+                TopCorrelatedRows top = serial.get(q);
+                Assert.assertEquals(queryRows[q], (long)top.getQueryRowIndex());
+                Assert.assertEquals("r" + queryRows[q], top.getQueryRowId());
+                if (queryRows[q] == 13) {
+                    Assert.assertEquals(0, top.getRows().size());
+                    continue;
+                }
+                // Brute force: sort all other rows by score, ties by index
+                List<double[]> all = new ArrayList<double[]>();
+                for (int j = 0; j < 300; j++) {
+                    double cor = pearson(matrix, queryRows[q], j, colIndeces);
+                    if (j != queryRows[q] && !Double.isNaN(cor))
+                        all.add(new double[] {score(mode, cor), j, cor});
+                }
+                Collections.sort(all, new Comparator<double[]>() {
+                    @Override
+                    public int compare(double[] o1, double[] o2) {
+                        int ret = Double.compare(o2[0], o1[0]);
+                        return ret != 0 ? ret : Double.compare(o1[1], o2[1]);
+                    }
+                });
+                Assert.assertEquals(8, top.getRows().size());
+                for (int i = 0; i < 8; i++) {
+                    CorrelatedRow row = top.getRows().get(i);
+                    Assert.assertEquals(all.get(i)[2], row.getCorrelation(), 1e-10);
+                    Assert.assertEquals("r" + row.getRowIndex(), row.getRowId());
+                    if (i + 1 < all.size() && Math.abs(all.get(i)[0] - all.get(i + 1)[0]) > 1e-9)
+                        Assert.assertEquals((long)all.get(i)[1], (long)row.getRowIndex());
+                }
+            }
+            if (mode == TopCorrelatedSearch.Mode.NEGATIVE)
+                Assert.assertEquals(12L, (long)serial.get(0).getRows().get(0).getRowIndex());
+            if (mode == TopCorrelatedSearch.Mode.ABSOLUTE)
+                Assert.assertEquals(-1.0, serial.get(0).getRows().get(0).getCorrelation(), 1e-10);
+        }
+    }
+
+    @Test
+    public void neighborIndex() throws Exception {
+        DenseMatrix matrix = getRandomMatrix(200, 10, 0.02, 8);
+        for (int col = 0; col < 10; col++) {
+            matrix.set(3, col, col);
+            matrix.set(4, col, 5 - col);
+        }
+        File dir = new File("test/temp_neighbor_index");
+        File file = NeighborIndex.getIndexFile(dir, 1, 2, 3);
+        try {
+            NeighborIndex index = NeighborIndex.build(matrix, 6, file, 10);
+            Assert.assertEquals("1_2_3.nbr", file.getName());
+            Assert.assertEquals(200, index.getRowCount());
+            Assert.assertEquals(10, index.getColCount());
+            Assert.assertSame(index, NeighborIndex.open(file));
+            Assert.assertEquals(matrix.getRowIds(), new ArrayList<String>(index.getRowIds()));
+            Assert.assertEquals(17, index.findRow("r17"));
+            Assert.assertEquals(-1, index.findRow("r200"));
+            int[] queryRows = new int[] {3, 4, 0, 199};
+            int[] colIndeces = VectorStats.toIndeces(null, 10);
+            for (TopCorrelatedSearch.Mode mode : TopCorrelatedSearch.Mode.values()) {
+                for (int k : new int[] {1, 6}) {
+                    List<TopCorrelatedRows> expected = FloatMatrix2DUtil.getTopCorrelatedRows(
+                            matrix, queryRows, colIndeces, k, mode);
+                    List<TopCorrelatedRows> actual = FloatMatrix2DUtil.getTopCorrelatedRows(
+                            index, queryRows, k, mode);
+                    for (int q = 0; q < queryRows.length; q++) {
+                        List<CorrelatedRow> exp = expected.get(q).getRows();
+                        List<CorrelatedRow> act = actual.get(q).getRows();
+                        Assert.assertEquals(expected.get(q).getQueryRowId(), actual.get(q).getQueryRowId());
+                        Assert.assertEquals(exp.size(), act.size());
+                        for (int i = 0; i < exp.size(); i++) {
+                            Assert.assertEquals(exp.get(i).getCorrelation(), act.get(i).getCorrelation(), 1e-6);
+                            Assert.assertEquals(exp.get(i).getRowId(), act.get(i).getRowId());
+                        }
+                    }
+                }
+            }
+            Assert.assertEquals("r4", FloatMatrix2DUtil.getTopCorrelatedRows(index, new int[] {3}, 1,
+                    TopCorrelatedSearch.Mode.ABSOLUTE).get(0).getRows().get(0).getRowId());
+        } finally {
+            file.delete();
+            file.getParentFile().delete();
+            dir.delete();
+        }
+    }
+
+    private static double score(TopCorrelatedSearch.Mode mode, double cor) {
+        return mode == TopCorrelatedSearch.Mode.POSITIVE ? cor :
+            (mode == TopCorrelatedSearch.Mode.NEGATIVE ? -cor : Math.abs(cor));
+    }
+
+    private static double pearson(DenseMatrix matrix, int row1, int row2, int[] colIndeces) {
+        List<double[]> pairs = new ArrayList<double[]>();
+        for (int col : colIndeces) {
+            double x = matrix.get(row1, col);
+            double y = matrix.get(row2, col);
+            if (!Double.isNaN(x) && !Double.isNaN(y))
+                pairs.add(new double[] {x, y});
+        }
+        double mx = 0;
+        double my = 0;
+        for (double[] pair : pairs) {
+            mx += pair[0];
+            my += pair[1];
+        }
+        mx /= pairs.size();
+        my /= pairs.size();
+        double sxy = 0;
+        double sxx = 0;
+        double syy = 0;
+        for (double[] pair : pairs) {
+            sxy += (pair[0] - mx) * (pair[1] - my);
+            sxx += (pair[0] - mx) * (pair[0] - mx);
+            syy += (pair[1] - my) * (pair[1] - my);
+        }
+        if (pairs.size() < 2 || sxx == 0 || syy == 0)
+            return Double.NaN;
+        return sxy / Math.sqrt(sxx * syy);
+    }
+
+    private static void assertClose(double expected, Double actual) {
+        if (Double.isNaN(expected)) {
+            Assert.assertNull(actual);
+        } else {
+            Assert.assertNotNull(actual);
+            Assert.assertEquals(expected, actual, 1e-12 * Math.max(1, Math.abs(expected)));
+        }
+    }
+
+    /**
+     * Reference implementation (two passes, mean then std) that was used before.
+     * Returns [avg, min, max, std, missing] where NaN stands for undefined.
+     */
+    private static double[] twoPassStat(DenseMatrix matrix, boolean byRows, int indexFor) {
+        int size = byRows ? matrix.getColCount() : matrix.getRowCount();
+        double avg = 0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        double std = 0;
+        int goodCount = 0;
+        int badCount = 0;
+        for (int j = 0; j < size; j++) {
+            double value = byRows ? matrix.get(indexFor, j) : matrix.get(j, indexFor);
+            if (!Double.isNaN(value)) {
+                goodCount++;
+                avg += value;
+                min = Double.isNaN(min) || value < min ? value : min;
+                max = Double.isNaN(max) || value > max ? value : max;
+            } else {
+                badCount++;
+            }
+        }
+        if (goodCount > 1) {
+            avg /= goodCount;
+            for (int j = 0; j < size; j++) {
+                double value = byRows ? matrix.get(indexFor, j) : matrix.get(j, indexFor);
+                if (!Double.isNaN(value))
+                    std += (avg - value) * (avg - value);
+            }
+            std = Math.sqrt(std / (goodCount - 1));
+        }
+        return new double[] {goodCount > 0 ? avg : Double.NaN, min, max,
+                goodCount > 1 ? std : Double.NaN, badCount};
+    }
+
+    public static DenseMatrix getRandomMatrix(int rowCount, int colCount,
+            double missingFraction, long seed) {
+        Random rnd = new Random(seed);
+        List<String> rowIds = new ArrayList<String>();
+        for (int i = 0; i < rowCount; i++)
+            rowIds.add("r" + i);
+        List<String> colIds = new ArrayList<String>();
+        for (int j = 0; j < colCount; j++)
+            colIds.add("c" + j);
+        DenseMatrix ret = new DenseMatrix(rowIds, colIds);
+        for (int i = 0; i < rowCount; i++)
+            for (int j = 0; j < colCount; j++)
+                if (rnd.nextDouble() >= missingFraction)
+                    ret.set(i, j, 10 + rnd.nextGaussian() * 3);
+        return ret;
+    }
+}
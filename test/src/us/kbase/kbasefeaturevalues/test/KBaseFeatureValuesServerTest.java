@@ -12,6 +12,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -67,6 +68,7 @@ import us.kbase.auth.AuthConfig;
 import us.kbase.auth.AuthToken;
 import us.kbase.auth.ConfigurableAuthService;
 import us.kbase.clusterservice.ClusterResults;
+import us.kbase.clusterservice.ClusterServiceJavaLocalClient;
 import us.kbase.common.service.JsonServerSyslog;
 import us.kbase.common.service.JsonClientException;
 import us.kbase.common.service.RpcContext;
@@ -369,6 +371,63 @@ public class KBaseFeatureValuesServerTest {
         Assert.assertEquals(2, clusters.size());
     }
 
+    @Test
+    public void testClusterConditions() throws Exception {
+        FloatMatrix2D matrixData = getSampleMatrix();
+        final ClusterServiceJavaLocalClient mathClient = new ClusterServiceJavaLocalClient(null);
+        final Set<String> threads = Collections.synchronizedSet(new TreeSet<String>());
+        ClusterResults[] res = KBaseFeatureValuesImpl.clusterFeaturesAndConditions(matrixData,
+                "both", new KBaseFeatureValuesImpl.MatrixClustering() {
+            @Override
+            public ClusterResults cluster(FloatMatrix2D data, boolean conditions)
+                    throws Exception {
+                threads.add(Thread.currentThread().getName());
+                return mathClient.clusterHierarchical(data, null, null, 0.5, null, null);
+            }
+        });
+        Assert.assertEquals(2, threads.size());
+        FeatureClusters clSet = KBaseFeatureValuesImpl.toFeatureClusters(matrixData, res);
+        int featureCount = 0;
+        for (LabeledCluster cluster : clSet.getFeatureClusters())
+            featureCount += cluster.getIdToPos().size();
+        Assert.assertEquals(7, featureCount);
+        Assert.assertNotNull(clSet.getFeatureDendrogram());
+        Assert.assertNotNull(clSet.getConditionDendrogram());
+        Set<String> conditionIds = new TreeSet<String>();
+        for (LabeledCluster cluster : clSet.getConditionClusters())
+            conditionIds.addAll(cluster.getIdToPos().keySet());
+        Assert.assertEquals("[c1, c2, c3]", conditionIds.toString());
+        res = KBaseFeatureValuesImpl.clusterFeaturesAndConditions(matrixData, "conditions",
+                new KBaseFeatureValuesImpl.MatrixClustering() {
+            @Override
+            public ClusterResults cluster(FloatMatrix2D data, boolean conditions)
+                    throws Exception {
+                Assert.assertTrue(conditions);
+                Assert.assertEquals(Arrays.asList(13.0, 10.9, 2.45, 2.5, -1.05, -1.2, -1.1),
+                        data.getValues().get(0));
+                return mathClient.clusterKMeans(data, 2L, null, null, 1L, null);
+            }
+        });
+        Assert.assertNull(res[0]);
+        clSet = KBaseFeatureValuesImpl.toFeatureClusters(matrixData, res);
+        Assert.assertEquals(0, clSet.getFeatureClusters().size());
+        Assert.assertEquals(2, clSet.getConditionClusters().size());
+        try {
+            KBaseFeatureValuesImpl.clusterFeaturesAndConditions(matrixData, "both",
+                    new KBaseFeatureValuesImpl.MatrixClustering() {
+                @Override
+                public ClusterResults cluster(FloatMatrix2D data, boolean conditions) {
+                    if (conditions)
+                        throw new IllegalStateException("Condition clustering failed");
+                    return new ClusterResults();
+                }
+            });
+            Assert.fail("Error of condition clustering should be passed to caller");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("Condition clustering failed", ex.getMessage());
+        }
+    }
+
 
     private static void checkKMeansForSample(FeatureClusters clSet) {
         Assert.assertEquals(3, clSet.getFeatureClusters().size());
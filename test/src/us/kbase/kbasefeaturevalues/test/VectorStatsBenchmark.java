@@ -0,0 +1,89 @@
+package us.kbase.kbasefeaturevalues.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import us.kbase.kbasefeaturevalues.DenseMatrix;
+import us.kbase.kbasefeaturevalues.VectorStats;
+
+/**
+ * Compares rows stat kernel ({@link VectorStats}) with previous code path of
+ * getItemsStat (boxed values, list indeces, two passes for mean and std). It's
+ * not a unit test, run it by "ant benchmark" after "ant compile" or directly
+ * with optional arguments: row count, column count, measured iterations.
+ * JMH isn't part of our build, so both paths are warmed up before timing and
+ * their results are summed into checksum printed in the end, so that JIT can't
+ * drop them.
+ */
+public class VectorStatsBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int rowCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int colCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        DenseMatrix matrix = FloatMatrix2DUtilTest.getRandomMatrix(rowCount, colCount, 0.01, 3);
+        int[] indecesFor = VectorStats.toIndeces(null, rowCount);
+        int[] indecesOn = VectorStats.toIndeces(null, colCount);
+        List<List<Double>> boxed = new ArrayList<List<Double>>();
+        for (List<Double> row : matrix.toFloatMatrix2D().getValues())
+            boxed.add(new ArrayList<Double>(row));
+        List<Long> boxedIndecesOn = new ArrayList<Long>();
+        for (int index : indecesOn)
+            boxedIndecesOn.add((long)index);
+        double checksum = 0;
+        double maxDiff = 0;
+        long singlePassNs = 0;
+        long twoPassNs = 0;
+        for (int iter = 0; iter < WARMUP_ITERATIONS + iterations; iter++) {
+            long time = System.nanoTime();
+            VectorStats stats = VectorStats.compute(matrix, true, indecesFor, indecesOn);
+            long singlePass = System.nanoTime() - time;
+            time = System.nanoTime();
+            double[] stds = new double[rowCount];
+            for (int i = 0; i < rowCount; i++)
+                stds[i] = boxedTwoPassStd(boxed.get(i), boxedIndecesOn);
+            long twoPass = System.nanoTime() - time;
+            for (int i = 0; i < rowCount; i++) {
+                double std = stats.getStd(i);
+                checksum += std + stds[i];
+                maxDiff = Math.max(maxDiff, Math.abs(std - stds[i]));
+            }
+            if (iter >= WARMUP_ITERATIONS) {
+                singlePassNs += singlePass;
+                twoPassNs += twoPass;
+            }
+        }
+        System.out.println("Rows stat for " + rowCount + " x " + colCount + ", average of " +
+                iterations + " iterations: single-pass kernel " +
+                String.format("%.3f", singlePassNs / 1e6 / iterations) + " ms, boxed two-pass " +
+                String.format("%.3f", twoPassNs / 1e6 / iterations) + " ms");
+        System.out.println("Max std difference: " + maxDiff + ", checksum: " + checksum);
+    }
+
+    /**
+     * Standard deviation as it was calculated before single-pass kernel.
+     */
+    private static double boxedTwoPassStd(List<Double> row, List<Long> indecesOn) {
+        double avg = 0;
+        int goodCount = 0;
+        for (int j = 0; j < indecesOn.size(); j++) {
+            Double value = row.get(indecesOn.get(j).intValue());
+            if (value != null && !Double.isNaN(value)) {
+                goodCount++;
+                avg += value;
+            }
+        }
+        double std = 0;
+        if (goodCount > 1) {
+            avg /= goodCount;
+            for (int j = 0; j < indecesOn.size(); j++) {
+                Double value = row.get(indecesOn.get(j).intValue());
+                if (value != null && !Double.isNaN(value))
+                    std += (avg - value) * (avg - value);
+            }
+            std = Math.sqrt(std / (goodCount - 1));
+        }
+        return std;
+    }
+}